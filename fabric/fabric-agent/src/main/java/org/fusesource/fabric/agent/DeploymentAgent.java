@@ -22,9 +22,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -41,12 +43,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.bundlerepository.Resource;
@@ -64,6 +72,7 @@ import org.apache.karaf.features.internal.RepositoryImpl;
 import org.apache.zookeeper.CreateMode;
 import org.fusesource.fabric.agent.download.DownloadFuture;
 import org.fusesource.fabric.agent.download.DownloadManager;
+import org.fusesource.fabric.agent.download.MetadataCache;
 import org.fusesource.fabric.agent.download.FutureListener;
 import org.fusesource.fabric.agent.mvn.DictionaryPropertyResolver;
 import org.fusesource.fabric.agent.mvn.MavenConfigurationImpl;
@@ -73,7 +82,9 @@ import org.fusesource.fabric.agent.mvn.PropertiesPropertyResolver;
 import org.fusesource.fabric.agent.mvn.PropertyStore;
 import org.fusesource.fabric.agent.sort.RequirementSort;
 import org.fusesource.fabric.agent.utils.ChecksumUtils;
+import org.fusesource.fabric.agent.utils.DigestCache;
 import org.fusesource.fabric.agent.utils.MultiException;
+import org.fusesource.fabric.fab.DependencyTree;
 import org.fusesource.fabric.fab.MavenResolver;
 import org.fusesource.fabric.fab.MavenResolverImpl;
 import org.fusesource.fabric.fab.osgi.FabBundleInfo;
@@ -120,17 +131,26 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
     private ServiceTracker zkClient;
 
     private final Object refreshLock = new Object();
-    private long refreshTimeout = 5000;
+    // safety deadline only, the wait normally ends with the PACKAGES_REFRESHED event
+    private long refreshTimeout = TimeUnit.MINUTES.toMillis(5);
+    private long refreshCount;
+
+    private volatile int provisionThreads = 1;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("fabric-agent"));
+    private ThreadPoolExecutor provisionExecutor;
     private ExecutorService downloadExecutor;
     private volatile boolean shutdownDownloadExecutor;
     private DownloadManager manager;
+    private final MetadataCache metadataCache = new MetadataCache();
     private ExecutorServiceFinder executorServiceFinder;
 
 	private final RequirementSort requirementSort = new RequirementSort();
 
     private Properties checksums;
+    private DigestCache digests;
+    private String resolutionKey;
+    private List<Resource> resolution;
 
     public DeploymentAgent() throws MalformedURLException {
         final MavenConfigurationImpl config = new MavenConfigurationImpl(
@@ -197,12 +217,12 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
                     long systemChecksum = 0;
                     long agentChecksum = 0;
                     try {
-                        systemChecksum = ChecksumUtils.checksum(new FileInputStream(systemPath));
+                        systemChecksum = getDigests().checksum(new File(systemPath));
                     } catch (Exception e) {
                         LOGGER.debug("Error calculating checksum for file: %s", systemPath, e);
                     }
                     try {
-                        agentChecksum = ChecksumUtils.checksum(new FileInputStream(agentDownloadsPath));
+                        agentChecksum = getDigests().checksum(new File(agentDownloadsPath));
                     } catch (Exception e) {
                         LOGGER.debug("Error calculating checksum for file: %s", agentDownloadsPath, e);
                     }
@@ -214,6 +234,7 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
             }
         }
         checksums.save();
+        getDigests().save();
     }
 
     public void stop() throws InterruptedException {
@@ -221,6 +242,12 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
         // We can't wait for the threads to finish because the agent needs to be able to
         // update itself and this would cause a deadlock
         executor.shutdown();
+        synchronized (this) {
+            if (provisionExecutor != null) {
+                provisionExecutor.shutdown();
+                provisionExecutor = null;
+            }
+        }
         if (shutdownDownloadExecutor && downloadExecutor != null) {
             downloadExecutor.shutdown();
             downloadExecutor = null;
@@ -311,6 +338,15 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
         );
         config.setSettings(new MavenSettingsImpl(config.getSettingsFileUrl(), config.useFallbackRepositories()));
         manager = new DownloadManager(config, getDownloadExecutor());
+        manager.setMetadataCache(metadataCache);
+        Object maxConnections = props.get("download.connections.per.host");
+        if (maxConnections != null && maxConnections.toString().trim().length() > 0) {
+            manager.setMaxConnectionsPerHost(Integer.parseInt(maxConnections.toString().trim()));
+        }
+        Object sharedRepository = props.get("download.shared.repository");
+        if (sharedRepository != null && sharedRepository.toString().trim().length() > 0) {
+            manager.setSharedRepository(new File(sharedRepository.toString().trim()));
+        }
         Map<String, String> properties = new HashMap<String, String>();
         for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
             Object key = e.nextElement();
@@ -319,6 +355,7 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
                 properties.put(key.toString(), val.toString());
             }
         }
+        provisionThreads = parseProvisionThreads(properties.get("provision.threads"));
         // Update framework, system and config props
         boolean restart = false;
         Properties configProps = new Properties(new File(System.getProperty("karaf.base") + File.separator + "etc" + File.separator + "config.properties"));
@@ -563,7 +600,7 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
         updateStatus("downloading", null);
         Map<String, File> downloads = downloadBundles(allFeatures, bundles, overrides);
         updateStatus("resolving", null);
-        List<Resource> allResources = getObrResolver().resolve(allFeatures, bundles, infos, overrides, downloads);
+        List<Resource> allResources = resolve(allFeatures, bundles, infos, overrides, downloads, fabDownloads);
 
         updateStatus("installing", null, allResources, true);
         Map<Resource, Bundle> resToBnd = new HashMap<Resource, Bundle>();
@@ -575,7 +612,7 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
         }
         LOGGER.info(sb.toString());
 
-        Map<String, String> newCheckums = new HashMap<String, String>();
+        Map<String, String> newCheckums = new ConcurrentHashMap<String, String>();
         List<Resource> toDeploy = new ArrayList<Resource>(allResources);
         List<Resource> toInstall = new ArrayList<Resource>();
         List<Bundle> toDelete = new ArrayList<Bundle>();
@@ -596,21 +633,13 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
                         if (res.getVersion().equals(bundle.getVersion())) {
                             if (res.getVersion().getQualifier().endsWith("SNAPSHOT")) {
                                 // if the checksum are different
-                                InputStream is = null;
-                                try {
-                                is = getBundleInputStream(res, downloads, infos);
-                                long newCrc = ChecksumUtils.checksum(is);
+                                long newCrc = checksum(res, downloads, infos);
                                 long oldCrc = checksums.containsKey(bundle.getLocation()) ? Long.parseLong((String) checksums.get(bundle.getLocation())) : 0l;
                                 if (newCrc != oldCrc) {
                                     LOGGER.debug("New snapshot available for " + bundle.getLocation());
                                     update = true;
                                     newCheckums.put(bundle.getLocation(), Long.toString(newCrc));
                                 }
-                                }finally {
-                                    if (is != null) {
-                                        is.close();
-                                    }
-                                }
                             }
                             resource = res;
                             break;
@@ -714,16 +743,10 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
             toRefresh.add(bundle);
         }
         LOGGER.info("Installing bundles:");
-        for (Resource resource : toInstall) {
-            LOGGER.info("  " + resource.getURI());
-            InputStream is = getBundleInputStream(resource, downloads, infos);
-            Bundle bundle = systemBundleContext.installBundle(resource.getURI(), is);
-            toRefresh.add(bundle);
-            resToBnd.put(resource, bundle);
-            // save a checksum of installed snapshot bundle
-            if (bundle.getVersion().getQualifier().endsWith("SNAPSHOT") && !newCheckums.containsKey(bundle.getLocation())) {
-                newCheckums.put(bundle.getLocation(), Long.toString(ChecksumUtils.checksum(getBundleInputStream(resource, downloads, infos))));
-            }
+        List<Bundle> installed = installBundles(toInstall, downloads, infos, newCheckums);
+        for (int i = 0; i < toInstall.size(); i++) {
+            toRefresh.add(installed.get(i));
+            resToBnd.put(toInstall.get(i), installed.get(i));
         }
 
         if (!newCheckums.isEmpty()) {
@@ -732,6 +755,7 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
             }
             checksums.save();
         }
+        getDigests().save();
 
         findBundlesWithOptionalPackagesToRefresh(toRefresh);
         findBundlesWithFragmentsToRefresh(toRefresh);
@@ -751,25 +775,258 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
         // are given back by the resolution, meaning that all root bundles (i.e. those that were
         // not flagged as dependencies in features) are started before the others.   This should
         // make sure those important bundles are started first and minimize the problem.
+        // When starting bundles concurrently, bundles are grouped in waves so that a bundle
+        // is only started once the bundles it depends on have been started.
         List<Throwable> exceptions = new ArrayList<Throwable>();
         LOGGER.info("Starting bundles:");
-        for (Resource resource : requirementSort.sort(allResources)) {
+        if (provisionThreads > 1) {
+            for (List<Resource> wave : requirementSort.sortInWaves(allResources)) {
+                exceptions.addAll(startBundles(wave, resToBnd));
+            }
+        } else {
+            exceptions.addAll(startBundles(requirementSort.sort(allResources), resToBnd));
+        }
+        if (!exceptions.isEmpty()) {
+            throw new MultiException("Error updating agent", exceptions);
+        }
+
+        LOGGER.info("Done.");
+    }
+
+    /**
+     * Resolves the given features and bundles, reusing the previous resolution if none of
+     * its inputs has changed.  The inputs are identified by a hash of the requested features,
+     * bundles, fabs and overrides, of the content of the downloaded artifacts and of the state
+     * of the OBR repositories.  The resolved uris are persisted, so that the resolution is
+     * not performed again after a restart.
+     */
+    private List<Resource> resolve(Set<Feature> features,
+                                   Set<String> bundles,
+                                   Map<String, FabBundleInfo> infos,
+                                   Set<String> overrides,
+                                   Map<String, File> downloads,
+                                   Map<String, File> fabDownloads) throws Exception {
+        String key = getResolutionKey(features, bundles, infos, overrides, downloads, fabDownloads);
+        if (key.equals(resolutionKey)) {
+            LOGGER.info("Inputs of the resolution are unchanged, reusing the previous resolution");
+            return new ArrayList<Resource>(resolution);
+        }
+        List<Resource> resources = null;
+        File file = bundleContext.getDataFile("resolution.properties");
+        Properties cache = new Properties(file);
+        if (key.equals(cache.get("key"))) {
+            List<String> uris = new ArrayList<String>();
+            for (int i = 0; cache.containsKey("resource." + i); i++) {
+                uris.add(cache.get("resource." + i));
+            }
+            try {
+                resources = getObrResolver().createResources(uris, infos, downloads);
+                LOGGER.info("Inputs of the resolution are unchanged, reusing the persisted resolution");
+            } catch (Exception e) {
+                LOGGER.warn("Unable to reuse the persisted resolution, resolving again", e);
+            }
+        }
+        if (resources == null) {
+            resources = getObrResolver().resolve(features, bundles, infos, overrides, downloads);
+            cache = new Properties();
+            cache.put("key", key);
+            for (int i = 0; i < resources.size(); i++) {
+                cache.put("resource." + i, resources.get(i).getURI());
+            }
+            cache.save(file);
+        }
+        resolutionKey = key;
+        resolution = new ArrayList<Resource>(resources);
+        return resources;
+    }
+
+    private String getResolutionKey(Set<Feature> features,
+                                    Set<String> bundles,
+                                    Map<String, FabBundleInfo> infos,
+                                    Set<String> overrides,
+                                    Map<String, File> downloads,
+                                    Map<String, File> fabDownloads) throws Exception {
+        List<String> entries = new ArrayList<String>();
+        for (Feature feature : features) {
+            entries.add("feature:" + feature.getName() + "/" + feature.getVersion());
+        }
+        for (String bundle : bundles) {
+            entries.add("bundle:" + bundle);
+        }
+        for (FabBundleInfo info : infos.values()) {
+            entries.add("fab:" + info.getUrl());
+            for (DependencyTree dep : info.getBundles()) {
+                if (dep.isBundle()) {
+                    entries.add("fab-dependency:" + dep.getUrl());
+                }
+            }
+        }
+        for (String override : overrides) {
+            entries.add("override:" + override);
+        }
+        for (Map.Entry<String, File> entry : downloads.entrySet()) {
+            entries.add("download:" + entry.getKey() + "=" + getDigests().checksum(entry.getValue()));
+        }
+        for (Map.Entry<String, File> entry : fabDownloads.entrySet()) {
+            entries.add("fab-download:" + entry.getKey() + "=" + getDigests().checksum(entry.getValue()));
+        }
+        for (org.apache.felix.bundlerepository.Repository repository : getObrResolver().getRepositoryAdmin().listRepositories()) {
+            entries.add("repository:" + repository.getURI() + "@" + repository.getLastModified());
+        }
+        entries.add("framework:" + systemBundleContext.getBundle().getVersion());
+        entries.add("optional:" + getObrResolver().isResolveOptionalImports());
+        Collections.sort(entries);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (String entry : entries) {
+            digest.update(entry.getBytes("UTF-8"));
+            digest.update((byte) '\n');
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    /**
+     * Computes the checksum of the given resource, using the cached digest of its download if any.
+     */
+    private long checksum(Resource resource, Map<String, File> downloads, Map<String, FabBundleInfo> infos) throws Exception {
+        File file = downloads.get(resource.getURI());
+        if (file != null) {
+            return getDigests().checksum(file);
+        }
+        return ChecksumUtils.checksum(getBundleInputStream(resource, downloads, infos));
+    }
+
+    private synchronized DigestCache getDigests() throws IOException {
+        if (digests == null) {
+            digests = new DigestCache(bundleContext.getDataFile("digests.properties"));
+        }
+        return digests;
+    }
+
+    /**
+     * Installs the given resources from the downloaded files.
+     * @return the installed bundles, in the order of the resources
+     */
+    private List<Bundle> installBundles(List<Resource> resources, final Map<String, File> downloads, final Map<String, FabBundleInfo> infos, final Map<String, String> newCheckums) throws Exception {
+        List<Callable<Bundle>> tasks = new ArrayList<Callable<Bundle>>();
+        for (final Resource resource : resources) {
+            tasks.add(new Callable<Bundle>() {
+                public Bundle call() throws Exception {
+                    LOGGER.info("  " + resource.getURI());
+                    InputStream is = getBundleInputStream(resource, downloads, infos);
+                    Bundle bundle = systemBundleContext.installBundle(resource.getURI(), is);
+                    // save a checksum of installed snapshot bundle
+                    if (bundle.getVersion().getQualifier().endsWith("SNAPSHOT") && !newCheckums.containsKey(bundle.getLocation())) {
+                        newCheckums.put(bundle.getLocation(), Long.toString(checksum(resource, downloads, infos)));
+                    }
+                    return bundle;
+                }
+            });
+        }
+        return execute(tasks, "Error installing bundles");
+    }
+
+    /**
+     * Starts the bundles of the given resources which are neither fragments nor already active.
+     * When starting concurrently, the bundles are first resolved together, in a single call.
+     * @return the exceptions thrown while starting the bundles
+     */
+    private List<Throwable> startBundles(Collection<Resource> resources, Map<Resource, Bundle> resToBnd) throws Exception {
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        for (Resource resource : resources) {
             Bundle bundle = resToBnd.get(resource);
             String hostHeader = (String) bundle.getHeaders().get(Constants.FRAGMENT_HOST);
             if (hostHeader == null && bundle.getState() != Bundle.ACTIVE) {
-                LOGGER.info("  " + bundle.getSymbolicName() + " / " + bundle.getVersion());
-                try {
-                    bundle.start();
-                } catch (BundleException e) {
-                    exceptions.add(e);
+                bundles.add(bundle);
+            }
+        }
+        if (provisionThreads > 1 && bundles.size() > 1 && getPackageAdmin() != null) {
+            getPackageAdmin().resolveBundles(bundles.toArray(new Bundle[bundles.size()]));
+        }
+        List<Callable<BundleException>> tasks = new ArrayList<Callable<BundleException>>();
+        for (final Bundle bundle : bundles) {
+            tasks.add(new Callable<BundleException>() {
+                public BundleException call() throws Exception {
+                    LOGGER.info("  " + bundle.getSymbolicName() + " / " + bundle.getVersion());
+                    try {
+                        bundle.start();
+                        return null;
+                    } catch (BundleException e) {
+                        return e;
+                    }
                 }
+            });
+        }
+        List<Throwable> exceptions = new ArrayList<Throwable>();
+        for (BundleException e : execute(tasks, "Error starting bundles")) {
+            if (e != null) {
+                exceptions.add(e);
             }
         }
-        if (!exceptions.isEmpty()) {
-            throw new MultiException("Error updating agent", exceptions);
+        return exceptions;
+    }
+
+    /**
+     * Runs the given tasks, concurrently if more than one provisioning thread
+     * has been configured, or in the calling thread otherwise.
+     * @return the results of the tasks, in the order of the tasks
+     */
+    private <T> List<T> execute(List<Callable<T>> tasks, String message) throws Exception {
+        List<T> results = new ArrayList<T>();
+        if (provisionThreads <= 1 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        List<Throwable> exceptions = new ArrayList<Throwable>();
+        for (Future<T> future : getProvisionExecutor().invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                exceptions.add(e.getCause());
+            }
         }
+        if (exceptions.size() == 1 && exceptions.get(0) instanceof Exception) {
+            throw (Exception) exceptions.get(0);
+        } else if (!exceptions.isEmpty()) {
+            throw new MultiException(message, exceptions);
+        }
+        return results;
+    }
 
-        LOGGER.info("Done.");
+    /**
+     * Returns the thread pool used to install and start bundles concurrently, sized
+     * after the number of provisioning threads. Its threads are released when idle.
+     */
+    protected synchronized ExecutorService getProvisionExecutor() {
+        int threads = provisionThreads;
+        if (provisionExecutor == null) {
+            provisionExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("fabric-agent-provision"));
+            provisionExecutor.allowCoreThreadTimeOut(true);
+        } else if (threads > provisionExecutor.getMaximumPoolSize()) {
+            provisionExecutor.setMaximumPoolSize(threads);
+            provisionExecutor.setCorePoolSize(threads);
+        } else if (threads < provisionExecutor.getMaximumPoolSize()) {
+            provisionExecutor.setCorePoolSize(threads);
+            provisionExecutor.setMaximumPoolSize(threads);
+        }
+        return provisionExecutor;
+    }
+
+    static int parseProvisionThreads(String threads) {
+        if (threads != null && threads.trim().length() > 0) {
+            try {
+                int value = Integer.parseInt(threads.trim());
+                if (value >= 1) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // ignore, use the default below
+            }
+            LOGGER.warn("Invalid provision.threads value: " + threads + ". Bundles will be provisioned by a single thread.");
+        }
+        return 1;
     }
 
     protected static InputStream getBundleInputStream(Resource resource, Map<String, File> downloads, Map<String, FabBundleInfo> infos) throws Exception {
@@ -1036,22 +1293,34 @@ public class DeploymentAgent implements ManagedService, FrameworkListener {
     public void frameworkEvent(FrameworkEvent event) {
         if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
             synchronized (refreshLock) {
+                refreshCount++;
                 refreshLock.notifyAll();
             }
         }
         if (event.getType() == FrameworkEvent.ERROR) {
+            // errors are reported during the refresh, which is still running
             LOGGER.error("Framework error", event.getThrowable());
-            synchronized (refreshLock) {
-                refreshLock.notifyAll();
-            }
         }
     }
 
+    /**
+     * Refreshes the given bundles and waits for the framework to signal the end of
+     * the refresh, or for the refresh timeout to expire.
+     */
     protected void refreshPackages(Bundle[] bundles) throws InterruptedException {
         if (getPackageAdmin() != null) {
             synchronized (refreshLock) {
+                long count = refreshCount;
                 getPackageAdmin().refreshPackages(bundles);
-                refreshLock.wait(refreshTimeout);
+                long deadline = System.currentTimeMillis() + refreshTimeout;
+                while (refreshCount == count) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        LOGGER.warn("Packages have not been refreshed after " + refreshTimeout + " ms");
+                        break;
+                    }
+                    refreshLock.wait(wait);
+                }
             }
         }
     }
@@ -128,11 +128,7 @@ public class ObrResolver {
             infos.put(res, new SimpleBundleInfo(bundle, false));
         }
         for (FabBundleInfo fab : fabs.values()) {
-            Resource res = repositoryAdmin.getHelper().createResource(fab.getManifest());
-            if (res == null) {
-                throw new IllegalArgumentException("Unable to build OBR representation for fab " + fab.getUrl());
-            }
-            ((ResourceImpl) res).put(Resource.URI, DeploymentAgent.FAB_PROTOCOL + fab.getUrl(), Property.URI);
+            Resource res = createFabResource(fab);
             ress.add(res);
             infos.put(res, new SimpleBundleInfo(fab.getUrl(), false));
             for (DependencyTree dep : fab.getBundles()) {
@@ -223,6 +219,32 @@ public class ObrResolver {
         return deploy;
     }
 
+    /**
+     * Builds the resources for the given uris, such as the ones of a previous resolution.
+     */
+    public List<Resource> createResources(List<String> uris,
+                                          Map<String, FabBundleInfo> fabs,
+                                          Map<String, File> downloads) throws Exception {
+        List<Resource> resources = new ArrayList<Resource>();
+        for (String uri : uris) {
+            Resource res;
+            if (uri.startsWith(DeploymentAgent.FAB_PROTOCOL)) {
+                FabBundleInfo fab = fabs.get(uri);
+                if (fab == null) {
+                    throw new IllegalArgumentException("Unable to find fab " + uri);
+                }
+                res = createFabResource(fab);
+            } else {
+                res = createResource(uri, downloads, fabs);
+                if (res == null) {
+                    throw new IllegalArgumentException("Unable to build OBR representation for bundle " + uri);
+                }
+            }
+            resources.add(res);
+        }
+        return resources;
+    }
+
     private boolean doResolve(org.apache.felix.bundlerepository.Resolver resolver) {
         if (resolveOptionalImports) {
             return resolver.resolve();
@@ -259,6 +281,15 @@ public class ObrResolver {
                 .replace("-7-", "-70-");
     }
 
+    protected Resource createFabResource(FabBundleInfo fab) throws Exception {
+        Resource res = repositoryAdmin.getHelper().createResource(fab.getManifest());
+        if (res == null) {
+            throw new IllegalArgumentException("Unable to build OBR representation for fab " + fab.getUrl());
+        }
+        ((ResourceImpl) res).put(Resource.URI, DeploymentAgent.FAB_PROTOCOL + fab.getUrl(), Property.URI);
+        return res;
+    }
+
     protected Resource createResource(String uri, Map<String, File> urls, Map<String, FabBundleInfo> infos) throws Exception {
         URL url = new URL(uri);
         Attributes attributes = getAttributes(uri, urls, infos);
@@ -90,6 +90,9 @@ public abstract class AbstractDownloadTask extends DefaultFuture<DownloadFuture>
                     }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            setException(initIOException("Interrupted while downloading " + url, e));
         } catch (Throwable e) {
             setException(initIOException("Error downloading " + url, e));
         }
@@ -19,7 +19,11 @@ package org.fusesource.fabric.agent.download;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 import org.fusesource.fabric.agent.mvn.MavenConfiguration;
 import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
@@ -40,6 +44,28 @@ public class DownloadManager {
 
     private final MavenRepositoryURL system;
 
+    /**
+     * Repository shared with other containers, looked up before the remote repositories.
+     */
+    private MavenRepositoryURL shared;
+
+    /**
+     * Maximum number of concurrent connections to a remote host, 0 meaning unlimited.
+     */
+    private int maxConnectionsPerHost;
+
+    /**
+     * Cache of the metadata of the remote repositories.
+     */
+    private MetadataCache metadataCache = new MetadataCache();
+
+    /**
+     * Downloads in progress, so that concurrent requests of the same url share the same download.
+     */
+    private final ConcurrentMap<String, DownloadFuture> downloads = new ConcurrentHashMap<String, DownloadFuture>();
+
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
     public DownloadManager(MavenConfiguration configuration) throws MalformedURLException {
         this(configuration, null);
     }
@@ -55,7 +81,88 @@ public class DownloadManager {
         // noop
     }
 
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    public MavenRepositoryURL getSharedRepository() {
+        return shared;
+    }
+
+    /**
+     * Sets a directory used as a maven repository shared by the containers of a same host
+     * or mounted on several hosts.  Released artifacts are looked up there before going
+     * to the remote repositories, and artifacts downloaded by a container are added to it.
+     */
+    public void setSharedRepository(File directory) throws MalformedURLException {
+        this.shared = directory != null ? new MavenRepositoryURL("file://" + directory.getAbsolutePath()) : null;
+    }
+
     public DownloadFuture download(final String url) throws MalformedURLException {
+        DownloadFuture future = downloads.get(url);
+        if (future == null) {
+            synchronized (downloads) {
+                future = downloads.get(url);
+                if (future == null) {
+                    future = doDownload(url);
+                    downloads.put(url, future);
+                }
+            }
+            final DownloadFuture download = future;
+            future.addListener(new FutureListener<DownloadFuture>() {
+                @Override
+                public void operationComplete(DownloadFuture future) {
+                    downloads.remove(url, download);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Acquires a connection to the host of the given url, waiting if the maximum number
+     * of connections to this host has been reached.
+     */
+    void acquire(URL url) throws InterruptedException {
+        Semaphore semaphore = getSemaphore(url);
+        if (semaphore != null) {
+            semaphore.acquire();
+        }
+    }
+
+    void release(URL url) {
+        Semaphore semaphore = getSemaphore(url);
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    private Semaphore getSemaphore(URL url) {
+        if (maxConnectionsPerHost <= 0 || "file".equals(url.getProtocol())) {
+            return null;
+        }
+        String host = url.getHost() + ":" + (url.getPort() >= 0 ? url.getPort() : url.getDefaultPort());
+        Semaphore semaphore = hosts.get(host);
+        if (semaphore == null) {
+            hosts.putIfAbsent(host, new Semaphore(maxConnectionsPerHost, true));
+            semaphore = hosts.get(host);
+        }
+        return semaphore;
+    }
+
+    private DownloadFuture doDownload(final String url) throws MalformedURLException {
         String mvnUrl = url;
         if (mvnUrl.startsWith("wrap:")) {
             mvnUrl = mvnUrl.substring("wrap:".length());
@@ -73,9 +180,8 @@ public class DownloadManager {
             mvnUrl = mvnUrl.substring(mvnUrl.indexOf(':') + 1);
         }
         if (mvnUrl.startsWith("mvn:")) {
-            MavenDownloadTask task = new MavenDownloadTask(mvnUrl, cache, system, configuration, executor);
-            executor.submit(task);
             if (!mvnUrl.equals(url)) {
+                DownloadFuture task = download(mvnUrl);
                 final DummyDownloadTask download = new DummyDownloadTask(url, executor);
                 task.addListener(new FutureListener<DownloadFuture>() {
                     @Override
@@ -103,6 +209,8 @@ public class DownloadManager {
                 });
                 return download;
             } else {
+                MavenDownloadTask task = new MavenDownloadTask(mvnUrl, cache, system, configuration, executor, this);
+                executor.submit(task);
                 return task;
             }
         } else {
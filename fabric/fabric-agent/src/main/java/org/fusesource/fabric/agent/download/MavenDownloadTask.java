@@ -16,16 +16,25 @@
  */
 package org.fusesource.fabric.agent.download;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.fusesource.fabric.agent.mvn.DownloadableArtifact;
 import org.fusesource.fabric.agent.mvn.MavenConfiguration;
@@ -34,12 +43,8 @@ import org.fusesource.fabric.agent.mvn.Parser;
 import org.fusesource.fabric.agent.mvn.Version;
 import org.fusesource.fabric.agent.mvn.VersionRange;
 import org.fusesource.fabric.agent.utils.URLUtils;
-import org.fusesource.fabric.agent.utils.XmlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 public class MavenDownloadTask extends AbstractDownloadTask implements Runnable {
 
@@ -59,19 +64,30 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
     private final MavenRepositoryURL cache;
     private final MavenRepositoryURL system;
     private final MavenConfiguration configuration;
+    private final DownloadManager manager;
 
     public MavenDownloadTask(String url, MavenRepositoryURL cache, MavenRepositoryURL system, MavenConfiguration configuration, ExecutorService executor) {
+        this(url, cache, system, configuration, executor, null);
+    }
+
+    public MavenDownloadTask(String url, MavenRepositoryURL cache, MavenRepositoryURL system, MavenConfiguration configuration, ExecutorService executor, DownloadManager manager) {
         super(url, executor);
         this.cache = cache;
         this.system = system;
         this.configuration = configuration;
+        this.manager = manager;
     }
 
     protected File download() throws Exception {
         Parser parser = new Parser(url.substring("mvn:".length()));
         Set<DownloadableArtifact> downloadables;
+        MavenRepositoryURL shared = manager != null ? manager.getSharedRepository() : null;
         if (!parser.getVersion().contains("SNAPSHOT")) {
-            downloadables = doCollectPossibleDownloads(parser, Arrays.asList(cache, system, configuration.getLocalRepository()));
+            List<MavenRepositoryURL> repositories = new ArrayList<MavenRepositoryURL>(Arrays.asList(cache, system, configuration.getLocalRepository()));
+            if (shared != null) {
+                repositories.add(shared);
+            }
+            downloadables = doCollectPossibleDownloads(parser, repositories);
             for (DownloadableArtifact artifact : downloadables) {
                 URL url = artifact.getArtifactURL();
                 File file = new File(url.getFile());
@@ -95,22 +111,18 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
                 if (!repository.endsWith(Parser.FILE_SEPARATOR)) {
                     repository = repository + Parser.FILE_SEPARATOR;
                 }
-                InputStream is = artifact.getInputStream();
                 File file = new File(repository + parser.getArtifactPath());
                 file.getParentFile().mkdirs();
                 if (!file.getParentFile().isDirectory()) {
                     throw new IOException("Unable to create directory " + file.getParentFile().toString());
                 }
-                File tmp = File.createTempFile("fabric-agent-", null, file.getParentFile());
-                OutputStream os = new FileOutputStream(tmp);
-                copy(is, os);
-                is.close();
-                os.close();
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("Unable to delete file: " + file.toString());
-                }
-                if (!tmp.renameTo(file)) {
-                    throw new IOException("Unable to rename file " + tmp.toString() + " to " + file.toString());
+                // Released artifacts never change, so a partial download can be resumed
+                boolean resumable = !parser.getVersion().contains("SNAPSHOT");
+                File tmp = resumable ? new File(file.getPath() + ".part") : File.createTempFile("fabric-agent-", null, file.getParentFile());
+                transfer(artifact, tmp, resumable);
+                move(tmp, file);
+                if (shared != null && resumable) {
+                    share(file, new File(shared.getFile(), parser.getArtifactPath()));
                 }
                 return file;
             } catch (IOException ignore) {
@@ -123,6 +135,174 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
         throw new IOException("URL [" + url + "] could not be resolved.");
     }
 
+    /**
+     * Transfers the artifact to the given file, resuming a previous partial transfer
+     * if possible, while honoring the maximum number of connections to its host.
+     * <p/>
+     * A partial transfer is only resumed if the artifact did not change since it started:
+     * its ETag or Last-Modified header is kept next to the partial file and sent in an
+     * If-Range header, so that the server sends the whole artifact again if it changed.
+     * A resumed transfer is then checked against the SHA-1 checksum of the repository,
+     * when available.
+     */
+    private void transfer(DownloadableArtifact artifact, File file, boolean resumable) throws IOException, InterruptedException {
+        URL url = artifact.getArtifactURL();
+        if (manager != null) {
+            try {
+                manager.acquire(url);
+            } catch (InterruptedException e) {
+                // Abort the download rather than trying the next repository
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        }
+        try {
+            File validatorFile = new File(file.getPath() + ".validator");
+            String validator = resumable && file.isFile() ? readValidator(validatorFile) : null;
+            long offset = validator != null ? file.length() : 0;
+            URLConnection connection = artifact.openConnection();
+            boolean append = false;
+            if (offset > 0 && connection instanceof HttpURLConnection) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+                int code = ((HttpURLConnection) connection).getResponseCode();
+                if (code == 416) {
+                    // The partial file can not be resumed, start again
+                    ((HttpURLConnection) connection).disconnect();
+                    connection = artifact.openConnection();
+                }
+                append = code == HttpURLConnection.HTTP_PARTIAL;
+            }
+            if (append) {
+                LOG.debug(Ix2 + "Resuming download of [" + artifact + "] at " + offset + " bytes");
+            } else if (resumable) {
+                writeValidator(validatorFile, getValidator(connection));
+            }
+            InputStream is = connection.getInputStream();
+            OutputStream os = new FileOutputStream(file, append);
+            copy(is, os);
+            if (append && !verifyChecksum(artifact, file)) {
+                file.delete();
+                validatorFile.delete();
+                throw new IOException("Checksum mismatch for the resumed download of [" + artifact + "]");
+            }
+            validatorFile.delete();
+        } finally {
+            if (manager != null) {
+                manager.release(url);
+            }
+        }
+    }
+
+    /**
+     * Returns the strong ETag of the response, or its Last-Modified date, or null if the
+     * response has none and can not be safely resumed.
+     */
+    private static String getValidator(URLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && etag.startsWith("\"")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static String readValidator(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String validator = reader.readLine();
+                return validator != null && validator.length() > 0 ? validator : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeValidator(File file, String validator) throws IOException {
+        if (validator == null) {
+            file.delete();
+            return;
+        }
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(validator.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Checks the given file against the SHA-1 checksum published next to the artifact.
+     *
+     * @return false if the checksum is available and does not match
+     */
+    private boolean verifyChecksum(DownloadableArtifact artifact, File file) throws IOException {
+        String expected;
+        try {
+            URL url = new URL(artifact.getArtifactURL().toExternalForm() + ".sha1");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    URLUtils.prepareInputStream(url, !configuration.getCertificateCheck()), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                // The checksum may be followed by the name of the file
+                expected = line != null ? line.trim().split("\\s+")[0] : "";
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            LOG.trace(Ix4 + "No checksum available for [" + artifact + "]");
+            return true;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream is = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int len;
+                while ((len = is.read(buffer)) > 0) {
+                    digest.update(buffer, 0, len);
+                }
+            } finally {
+                is.close();
+            }
+            String actual = String.format("%040x", new BigInteger(1, digest.digest()));
+            return actual.equalsIgnoreCase(expected);
+        } catch (NoSuchAlgorithmException e) {
+            throw initIOException("Unable to compute the checksum of " + file, e);
+        }
+    }
+
+    /**
+     * Copies the downloaded artifact into the shared repository, so that other containers can use it.
+     */
+    private void share(File file, File target) {
+        if (target.exists()) {
+            return;
+        }
+        try {
+            target.getParentFile().mkdirs();
+            File tmp = File.createTempFile("fabric-agent-", null, target.getParentFile());
+            copy(new FileInputStream(file), new FileOutputStream(tmp));
+            move(tmp, target);
+        } catch (IOException e) {
+            LOG.debug(Ix2 + "Could not copy [" + file + "] to the shared repository: " + e.getMessage());
+        }
+    }
+
+    private static void move(File tmp, File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete file: " + file.toString());
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename file " + tmp.toString() + " to " + file.toString());
+        }
+    }
+
     /**
      * Searches all available repositories for possible artifacts to download. The returned set of downloadable
      * artifacts (never null, but maybe empty) will be sorted descending by version of the artifact and by positon of
@@ -191,7 +371,7 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
                         break;
                     }
                 } else {
-                    final Document metadata = getMetadata(repositoryURL.getURL(),
+                    final Metadata metadata = getMetadata(repositoryURL,
                             new String[]
                                     {
                                             parser.getArtifactLocalMetdataPath(),
@@ -215,41 +395,64 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
     /**
      * Returns maven metadata by looking first for a local metatdata xml file and then for a remote one.
      * If no metadata file is found or cannot be used an IOException is thrown.
+     * Metadata found or known to be missing is cached according to the update policy of the repository.
      *
-     * @param repositoryURL     url of the repository from where the metadata should be parsed
+     * @param repositoryURL     the repository from where the metadata should be parsed
      * @param metadataLocations array of location paths to try as metadata
-     * @return parsed xml document for the metadata file
+     * @return parsed metadata
      * @throws java.io.IOException if:
      *                             metadata file cannot be located
      */
-    private Document getMetadata(final URL repositoryURL,
+    private Metadata getMetadata(final MavenRepositoryURL repositoryURL,
                                  final String[] metadataLocations)
             throws IOException {
         LOG.debug(Ix2 + "Resolving metadata");
-        InputStream inputStream = null;
-        String foundLocation = null;
+        MetadataCache metadataCache = manager != null ? manager.getMetadataCache() : null;
         for (String location : metadataLocations) {
+            if (metadataCache != null) {
+                Metadata metadata = metadataCache.get(repositoryURL, location);
+                if (metadata != null) {
+                    LOG.trace(Ix4 + "Metadata found in cache: [" + location + "]");
+                    return metadata;
+                }
+                if (metadataCache.isMissing(repositoryURL, location)) {
+                    LOG.trace(Ix4 + "Metadata not found (cached): [" + location + "]");
+                    continue;
+                }
+            }
+            InputStream inputStream;
             try {
                 // first try to get the artifact local metadata
-                inputStream = prepareInputStream(repositoryURL, location);
-                // get out at first found location
-                foundLocation = location;
-                LOG.trace(Ix4 + "Metadata found: [" + location + "]");
-                break;
+                inputStream = prepareInputStream(repositoryURL.getURL(), location);
+            } catch (FileNotFoundException e) {
+                LOG.trace(Ix4 + "Metadata not found: [" + location + "]");
+                if (metadataCache != null) {
+                    metadataCache.putMissing(repositoryURL, location);
+                }
+                continue;
             } catch (IOException ignore) {
                 LOG.trace(Ix4 + "Metadata not found: [" + location + "]");
+                continue;
+            }
+            // get out at first found location
+            LOG.trace(Ix4 + "Metadata found: [" + location + "]");
+            try {
+                Metadata metadata = Metadata.parse(inputStream);
+                if (metadataCache != null) {
+                    metadataCache.put(repositoryURL, location, metadata);
+                }
+                return metadata;
+            } catch (XMLStreamException e) {
+                throw initIOException("Metadata [" + location + "] could not be parsed.", e);
+            } finally {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
             }
         }
-        if (inputStream == null) {
-            throw new IOException("Metadata not found in repository [" + repositoryURL + "]");
-        }
-        try {
-            return XmlUtils.parseDoc(inputStream);
-        } catch (ParserConfigurationException e) {
-            throw initIOException("Metadata [" + foundLocation + "] could not be parsed.", e);
-        } catch (SAXException e) {
-            throw initIOException("Metadata [" + foundLocation + "] could not be parsed.", e);
-        }
+        throw new IOException("Metadata not found in repository [" + repositoryURL.getURL() + "]");
     }
 
     /**
@@ -288,12 +491,12 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
      * @throws IOException if the artifact could not be resolved
      */
     private DownloadableArtifact resolveLatestVersion(final Parser parser,
-                                                      final Document metadata,
+                                                      final Metadata metadata,
                                                       final MavenRepositoryURL repositoryURL,
                                                       final int priority)
             throws IOException {
         LOG.debug(Ix2 + "Resolving latest version");
-        final String version = XmlUtils.getTextContentOfElement(metadata, "versioning/versions/version[last]");
+        final String version = metadata.getLatestVersion();
         if (version != null) {
             if (version.endsWith("SNAPSHOT")) {
                 return resolveSnapshotVersion(parser, repositoryURL, priority, version);
@@ -335,19 +538,16 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
         }
         LOG.debug(Ix2 + "Resolving snapshot version [" + version + "]");
         try {
-            final Document snapshotMetadata = getMetadata(repositoryURL.getURL(),
+            final Metadata snapshotMetadata = getMetadata(repositoryURL,
                     new String[]
                             {
                                     parser.getVersionLocalMetadataPath(version),
                                     parser.getVersionMetadataPath(version)
                             }
             );
-            final String timestamp =
-                    XmlUtils.getTextContentOfElement(snapshotMetadata, "versioning/snapshot/timestamp");
-            final String buildNumber =
-                    XmlUtils.getTextContentOfElement(snapshotMetadata, "versioning/snapshot/buildNumber");
-            final String localSnapshot =
-                    XmlUtils.getTextContentOfElement(snapshotMetadata, "versioning/snapshot/localCopy");
+            final String timestamp = snapshotMetadata.getTimestamp();
+            final String buildNumber = snapshotMetadata.getBuildNumber();
+            final String localSnapshot = snapshotMetadata.getLocalCopy();
             if (timestamp != null && buildNumber != null) {
                 return new DownloadableArtifact(
                         parser.getSnapshotVersion(version, timestamp, buildNumber),
@@ -358,7 +558,7 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
                         configuration.getCertificateCheck()
                 );
             } else {
-                String lastUpdated = XmlUtils.getTextContentOfElement(snapshotMetadata, "versioning/lastUpdated");
+                String lastUpdated = snapshotMetadata.getLastUpdated();
                 if (lastUpdated != null) {
                     // last updated should contain in the first 8 chars the date and then the time,
                     // fact that is not compatible with timeStamp from remote repos which has a "." after date
@@ -399,37 +599,31 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
      * @throws IOException re-thrown
      */
     private List<DownloadableArtifact> resolveRangeVersions(final Parser parser,
-                                                            final Document metadata,
+                                                            final Metadata metadata,
                                                             final MavenRepositoryURL repositoryURL,
                                                             final int priority,
                                                             final VersionRange versionRange)
             throws IOException {
         LOG.debug(Ix2 + "Resolving versions in range [" + versionRange + "]");
         final List<DownloadableArtifact> downladables = new ArrayList<DownloadableArtifact>();
-        final List<Element> elements = XmlUtils.getElements(metadata, "versioning/versions/version");
-        if (elements != null && elements.size() > 0) {
-            for (Element element : elements) {
-                final String versionString = XmlUtils.getTextContent(element);
-                if (versionString != null) {
-                    final Version version = new Version(versionString);
-                    if (versionRange.includes(version)) {
-                        if (versionString.endsWith("SNAPSHOT")) {
-                            downladables.add(
-                                    resolveSnapshotVersion(parser, repositoryURL, priority, versionString)
-                            );
-                        } else {
-                            downladables.add(
-                                    new DownloadableArtifact(
-                                            versionString,
-                                            priority,
-                                            repositoryURL.getURL(),
-                                            parser.getArtifactPath(versionString),
-                                            false, // no local built snapshot
-                                            configuration.getCertificateCheck()
-                                    )
-                            );
-                        }
-                    }
+        for (String versionString : metadata.getVersions()) {
+            final Version version = new Version(versionString);
+            if (versionRange.includes(version)) {
+                if (versionString.endsWith("SNAPSHOT")) {
+                    downladables.add(
+                            resolveSnapshotVersion(parser, repositoryURL, priority, versionString)
+                    );
+                } else {
+                    downladables.add(
+                            new DownloadableArtifact(
+                                    versionString,
+                                    priority,
+                                    repositoryURL.getURL(),
+                                    parser.getArtifactPath(versionString),
+                                    false, // no local built snapshot
+                                    configuration.getCertificateCheck()
+                            )
+                    );
                 }
             }
         }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.download;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The content of a maven-metadata.xml file needed to resolve versions.
+ */
+public class Metadata {
+
+    private static final String VERSION = "versioning/versions/version";
+    private static final String LAST_UPDATED = "versioning/lastUpdated";
+    private static final String TIMESTAMP = "versioning/snapshot/timestamp";
+    private static final String BUILD_NUMBER = "versioning/snapshot/buildNumber";
+    private static final String LOCAL_COPY = "versioning/snapshot/localCopy";
+
+    private static final Set<String> LEAVES = new HashSet<String>(Arrays.asList(
+            VERSION, LAST_UPDATED, TIMESTAMP, BUILD_NUMBER, LOCAL_COPY));
+
+    private static final XMLInputFactory FACTORY;
+
+    static {
+        FACTORY = XMLInputFactory.newInstance();
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private final List<String> versions = new ArrayList<String>();
+    private String lastUpdated;
+    private String timestamp;
+    private String buildNumber;
+    private String localCopy;
+
+    /**
+     * Parses the metadata from the given stream, only reading the elements used to resolve versions.
+     */
+    public static Metadata parse(InputStream is) throws XMLStreamException {
+        Metadata metadata = new Metadata();
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(is);
+        try {
+            // path of the current element, relative to the root element
+            LinkedList<String> path = new LinkedList<String>();
+            boolean root = true;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (root) {
+                        root = false;
+                        continue;
+                    }
+                    path.addLast(reader.getLocalName());
+                    String p = join(path);
+                    if (LEAVES.contains(p)) {
+                        metadata.set(p, reader.getElementText().trim());
+                        path.removeLast();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && !path.isEmpty()) {
+                    path.removeLast();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return metadata;
+    }
+
+    private static String join(List<String> path) {
+        StringBuilder sb = new StringBuilder();
+        for (String element : path) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(element);
+        }
+        return sb.toString();
+    }
+
+    private void set(String path, String text) {
+        if (text.length() == 0) {
+            return;
+        }
+        if (VERSION.equals(path)) {
+            versions.add(text);
+        } else if (LAST_UPDATED.equals(path) && lastUpdated == null) {
+            lastUpdated = text;
+        } else if (TIMESTAMP.equals(path) && timestamp == null) {
+            timestamp = text;
+        } else if (BUILD_NUMBER.equals(path) && buildNumber == null) {
+            buildNumber = text;
+        } else if (LOCAL_COPY.equals(path) && localCopy == null) {
+            localCopy = text;
+        }
+    }
+
+    public List<String> getVersions() {
+        return Collections.unmodifiableList(versions);
+    }
+
+    /**
+     * @return the last listed version, or null if no version is listed
+     */
+    public String getLatestVersion() {
+        return versions.isEmpty() ? null : versions.get(versions.size() - 1);
+    }
+
+    public String getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getBuildNumber() {
+        return buildNumber;
+    }
+
+    public String getLocalCopy() {
+        return localCopy;
+    }
+
+}
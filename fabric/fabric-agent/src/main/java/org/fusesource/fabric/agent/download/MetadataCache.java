@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
+
+/**
+ * Cache of the maven metadata fetched from remote repositories, shared by the download tasks.
+ * <p/>
+ * Both the parsed metadata and the metadata known to be missing are cached, for a duration
+ * derived from the update policy of the repository.  Metadata of file based repositories
+ * is never cached, as it is cheap to read and changes with local builds.
+ * <p/>
+ * Note that repositories without an <code>update</code> option use a default time to live
+ * of 60 seconds, and not the daily policy maven applies by default, so that newly deployed
+ * snapshots are picked up quickly.  Use <code>@update=daily</code> on a repository to get
+ * the maven behavior.
+ */
+public class MetadataCache {
+
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Time to live, in milliseconds, of the entries of repositories without update policy.
+     */
+    private long defaultTtl = 60000;
+
+    public long getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    public void setDefaultTtl(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * @return the cached metadata, or null if not cached or known to be missing
+     */
+    public Metadata get(MavenRepositoryURL repository, String location) {
+        Entry entry = lookup(repository, location);
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * @return true if the metadata is known to be missing from the repository
+     */
+    public boolean isMissing(MavenRepositoryURL repository, String location) {
+        Entry entry = lookup(repository, location);
+        return entry != null && entry.metadata == null;
+    }
+
+    public void put(MavenRepositoryURL repository, String location, Metadata metadata) {
+        long ttl = getTtl(repository);
+        if (ttl > 0) {
+            long now = System.currentTimeMillis();
+            long expires = ttl < Long.MAX_VALUE - now ? now + ttl : Long.MAX_VALUE;
+            entries.put(key(repository, location), new Entry(metadata, expires));
+        }
+    }
+
+    public void putMissing(MavenRepositoryURL repository, String location) {
+        put(repository, location, null);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry lookup(MavenRepositoryURL repository, String location) {
+        if (repository.isFileRepository()) {
+            return null;
+        }
+        String key = key(repository, location);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    protected long getTtl(MavenRepositoryURL repository) {
+        if (repository.isFileRepository()) {
+            return 0;
+        }
+        String policy = repository.getUpdatePolicy();
+        if (policy == null) {
+            return defaultTtl;
+        } else if ("always".equals(policy)) {
+            return 0;
+        } else if ("never".equals(policy)) {
+            return Long.MAX_VALUE;
+        } else if ("daily".equals(policy)) {
+            return DAY;
+        } else if (policy.startsWith("interval:")) {
+            try {
+                return Long.parseLong(policy.substring("interval:".length())) * 60L * 1000L;
+            } catch (NumberFormatException e) {
+                return defaultTtl;
+            }
+        }
+        return defaultTtl;
+    }
+
+    private static String key(MavenRepositoryURL repository, String location) {
+        return repository.getURL().toExternalForm() + location;
+    }
+
+    private static class Entry {
+        private final Metadata metadata;
+        private final long expires;
+
+        Entry(Metadata metadata, long expires) {
+            this.metadata = metadata;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -69,6 +69,10 @@ public interface MavenConstants {
      * Option to to mark the repository id
      */
     String OPTION_ID = "id";
+    /**
+     * Option to set the update policy of the repository metadata (always, daily, interval:X or never)
+     */
+    String OPTION_UPDATE = "update";
     /**
      * Options separator in repository url.
      */
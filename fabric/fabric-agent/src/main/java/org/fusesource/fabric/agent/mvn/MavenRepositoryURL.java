@@ -50,6 +50,10 @@ public class MavenRepositoryURL {
      * True if the repository contains releases.
      */
     private final boolean m_releasesEnabled;
+    /**
+     * Update policy of the metadata, or null if not specified.
+     */
+    private String m_updatePolicy;
 
     /**
      * Creates a maven repository URL bases on a string spec. The path can be marked with @snapshots and/or @noreleases
@@ -72,6 +76,8 @@ public class MavenRepositoryURL {
                 snapshotEnabled = true;
             } else if (segments[i].trim().equalsIgnoreCase(MavenConstants.OPTION_DISALLOW_RELEASES)) {
                 releasesEnabled = false;
+            } else if (segments[i].trim().startsWith(MavenConstants.OPTION_UPDATE + "=")) {
+                m_updatePolicy = segments[i].trim().substring(MavenConstants.OPTION_UPDATE.length() + 1);
             } else if (segments[i].trim().startsWith(MavenConstants.OPTION_ID)) {
                 if (segments[i].length() > MavenConstants.OPTION_ID.length()) {
                     m_id = segments[i].substring(MavenConstants.OPTION_ID.length() + 1);
@@ -143,6 +149,15 @@ public class MavenRepositoryURL {
         return m_snapshotsEnabled;
     }
 
+    /**
+     * Getter.
+     *
+     * @return update policy of the metadata (always, daily, interval:X or never), or null if not specified
+     */
+    public String getUpdatePolicy() {
+        return m_updatePolicy;
+    }
+
     /**
      * Getter.
      *
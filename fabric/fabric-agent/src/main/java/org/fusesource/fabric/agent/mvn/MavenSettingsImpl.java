@@ -229,6 +229,8 @@ public class MavenSettingsImpl
                                                         XmlUtils.getTextContentOfElement( repo, "snapshots/enabled" );
                                                     String releases =
                                                         XmlUtils.getTextContentOfElement( repo, "releases/enabled" );
+                                                    String updatePolicy =
+                                                        XmlUtils.getTextContentOfElement( repo, "snapshots/updatePolicy" );
                                                     element = XmlUtils.getElement( repo, "url" );
                                                     if( element != null )
                                                     {
@@ -250,6 +252,11 @@ public class MavenSettingsImpl
                                                                 url += MavenConstants.SEPARATOR_OPTIONS
                                                                        + MavenConstants.OPTION_DISALLOW_RELEASES;
                                                             }
+                                                            if( updatePolicy != null )
+                                                            {
+                                                                url += MavenConstants.SEPARATOR_OPTIONS
+                                                                       + MavenConstants.OPTION_UPDATE + "=" + updatePolicy.trim();
+                                                            }
                                                             repositories.put( id, url );
                                                             order.add( id );
                                                         }
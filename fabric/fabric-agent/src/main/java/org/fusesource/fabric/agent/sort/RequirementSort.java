@@ -5,8 +5,12 @@ import org.apache.felix.bundlerepository.Capability;
 import org.apache.felix.bundlerepository.Requirement;
 import org.apache.felix.bundlerepository.Resource;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class RequirementSort  {
@@ -37,6 +41,48 @@ public class RequirementSort  {
 		sorted.add(resource);
 	}
 
+	/**
+	 * Groups {@link Resource}s in waves, so that each resource only depends on resources
+	 * of the previous waves. Resources of a same wave can thus be started concurrently.
+	 * Within a wave, resources keep the order returned by {@link #sort(Collection)}.
+	 * @param resources
+	 * @return
+	 */
+	public List<List<Resource>> sortInWaves(Collection<Resource> resources) {
+		Map<Resource, Integer> levels = new HashMap<Resource, Integer>();
+		List<Resource> sorted = new ArrayList<Resource>();
+		for (Resource r : resources) {
+			level(r, resources, levels, sorted);
+		}
+		List<List<Resource>> waves = new ArrayList<List<Resource>>();
+		for (Resource r : sorted) {
+			int level = levels.get(r);
+			while (waves.size() <= level) {
+				waves.add(new ArrayList<Resource>());
+			}
+			waves.get(level).add(r);
+		}
+		return waves;
+	}
+
+	private int level(Resource resource, Collection<Resource> resources, Map<Resource, Integer> levels, List<Resource> sorted) {
+		Integer level = levels.get(resource);
+		if (level != null) {
+			return level;
+		}
+		// Mark the resource as visited to break cycles
+		levels.put(resource, 0);
+		int max = 0;
+		for (Resource r : collectDependencies(resource, resources)) {
+			if (r != resource) {
+				max = Math.max(max, level(r, resources, levels, sorted) + 1);
+			}
+		}
+		levels.put(resource, max);
+		sorted.add(resource);
+		return max;
+	}
+
 	/**
 	 * Finds the dependencies of the current resource.
 	 * @param resource
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.felix.utils.properties.Properties;
+
+/**
+ * Persisted cache of the checksums of files, keyed by their absolute path.
+ * A cached checksum is reused as long as the length and the last modification
+ * date of the file are unchanged, so that unchanged artifacts are never read twice.
+ */
+public class DigestCache {
+
+    private final Properties properties;
+    private boolean dirty;
+
+    public DigestCache(File file) throws IOException {
+        this.properties = new Properties(file);
+    }
+
+    /**
+     * Returns the checksum of the given file, as computed by {@link ChecksumUtils#checksum}.
+     */
+    public synchronized long checksum(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        String stamp = file.length() + ":" + file.lastModified() + ":";
+        String value = properties.get(key);
+        if (value != null && value.startsWith(stamp)) {
+            return Long.parseLong(value.substring(stamp.length()));
+        }
+        long checksum = ChecksumUtils.checksum(new FileInputStream(file));
+        properties.put(key, stamp + checksum);
+        dirty = true;
+        return checksum;
+    }
+
+    public synchronized void save() throws IOException {
+        if (dirty) {
+            properties.save();
+            dirty = false;
+        }
+    }
+
+}
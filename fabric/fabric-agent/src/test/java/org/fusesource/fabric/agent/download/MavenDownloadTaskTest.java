@@ -0,0 +1,208 @@
+package org.fusesource.fabric.agent.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.fusesource.fabric.agent.mvn.MavenConfiguration;
+import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MavenDownloadTaskTest {
+
+    private static final String PATH = "/org/foo/bar/1.0/bar-1.0.jar";
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+    private byte[] content;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private File dir;
+    private File cache;
+    private File part;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        dir = new File("target/download-" + System.nanoTime());
+        cache = new File(dir, "cache");
+        part = new File(cache, PATH + ".part");
+        part.getParentFile().mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    @Test
+    public void testResumeUnchangedArtifact() throws Exception {
+        write(part, content, 4000);
+        write(new File(part.getPath() + ".validator"), ETAG.getBytes("UTF-8"), -1);
+        File file = newTask(null).download();
+        Assert.assertEquals(Collections.singletonList("bytes=4000-"), ranges);
+        assertContent(file);
+        Assert.assertFalse(part.exists());
+        Assert.assertFalse(new File(part.getPath() + ".validator").exists());
+    }
+
+    @Test
+    public void testChangedArtifactIsDownloadedAgain() throws Exception {
+        write(part, new byte[4000], -1);
+        write(new File(part.getPath() + ".validator"), "\"v0\"".getBytes("UTF-8"), -1);
+        assertContent(newTask(null).download());
+    }
+
+    @Test
+    public void testPartialDownloadWithoutValidatorIsNotResumed() throws Exception {
+        write(part, new byte[4000], -1);
+        assertContent(newTask(null).download());
+        Assert.assertTrue(ranges.isEmpty());
+    }
+
+    @Test
+    public void testCorruptedPartialDownloadIsDiscarded() throws Exception {
+        // the partial file does not match the artifact, which is detected by its checksum
+        write(part, new byte[4000], -1);
+        write(new File(part.getPath() + ".validator"), ETAG.getBytes("UTF-8"), -1);
+        try {
+            newTask(null).download();
+            Assert.fail("Expected an exception");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(part.exists());
+        assertContent(newTask(null).download());
+    }
+
+    @Test
+    public void testInterruptWhileWaitingForAConnection() throws Exception {
+        DownloadManager manager = new DownloadManager(configuration());
+        manager.setMaxConnectionsPerHost(1);
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + PATH);
+        manager.acquire(url);
+        Thread.currentThread().interrupt();
+        try {
+            newTask(manager).download();
+            Assert.fail("Expected an exception");
+        } catch (InterruptedException e) {
+            // the interruption is not mistaken for a failure of the repository
+            Assert.assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+            manager.release(url);
+        }
+    }
+
+    private MavenDownloadTask newTask(DownloadManager manager) throws Exception {
+        return new MavenDownloadTask("mvn:org.foo/bar/1.0", new MavenRepositoryURL("file://" + cache.getAbsolutePath()),
+                new MavenRepositoryURL("file://" + new File(dir, "system").getAbsolutePath()), configuration(), null, manager);
+    }
+
+    private MavenConfiguration configuration() throws Exception {
+        final List<MavenRepositoryURL> repositories = Collections.singletonList(
+                new MavenRepositoryURL("http://localhost:" + server.getAddress().getPort() + "/"));
+        final MavenRepositoryURL local = new MavenRepositoryURL("file://" + new File(dir, "local").getAbsolutePath());
+        return (MavenConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { MavenConfiguration.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getRepositories".equals(method.getName())) {
+                    return repositories;
+                } else if ("getLocalRepository".equals(method.getName())) {
+                    return local;
+                } else if ("getCertificateCheck".equals(method.getName())) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+        });
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        byte[] body;
+        int code = 200;
+        if (path.equals(PATH + ".sha1")) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                body = (String.format("%040x", new BigInteger(1, digest.digest(content))) + "  bar-1.0.jar\n").getBytes("UTF-8");
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            }
+        } else if (path.equals(PATH)) {
+            body = content;
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (range != null) {
+                ranges.add(range);
+                if (ETAG.equals(ifRange)) {
+                    int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    body = new byte[content.length - start];
+                    System.arraycopy(content, start, body, 0, body.length);
+                    code = 206;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+                }
+            }
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static void write(File file, byte[] data, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data, 0, length >= 0 ? length : data.length);
+        } finally {
+            os.close();
+        }
+    }
+
+    private void assertContent(File file) throws IOException {
+        Assert.assertEquals(content.length, file.length());
+        byte[] data = new byte[content.length];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                n += is.read(data, n, data.length - n);
+            }
+        } finally {
+            is.close();
+        }
+        Assert.assertArrayEquals(content, data);
+    }
+
+}
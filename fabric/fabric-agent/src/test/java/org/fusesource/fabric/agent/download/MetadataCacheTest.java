@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.download;
+
+import java.io.ByteArrayInputStream;
+
+import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+
+    private static final String LOCATION = "org/foo/bar/maven-metadata.xml";
+
+    private final MetadataCache cache = new MetadataCache();
+
+    @Test
+    public void testDefaultTtl() throws Exception {
+        MavenRepositoryURL repo = new MavenRepositoryURL("http://repo1.maven.org/maven2");
+        Assert.assertEquals(60000, cache.getTtl(repo));
+
+        Metadata metadata = metadata("1.0");
+        cache.put(repo, LOCATION, metadata);
+        Assert.assertSame(metadata, cache.get(repo, LOCATION));
+        Assert.assertFalse(cache.isMissing(repo, LOCATION));
+        Assert.assertNull(cache.get(repo, "org/foo/baz/maven-metadata.xml"));
+    }
+
+    @Test
+    public void testExpiredEntriesAreDropped() throws Exception {
+        MavenRepositoryURL repo = new MavenRepositoryURL("http://repo1.maven.org/maven2");
+        cache.setDefaultTtl(100);
+        cache.put(repo, LOCATION, metadata("1.0"));
+        cache.putMissing(repo, "org/foo/baz/maven-metadata.xml");
+        Assert.assertNotNull(cache.get(repo, LOCATION));
+        Assert.assertTrue(cache.isMissing(repo, "org/foo/baz/maven-metadata.xml"));
+
+        Thread.sleep(200);
+        Assert.assertNull(cache.get(repo, LOCATION));
+        Assert.assertFalse(cache.isMissing(repo, "org/foo/baz/maven-metadata.xml"));
+    }
+
+    @Test
+    public void testUpdatePolicies() throws Exception {
+        Assert.assertEquals(0, cache.getTtl(new MavenRepositoryURL("http://repo1.maven.org/maven2@update=always")));
+        Assert.assertEquals(24L * 60L * 60L * 1000L, cache.getTtl(new MavenRepositoryURL("http://repo1.maven.org/maven2@update=daily")));
+        Assert.assertEquals(5L * 60L * 1000L, cache.getTtl(new MavenRepositoryURL("http://repo1.maven.org/maven2@update=interval:5")));
+        Assert.assertEquals(Long.MAX_VALUE, cache.getTtl(new MavenRepositoryURL("http://repo1.maven.org/maven2@update=never")));
+        Assert.assertEquals(60000, cache.getTtl(new MavenRepositoryURL("http://repo1.maven.org/maven2@update=interval:x")));
+
+        MavenRepositoryURL always = new MavenRepositoryURL("http://repo1.maven.org/maven2@update=always");
+        cache.put(always, LOCATION, metadata("1.0"));
+        Assert.assertNull(cache.get(always, LOCATION));
+
+        MavenRepositoryURL never = new MavenRepositoryURL("http://repo1.maven.org/maven2@update=never");
+        cache.put(never, LOCATION, metadata("1.0"));
+        Assert.assertNotNull(cache.get(never, LOCATION));
+    }
+
+    @Test
+    public void testFileRepositoriesAreNotCached() throws Exception {
+        MavenRepositoryURL repo = new MavenRepositoryURL("file:target/repository@update=never");
+        Assert.assertEquals(0, cache.getTtl(repo));
+        cache.put(repo, LOCATION, metadata("1.0"));
+        Assert.assertNull(cache.get(repo, LOCATION));
+    }
+
+    @Test
+    public void testEntriesAreKeyedByRepository() throws Exception {
+        MavenRepositoryURL repo1 = new MavenRepositoryURL("http://repo1.maven.org/maven2");
+        MavenRepositoryURL repo2 = new MavenRepositoryURL("http://repo.fusesource.com/nexus/content/groups/public");
+        cache.put(repo1, LOCATION, metadata("1.0"));
+        Assert.assertNull(cache.get(repo2, LOCATION));
+        Assert.assertFalse(cache.isMissing(repo2, LOCATION));
+
+        cache.clear();
+        Assert.assertNull(cache.get(repo1, LOCATION));
+    }
+
+    private static Metadata metadata(String version) throws Exception {
+        String xml = "<metadata><versioning><versions><version>" + version + "</version></versions></versioning></metadata>";
+        return Metadata.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,125 @@
+package org.fusesource.fabric.agent.sort;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.felix.bundlerepository.Capability;
+import org.apache.felix.bundlerepository.Requirement;
+import org.apache.felix.bundlerepository.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequirementSortTest {
+
+    private final RequirementSort sort = new RequirementSort();
+
+    @Test
+    public void testIndependentResourcesAreInOneWave() {
+        Resource a = resource("a");
+        Resource b = resource("b");
+        List<List<Resource>> waves = sort.sortInWaves(Arrays.asList(a, b));
+        Assert.assertEquals(1, waves.size());
+        Assert.assertEquals(Arrays.asList(a, b), waves.get(0));
+    }
+
+    @Test
+    public void testResourcesComeAfterTheirDependencies() {
+        // d requires b and c, which both require a
+        Resource d = resource("d", "b", "c");
+        Resource c = resource("c", "a");
+        Resource b = resource("b", "a");
+        Resource a = resource("a");
+        Resource e = resource("e");
+        List<List<Resource>> waves = sort.sortInWaves(Arrays.asList(d, c, b, a, e));
+        Assert.assertEquals(3, waves.size());
+        Assert.assertEquals(Arrays.asList(a, e), waves.get(0));
+        Assert.assertEquals(Arrays.asList(b, c), waves.get(1));
+        Assert.assertEquals(Arrays.asList(d), waves.get(2));
+    }
+
+    @Test
+    public void testCyclesAndSelfRequirements() {
+        Resource a = resource("a", "a", "b");
+        Resource b = resource("b", "a");
+        Resource c = resource("c", "b");
+        List<List<Resource>> waves = sort.sortInWaves(Arrays.asList(a, b, c));
+        List<Resource> flattened = new ArrayList<Resource>();
+        for (List<Resource> wave : waves) {
+            flattened.addAll(wave);
+        }
+        Assert.assertEquals(3, flattened.size());
+        Assert.assertTrue(flattened.containsAll(Arrays.asList(a, b, c)));
+        // c is started after the cycle it depends on
+        Assert.assertEquals(c, flattened.get(2));
+    }
+
+    @Test
+    public void testMissingRequirementsAreIgnored() {
+        Resource a = resource("a", "missing");
+        List<List<Resource>> waves = sort.sortInWaves(Arrays.asList(a));
+        Assert.assertEquals(1, waves.size());
+        Assert.assertEquals(Arrays.asList(a), waves.get(0));
+    }
+
+    /**
+     * Creates a resource providing a capability with the given name and requiring the given capabilities.
+     */
+    private static Resource resource(final String name, String... requires) {
+        final Capability[] capabilities = new Capability[] { capability(name) };
+        final Requirement[] requirements = new Requirement[requires.length];
+        for (int i = 0; i < requires.length; i++) {
+            requirements[i] = requirement(requires[i]);
+        }
+        return proxy(Resource.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getCapabilities".equals(method.getName())) {
+                    return capabilities;
+                } else if ("getRequirements".equals(method.getName())) {
+                    return requirements;
+                }
+                return handle(proxy, method, args, name);
+            }
+        });
+    }
+
+    private static Capability capability(final String name) {
+        return proxy(Capability.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getName".equals(method.getName())) {
+                    return name;
+                }
+                return handle(proxy, method, args, name);
+            }
+        });
+    }
+
+    private static Requirement requirement(final String name) {
+        return proxy(Requirement.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("isSatisfied".equals(method.getName())) {
+                    return name.equals(((Capability) args[0]).getName());
+                }
+                return handle(proxy, method, args, name);
+            }
+        });
+    }
+
+    private static Object handle(Object proxy, Method method, Object[] args, String name) {
+        if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(method.getName())) {
+            return name;
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(RequirementSortTest.class.getClassLoader(), new Class[] { type }, handler));
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DigestCacheTest {
+
+    private File dir;
+    private File store;
+    private File artifact;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/digests-" + System.nanoTime());
+        dir.mkdirs();
+        store = new File(dir, "digests.properties");
+        artifact = new File(dir, "bundle.jar");
+        write(artifact, "abcd", 100000L);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    @Test
+    public void testChecksumIsComputed() throws Exception {
+        DigestCache cache = new DigestCache(store);
+        Assert.assertEquals(checksum("abcd"), cache.checksum(artifact));
+    }
+
+    @Test
+    public void testUnchangedFileIsNotReadAgain() throws Exception {
+        DigestCache cache = new DigestCache(store);
+        long checksum = cache.checksum(artifact);
+        // same length and modification date: the cached value is trusted
+        write(artifact, "efgh", 100000L);
+        Assert.assertEquals(checksum, cache.checksum(artifact));
+    }
+
+    @Test
+    public void testModifiedFileIsInvalidated() throws Exception {
+        DigestCache cache = new DigestCache(store);
+        cache.checksum(artifact);
+        write(artifact, "efgh", 200000L);
+        Assert.assertEquals(checksum("efgh"), cache.checksum(artifact));
+        write(artifact, "efghi", 200000L);
+        Assert.assertEquals(checksum("efghi"), cache.checksum(artifact));
+    }
+
+    @Test
+    public void testChecksumsArePersisted() throws Exception {
+        DigestCache cache = new DigestCache(store);
+        long checksum = cache.checksum(artifact);
+        cache.save();
+        Assert.assertTrue(store.isFile());
+
+        write(artifact, "efgh", 100000L);
+        Assert.assertEquals(checksum, new DigestCache(store).checksum(artifact));
+        write(artifact, "efgh", 200000L);
+        Assert.assertEquals(checksum("efgh"), new DigestCache(store).checksum(artifact));
+    }
+
+    @Test
+    public void testUnchangedCacheIsNotSaved() throws Exception {
+        DigestCache cache = new DigestCache(store);
+        cache.save();
+        Assert.assertFalse(store.exists());
+    }
+
+    private static long checksum(String data) throws IOException {
+        return ChecksumUtils.checksum(new ByteArrayInputStream(data.getBytes("UTF-8")));
+    }
+
+    private static void write(File file, String data, long lastModified) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
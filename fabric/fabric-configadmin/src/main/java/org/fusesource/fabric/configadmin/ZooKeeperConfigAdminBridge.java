@@ -32,6 +32,12 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.zookeeper.CreateMode;
@@ -68,6 +74,10 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
 
     public static final String PROFILE_PROP_REGEX = "profile:[\\w\\.\\-]*/[\\w\\.\\-]*";
 
+    private static final Pattern PROFILE_REFERENCE = Pattern.compile("\\$\\{profile:([\\w\\.\\-]*)/");
+
+    private static final String ZK_REFERENCE = "${zk:";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(ZooKeeperConfigAdminBridge.class);
 
     private IZKClient zooKeeper;
@@ -79,12 +89,36 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
     private String resolutionPolicy;
     private Map<String, ZooKeeperTreeTracker<String>> trees = new ConcurrentHashMap<String, ZooKeeperTreeTracker<String>>();
     private volatile boolean tracking = false;
+    private long debounce = 100;
+    private ScheduledExecutorService executor;
+
+    // Paths changed since the last update, guarded by itself
+    private final Set<String> changes = new HashSet<String>();
+    private ScheduledFuture<?> scheduled;
+
+    // State of the last update, guarded by this
+    private Set<String> pids = new HashSet<String>();
+    private final Set<String> profiles = new HashSet<String>();
+    private final Map<String, Configuration> configurations = new HashMap<String, Configuration>();
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+    private final Set<String> zkReferences = new HashSet<String>();
 
 
     public void init() throws Exception {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fabric-configadmin");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     public void destroy() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
         for (ZooKeeperTreeTracker<String> tree : trees.values()) {
             tree.destroy();
         }
@@ -121,7 +155,10 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
             } finally {
                 tracking = false;
             }
-            onEvents(null);
+            synchronized (changes) {
+                changes.clear();
+            }
+            update(null);
         } catch (Exception e) {
             LOGGER.warn("Exception when tracking configurations. This exception will be ignored.", e);
         }
@@ -173,10 +210,13 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
 
     public Map<String, Hashtable> load(Set<String> pids) throws IOException {
         final Map<String, Hashtable> configs = new HashMap<String, Hashtable>();
+        // pids only loaded because they are referenced by a profile: substitution
+        final Map<String, Hashtable> referenced = new HashMap<String, Hashtable>();
         for (String pid : pids) {
             try {
                 Hashtable props = new Hashtable();
                 load(pid, node, props);
+                index(pid, props);
                 configs.put(pid, props);
             } catch (InterruptedException e) {
                 throw (IOException) new InterruptedIOException("Error loading pid " + pid).initCause(e);
@@ -201,6 +241,9 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
                         String pid = key.substring("profile:".length(), key.indexOf("/"));
                         String propertyKey = key.substring(key.indexOf("/") + 1);
                         Hashtable targetProps = configs.get(pid);
+                        if (targetProps == null) {
+                            targetProps = loadReferenced(pid, referenced);
+                        }
                         if (targetProps != null && targetProps.containsKey(propertyKey)) {
                             return (String) targetProps.get(propertyKey);
                         } else {
@@ -224,6 +267,49 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
         return configs;
     }
 
+    private Hashtable loadReferenced(String pid, Map<String, Hashtable> referenced) {
+        Hashtable props = referenced.get(pid);
+        if (props == null && this.pids.contains(pid)) {
+            try {
+                props = new Hashtable();
+                load(pid, node, props);
+                referenced.put(pid, props);
+            } catch (Exception e) {
+                LOGGER.warn("Could not load referenced pid: {}. This exception will be ignored.", pid, e);
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Records which pids the raw configuration of the given pid refers to, so that
+     * it can be updated when one of them changes.
+     */
+    private void index(String pid, Hashtable props) {
+        for (Set<String> set : references.values()) {
+            set.remove(pid);
+        }
+        zkReferences.remove(pid);
+        for (Object value : props.values()) {
+            if (!(value instanceof String)) {
+                continue;
+            }
+            String str = (String) value;
+            if (str.contains(ZK_REFERENCE)) {
+                zkReferences.add(pid);
+            }
+            Matcher matcher = PROFILE_REFERENCE.matcher(str);
+            while (matcher.find()) {
+                Set<String> set = references.get(matcher.group(1));
+                if (set == null) {
+                    set = new HashSet<String>();
+                    references.put(matcher.group(1), set);
+                }
+                set.add(pid);
+            }
+        }
+    }
+
     private static BundleContext getBundleContext() {
         try {
             return FrameworkUtil.getBundle(ZooKeeperConfigAdminBridge.class).getBundleContext();
@@ -284,6 +370,7 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
 
     private Set<String> getPids() throws KeeperException, InterruptedException, IOException {
         Set<String> pids = new HashSet<String>();
+        profiles.clear();
         getPids(node, pids);
         return pids;
     }
@@ -291,6 +378,7 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
     private void getPids(String node, Set<String> pids) throws KeeperException, InterruptedException, IOException {
         ZooKeeperTreeTracker<String> tree = track(node);
         TrackedNode<String> root = tree != null ? tree.getTree().get(node) : null;
+        profiles.add(node);
         String[] parents = getParents(root);
         for (String parent : parents) {
             getPids(ZkProfiles.getPath(version, parent), pids);
@@ -318,61 +406,106 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
 
     public void onEvents(Collection<NodeEvent<String>> nodeEvents) {
         LOGGER.trace("onEvents", nodeEvents);
-        try {
-            if (!tracking) {
-                String version = ZooKeeperUtils.get(zooKeeper, ZkPath.CONFIG_CONTAINER.getPath(name));
-
-                if (ZooKeeperUtils.exists(zooKeeper, ZkPath.CONTAINER_IP.getPath(name)) != null) {
-                    String resolutionPointer = ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_IP.getPath(name));
-                    resolutionPolicy = ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_RESOLVER.getPath(name));
-                    if (resolutionPointer == null || !resolutionPointer.contains(resolutionPolicy)) {
-                        ZooKeeperUtils.set(zooKeeper, ZkPath.CONTAINER_IP.getPath(name), "${zk:" + name + "/" + resolutionPolicy + "}");
-                    }
-                    //Update the rmi.server.hostname
-                    System.setProperty(SystemProperties.JAVA_RMI_SERVER_HOSTNAME, ZooKeeperUtils.getSubstitutedData(zooKeeper, ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_IP.getPath(name))));
+        if (tracking) {
+            return;
+        }
+        ScheduledExecutorService executor = this.executor;
+        synchronized (changes) {
+            if (nodeEvents == null) {
+                changes.add(null);
+            } else {
+                for (NodeEvent<String> event : nodeEvents) {
+                    changes.add(event.getPath());
+                }
+            }
+            // Coalesce the events received during the debounce window into a single update
+            if (executor != null) {
+                if (scheduled == null) {
+                    scheduled = executor.schedule(new Runnable() {
+                        public void run() {
+                            flush();
+                        }
+                    }, debounce, TimeUnit.MILLISECONDS);
                 }
+                return;
+            }
+        }
+        flush();
+    }
 
-                if (!this.version.equals(version)) {
-                    this.version = version;
-                    node = ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version, name);
-                    track(node);
+    private void flush() {
+        Set<String> paths;
+        synchronized (changes) {
+            scheduled = null;
+            paths = new HashSet<String>(changes);
+            changes.clear();
+        }
+        if (!paths.isEmpty()) {
+            update(paths.contains(null) ? null : paths);
+        }
+    }
+
+    /**
+     * Pushes the configurations affected by the given changed paths to the configuration admin,
+     * or all of them if <code>paths</code> is <code>null</code>.
+     */
+    protected synchronized void update(Set<String> paths) {
+        try {
+            String version = ZooKeeperUtils.get(zooKeeper, ZkPath.CONFIG_CONTAINER.getPath(name));
+
+            if (ZooKeeperUtils.exists(zooKeeper, ZkPath.CONTAINER_IP.getPath(name)) != null) {
+                String resolutionPointer = ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_IP.getPath(name));
+                resolutionPolicy = ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_RESOLVER.getPath(name));
+                if (resolutionPointer == null || !resolutionPointer.contains(resolutionPolicy)) {
+                    ZooKeeperUtils.set(zooKeeper, ZkPath.CONTAINER_IP.getPath(name), "${zk:" + name + "/" + resolutionPolicy + "}");
                 }
-                final Set<String> pids = getPids();
-                Map<String, Hashtable> pidProperties = load(pids);
-                List<Configuration> configs = asList(getConfigAdmin().listConfigurations("(" + FABRIC_ZOOKEEPER_PID + "=*)"));
-                for (String pid : pids) {
-                    Hashtable c = pidProperties.get(pid);
-                    String p[] = parsePid(pid);
-                    //Get the configuration by fabric zookeeper pid, pid and factory pid.
-                    Configuration config = getConfiguration(pid, p[0], p[1]);
-                    configs.remove(config);
+                //Update the rmi.server.hostname
+                System.setProperty(SystemProperties.JAVA_RMI_SERVER_HOSTNAME, ZooKeeperUtils.getSubstitutedData(zooKeeper, ZooKeeperUtils.get(zooKeeper, ZkPath.CONTAINER_IP.getPath(name))));
+            }
+
+            if (!this.version.equals(version)) {
+                this.version = version;
+                node = ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version, name);
+                track(node);
+                paths = null;
+            }
+
+            Set<String> affected = paths != null ? getAffectedPids(paths) : null;
+            pids = getPids();
+            if (affected == null) {
+                // Full update: rebuild the index of the configurations we manage
+                configurations.clear();
+                references.clear();
+                zkReferences.clear();
+                for (Configuration config : asList(getConfigAdmin().listConfigurations("(" + FABRIC_ZOOKEEPER_PID + "=*)"))) {
                     Dictionary props = config.getProperties();
-                    Hashtable old = props != null ? new Hashtable() : null;
-                    if (old != null) {
-                        for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
-                            Object key = e.nextElement();
-                            Object val = props.get(key);
-                            old.put(key, val);
-                        }
-                        old.remove(FABRIC_ZOOKEEPER_PID);
-                        old.remove(org.osgi.framework.Constants.SERVICE_PID);
-                        old.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
+                    Object pid = props != null ? props.get(FABRIC_ZOOKEEPER_PID) : null;
+                    if (pid != null) {
+                        configurations.put(pid.toString(), config);
                     }
-                    if (!c.equals(old)) {
-                        LOGGER.info("Updating configuration {}", config.getPid());
-                        c.put(FABRIC_ZOOKEEPER_PID, pid);
-                        if (config.getBundleLocation() != null) {
-                            config.setBundleLocation(null);
+                }
+                affected = new HashSet<String>(pids);
+                affected.addAll(configurations.keySet());
+            }
+
+            Set<String> loaded = new HashSet<String>(affected);
+            loaded.retainAll(pids);
+            Map<String, Hashtable> pidProperties = load(loaded);
+            for (String pid : affected) {
+                Hashtable c = pidProperties.get(pid);
+                if (c != null) {
+                    push(pid, c);
+                } else {
+                    Configuration config = configurations.remove(pid);
+                    if (config != null) {
+                        LOGGER.info("Deleting configuration {}", config.getPid());
+                        try {
+                            config.delete();
+                        } catch (IllegalStateException e) {
+                            // already deleted
                         }
-                        config.update(c);
-                    } else {
-                        LOGGER.info("Ignoring configuration {} (no changes)", config.getPid());
                     }
                 }
-                for (Configuration config : configs) {
-                    LOGGER.info("Deleting configuration {}", config.getPid());
-                    config.delete();
-                }
             }
             LOGGER.trace("onEvents done");
         } catch (Exception e) {
@@ -380,6 +513,97 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
         }
     }
 
+    /**
+     * Returns the pids affected by the changed paths, including the pids referring to them
+     * through substitutions, or <code>null</code> if the profile hierarchy itself may have
+     * changed and all the pids need to be updated.
+     */
+    private Set<String> getAffectedPids(Set<String> paths) {
+        Set<String> affected = new HashSet<String>();
+        String profilesNode = ZkPath.CONFIG_VERSIONS_PROFILES.getPath(version);
+        for (String path : paths) {
+            String profile = getProfile(profilesNode, path);
+            if (path.equals(profilesNode) || (profile != null && !profiles.contains(profile))) {
+                // the list of profiles, or a profile outside of our hierarchy
+                continue;
+            }
+            int idx = path.lastIndexOf('/');
+            String parent = idx > 0 ? path.substring(0, idx) : "";
+            String child = path.substring(idx + 1);
+            if (!profiles.contains(parent) || !child.endsWith(".properties")) {
+                return null;
+            }
+            affected.add(stripSuffix(child, ".properties"));
+        }
+        List<String> queue = new ArrayList<String>(affected);
+        while (!queue.isEmpty()) {
+            Set<String> dependents = references.get(queue.remove(queue.size() - 1));
+            if (dependents != null) {
+                for (String dependent : dependents) {
+                    if (affected.add(dependent)) {
+                        queue.add(dependent);
+                    }
+                }
+            }
+        }
+        // zk: substitutions can not be tracked, so re-evaluate them on each update
+        affected.addAll(zkReferences);
+        return affected;
+    }
+
+    /**
+     * Returns the node of the profile the given path belongs to, or <code>null</code>
+     * if it is not part of a profile.
+     */
+    private static String getProfile(String profilesNode, String path) {
+        if (!path.startsWith(profilesNode + "/")) {
+            return null;
+        }
+        int idx = path.indexOf('/', profilesNode.length() + 1);
+        return idx > 0 ? path.substring(0, idx) : path;
+    }
+
+    private void push(String pid, Hashtable c) throws Exception {
+        String p[] = parsePid(pid);
+        //Get the configuration by fabric zookeeper pid, pid and factory pid.
+        Configuration config = configurations.get(pid);
+        Dictionary props = null;
+        if (config != null) {
+            try {
+                props = config.getProperties();
+            } catch (IllegalStateException e) {
+                // deleted outside of the bridge
+                config = null;
+            }
+        }
+        if (config == null) {
+            config = getConfiguration(pid, p[0], p[1]);
+            configurations.put(pid, config);
+            props = config.getProperties();
+        }
+        Hashtable old = props != null ? new Hashtable() : null;
+        if (old != null) {
+            for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+                Object key = e.nextElement();
+                Object val = props.get(key);
+                old.put(key, val);
+            }
+            old.remove(FABRIC_ZOOKEEPER_PID);
+            old.remove(org.osgi.framework.Constants.SERVICE_PID);
+            old.remove(ConfigurationAdmin.SERVICE_FACTORYPID);
+        }
+        if (!c.equals(old)) {
+            LOGGER.info("Updating configuration {}", config.getPid());
+            c.put(FABRIC_ZOOKEEPER_PID, pid);
+            if (config.getBundleLocation() != null) {
+                config.setBundleLocation(null);
+            }
+            config.update(c);
+        } else {
+            LOGGER.info("Ignoring configuration {} (no changes)", config.getPid());
+        }
+    }
+
     public static <T> List<T> asList(T... a) {
         List<T> l = new ArrayList<T>();
         if (a != null) {
@@ -441,6 +665,18 @@ public class ZooKeeperConfigAdminBridge implements NodeEventsListener<String>, L
         return name;
     }
 
+    public long getDebounce() {
+        return debounce;
+    }
+
+    /**
+     * Sets the time, in milliseconds, during which ZooKeeper events are coalesced before
+     * the configurations are updated.
+     */
+    public void setDebounce(long debounce) {
+        this.debounce = debounce;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
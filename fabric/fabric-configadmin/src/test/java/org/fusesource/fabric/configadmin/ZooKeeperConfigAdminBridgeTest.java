@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.configadmin;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.fusesource.fabric.zookeeper.ZkPath;
+import org.fusesource.fabric.zookeeper.internal.ZKClient;
+import org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedin.util.clock.Timespan;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class ZooKeeperConfigAdminBridgeTest {
+
+    static final String NAME = "root";
+    static final String PROFILES = "/fabric/configs/versions/1.0/profiles";
+
+    File dataDir;
+    NIOServerCnxnFactory serverFactory;
+    ZKClient zooKeeper;
+    ZooKeeperConfigAdminBridge bridge;
+
+    // the configurations of the fake configuration admin, by service pid
+    final Map<String, Hashtable> configs = new ConcurrentHashMap<String, Hashtable>();
+    // the number of times the bridge looked at each configuration
+    final Map<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+    final AtomicInteger fullUpdates = new AtomicInteger();
+    // the changed paths of each update, an empty set standing for a full update
+    final List<Set<String>> updates = Collections.synchronizedList(new ArrayList<Set<String>>());
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File("target/zk-" + System.nanoTime());
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, 2000);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("localhost", 0), 10);
+        serverFactory.startup(server);
+
+        zooKeeper = new ZKClient("localhost:" + serverFactory.getLocalPort(), Timespan.parse("10s"), null);
+        zooKeeper.start();
+        zooKeeper.waitForConnected();
+
+        create(ZkPath.CONFIG_CONTAINER.getPath(NAME), "1.0");
+        create(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath("1.0", NAME), "parents=child");
+        create(ZkPath.CONFIG_ENSEMBLES.getPath(), "");
+        create(PROFILES + "/child", "parents=parent");
+        create(PROFILES + "/child/org.child.properties", "ref = ${profile:org.parent/a}");
+        create(PROFILES + "/parent", "");
+        create(PROFILES + "/parent/org.parent.properties", "a = 1");
+        create(PROFILES + "/parent/org.other.properties", "b = 2");
+        create(PROFILES + "/unrelated", "");
+
+        bridge = new ZooKeeperConfigAdminBridge() {
+            @Override
+            protected synchronized void update(Set<String> paths) {
+                updates.add(paths != null ? paths : Collections.<String>emptySet());
+                super.update(paths);
+            }
+        };
+        bridge.setName(NAME);
+        bridge.setZooKeeper(zooKeeper);
+        bridge.setConfigAdmin(configAdmin());
+        bridge.setDebounce(200);
+        bridge.init();
+        bridge.onConnected();
+
+        assertEquals("1", get("org.parent", "a"));
+        assertEquals("1", get("org.child", "ref"));
+        assertEquals("2", get("org.other", "b"));
+        assertEquals(1, fullUpdates.get());
+        updates.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bridge.destroy();
+        zooKeeper.close();
+        serverFactory.shutdown();
+        delete(dataDir);
+    }
+
+    @Test
+    public void testOnlyAffectedPidsAreUpdated() throws Exception {
+        int otherReads = reads.get("org.other").get();
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/parent/org.parent.properties", "a = 3");
+
+        waitFor("org.parent", "a", "3");
+        // the referring pid is updated along with the changed one
+        waitFor("org.child", "ref", "3");
+        assertEquals(otherReads, reads.get("org.other").get());
+        assertEquals(1, fullUpdates.get());
+    }
+
+    @Test
+    public void testEventsAreCoalesced() throws Exception {
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/parent/org.parent.properties", "a = 3");
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/parent/org.other.properties", "b = 4");
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/parent/org.parent.properties", "a = 5");
+
+        waitFor("org.parent", "a", "5");
+        waitFor("org.other", "b", "4");
+        assertEquals(1, updates.size());
+        assertEquals(new HashSet<String>(Arrays.asList(
+                PROFILES + "/parent/org.parent.properties",
+                PROFILES + "/parent/org.other.properties")), updates.get(0));
+    }
+
+    @Test
+    public void testAddedAndRemovedPids() throws Exception {
+        zooKeeper.createWithParents(PROFILES + "/parent/org.added.properties", "c = 5", CreateMode.PERSISTENT);
+        waitFor("org.added", "c", "5");
+
+        zooKeeper.delete(PROFILES + "/parent/org.other.properties");
+        for (int i = 0; i < 100 && configs.containsKey("org.other"); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(configs.containsKey("org.other"));
+        assertEquals(1, fullUpdates.get());
+    }
+
+    @Test
+    public void testHierarchyChangeTriggersFullUpdate() throws Exception {
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/child", "parents=unrelated");
+        for (int i = 0; i < 100 && configs.containsKey("org.parent"); i++) {
+            Thread.sleep(50);
+        }
+        // the pids of the profile which is no longer inherited are removed
+        assertNull(configs.get("org.parent"));
+        assertNull(configs.get("org.other"));
+        assertEquals(2, fullUpdates.get());
+    }
+
+    @Test
+    public void testMissingParentIsPickedUpWhenCreated() throws Exception {
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/child", "parents=parent late");
+        for (int i = 0; i < 100 && fullUpdates.get() < 2; i++) {
+            Thread.sleep(50);
+        }
+        create(PROFILES + "/late", "");
+        for (int i = 0; i < 100 && fullUpdates.get() < 3; i++) {
+            Thread.sleep(50);
+        }
+        create(PROFILES + "/late/org.late.properties", "e = 7");
+        waitFor("org.late", "e", "7");
+    }
+
+    @Test
+    public void testUnrelatedProfileChangesAreIgnored() throws Exception {
+        int childReads = reads.get("org.child").get();
+        zooKeeper.createWithParents(PROFILES + "/unrelated/org.unrelated.properties", "d = 6", CreateMode.PERSISTENT);
+        ZooKeeperUtils.set(zooKeeper, PROFILES + "/parent/org.other.properties", "b = 4");
+        waitFor("org.other", "b", "4");
+        assertFalse(configs.containsKey("org.unrelated"));
+        assertEquals(childReads, reads.get("org.child").get());
+        assertEquals(1, fullUpdates.get());
+    }
+
+    private String get(String pid, String key) {
+        Hashtable props = configs.get(pid);
+        return props != null ? (String) props.get(key) : null;
+    }
+
+    private void waitFor(String pid, String key, String value) throws InterruptedException {
+        for (int i = 0; i < 100 && !value.equals(get(pid, key)); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(value, get(pid, key));
+    }
+
+    private void create(String path, String data) throws Exception {
+        zooKeeper.createWithParents(path, data, CreateMode.PERSISTENT);
+    }
+
+    private ConfigurationAdmin configAdmin() {
+        return (ConfigurationAdmin) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ConfigurationAdmin.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getConfiguration")) {
+                    return configuration((String) args[0]);
+                } else if (method.getName().equals("listConfigurations")) {
+                    // only the filters used by the bridge are supported
+                    String filter = (String) args[0];
+                    String value = filter.substring(filter.indexOf('=') + 1, filter.length() - 1);
+                    if (value.equals("*")) {
+                        fullUpdates.incrementAndGet();
+                    }
+                    List<Configuration> result = new ArrayList<Configuration>();
+                    for (Map.Entry<String, Hashtable> entry : configs.entrySet()) {
+                        Object pid = entry.getValue().get(ZooKeeperConfigAdminBridge.FABRIC_ZOOKEEPER_PID);
+                        if (pid != null && (value.equals("*") || value.equals(pid))) {
+                            result.add(configuration(entry.getKey()));
+                        }
+                    }
+                    return result.isEmpty() ? null : result.toArray(new Configuration[result.size()]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private Configuration configuration(final String pid) {
+        return (Configuration) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Configuration.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getPid")) {
+                    return pid;
+                } else if (method.getName().equals("getBundleLocation")) {
+                    return null;
+                } else if (method.getName().equals("getProperties")) {
+                    AtomicInteger count = reads.get(pid);
+                    if (count == null) {
+                        reads.put(pid, count = new AtomicInteger());
+                    }
+                    count.incrementAndGet();
+                    Hashtable props = configs.get(pid);
+                    return props != null ? new Hashtable(props) : null;
+                } else if (method.getName().equals("update")) {
+                    configs.put(pid, new Hashtable((Hashtable) args[0]));
+                    return null;
+                } else if (method.getName().equals("delete")) {
+                    configs.remove(pid);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
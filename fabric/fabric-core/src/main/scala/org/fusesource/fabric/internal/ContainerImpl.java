@@ -75,7 +75,7 @@ public class ContainerImpl implements Container {
 
     public boolean isAlive() {
         try {
-            return service.getZooKeeper().exists(ZkPath.CONTAINER_ALIVE.getPath(id)) != null;
+            return service.getRegistryCache().exists(ZkPath.CONTAINER_ALIVE.getPath(id)) != null;
         } catch (KeeperException.NoNodeException e) {
             return false;
         } catch (Exception e) {
@@ -90,8 +90,8 @@ public class ContainerImpl implements Container {
     @Override
     public boolean isEnsembleServer() {
         try {
-            String clusterId = service.getZooKeeper().getStringData(ZkPath.CONFIG_ENSEMBLES.getPath());
-            String containers = service.getZooKeeper().getStringData(ZkPath.CONFIG_ENSEMBLE.getPath(clusterId));
+            String clusterId = service.getRegistryCache().getStringData(ZkPath.CONFIG_ENSEMBLES.getPath());
+            String containers = service.getRegistryCache().getStringData(ZkPath.CONFIG_ENSEMBLE.getPath(clusterId));
             for (String name : containers.split(",")) {
                 if (id.equals(name)) {
                     return true;
@@ -152,7 +152,7 @@ public class ContainerImpl implements Container {
 
     private String getZkData(ZkPath path) {
         try {
-            return service.getZooKeeper().getStringData(path.getPath(id));
+            return service.getRegistryCache().getStringData(path.getPath(id));
         } catch (KeeperException.NoNodeException e) {
             return null;
         } catch (Exception e) {
@@ -186,9 +186,9 @@ public class ContainerImpl implements Container {
             Profile[] profiles = getProfiles();
             if (requiresUpgrade(version) && isManaged()) {
                 if (version.compareTo(curretVersion) > 0) {
-                    ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PROVISION_RESULT.getPath(getId()), "upgrading");
+                    service.getRegistryCache().set(ZkPath.CONTAINER_PROVISION_RESULT.getPath(getId()), "upgrading");
                 } else {
-                    ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PROVISION_RESULT.getPath(getId()), "downgrading");
+                    service.getRegistryCache().set(ZkPath.CONTAINER_PROVISION_RESULT.getPath(getId()), "downgrading");
                 }
             }
 
@@ -201,8 +201,8 @@ public class ContainerImpl implements Container {
             }
 
             //Transfer profiles to the new version.
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version.getName(), id), sb.toString());
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONFIG_CONTAINER.getPath(id), version.getName());
+            service.getRegistryCache().set(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version.getName(), id), sb.toString());
+            service.getRegistryCache().set(ZkPath.CONFIG_CONTAINER.getPath(id), version.getName());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -210,9 +210,9 @@ public class ContainerImpl implements Container {
 
     public Profile[] getProfiles() {
         try {
-            String version = service.getZooKeeper().getStringData(ZkPath.CONFIG_CONTAINER.getPath(id));
+            String version = service.getRegistryCache().getStringData(ZkPath.CONFIG_CONTAINER.getPath(id));
             String node = ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version, id);
-            String str = service.getZooKeeper().getStringData(node);
+            String str = service.getRegistryCache().getStringData(node);
             if (str == null) {
                 return new Profile[0];
             }
@@ -235,9 +235,9 @@ public class ContainerImpl implements Container {
 
     public void setProfiles(Profile[] profiles) {
         try {
-            String version = service.getZooKeeper().getStringData(ZkPath.CONFIG_CONTAINER.getPath(id));
+            String version = service.getRegistryCache().getStringData(ZkPath.CONFIG_CONTAINER.getPath(id));
             String node = ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version, id);
-            List<String> existingProfiles = Arrays.asList(service.getZooKeeper().getStringData(node).split(" "));
+            List<String> existingProfiles = Arrays.asList(service.getRegistryCache().getStringData(node).split(" "));
 
             StringBuilder sb = new StringBuilder();
             if (profiles != null) {
@@ -262,7 +262,7 @@ public class ContainerImpl implements Container {
             if (str.trim().isEmpty()) {
                 str = "default";
             }
-            service.getZooKeeper().setData(node, str);
+            service.getRegistryCache().setData(node, str);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -271,8 +271,8 @@ public class ContainerImpl implements Container {
     public String getLocation() {
         try {
             String path = ZkPath.CONTAINER_LOCATION.getPath(id);
-            if (service.getZooKeeper().exists(path) != null) {
-                return service.getZooKeeper().getStringData(path);
+            if (service.getRegistryCache().exists(path) != null) {
+                return service.getRegistryCache().getStringData(path);
             } else {
                 return "";
             }
@@ -284,7 +284,7 @@ public class ContainerImpl implements Container {
     public void setLocation(String location) {
         try {
             String path = ZkPath.CONTAINER_LOCATION.getPath(id);
-            ZooKeeperUtils.set(service.getZooKeeper(), path, location);
+            service.getRegistryCache().set(path, location);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -293,8 +293,8 @@ public class ContainerImpl implements Container {
     public String getGeoLocation() {
         try {
             String path = ZkPath.CONTAINER_GEOLOCATION.getPath(id);
-            if (service.getZooKeeper().exists(path) != null) {
-                return service.getZooKeeper().getStringData(path);
+            if (service.getRegistryCache().exists(path) != null) {
+                return service.getRegistryCache().getStringData(path);
             } else {
                 return "";
             }
@@ -306,7 +306,7 @@ public class ContainerImpl implements Container {
     public void setGeoLocation(String location) {
         try {
             String path = ZkPath.CONTAINER_GEOLOCATION.getPath(id);
-            ZooKeeperUtils.set(service.getZooKeeper(), path, location);
+            service.getRegistryCache().set(path, location);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -339,8 +339,8 @@ public class ContainerImpl implements Container {
             if (!validResolverList.contains(resolver)) {
                 throw new FabricException("Resolver " + resolver + " is not valid.");
             }
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_IP.getPath(id), "${zk:" + id + "/" + resolver + "}");
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_RESOLVER.getPath(id), resolver);
+            service.getRegistryCache().set(ZkPath.CONTAINER_IP.getPath(id), "${zk:" + id + "/" + resolver + "}");
+            service.getRegistryCache().set(ZkPath.CONTAINER_RESOLVER.getPath(id), resolver);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -363,7 +363,7 @@ public class ContainerImpl implements Container {
     @Override
     public String getLocalIp() {
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_LOCAL_IP.getPath(id)) == null) {
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_LOCAL_IP.getPath(id)) == null) {
                 return null;
             } else {
                 return ZooKeeperUtils.getSubstitutedPath(service.getZooKeeper(), ZkPath.CONTAINER_LOCAL_IP.getPath(id));
@@ -376,7 +376,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setLocalIp(String localIp) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_LOCAL_IP.getPath(id), localIp);
+            service.getRegistryCache().set(ZkPath.CONTAINER_LOCAL_IP.getPath(id), localIp);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -385,7 +385,7 @@ public class ContainerImpl implements Container {
     @Override
     public String getLocalHostname() {
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_LOCAL_HOSTNAME.getPath(id)) == null) {
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_LOCAL_HOSTNAME.getPath(id)) == null) {
                 return null;
             } else {
                 return ZooKeeperUtils.getSubstitutedPath(service.getZooKeeper(), ZkPath.CONTAINER_LOCAL_HOSTNAME.getPath(id));
@@ -398,7 +398,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setLocalHostname(String localHostname) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_LOCAL_HOSTNAME.getPath(id), localHostname);
+            service.getRegistryCache().set(ZkPath.CONTAINER_LOCAL_HOSTNAME.getPath(id), localHostname);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -407,7 +407,7 @@ public class ContainerImpl implements Container {
     @Override
     public String getPublicIp() {
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_PUBLIC_IP.getPath(id)) == null) {
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_PUBLIC_IP.getPath(id)) == null) {
                 return null;
             } else {
                 return ZooKeeperUtils.getSubstitutedPath(service.getZooKeeper(), ZkPath.CONTAINER_PUBLIC_IP.getPath(id));
@@ -420,7 +420,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setPublicIp(String publicIp) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PUBLIC_IP.getPath(id), publicIp);
+            service.getRegistryCache().set(ZkPath.CONTAINER_PUBLIC_IP.getPath(id), publicIp);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -429,7 +429,7 @@ public class ContainerImpl implements Container {
     @Override
     public String getPublicHostname() {
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_PUBLIC_HOSTNAME.getPath(id)) == null) {
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_PUBLIC_HOSTNAME.getPath(id)) == null) {
                 return null;
             } else {
                 return ZooKeeperUtils.getSubstitutedPath(service.getZooKeeper(), ZkPath.CONTAINER_PUBLIC_HOSTNAME.getPath(id));
@@ -442,7 +442,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setPublicHostname(String publicHostname) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PUBLIC_HOSTNAME.getPath(id), publicHostname);
+            service.getRegistryCache().set(ZkPath.CONTAINER_PUBLIC_HOSTNAME.getPath(id), publicHostname);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -451,7 +451,7 @@ public class ContainerImpl implements Container {
     @Override
     public String getManulIp() {
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_MANUAL_IP.getPath(id)) == null) {
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_MANUAL_IP.getPath(id)) == null) {
                 return null;
             } else {
                 return ZooKeeperUtils.getSubstitutedPath(service.getZooKeeper(), ZkPath.CONTAINER_MANUAL_IP.getPath(id));
@@ -464,7 +464,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setManualIp(String manualIp) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_MANUAL_IP.getPath(id), manualIp);
+            service.getRegistryCache().set(ZkPath.CONTAINER_MANUAL_IP.getPath(id), manualIp);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -474,8 +474,8 @@ public class ContainerImpl implements Container {
     public int getMinimumPort() {
         int minimumPort = 0;
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_PORT_MIN.getPath(id)) != null) {
-                minimumPort = Integer.parseInt(service.getZooKeeper().getStringData(ZkPath.CONTAINER_PORT_MIN.getPath(id)));
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_PORT_MIN.getPath(id)) != null) {
+                minimumPort = Integer.parseInt(service.getRegistryCache().getStringData(ZkPath.CONTAINER_PORT_MIN.getPath(id)));
             }
         } catch (InterruptedException e) {
             throw new FabricException(e);
@@ -490,7 +490,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setMinimumPort(int port) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PORT_MIN.getPath(id), String.valueOf(port));
+            service.getRegistryCache().set(ZkPath.CONTAINER_PORT_MIN.getPath(id), String.valueOf(port));
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -500,8 +500,8 @@ public class ContainerImpl implements Container {
     public int getMaximumPort() {
         int maximumPort = 0;
         try {
-            if (service.getZooKeeper().exists(ZkPath.CONTAINER_PORT_MAX.getPath(id)) != null) {
-                maximumPort = Integer.parseInt(service.getZooKeeper().getStringData(ZkPath.CONTAINER_PORT_MAX.getPath(id)));
+            if (service.getRegistryCache().exists(ZkPath.CONTAINER_PORT_MAX.getPath(id)) != null) {
+                maximumPort = Integer.parseInt(service.getRegistryCache().getStringData(ZkPath.CONTAINER_PORT_MAX.getPath(id)));
             }
         } catch (InterruptedException e) {
             throw new FabricException(e);
@@ -516,7 +516,7 @@ public class ContainerImpl implements Container {
     @Override
     public void setMaximumPort(int port) {
         try {
-            ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_PORT_MAX.getPath(id), String.valueOf(port));
+            service.getRegistryCache().set(ZkPath.CONTAINER_PORT_MAX.getPath(id), String.valueOf(port));
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -571,7 +571,7 @@ public class ContainerImpl implements Container {
 
     public List<String> getJmxDomains() {
         try {
-            List<String> list = service.getZooKeeper().getChildren(ZkPath.CONTAINER_DOMAINS.getPath(getId()));
+            List<String> list = service.getRegistryCache().getChildren(ZkPath.CONTAINER_DOMAINS.getPath(getId()));
             Collections.sort(list);
             return Collections.unmodifiableList(list);
         } catch (Exception e) {
@@ -632,9 +632,9 @@ public class ContainerImpl implements Container {
     public CreateContainerMetadata<?> getMetadata() {
         try {
             if (metadata == null) {
-                if (service.getZooKeeper().exists(ZkPath.CONTAINER_METADATA.getPath(id)) != null) {
+                if (service.getRegistryCache().exists(ZkPath.CONTAINER_METADATA.getPath(id)) != null) {
                     //The metadata are stored encoded so that they are import/export friendly.
-                    String encoded = service.getZooKeeper().getStringData(ZkPath.CONTAINER_METADATA.getPath(id));
+                    String encoded = service.getRegistryCache().getStringData(ZkPath.CONTAINER_METADATA.getPath(id));
                     byte[] decoded = Base64Encoder.decode(encoded).getBytes(Base64Encoder.base64CharSet);
                     ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(decoded));
                     metadata = (CreateContainerMetadata) ois.readObject();
@@ -655,7 +655,7 @@ public class ContainerImpl implements Container {
             if (service.getZooKeeper().isConnected()) {
                 byte[] metadataBytes = ObjectUtils.toBytes(metadata);
                 byte[] encoded = Base64Encoder.encode(metadataBytes);
-                ZooKeeperUtils.set(service.getZooKeeper(), ZkPath.CONTAINER_METADATA.getPath(id), new String(encoded));
+                service.getRegistryCache().set(ZkPath.CONTAINER_METADATA.getPath(id), new String(encoded));
             }
         } catch (Exception e) {
             logger.warn("Error while storing metadata. This exception will be ignored.", e);
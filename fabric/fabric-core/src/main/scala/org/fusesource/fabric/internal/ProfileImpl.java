@@ -32,6 +32,7 @@ import org.fusesource.fabric.api.FabricException;
 import org.fusesource.fabric.api.Profile;
 import org.fusesource.fabric.service.FabricServiceImpl;
 import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.ZkBatch;
 import org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils;
 
 import static org.fusesource.fabric.zookeeper.ZkProfiles.getPath;
@@ -62,7 +63,7 @@ public class ProfileImpl implements Profile {
 	public Properties getAttributes() {
 		try {
 			String node = getPath(version, id);
-			return ZooKeeperUtils.getProperties(service.getZooKeeper(), node);
+			return service.getRegistryCache().getProperties(node);
 		} catch (Exception e) {
 			throw new FabricException(e);
 		}
@@ -79,6 +80,7 @@ public class ProfileImpl implements Profile {
 			}
 			String node = getPath(version, id);
 			ZooKeeperUtils.setProperties(service.getZooKeeper(), node, props);
+			service.getRegistryCache().invalidate(node);
 		} catch (Exception e) {
 			throw new FabricException(e);
 		}
@@ -196,8 +198,14 @@ public class ProfileImpl implements Profile {
 		p.setConfigurations(config);
 	}
 
-	public static Properties getContainerProperties(Profile p) throws IOException {
-		byte[] b = p.getFileConfigurations().get(AGENT_PID + ".properties");
+	public static Properties getContainerProperties(Profile p) throws IOException, InterruptedException, KeeperException {
+		byte[] b;
+		if (p instanceof ProfileImpl) {
+			// only read the agent configuration rather than all the files of the profile
+			b = ((ProfileImpl) p).getFileConfiguration(AGENT_PID + ".properties");
+		} else {
+			b = p.getFileConfigurations().get(AGENT_PID + ".properties");
+		}
 		if (b != null) {
 			return toProperties(b);
 		} else {
@@ -278,9 +286,16 @@ public class ProfileImpl implements Profile {
 		try {
 			Map<String, byte[]> configurations = new HashMap<String, byte[]>();
 			String path = getPath(version, id);
-			List<String> pids = service.getZooKeeper().getChildren(path);
+			List<String> pids = service.getRegistryCache().getChildren(path);
+			List<String> paths = new ArrayList<String>();
+			for (String pid : pids) {
+				paths.add(path + "/" + pid);
+			}
+			Map<String, byte[]> data = service.getRegistryCache().getData(paths);
 			for (String pid : pids) {
-				configurations.put(pid, getFileConfiguration(pid));
+				byte[] value = data.get(path + "/" + pid);
+				// configurations without data use the old format, with a child node per property
+				configurations.put(pid, value != null ? value : getFileConfiguration(pid));
 			}
 			return configurations;
 		} catch (Exception e) {
@@ -289,21 +304,22 @@ public class ProfileImpl implements Profile {
 	}
 
 	public byte[] getFileConfiguration(String pid) throws InterruptedException, KeeperException {
-		IZKClient zooKeeper = service.getZooKeeper();
+		RegistryCache registry = service.getRegistryCache();
 		String path = getPath(version, id) + "/" + pid;
-		if (zooKeeper.exists(path) == null) {
+		if (registry.exists(path) == null) {
 			return null;
 		}
-		if (zooKeeper.getData(path) == null) {
-			List<String> children = zooKeeper.getChildren(path);
+		byte[] data = registry.getData(path);
+		if (data == null) {
+			List<String> children = registry.getChildren(path);
 			StringBuffer buf = new StringBuffer();
 			for (String child : children) {
-				String value = zooKeeper.getStringData(path + "/" + child);
+				String value = registry.getStringData(path + "/" + child);
 				buf.append(String.format("%s = %s\n", child, value));
 			}
 			return buf.toString().getBytes();
 		} else {
-			return zooKeeper.getData(path);
+			return data;
 		}
 	}
 
@@ -317,6 +333,7 @@ public class ProfileImpl implements Profile {
 			Map<String, byte[]> oldCfgs = getFileConfigurations();
 			// Store new configs
 			String path = getPath(version, id);
+			ZkBatch batch = new ZkBatch();
 			for (Map.Entry<String, byte[]> entry : configurations.entrySet()) {
 				String pid = entry.getKey();
 				oldCfgs.remove(pid);
@@ -336,21 +353,23 @@ public class ProfileImpl implements Profile {
 							continue;
 						}
 						String newPath = configPath + "/" + nameValue[0].trim();
-						ZooKeeperUtils.set(zooKeeper, newPath, nameValue[1].trim());
+						batch.createOrSet(newPath, nameValue[1].trim());
 						saved.add(nameValue[0].trim());
 					}
 					for (String kid : kids) {
 						if (!saved.contains(kid)) {
-							zooKeeper.deleteWithChildren(configPath + "/" + kid);
+							batch.delete(configPath + "/" + kid);
 						}
 					}
 				} else {
-					ZooKeeperUtils.set(zooKeeper, configPath, newCfg);
+					batch.createOrSet(configPath, newCfg);
 				}
 			}
 			for (String pid : oldCfgs.keySet()) {
-				zooKeeper.deleteWithChildren(path + "/" + pid);
+				batch.delete(path + "/" + pid);
 			}
+			zooKeeper.commit(batch);
+			service.getRegistryCache().invalidate(path);
 		} catch (Exception e) {
 			throw new FabricException(e);
 		}
@@ -382,12 +401,12 @@ public class ProfileImpl implements Profile {
 	}
 
 	private Map<String, String> getConfiguration(String pid) throws InterruptedException, KeeperException, IOException {
-		IZKClient zooKeeper = service.getZooKeeper();
+		RegistryCache registry = service.getRegistryCache();
 		String path = getPath(version, id) + "/" + pid + ".properties";
-		if (zooKeeper.exists(path) == null) {
+		if (registry.exists(path) == null) {
 			return null;
 		}
-		byte[] data = zooKeeper.getData(path);
+		byte[] data = registry.getData(path);
 		return toMap(toProperties(data));
 	}
 
@@ -437,16 +456,19 @@ public class ProfileImpl implements Profile {
 			Map<String, Map<String, String>> oldCfgs = getConfigurations();
 			// Store new configs
 			String path = getPath(version, id);
+			ZkBatch batch = new ZkBatch();
 			for (Map.Entry<String, Map<String, String>> entry : configurations.entrySet()) {
 				String pid = entry.getKey();
 				oldCfgs.remove(pid);
 				byte[] data = toBytes(toProperties(entry.getValue()));
 				String p = path + "/" + pid + ".properties";
-				ZooKeeperUtils.set(zooKeeper, p, data);
+				batch.createOrSet(p, data);
 			}
 			for (String key : oldCfgs.keySet()) {
-				zooKeeper.deleteWithChildren(path + "/" + key + ".properties");
+				batch.delete(path + "/" + key + ".properties");
 			}
+			zooKeeper.commit(batch);
+			service.getRegistryCache().invalidate(path);
 		} catch (Exception e) {
 			throw new FabricException(e);
 		}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memoizes the overlay of profiles, keyed by the registry path of the profile.
+ * <p/>
+ * Each entry records the paths of all the profiles it has been computed from,
+ * so that a change to a profile only evicts the overlays of the profiles which
+ * inherit from it. Entries are only served while the {@link RegistryCache} is
+ * current, as the cache relies on its change notifications.
+ */
+public class ProfileOverlayCache implements RegistryCache.Listener {
+
+    private static final String CONFIGS = "/fabric/configs";
+
+    private final RegistryCache registry;
+    private final ConcurrentMap<String, ProfileOverlayImpl.Overlay> overlays = new ConcurrentHashMap<String, ProfileOverlayImpl.Overlay>();
+    private final Map<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+    private volatile long changes;
+
+    public ProfileOverlayCache(RegistryCache registry) {
+        this.registry = registry;
+        registry.addListener(this);
+    }
+
+    /**
+     * Returns a stamp to be passed to {@link #put} once the overlay has been computed.
+     */
+    public long getStamp() {
+        return changes;
+    }
+
+    public ProfileOverlayImpl.Overlay get(String path) {
+        return registry.isCurrent() ? overlays.get(path) : null;
+    }
+
+    /**
+     * Stores the overlay computed for the profile at the given path from the given
+     * profiles, unless one of them may have changed since the stamp was taken.
+     */
+    public synchronized void put(String path, ProfileOverlayImpl.Overlay overlay, Collection<String> dependencies, long stamp) {
+        if (stamp != changes || !registry.isCurrent()) {
+            return;
+        }
+        overlays.put(path, overlay);
+        for (String dependency : dependencies) {
+            Set<String> set = dependents.get(dependency);
+            if (set == null) {
+                set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                dependents.put(dependency, set);
+            }
+            set.add(path);
+        }
+    }
+
+    public synchronized void onChange(String path) {
+        if (path.equals("/")) {
+            changes++;
+            overlays.clear();
+            dependents.clear();
+            return;
+        }
+        if (!path.equals(CONFIGS) && !path.startsWith(CONFIGS + "/")) {
+            return;
+        }
+        changes++;
+        // The changed node may be a profile or a configuration inside a profile
+        for (String p = path; p.length() > CONFIGS.length(); p = p.substring(0, p.lastIndexOf('/'))) {
+            evict(dependents.remove(p));
+        }
+        // or a node containing profiles, such as a version
+        String prefix = path + "/";
+        for (Iterator<Map.Entry<String, Set<String>>> it = dependents.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Set<String>> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                it.remove();
+                evict(entry.getValue());
+            }
+        }
+    }
+
+    private void evict(Set<String> paths) {
+        if (paths != null) {
+            for (String path : paths) {
+                overlays.remove(path);
+            }
+        }
+    }
+}
@@ -16,6 +16,9 @@
  */
 package org.fusesource.fabric.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +29,7 @@ import org.fusesource.fabric.api.FabricException;
 import org.fusesource.fabric.api.Profile;
 
 import static org.fusesource.fabric.internal.ProfileImpl.*;
+import static org.fusesource.fabric.zookeeper.ZkProfiles.getPath;
 
 public class ProfileOverlayImpl implements Profile {
 
@@ -88,11 +92,8 @@ public class ProfileOverlayImpl implements Profile {
 
     @Override
     public Map<String, String> getContainerConfiguration() {
-        Map<String, String> map = getConfigurations().get(AGENT_PID);
-        if (map == null) {
-            map = new HashMap<String, String>();
-        }
-        return map;
+        Map<String, String> map = getOverlayConfigurations().get(AGENT_PID);
+        return map != null ? new HashMap<String, String>(map) : new HashMap<String, String>();
     }
 
     @Override
@@ -149,11 +150,13 @@ public class ProfileOverlayImpl implements Profile {
     @Override
     public boolean agentConfigurationEquals(Profile other) {
         ProfileOverlayImpl otherOverlay = new ProfileOverlayImpl(other);
-        if (!getConfigurations().containsKey(AGENT_PID) && !otherOverlay.getConfigurations().containsKey(AGENT_PID)) {
+        Map<String, String> agent = getOverlayConfigurations().get(AGENT_PID);
+        Map<String, String> otherAgent = otherOverlay.getOverlayConfigurations().get(AGENT_PID);
+        if (agent == null && otherAgent == null) {
           return true;
-        } else if (getConfigurations().containsKey(AGENT_PID) != otherOverlay.getConfigurations().containsKey(AGENT_PID)) {
+        } else if ((agent == null) != (otherAgent == null)) {
             return false;
-        } else if (getConfigurations().containsKey(AGENT_PID) && !getConfigurations().get(AGENT_PID).equals(otherOverlay.getConfigurations().get(AGENT_PID))) {
+        } else if (agent != null && !agent.equals(otherAgent)) {
             return false;
         } else {
             return true;
@@ -184,29 +187,80 @@ public class ProfileOverlayImpl implements Profile {
         Properties props;
     }
 
-    @Override
-    public Map<String, byte[]> getFileConfigurations() {
-        try {
-            Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
-            supplement(self, aggregate);
+    /**
+     * The computed overlay of a profile, shared through the {@link ProfileOverlayCache}.
+     * Its content must not be modified.
+     */
+    static class Overlay {
+        final Map<String, byte[]> fileConfigurations;
+        final Map<String, Map<String, String>> configurations;
 
-            Map<String, byte[]> rc = new HashMap<String, byte[]>();
+        Overlay(Map<String, SupplementControl> aggregate) throws Exception {
+            Map<String, byte[]> files = new HashMap<String, byte[]>();
+            Map<String, Map<String, String>> configs = new HashMap<String, Map<String, String>>();
             for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
                 SupplementControl ctrl = entry.getValue();
                 if( ctrl.props!=null ) {
                     ctrl.data = toBytes(ctrl.props);
+                    configs.put(stripSuffix(entry.getKey(), ".properties"), Collections.unmodifiableMap(toMap(ctrl.props)));
                 }
-                rc.put(entry.getKey(), ctrl.data);
+                files.put(entry.getKey(), ctrl.data);
             }
-            return rc;
+            this.fileConfigurations = Collections.unmodifiableMap(files);
+            this.configurations = Collections.unmodifiableMap(configs);
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getFileConfigurations() {
+        // The overlay is shared through the cache, so its content is copied
+        Map<String, byte[]> rc = new HashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : lookupOverlay().fileConfigurations.entrySet()) {
+            byte[] data = entry.getValue();
+            rc.put(entry.getKey(), data != null ? data.clone() : null);
+        }
+        return rc;
+    }
+
+    /**
+     * Returns the configurations of the overlay, without copying them.
+     */
+    private Map<String, Map<String, String>> getOverlayConfigurations() {
+        return lookupOverlay().configurations;
+    }
+
+    private Overlay lookupOverlay() {
+        try {
+            ProfileOverlayCache cache = self instanceof ProfileImpl ? ((ProfileImpl) self).getService().getOverlayCache() : null;
+            if (cache == null) {
+                return new Overlay(aggregate(null));
+            }
+            String path = getPath(self.getVersion(), self.getId());
+            Overlay overlay = cache.get(path);
+            if (overlay == null) {
+                long stamp = cache.getStamp();
+                Collection<String> dependencies = new ArrayList<String>();
+                overlay = new Overlay(aggregate(dependencies));
+                cache.put(path, overlay, dependencies, stamp);
+            }
+            return overlay;
         } catch (Exception e) {
             throw new FabricException(e);
         }
     }
 
-    private void supplement(Profile profile, Map<String, SupplementControl> aggregate) throws Exception {
+    private Map<String, SupplementControl> aggregate(Collection<String> dependencies) throws Exception {
+        Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
+        supplement(self, aggregate, dependencies);
+        return aggregate;
+    }
+
+    private void supplement(Profile profile, Map<String, SupplementControl> aggregate, Collection<String> dependencies) throws Exception {
         for (Profile p : profile.getParents()) {
-            supplement(p, aggregate);
+            supplement(p, aggregate, dependencies);
+        }
+        if (dependencies != null) {
+            dependencies.add(getPath(profile.getVersion(), profile.getId()));
         }
 
         // TODO fix this, should this every happen???
@@ -257,21 +311,11 @@ public class ProfileOverlayImpl implements Profile {
 
     @Override
     public Map<String, Map<String, String>> getConfigurations() {
-        try {
-            Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
-            supplement(self, aggregate);
-
-            Map<String, Map<String, String>> rc = new HashMap<String, Map<String, String>>();
-            for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
-                SupplementControl ctrl = entry.getValue();
-                if( ctrl.props!=null ) {
-                    rc.put(stripSuffix(entry.getKey(), ".properties"), toMap(ctrl.props));
-                }
-            }
-            return rc;
-        } catch (Exception e) {
-            throw new FabricException(e);
+        Map<String, Map<String, String>> rc = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Map<String, String>> entry : getOverlayConfigurations().entrySet()) {
+            rc.put(entry.getKey(), new HashMap<String, String>(entry.getValue()));
         }
+        return rc;
     }
 
     @Override
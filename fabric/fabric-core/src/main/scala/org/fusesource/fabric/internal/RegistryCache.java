@@ -0,0 +1,592 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.internal;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.Stat;
+import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.ZkFuture;
+import org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils;
+import org.linkedin.zookeeper.client.LifecycleListener;
+import org.linkedin.zookeeper.tracker.ErrorListener;
+import org.linkedin.zookeeper.tracker.NodeEvent;
+import org.linkedin.zookeeper.tracker.NodeEventType;
+import org.linkedin.zookeeper.tracker.NodeEventsListener;
+import org.linkedin.zookeeper.tracker.TrackedNode;
+import org.linkedin.zookeeper.tracker.ZKByteArrayDataReader;
+import org.linkedin.zookeeper.tracker.ZooKeeperTreeTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory model of the fabric registry, kept up to date by ZooKeeper watches.
+ * <p/>
+ * The configuration tree and the container registry are tracked with a
+ * {@link ZooKeeperTreeTracker}, so reads of containers, versions, profiles and
+ * their configurations can be served without a ZooKeeper round-trip. The read
+ * methods mirror the ones of {@link IZKClient} and fall back to ZooKeeper when
+ * the model can not answer: while disconnected, before the first sync, for paths
+ * outside the tracked trees and for paths written through this class until the
+ * model holds a version of the node at least as recent as the write (read-your-writes).
+ */
+public class RegistryCache implements LifecycleListener, NodeEventsListener<byte[]> {
+
+    public static final String[] ROOTS = { "/fabric/configs", "/fabric/registry/containers" };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RegistryCache.class);
+
+    private IZKClient zooKeeper;
+    private long writeTimeout = 5000;
+
+    private final Map<String, ZooKeeperTreeTracker<byte[]>> trees = new ConcurrentHashMap<String, ZooKeeperTreeTracker<byte[]>>();
+    private final ConcurrentMap<String, TrackedNode<byte[]>> nodes = new ConcurrentHashMap<String, TrackedNode<byte[]>>();
+    private final ConcurrentMap<String, Set<String>> children = new ConcurrentHashMap<String, Set<String>>();
+    // pending writes keyed by path
+    private final ConcurrentMap<String, Write> writes = new ConcurrentHashMap<String, Write>();
+    // pending creations and deletions keyed by parent path, then child name
+    private final ConcurrentMap<String, ConcurrentMap<String, Write>> childWrites = new ConcurrentHashMap<String, ConcurrentMap<String, Write>>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private volatile boolean current;
+    private volatile long lastSync;
+    private volatile long staleSince = System.currentTimeMillis();
+    private final AtomicLong generation = new AtomicLong();
+
+    public IZKClient getZooKeeper() {
+        return zooKeeper;
+    }
+
+    public void setZooKeeper(IZKClient zooKeeper) {
+        this.zooKeeper = zooKeeper;
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a path written through this cache is read
+     * from ZooKeeper if the watch event for the write does not show up.
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * A listener notified of the paths which have changed, or have been written, in the registry.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the node at the given path and possibly its children have changed.
+         * The root path means that anything may have changed.
+         */
+        void onChange(String path);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void destroy() {
+        current = false;
+        staleSince = System.currentTimeMillis();
+        fireChange("/");
+        for (ZooKeeperTreeTracker<byte[]> tree : trees.values()) {
+            tree.destroy();
+        }
+        trees.clear();
+        nodes.clear();
+        children.clear();
+        writes.clear();
+        childWrites.clear();
+    }
+
+    public synchronized void onConnected() {
+        destroy();
+        try {
+            boolean complete = true;
+            for (String root : ROOTS) {
+                if (zooKeeper.exists(root) == null) {
+                    // Reads under a missing root go to ZooKeeper until the next sync
+                    complete = false;
+                    continue;
+                }
+                ZooKeeperTreeTracker<byte[]> tree = new ZooKeeperTreeTracker<byte[]>(zooKeeper, new ZKByteArrayDataReader(), root);
+                tree.registerErrorListener(new ErrorListener() {
+                    public void onError(WatchedEvent event, Throwable throwable) {
+                        LOGGER.warn("Error while tracking the fabric registry, reads will go to ZooKeeper until the next sync.", throwable);
+                        markStale();
+                    }
+                });
+                trees.put(root, tree);
+                tree.track(this);
+                for (TrackedNode<byte[]> node : tree.getTree().values()) {
+                    put(node);
+                }
+            }
+            lastSync = System.currentTimeMillis();
+            generation.incrementAndGet();
+            current = true;
+            fireChange("/");
+            if (!complete) {
+                LOGGER.debug("Fabric registry partially tracked, missing roots are read from ZooKeeper");
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Exception when tracking the fabric registry. Reads will go to ZooKeeper.", e);
+            destroy();
+        }
+    }
+
+    public void onDisconnected() {
+        markStale();
+    }
+
+    public void onEvents(Collection<NodeEvent<byte[]>> events) {
+        for (NodeEvent<byte[]> event : events) {
+            TrackedNode<byte[]> node = event.getNode();
+            if (event.getEventType() == NodeEventType.DELETED) {
+                remove(node.getPath());
+            } else {
+                put(node);
+            }
+            String path = node.getPath();
+            settle(writes, path, event.getEventType(), node);
+            ConcurrentMap<String, Write> siblings = childWrites.get(getParent(path));
+            if (siblings != null) {
+                settle(siblings, path.substring(getParent(path).length() + 1), event.getEventType(), node);
+            }
+            fireChange(path);
+        }
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Returns <code>true</code> when the model is in sync with ZooKeeper and is used to answer reads.
+     */
+    public boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Returns the number of milliseconds the model has been out of sync with ZooKeeper, or 0 when it is current.
+     */
+    public long getStaleness() {
+        return current ? 0 : System.currentTimeMillis() - staleSince;
+    }
+
+    /**
+     * Returns the time of the last full sync of the model.
+     */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    /**
+     * Returns a counter which changes each time the model is modified or a path is written through it.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    //
+    // Reads
+    //
+
+    public Stat exists(String path) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        if (covers(p)) {
+            TrackedNode<byte[]> node = nodes.get(p);
+            return node != null ? node.getStat() : null;
+        }
+        return zooKeeper.exists(path);
+    }
+
+    public byte[] getData(String path) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        if (covers(p)) {
+            return getNode(p).getData();
+        }
+        return zooKeeper.getData(path);
+    }
+
+    public String getStringData(String path) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        if (covers(p)) {
+            return toString(getNode(p).getData());
+        }
+        return zooKeeper.getStringData(path);
+    }
+
+    public List<String> getChildren(String path) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        if (covers(p) && !hasChildWrites(p)) {
+            getNode(p);
+            Set<String> names = children.get(p);
+            return names != null ? new ArrayList<String>(names) : new ArrayList<String>();
+        }
+        return zooKeeper.getChildren(path);
+    }
+
+    public Properties getProperties(String path) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        if (covers(p)) {
+            String value = toString(getNode(p).getData());
+            Properties properties = new Properties();
+            if (value != null) {
+                try {
+                    properties.load(new StringReader(value));
+                } catch (IOException ignore) {}
+            }
+            return properties;
+        }
+        return ZooKeeperUtils.getProperties(zooKeeper, path);
+    }
+
+    /**
+     * Returns the data of the given nodes keyed by path, leaving out the nodes which do not exist.
+     * The nodes the model can not answer for are read from ZooKeeper in parallel, or one by one
+     * on the ZooKeeper event thread, where asynchronous results can not be waited for.
+     */
+    public Map<String, byte[]> getData(Collection<String> paths) throws InterruptedException, KeeperException {
+        Map<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+        Map<String, ZkFuture<byte[]>> futures = new LinkedHashMap<String, ZkFuture<byte[]>>();
+        boolean eventThread = zooKeeper.isEventThread();
+        for (String path : paths) {
+            String p = normalize(path);
+            if (covers(p)) {
+                TrackedNode<byte[]> node = nodes.get(p);
+                if (node != null) {
+                    data.put(path, node.getData());
+                }
+            } else if (eventThread) {
+                try {
+                    data.put(path, zooKeeper.getData(path));
+                } catch (KeeperException.NoNodeException e) {
+                    // Ignore
+                }
+            } else {
+                futures.put(path, zooKeeper.getDataAsync(path));
+            }
+        }
+        for (Map.Entry<String, ZkFuture<byte[]>> entry : futures.entrySet()) {
+            try {
+                data.put(entry.getKey(), entry.getValue().await());
+            } catch (KeeperException.NoNodeException e) {
+                // Ignore
+            }
+        }
+        return data;
+    }
+
+    //
+    // Writes
+    //
+
+    public void set(String path, String value) throws InterruptedException, KeeperException {
+        String p = normalize(path);
+        List<String> created = getMissing(p);
+        Stat stat = zooKeeper.createOrSetWithParents(path, value, CreateMode.PERSISTENT);
+        if (stat == null) {
+            // The node has been created, read back the version the model has to reach
+            stat = zooKeeper.exists(path);
+        }
+        invalidate(p, stat != null ? new Write(deadline(), stat.getMzxid(), toBytes(value)) : Write.UNKNOWN, created);
+    }
+
+    public void setData(String path, String value) throws InterruptedException, KeeperException {
+        Stat stat = zooKeeper.setData(path, value);
+        invalidate(normalize(path), stat != null ? new Write(deadline(), stat.getMzxid(), toBytes(value)) : Write.UNKNOWN,
+                   Collections.<String>emptyList());
+    }
+
+    public void deleteSafe(String path) throws InterruptedException, KeeperException {
+        ZooKeeperUtils.deleteSafe(zooKeeper, path);
+        invalidate(normalize(path), new Write(deadline(), Write.DELETED, null), Collections.<String>emptyList());
+    }
+
+    /**
+     * Marks a path which has just been written, with all its children, so that
+     * it is read from ZooKeeper until the write shows up in the model.
+     * Writes which do not go through this class must call this method: as the
+     * version of the write is not known, the path is read from ZooKeeper
+     * until the write timeout elapses.
+     */
+    public void invalidate(String path) {
+        invalidate(normalize(path), new Write(deadline(), Long.MAX_VALUE, null), Collections.<String>emptyList());
+    }
+
+    /**
+     * Records a write at the given path, the paths in <code>created</code> being
+     * the missing ancestors the write has created, if any.
+     */
+    private void invalidate(String p, Write write, List<String> created) {
+        fireChange(p);
+        if (!current) {
+            return;
+        }
+        if (write == Write.UNKNOWN) {
+            write = new Write(deadline(), Long.MAX_VALUE, null);
+        }
+        for (String ancestor : created) {
+            // Any version of a node which did not exist is recent enough
+            record(ancestor, new Write(write.deadline, 0, Write.ANY));
+        }
+        record(p, write);
+        generation.incrementAndGet();
+    }
+
+    private void record(String path, Write write) {
+        String parent = getParent(path);
+        String name = path.substring(parent.length() + 1);
+        ConcurrentMap<String, Write> siblings = getChildWrites(parent);
+        writes.put(path, write);
+        siblings.put(name, write);
+        // The event for the write may have been received before it was recorded
+        TrackedNode<byte[]> node = nodes.get(path);
+        boolean settled = write.zxid == Write.DELETED ? node == null : node != null && write.isReachedBy(node);
+        if (settled) {
+            writes.remove(path, write);
+            siblings.remove(name, write);
+        }
+    }
+
+    /**
+     * Returns the ancestors of the given path, and the path itself, which the model
+     * does not know about, that is the nodes a write at that path would create.
+     */
+    private List<String> getMissing(String path) {
+        List<String> missing = new ArrayList<String>();
+        if (current) {
+            for (String p = getParent(path); p.length() > 0 && isTracked(p) && !nodes.containsKey(p); p = getParent(p)) {
+                missing.add(p);
+            }
+        }
+        return missing;
+    }
+
+    private long deadline() {
+        return System.currentTimeMillis() + writeTimeout;
+    }
+
+    private ConcurrentMap<String, Write> getChildWrites(String parent) {
+        ConcurrentMap<String, Write> map = childWrites.get(parent);
+        if (map == null) {
+            ConcurrentMap<String, Write> created = new ConcurrentHashMap<String, Write>();
+            map = childWrites.putIfAbsent(parent, created);
+            if (map == null) {
+                map = created;
+            }
+        }
+        return map;
+    }
+
+    private void markStale() {
+        if (current) {
+            current = false;
+            staleSince = System.currentTimeMillis();
+            fireChange("/");
+        }
+    }
+
+    private void fireChange(String path) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onChange(path);
+            } catch (Throwable t) {
+                LOGGER.warn("Exception while notifying registry listener. This exception will be ignored.", t);
+            }
+        }
+    }
+
+    private boolean covers(String path) {
+        if (!current || !isTracked(path)) {
+            return false;
+        }
+        for (String p = path; p.length() > 0; p = getParent(p)) {
+            if (isWritten(writes, p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTracked(String path) {
+        for (String root : trees.keySet()) {
+            if (path.equals(root) || path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasChildWrites(String path) {
+        ConcurrentMap<String, Write> map = childWrites.get(path);
+        if (map != null) {
+            for (String name : map.keySet()) {
+                if (isWritten(map, name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isWritten(ConcurrentMap<String, Write> map, String path) {
+        Write write = map.get(path);
+        if (write == null) {
+            return false;
+        }
+        if (write.deadline < System.currentTimeMillis()) {
+            map.remove(path, write);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets about a write once the model holds the deletion it made, or
+     * the data it wrote with a version at least as recent.
+     */
+    private void settle(ConcurrentMap<String, Write> map, String key, NodeEventType type, TrackedNode<byte[]> node) {
+        Write write = map.get(key);
+        if (write == null) {
+            return;
+        }
+        boolean settled;
+        if (write.zxid == Write.DELETED) {
+            settled = type == NodeEventType.DELETED;
+        } else {
+            settled = type != NodeEventType.DELETED && write.isReachedBy(node);
+        }
+        if (settled) {
+            map.remove(key, write);
+        }
+    }
+
+    private TrackedNode<byte[]> getNode(String path) throws KeeperException {
+        TrackedNode<byte[]> node = nodes.get(path);
+        if (node == null) {
+            throw new KeeperException.NoNodeException(path);
+        }
+        return node;
+    }
+
+    private void put(TrackedNode<byte[]> node) {
+        String path = node.getPath();
+        nodes.put(path, node);
+        String parent = getParent(path);
+        if (parent.length() > 0) {
+            Set<String> names = children.get(parent);
+            if (names == null) {
+                Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                names = children.putIfAbsent(parent, created);
+                if (names == null) {
+                    names = created;
+                }
+            }
+            names.add(path.substring(parent.length() + 1));
+        }
+    }
+
+    private void remove(String path) {
+        nodes.remove(path);
+        children.remove(path);
+        String parent = getParent(path);
+        Set<String> names = children.get(parent);
+        if (names != null) {
+            names.remove(path.substring(parent.length() + 1));
+        }
+    }
+
+    private static String normalize(String path) {
+        return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static String getParent(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx > 0 ? path.substring(0, idx) : "";
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value != null ? value.getBytes("UTF-8") : null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toString(byte[] data) {
+        try {
+            return data != null ? new String(data, "UTF-8") : null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Write {
+        // the zxid of a deletion
+        static final long DELETED = -1;
+        // matches the data of any node
+        static final byte[] ANY = new byte[0];
+        // a write whose version could not be read back
+        static final Write UNKNOWN = new Write(0, Long.MAX_VALUE, null);
+
+        final long deadline;
+        // the mzxid the node must reach in the model
+        final long zxid;
+        final byte[] data;
+
+        Write(long deadline, long zxid, byte[] data) {
+            this.deadline = deadline;
+            this.zxid = zxid;
+            this.data = data;
+        }
+
+        /**
+         * The tracker refreshes the stat of a node when listing its children, so a
+         * recent mzxid may come with older data: the data must be checked as well.
+         */
+        boolean isReachedBy(TrackedNode<byte[]> node) {
+            return node.getStat() != null && node.getStat().getMzxid() >= zxid
+                    && (data == ANY || Arrays.equals(data, node.getData()));
+        }
+    }
+}
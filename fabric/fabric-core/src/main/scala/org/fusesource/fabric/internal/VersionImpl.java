@@ -47,7 +47,7 @@ public class VersionImpl implements Version {
     public Properties getAttributes() {
         try {
             String node = ZkPath.CONFIG_VERSION.getPath(name);
-            return ZooKeeperUtils.getProperties(service.getZooKeeper(), node);
+            return service.getRegistryCache().getProperties(node);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -64,6 +64,7 @@ public class VersionImpl implements Version {
             }
             String node = ZkPath.CONFIG_VERSION.getPath(name);
             ZooKeeperUtils.setProperties(service.getZooKeeper(), node, props);
+            service.getRegistryCache().invalidate(node);
         } catch (Exception e) {
             throw new FabricException(e);
         }
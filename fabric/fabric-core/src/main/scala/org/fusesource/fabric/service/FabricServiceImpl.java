@@ -48,12 +48,15 @@ import org.fusesource.fabric.api.jmx.HealthCheck;
 import org.fusesource.fabric.api.jmx.ZooKeeperFacade;
 import org.fusesource.fabric.internal.ContainerImpl;
 import org.fusesource.fabric.internal.ProfileImpl;
+import org.fusesource.fabric.internal.ProfileOverlayCache;
+import org.fusesource.fabric.internal.RegistryCache;
 import org.fusesource.fabric.internal.RequirementsJson;
 import org.fusesource.fabric.internal.VersionImpl;
 import org.fusesource.fabric.utils.Base64Encoder;
 import org.fusesource.fabric.utils.ObjectUtils;
 import org.fusesource.fabric.utils.SystemProperties;
 import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.ZkBatch;
 import org.fusesource.fabric.zookeeper.ZkDefs;
 import org.fusesource.fabric.zookeeper.ZkPath;
 import org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils;
@@ -81,6 +84,8 @@ public class FabricServiceImpl implements FabricService {
     private final FabricManager managerMBean = new FabricManager(this);
     private final ZooKeeperFacade zooKeeperMBean = new ZooKeeperFacade(this);
     private final FileSystem fileSystemMBean = new FileSystem();
+    private final RegistryCache registryCache = new RegistryCache();
+    private final ProfileOverlayCache overlayCache = new ProfileOverlayCache(registryCache);
     private MBeanServer mbeanServer;
 
     public FabricServiceImpl() {
@@ -115,6 +120,19 @@ public class FabricServiceImpl implements FabricService {
 
     public void setZooKeeper(IZKClient zooKeeper) {
         this.zooKeeper = zooKeeper;
+        this.registryCache.setZooKeeper(zooKeeper);
+    }
+
+    /**
+     * Returns the in-memory model of the registry, which should be used for reads
+     * of the containers and configurations. It reads from ZooKeeper until it is synced.
+     */
+    public RegistryCache getRegistryCache() {
+        return registryCache;
+    }
+
+    public ProfileOverlayCache getOverlayCache() {
+        return overlayCache;
     }
 
     public HealthCheck getHealthCheck() {
@@ -160,9 +178,10 @@ public class FabricServiceImpl implements FabricService {
     public Container[] getContainers() {
         try {
             Map<String, Container> containers = new HashMap<String, Container>();
-            List<String> configs = zooKeeper.getChildren(ZkPath.CONFIGS_CONTAINERS.getPath());
+            List<String> configs = registryCache.getChildren(ZkPath.CONFIGS_CONTAINERS.getPath());
+            Map<String, String> parents = getParentsOf(configs);
             for (String name : configs) {
-                String parentId = getParentOf(name);
+                String parentId = parents.containsKey(name) ? parents.get(name) : "";
                 if (parentId.isEmpty()) {
                     if (!containers.containsKey(name)) {
                         Container container = new ContainerImpl(null, name, this);
@@ -185,10 +204,32 @@ public class FabricServiceImpl implements FabricService {
         }
     }
 
+    private Map<String, String> getParentsOf(List<String> names) {
+        Map<String, String> parents = new HashMap<String, String>();
+        if (zooKeeper != null) {
+            try {
+                List<String> paths = new ArrayList<String>();
+                for (String name : names) {
+                    paths.add(ZkPath.CONTAINER_PARENT.getPath(name));
+                }
+                Map<String, byte[]> data = registryCache.getData(paths);
+                for (String name : names) {
+                    byte[] parent = data.get(ZkPath.CONTAINER_PARENT.getPath(name));
+                    if (parent != null) {
+                        parents.put(name, new String(parent, "UTF-8").trim());
+                    }
+                }
+            } catch (Throwable e) {
+                LOGGER.debug("Failed to find parents of containers. This exception will be ignored.", e);
+            }
+        }
+        return parents;
+    }
+
     private String getParentOf(String name) throws InterruptedException, KeeperException {
         if (zooKeeper != null) {
             try {
-                return zooKeeper.getStringData(ZkPath.CONTAINER_PARENT.getPath(name)).trim();
+                return registryCache.getStringData(ZkPath.CONTAINER_PARENT.getPath(name)).trim();
             } catch (KeeperException.NoNodeException e) {
                 // Ignore
             } catch (Throwable e) {
@@ -263,12 +304,12 @@ public class FabricServiceImpl implements FabricService {
         try {
             //Wipe all config entries that are related to the container for all versions.
             for (Version version : getVersions()) {
-                ZooKeeperUtils.deleteSafe(zooKeeper, ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version.getName(), containerId));
+                registryCache.deleteSafe(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(version.getName(), containerId));
             }
-            ZooKeeperUtils.deleteSafe(zooKeeper, ZkPath.CONFIG_CONTAINER.getPath(containerId));
-            ZooKeeperUtils.deleteSafe(zooKeeper, ZkPath.CONTAINER.getPath(containerId));
-            ZooKeeperUtils.deleteSafe(zooKeeper, ZkPath.CONTAINER_DOMAINS.getPath(containerId));
-            ZooKeeperUtils.deleteSafe(zooKeeper, ZkPath.CONTAINER_PROVISION.getPath(containerId));
+            registryCache.deleteSafe(ZkPath.CONFIG_CONTAINER.getPath(containerId));
+            registryCache.deleteSafe(ZkPath.CONTAINER.getPath(containerId));
+            registryCache.deleteSafe(ZkPath.CONTAINER_DOMAINS.getPath(containerId));
+            registryCache.deleteSafe(ZkPath.CONTAINER_PROVISION.getPath(containerId));
         } catch (Exception e) {
            LOGGER.warn("Failed to cleanup container {} entries due to: {}. This will be ignored.", containerId, e.getMessage());
         }
@@ -351,6 +392,7 @@ public class FabricServiceImpl implements FabricService {
                         }
                         //Set the resolver if not exists
                         ZooKeeperUtils.set(zooKeeper, ZkPath.CONTAINER_RESOLVER.getPath(metadata.getContainerName()), options.getResolver());
+                        registryCache.invalidate(ZkPath.CONTAINER.getPath(metadata.getContainerName()));
                     }
                     metadata.setContainer(new ContainerImpl(parent, metadata.getContainerName(), FabricServiceImpl.this));
                     ((ContainerImpl) metadata.getContainer()).setMetadata(metadata);
@@ -485,9 +527,9 @@ public class FabricServiceImpl implements FabricService {
     private void createContainerConfig(String parent, String name) {
         try {
             String configVersion = getDefaultVersion().getName();
-            ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_CONTAINER.getPath(name), configVersion);
-            ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(configVersion, name), profile);
-            zooKeeper.createOrSetWithParents(CONTAINER_PARENT.getPath(name), parent, CreateMode.PERSISTENT);
+            registryCache.set(ZkPath.CONFIG_CONTAINER.getPath(name), configVersion);
+            registryCache.set(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(configVersion, name), profile);
+            registryCache.set(CONTAINER_PARENT.getPath(name), parent);
         } catch (FabricException e) {
             throw e;
         } catch (Exception e) {
@@ -499,13 +541,13 @@ public class FabricServiceImpl implements FabricService {
     public Version getDefaultVersion() {
         try {
             String version = null;
-            if (ZooKeeperUtils.exists(zooKeeper, ZkPath.CONFIG_DEFAULT_VERSION.getPath()) != null) {
-                version = ZooKeeperUtils.get(zooKeeper, ZkPath.CONFIG_DEFAULT_VERSION.getPath());
+            if (registryCache.exists(ZkPath.CONFIG_DEFAULT_VERSION.getPath()) != null) {
+                version = registryCache.getStringData(ZkPath.CONFIG_DEFAULT_VERSION.getPath());
             }
             if (version == null || version.isEmpty()) {
                 version = ZkDefs.DEFAULT_VERSION;
-                ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_DEFAULT_VERSION.getPath(), version);
-                ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_VERSION.getPath(version), (String) null);
+                registryCache.set(ZkPath.CONFIG_DEFAULT_VERSION.getPath(), version);
+                registryCache.set(ZkPath.CONFIG_VERSION.getPath(version), null);
             }
             return new VersionImpl(version, this);
         } catch (Exception e) {
@@ -520,7 +562,7 @@ public class FabricServiceImpl implements FabricService {
 
     public void setDefaultVersion(String versionId) {
         try {
-            ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_DEFAULT_VERSION.getPath(), versionId);
+            registryCache.set(ZkPath.CONFIG_DEFAULT_VERSION.getPath(), versionId);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -528,8 +570,11 @@ public class FabricServiceImpl implements FabricService {
 
     public Version createVersion(String version) {
         try {
-            zooKeeper.createWithParents(ZkPath.CONFIG_VERSION.getPath(version), CreateMode.PERSISTENT);
-            zooKeeper.createWithParents(ZkPath.CONFIG_VERSIONS_PROFILES.getPath(version), CreateMode.PERSISTENT);
+            ZkBatch batch = new ZkBatch();
+            batch.create(ZkPath.CONFIG_VERSION.getPath(version));
+            batch.create(ZkPath.CONFIG_VERSIONS_PROFILES.getPath(version));
+            zooKeeper.commit(batch);
+            registryCache.invalidate(ZkPath.CONFIG_VERSION.getPath(version));
             return new VersionImpl(version, this);
         } catch (Exception e) {
             throw new FabricException(e);
@@ -543,6 +588,7 @@ public class FabricServiceImpl implements FabricService {
     public Version createVersion(String parentVersionId, String toVersion) {
         try {
             ZooKeeperUtils.copy(zooKeeper, ZkPath.CONFIG_VERSION.getPath(parentVersionId), ZkPath.CONFIG_VERSION.getPath(toVersion));
+            registryCache.invalidate(ZkPath.CONFIG_VERSION.getPath(toVersion));
             return new VersionImpl(toVersion, this);
         } catch (Exception e) {
             throw new FabricException(e);
@@ -552,6 +598,7 @@ public class FabricServiceImpl implements FabricService {
     public void deleteVersion(String version) {
         try {
             zooKeeper.deleteWithChildren(ZkPath.CONFIG_VERSION.getPath(version));
+            registryCache.invalidate(ZkPath.CONFIG_VERSION.getPath(version));
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -560,7 +607,7 @@ public class FabricServiceImpl implements FabricService {
     public Version[] getVersions() {
         try {
             List<Version> versions = new ArrayList<Version>();
-            List<String> children = zooKeeper.getChildren(ZkPath.CONFIG_VERSIONS.getPath());
+            List<String> children = registryCache.getChildren(ZkPath.CONFIG_VERSIONS.getPath());
             for (String child : children) {
                 versions.add(new VersionImpl(child, this));
             }
@@ -573,7 +620,7 @@ public class FabricServiceImpl implements FabricService {
 
     public Version getVersion(String name) {
         try {
-            if (zooKeeper != null && zooKeeper.isConnected() && zooKeeper.exists(ZkPath.CONFIG_VERSION.getPath(name)) == null) {
+            if (zooKeeper != null && zooKeeper.isConnected() && registryCache.exists(ZkPath.CONFIG_VERSION.getPath(name)) == null) {
                 throw new FabricException("Version '" + name + "' does not exist!");
             }
             return new VersionImpl(name, this);
@@ -588,8 +635,8 @@ public class FabricServiceImpl implements FabricService {
     public Profile[] getProfiles(String version) {
         try {
 			List<Profile> profiles = new ArrayList<Profile>();
-            List<String> names = zooKeeper.getChildren(ZkPath.CONFIG_VERSIONS_PROFILES.getPath(version));
-			names.addAll(zooKeeper.getChildren(ZkPath.CONFIG_ENSEMBLE_PROFILES.getPath()));
+            List<String> names = registryCache.getChildren(ZkPath.CONFIG_VERSIONS_PROFILES.getPath(version));
+			names.addAll(registryCache.getChildren(ZkPath.CONFIG_ENSEMBLE_PROFILES.getPath()));
             for (String name : names) {
                 profiles.add(new ProfileImpl(name, version, this));
             }
@@ -603,7 +650,7 @@ public class FabricServiceImpl implements FabricService {
     public Profile getProfile(String version, String name) {
         try {
             String path = getPath(version, name);
-            if (zooKeeper.exists(path) == null) {
+            if (registryCache.exists(path) == null) {
                 return null;
             }
             return new ProfileImpl(name, version, this);
@@ -616,6 +663,7 @@ public class FabricServiceImpl implements FabricService {
     public Profile createProfile(String version, String name) {
         try {
             ZooKeeperUtils.create(zooKeeper, ZkPath.CONFIG_VERSIONS_PROFILE.getPath(version, name));
+            registryCache.invalidate(ZkPath.CONFIG_VERSIONS_PROFILE.getPath(version, name));
             return new ProfileImpl(name, version, this);
         } catch (Exception e) {
             throw new FabricException(e);
@@ -630,6 +678,7 @@ public class FabricServiceImpl implements FabricService {
     public void deleteProfile(String versionId, String profileId) {
         try {
             zooKeeper.deleteWithChildren(getPath(versionId, profileId));
+            registryCache.invalidate(getPath(versionId, profileId));
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -648,6 +697,7 @@ public class FabricServiceImpl implements FabricService {
             requirements.removeEmptyRequirements();
             String json = RequirementsJson.toJSON(requirements);
             zooKeeper.createOrSetWithParents(REQUIREMENTS_JSON_PATH, json, CreateMode.PERSISTENT);
+            registryCache.invalidate(REQUIREMENTS_JSON_PATH);
         } catch (Exception e) {
             throw new FabricException(e);
         }
@@ -657,8 +707,8 @@ public class FabricServiceImpl implements FabricService {
     public FabricRequirements getRequirements() {
         try {
             FabricRequirements answer = null;
-            if (zooKeeper.exists(REQUIREMENTS_JSON_PATH) != null) {
-                String json = zooKeeper.getStringData(REQUIREMENTS_JSON_PATH);
+            if (registryCache.exists(REQUIREMENTS_JSON_PATH) != null) {
+                String json = registryCache.getStringData(REQUIREMENTS_JSON_PATH);
                 answer = RequirementsJson.fromJSON(json);
             }
             if (answer == null) {
@@ -683,8 +733,8 @@ public class FabricServiceImpl implements FabricService {
     @Override
     public String getDefaultJvmOptions() {
         try {
-            if (zooKeeper.isConnected() && zooKeeper.exists(JVM_OPTIONS_PATH) != null) {
-                return zooKeeper.getStringData(JVM_OPTIONS_PATH);
+            if (zooKeeper.isConnected() && registryCache.exists(JVM_OPTIONS_PATH) != null) {
+                return registryCache.getStringData(JVM_OPTIONS_PATH);
             } else {
                 return "";
             }
@@ -698,6 +748,7 @@ public class FabricServiceImpl implements FabricService {
         try {
             String opts = jvmOptions != null ? jvmOptions : "";
             zooKeeper.createOrSetWithParents(JVM_OPTIONS_PATH, opts, CreateMode.PERSISTENT);
+            registryCache.invalidate(JVM_OPTIONS_PATH);
         } catch (Exception e) {
             throw new FabricException(e);
         }
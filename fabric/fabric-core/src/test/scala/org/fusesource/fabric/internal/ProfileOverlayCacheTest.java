@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.internal;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.fusesource.fabric.zookeeper.internal.ZKClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedin.util.clock.Timespan;
+
+import static org.fusesource.fabric.zookeeper.ZkProfiles.getPath;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileOverlayCacheTest {
+
+    File dataDir;
+    NIOServerCnxnFactory serverFactory;
+    ZKClient zooKeeper;
+    RegistryCache registry;
+    ProfileOverlayCache cache;
+
+    final String parent = getPath("1.0", "parent");
+    final String child = getPath("1.0", "child");
+    final String other = getPath("1.0", "other");
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File("target/zk-" + System.nanoTime());
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, 2000);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("localhost", 0), 10);
+        serverFactory.startup(server);
+
+        zooKeeper = new ZKClient("localhost:" + serverFactory.getLocalPort(), Timespan.parse("10s"), null);
+        zooKeeper.start();
+        zooKeeper.waitForConnected();
+        for (String root : RegistryCache.ROOTS) {
+            zooKeeper.createWithParents(root, CreateMode.PERSISTENT);
+        }
+        registry = new RegistryCache();
+        registry.setZooKeeper(zooKeeper);
+        registry.onConnected();
+        assertTrue(registry.isCurrent());
+        cache = new ProfileOverlayCache(registry);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.destroy();
+        zooKeeper.close();
+        serverFactory.shutdown();
+        delete(dataDir);
+    }
+
+    @Test
+    public void testParentChangeEvictsInheritingOverlays() throws Exception {
+        ProfileOverlayImpl.Overlay childOverlay = overlay();
+        ProfileOverlayImpl.Overlay otherOverlay = overlay();
+        cache.put(child, childOverlay, Arrays.asList(parent, child), cache.getStamp());
+        cache.put(other, otherOverlay, Collections.singletonList(other), cache.getStamp());
+        assertSame(childOverlay, cache.get(child));
+
+        registry.set(parent + "/org.foo.properties", "a = b");
+        assertNull(cache.get(child));
+        assertSame(otherOverlay, cache.get(other));
+    }
+
+    @Test
+    public void testOverlayComputedDuringAChangeIsNotCached() throws Exception {
+        long stamp = cache.getStamp();
+        // the parent changes while the overlay of the child is computed
+        registry.set(parent + "/org.foo.properties", "a = b");
+        cache.put(child, overlay(), Arrays.asList(parent, child), stamp);
+        assertNull(cache.get(child));
+
+        cache.put(child, overlay(), Arrays.asList(parent, child), cache.getStamp());
+        assertNotNull(cache.get(child));
+    }
+
+    @Test
+    public void testVersionChangeEvictsItsOverlays() throws Exception {
+        cache.put(child, overlay(), Arrays.asList(parent, child), cache.getStamp());
+        cache.put(other, overlay(), Collections.singletonList(other), cache.getStamp());
+        cache.onChange("/fabric/configs/versions/1.0");
+        assertNull(cache.get(child));
+        assertNull(cache.get(other));
+    }
+
+    @Test
+    public void testOverlaysAreNotServedWhenTheRegistryIsStale() throws Exception {
+        cache.put(child, overlay(), Arrays.asList(parent, child), cache.getStamp());
+        registry.destroy();
+        assertNull(cache.get(child));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ProfileOverlayImpl.Overlay overlay() throws Exception {
+        return new ProfileOverlayImpl.Overlay(new HashMap());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
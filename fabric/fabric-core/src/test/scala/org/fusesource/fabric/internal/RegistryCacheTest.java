@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.internal;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.internal.ZKClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedin.util.clock.Timespan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegistryCacheTest {
+
+    File dataDir;
+    NIOServerCnxnFactory serverFactory;
+    ZKClient zooKeeper;
+    RegistryCache cache;
+    // the reads which went to ZooKeeper
+    final AtomicInteger zkReads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File("target/zk-" + System.nanoTime());
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, 2000);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("localhost", 0), 10);
+        serverFactory.startup(server);
+
+        zooKeeper = new ZKClient("localhost:" + serverFactory.getLocalPort(), Timespan.parse("10s"), null);
+        zooKeeper.start();
+        zooKeeper.waitForConnected();
+        for (String root : RegistryCache.ROOTS) {
+            zooKeeper.createWithParents(root, CreateMode.PERSISTENT);
+        }
+
+        cache = new RegistryCache();
+        cache.setZooKeeper((IZKClient) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { IZKClient.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getStringData")) {
+                    zkReads.incrementAndGet();
+                }
+                try {
+                    return method.invoke(zooKeeper, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }));
+        // Only the model or an event can make a written path readable from the model
+        cache.setWriteTimeout(60000);
+        cache.onConnected();
+        assertTrue(cache.isCurrent());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.destroy();
+        zooKeeper.close();
+        serverFactory.shutdown();
+        delete(dataDir);
+    }
+
+    @Test
+    public void testWriteThenRead() throws Exception {
+        String path = "/fabric/configs/versions/1.0/containers/test";
+        for (int i = 0; i < 100; i++) {
+            cache.set(path, "v" + i);
+            assertEquals("v" + i, cache.getStringData(path));
+        }
+        cache.setData(path, "last");
+        assertEquals("last", cache.getStringData(path));
+    }
+
+    @Test
+    public void testBackToBackWrites() throws Exception {
+        String path = "/fabric/configs/versions/1.0/containers/test";
+        cache.set(path, "init");
+        for (int i = 0; i < 100; i++) {
+            cache.set(path, "a" + i);
+            cache.set(path, "b" + i);
+            assertEquals("b" + i, cache.getStringData(path));
+        }
+        awaitSettled(path, "b99");
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        String parent = "/fabric/registry/containers/config";
+        String path = parent + "/test";
+        cache.set(path, "value");
+        cache.set(path + "/child", "value");
+        assertTrue(cache.getChildren(parent).contains("test"));
+
+        cache.deleteSafe(path);
+        assertNull(cache.exists(path));
+        assertNull(cache.exists(path + "/child"));
+        assertFalse(cache.getChildren(parent).contains("test"));
+
+        cache.set(path, "again");
+        assertEquals("again", cache.getStringData(path));
+        assertTrue(cache.getChildren(parent).contains("test"));
+    }
+
+    @Test
+    public void testCreateWithParents() throws Exception {
+        cache.set("/fabric/configs/versions/2.0/profiles/p/a.properties", "x");
+
+        assertNotNull(cache.exists("/fabric/configs/versions/2.0"));
+        assertTrue(cache.getChildren("/fabric/configs").contains("versions"));
+        assertTrue(cache.getChildren("/fabric/configs/versions").contains("2.0"));
+        assertTrue(cache.getChildren("/fabric/configs/versions/2.0").contains("profiles"));
+        assertTrue(cache.getChildren("/fabric/configs/versions/2.0/profiles").contains("p"));
+        assertEquals("x", cache.getStringData("/fabric/configs/versions/2.0/profiles/p/a.properties"));
+        awaitSettled("/fabric/configs/versions/2.0/profiles/p/a.properties", "x");
+        List<String> versions = cache.getChildren("/fabric/configs/versions");
+        assertEquals(1, versions.size());
+    }
+
+    /**
+     * Waits for the written value to be served from the model.
+     */
+    private void awaitSettled(String path, String value) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            int reads = zkReads.get();
+            assertEquals(value, cache.getStringData(path));
+            if (zkReads.get() == reads) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("The write to " + path + " never reached the model");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.io.ProtocolCodec;
+import org.fusesource.fabric.dosgi.tcp.LengthPrefixedCodec;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the framing done by the {@link LengthPrefixedCodec} against in
+ * memory channels, so that the codec costs are isolated from the sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"64", "4096", "65536"})
+    public int frameSize;
+
+    /**
+     * The number of frames written before each flush.
+     */
+    @Param({"1", "16"})
+    public int batch;
+
+    private Buffer frame;
+    private LengthPrefixedCodec writer;
+    private LengthPrefixedCodec reader;
+
+    @Setup
+    public void setUp() throws Exception {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(frameSize);
+        os.writeInt(frameSize);
+        for (int i = 4; i < frameSize; i++) {
+            os.writeByte(i);
+        }
+        frame = os.toBuffer();
+
+        writer = new LengthPrefixedCodec();
+        writer.setWritableByteChannel(new DiscardingChannel());
+
+        // Enough frames to span several reads.
+        byte[] stream = new byte[frameSize * Math.max(16, (256 * 1024) / frameSize)];
+        for (int i = 0; i < stream.length; i += frameSize) {
+            System.arraycopy(frame.data, frame.offset, stream, i, frameSize);
+        }
+        reader = new LengthPrefixedCodec();
+        reader.setReadableByteChannel(new LoopingChannel(stream));
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        for (int i = 0; i < batch; i++) {
+            writer.write(frame);
+        }
+        while (writer.flush() != ProtocolCodec.BufferState.EMPTY) {
+        }
+        return writer.getWriteCounter();
+    }
+
+    @Benchmark
+    public Object read() throws IOException {
+        Object rc = null;
+        for (int i = 0; i < batch; i++) {
+            while ((rc = reader.read()) == null) {
+            }
+        }
+        return rc;
+    }
+
+    static class DiscardingChannel implements GatheringByteChannel {
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += write(srcs[i]);
+            }
+            return count;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    static class LoopingChannel implements ReadableByteChannel {
+        final byte[] data;
+        int pos;
+
+        LoopingChannel(byte[] data) {
+            this.data = data;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (pos == data.length) {
+                pos = 0;
+            }
+            int count = Math.min(dst.remaining(), data.length - pos);
+            dst.put(data, pos, count);
+            pos += count;
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+}
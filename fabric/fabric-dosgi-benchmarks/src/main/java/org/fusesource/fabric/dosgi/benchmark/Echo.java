@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.Serialization;
+
+/**
+ * The remote service invoked by the benchmarks, the same payload is echoed
+ * back using each serialization strategy.  The server looks the annotations
+ * up on the implementation, so {@link EchoImpl} repeats them.
+ */
+public interface Echo {
+
+    byte[] echo(byte[] data);
+
+    void echo(byte[] data, AsyncCallback<byte[]> callback);
+
+    @Serialization("binary")
+    byte[] binary(byte[] data);
+
+    @Serialization("binary")
+    void binary(byte[] data, AsyncCallback<byte[]> callback);
+
+    @Serialization("protobuf")
+    Payload.Getter protobuf(Payload.Getter data);
+
+    @Serialization("protobuf")
+    void protobuf(Payload.Getter data, AsyncCallback<Payload.Getter> callback);
+
+}
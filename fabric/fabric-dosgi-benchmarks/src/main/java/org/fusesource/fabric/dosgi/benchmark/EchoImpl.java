@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.Serialization;
+
+public class EchoImpl implements Echo {
+
+    public byte[] echo(byte[] data) {
+        return data;
+    }
+
+    public void echo(byte[] data, AsyncCallback<byte[]> callback) {
+        callback.onSuccess(data);
+    }
+
+    @Serialization("binary")
+    public byte[] binary(byte[] data) {
+        return data;
+    }
+
+    @Serialization("binary")
+    public void binary(byte[] data, AsyncCallback<byte[]> callback) {
+        callback.onSuccess(data);
+    }
+
+    @Serialization("protobuf")
+    public Payload.Getter protobuf(Payload.Getter data) {
+        return data;
+    }
+
+    @Serialization("protobuf")
+    public void protobuf(Payload.Getter data, AsyncCallback<Payload.Getter> callback) {
+        callback.onSuccess(data);
+    }
+
+}
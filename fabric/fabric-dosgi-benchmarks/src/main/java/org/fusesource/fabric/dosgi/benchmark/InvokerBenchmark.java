@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.BinarySerializationStrategy;
+import org.fusesource.fabric.dosgi.api.ProtobufSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.fabric.dosgi.io.ServerInvoker;
+import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures remote invocations through a client and a server invoker talking
+ * over the loopback interface.
+ * <p>
+ * Both the throughput and the sampled latency (reported with its
+ * percentiles) are measured.  The number of client threads is set with the
+ * JMH <code>-t</code> option, e.g. to run the async calls with 16 threads
+ * and the largest payload only:
+ * <pre>
+ * java -jar target/benchmarks.jar InvokerBenchmark.async -t 16 -p payloadSize=16384
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InvokerBenchmark {
+
+    /**
+     * The number of async calls kept in flight by each thread.
+     */
+    public static final int WINDOW = 32;
+
+    @Param({"java", "binary", "protobuf"})
+    public String serialization;
+
+    @Param({"16", "16384"})
+    public int payloadSize;
+
+    @Param({"1", "4"})
+    public int connections;
+
+    private DispatchQueue queue;
+    private ServerInvokerImpl server;
+    private ClientInvokerImpl client;
+    private Echo echo;
+    private byte[] data;
+    private Payload.Bean payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        HashMap<String, SerializationStrategy> strategies = new HashMap<String, SerializationStrategy>();
+        strategies.put(BinarySerializationStrategy.NAME, BinarySerializationStrategy.INSTANCE);
+        strategies.put("protobuf", ProtobufSerializationStrategy.INSTANCE);
+
+        queue = Dispatch.createQueue();
+        server = new ServerInvokerImpl("tcp://localhost:0", queue, strategies);
+        server.start();
+        final EchoImpl impl = new EchoImpl();
+        server.registerService("echo", new ServerInvoker.ServiceFactory() {
+            public Object get() {
+                return impl;
+            }
+            public void unget() {
+            }
+        }, EchoImpl.class.getClassLoader());
+
+        client = new ClientInvokerImpl(queue, strategies);
+        client.setMinConnections(connections);
+        client.setMaxConnections(connections);
+        client.start();
+        echo = (Echo) Proxy.newProxyInstance(Echo.class.getClassLoader(), new Class[] { Echo.class },
+                client.getProxy(server.getConnectAddress(), "echo", Echo.class.getClassLoader()));
+
+        data = new byte[payloadSize];
+        new Random(0).nextBytes(data);
+        payload = new Payload.Bean();
+        payload.setData(new Buffer(data));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public Object blocking() {
+        if ("protobuf".equals(serialization)) {
+            return echo.protobuf(payload);
+        } else if ("binary".equals(serialization)) {
+            return echo.binary(data);
+        } else {
+            return echo.echo(data);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    @SuppressWarnings("unchecked")
+    public void async() throws Throwable {
+        final CountDownLatch latch = new CountDownLatch(WINDOW);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        AsyncCallback callback = new AsyncCallback<Object>() {
+            public void onSuccess(Object result) {
+                latch.countDown();
+            }
+            public void onFailure(Throwable t) {
+                failure.set(t);
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < WINDOW; i++) {
+            if ("protobuf".equals(serialization)) {
+                echo.protobuf(payload, callback);
+            } else if ("binary".equals(serialization)) {
+                echo.binary(data, callback);
+            } else {
+                echo.echo(data, callback);
+            }
+        }
+        latch.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.api.BinarySerializationStrategy;
+import org.fusesource.fabric.dosgi.api.ObjectSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.ProtobufSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding and decoding of a request by the serialization
+ * strategies, without any I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"java", "binary", "protobuf"})
+    public String serialization;
+
+    @Param({"16", "16384"})
+    public int payloadSize;
+
+    private final ClassLoader loader = SerializationBenchmark.class.getClassLoader();
+    private SerializationStrategy strategy;
+    private Class<?>[] types;
+    private Object[] args;
+    private Buffer encoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] data = new byte[payloadSize];
+        new Random(0).nextBytes(data);
+        if ("protobuf".equals(serialization)) {
+            Payload.Bean payload = new Payload.Bean();
+            payload.setData(new Buffer(data));
+            strategy = ProtobufSerializationStrategy.INSTANCE;
+            types = new Class<?>[] { Payload.Getter.class };
+            args = new Object[] { payload.freeze() };
+        } else {
+            strategy = "binary".equals(serialization) ? BinarySerializationStrategy.INSTANCE : ObjectSerializationStrategy.INSTANCE;
+            types = new Class<?>[] { byte[].class };
+            args = new Object[] { data };
+        }
+        encoded = encode();
+    }
+
+    @Benchmark
+    public Buffer encode() throws Exception {
+        DataByteArrayOutputStream out = new DataByteArrayOutputStream();
+        strategy.encodeRequest(loader, types, args, out);
+        return out.toBuffer();
+    }
+
+    @Benchmark
+    public Object decode() throws Exception {
+        Object[] target = new Object[types.length];
+        strategy.decodeRequest(loader, types, new DataByteArrayInputStream(encoded), target);
+        return target[0];
+    }
+
+}
@@ -18,6 +18,8 @@ package org.fusesource.fabric.dosgi;
 
 import java.util.concurrent.TimeUnit;
 
+import javax.management.MBeanServer;
+
 import org.fusesource.fabric.dosgi.impl.Manager;
 import org.fusesource.fabric.zookeeper.IZKClient;
 import org.linkedin.zookeeper.client.LifecycleListener;
@@ -31,6 +33,17 @@ public class Activator implements LifecycleListener {
     private String uri;
     private String exportedAddress;
     private long timeout = TimeUnit.MINUTES.toMillis(5);
+    private int clientShards = 1;
+    private long flushDelay;
+    private int bufferPoolSize;
+    private boolean interning;
+    private int maxPendingRequests;
+    private int minConnections;
+    private int maxConnections = 2;
+    private int executorThreads = 8;
+    private int executorQueueSize;
+    private String executors;
+    private MBeanServer mbeanServer;
     private ServiceReference reference;
     private IZKClient zookeeper;
 
@@ -50,6 +63,57 @@ public class Activator implements LifecycleListener {
         this.timeout = timeout;
     }
 
+    public void setClientShards(int clientShards) {
+        this.clientShards = clientShards;
+    }
+
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    public void setMaxPendingRequests(int maxPendingRequests) {
+        this.maxPendingRequests = maxPendingRequests;
+    }
+
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setExecutorThreads(int executorThreads) {
+        this.executorThreads = executorThreads;
+    }
+
+    public void setExecutorQueueSize(int executorQueueSize) {
+        this.executorQueueSize = executorQueueSize;
+    }
+
+    public void setExecutors(String executors) {
+        this.executors = executors;
+    }
+
+    public void registerMBeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+        if (manager != null) {
+            manager.setMBeanServer(mbeanServer);
+        }
+    }
+
+    public void unregisterMBeanServer(MBeanServer mbeanServer) {
+        registerMBeanServer(null);
+    }
+
     public void destroy() {
         destroyManager();
         if (reference != null) {
@@ -88,6 +152,17 @@ public class Activator implements LifecycleListener {
         destroyManager();
         try {
             manager = new Manager(this.bundleContext, zookeeper, uri, exportedAddress, timeout);
+            manager.setClientShards(clientShards);
+            manager.setFlushDelay(flushDelay);
+            manager.setBufferPoolSize(bufferPoolSize);
+            manager.setInterning(interning);
+            manager.setMaxPendingRequests(maxPendingRequests);
+            manager.setMinConnections(minConnections);
+            manager.setMaxConnections(maxConnections);
+            manager.setExecutorThreads(executorThreads);
+            manager.setExecutorQueueSize(executorQueueSize);
+            manager.setExecutors(executors);
+            manager.setMBeanServer(mbeanServer);
             manager.init();
         } catch (Exception e) {
             throw new RuntimeException("Unable to start DOSGi service: " + e.getMessage(), e);
@@ -0,0 +1,974 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.api;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import org.fusesource.fabric.dosgi.util.ClassLoaderObjectInputStream;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+/**
+ * <p>
+ * A compact binary serialization for plain java types, selected with
+ * <code>@Serialization("binary")</code>.
+ * </p>
+ * <p>
+ * Every value is prefixed by a one byte tag.  Primitives and their wrappers,
+ * strings, dates, enums, arrays, collections and maps have a dedicated
+ * encoding.  Simple beans, i.e. classes outside of the <code>java.*</code>
+ * packages with a no-arg constructor, are encoded field by field through a
+ * codec built once per class.  Throwables, the serializable classes which
+ * customize their serialized form, the collections and maps which can not be
+ * rebuilt as they were (e.g. an <code>EnumSet</code> or a sorted set with a
+ * comparator) and the other serializable classes fall back to java
+ * serialization.  The names of the classes are only written once per message.
+ * Object graphs are encoded as trees: shared references are duplicated and
+ * cycles are not supported.
+ * </p>
+ * <p>
+ * As the class names are read from the peer, the decoder only resolves the
+ * types of the method signature, the types of the fields of the beans it
+ * decodes, including their type arguments, and their subclasses.  Other
+ * classes, such as beans passed as an <code>Object</code>, must belong to
+ * one of the allowed packages, configured with the
+ * <code>org.fusesource.fabric.dosgi.binary.allowedPackages</code> system
+ * property as a comma separated list of package names.
+ * </p>
+ */
+public class BinarySerializationStrategy implements SerializationStrategy {
+
+    public static final String NAME = "binary";
+
+    public static final String ALLOWED_PACKAGES = "org.fusesource.fabric.dosgi.binary.allowedPackages";
+
+    public static final BinarySerializationStrategy INSTANCE = new BinarySerializationStrategy();
+
+    static final byte NULL = 0;
+    static final byte TRUE = 1;
+    static final byte FALSE = 2;
+    static final byte BYTE = 3;
+    static final byte SHORT = 4;
+    static final byte CHAR = 5;
+    static final byte INT = 6;
+    static final byte LONG = 7;
+    static final byte FLOAT = 8;
+    static final byte DOUBLE = 9;
+    static final byte STRING = 10;
+    static final byte BYTES = 11;
+    static final byte ARRAY = 12;
+    static final byte ENUM = 13;
+    static final byte DATE = 14;
+    static final byte COLLECTION = 15;
+    static final byte MAP = 16;
+    static final byte BEAN = 17;
+    static final byte SERIALIZED = 18;
+
+    static final HashMap<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+    static {
+        PRIMITIVES.put("boolean", boolean.class);
+        PRIMITIVES.put("byte", byte.class);
+        PRIMITIVES.put("short", short.class);
+        PRIMITIVES.put("char", char.class);
+        PRIMITIVES.put("int", int.class);
+        PRIMITIVES.put("long", long.class);
+        PRIMITIVES.put("float", float.class);
+        PRIMITIVES.put("double", double.class);
+    }
+
+    private final Map<Class<?>, SoftReference<BeanCodec>> codecs =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<BeanCodec>>());
+    private final Map<Class<?>, Boolean> containers =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+    private final String[] allowedPackages;
+
+    public BinarySerializationStrategy() {
+        this(System.getProperty(ALLOWED_PACKAGES, "").split(","));
+    }
+
+    /**
+     * @param allowedPackages the packages of the classes which can be decoded
+     *                        even if they are not referenced by the signature
+     */
+    public BinarySerializationStrategy(String... allowedPackages) {
+        List<String> prefixes = new ArrayList<String>();
+        for (String name : allowedPackages) {
+            name = name.trim();
+            if (name.length() > 0) {
+                prefixes.add(name.endsWith(".") ? name : name + ".");
+            }
+        }
+        this.allowedPackages = prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    public String name() {
+        return NAME;
+    }
+
+    public void encodeRequest(ClassLoader loader, Class<?>[] types, Object[] args, DataByteArrayOutputStream target) throws IOException {
+        Encoder encoder = new Encoder(target);
+        int count = args == null ? 0 : args.length;
+        for (int i = 0; i < count; i++) {
+            encoder.writeValue(args[i]);
+        }
+    }
+
+    public void decodeRequest(ClassLoader loader, Class<?>[] types, DataByteArrayInputStream source, Object[] target) throws IOException, ClassNotFoundException {
+        Decoder decoder = new Decoder(source, loader, types);
+        // The target has an extra slot for the callback of async methods.
+        for (int i = 0; i < types.length; i++) {
+            target[i] = decoder.readValue();
+        }
+    }
+
+    public void encodeResponse(ClassLoader loader, Class<?> type, Object value, Throwable error, DataByteArrayOutputStream target) throws IOException {
+        Encoder encoder = new Encoder(target);
+        if (error != null) {
+            target.writeBoolean(true);
+            encoder.writeSerialized(error);
+        } else {
+            target.writeBoolean(false);
+            encoder.writeValue(value);
+        }
+    }
+
+    public void decodeResponse(ClassLoader loader, Class<?> type, DataByteArrayInputStream source, AsyncCallback result) throws IOException, ClassNotFoundException {
+        Decoder decoder = new Decoder(source, loader, type);
+        if (source.readBoolean()) {
+            result.onFailure((Throwable) decoder.readSerialized());
+        } else {
+            result.onSuccess(decoder.readValue());
+        }
+    }
+
+    /**
+     * Returns the codec of a bean class, or null if the class can not be
+     * encoded as a bean.
+     */
+    BeanCodec getCodec(Class<?> clazz) {
+        SoftReference<BeanCodec> ref = codecs.get(clazz);
+        BeanCodec codec = ref != null ? ref.get() : null;
+        if (codec == null) {
+            codec = BeanCodec.create(clazz);
+            codecs.put(clazz, new SoftReference<BeanCodec>(codec));
+        }
+        return codec.fields != null ? codec : null;
+    }
+
+    /**
+     * Returns whether a collection or a map can be rebuilt as it was from its
+     * class and its elements, i.e. its class has a public no-arg constructor
+     * and it has no comparator.
+     */
+    boolean isRebuildable(Object container) {
+        if (container instanceof SortedSet && ((SortedSet<?>) container).comparator() != null
+                || container instanceof SortedMap && ((SortedMap<?, ?>) container).comparator() != null) {
+            return false;
+        }
+        Class<?> clazz = container.getClass();
+        Boolean rebuildable = containers.get(clazz);
+        if (rebuildable == null) {
+            try {
+                rebuildable = Modifier.isPublic(clazz.getModifiers())
+                        && Modifier.isPublic(clazz.getConstructor().getModifiers());
+            } catch (NoSuchMethodException e) {
+                rebuildable = false;
+            }
+            containers.put(clazz, rebuildable);
+        }
+        return rebuildable;
+    }
+
+    boolean isAllowedPackage(String className) {
+        for (String prefix : allowedPackages) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    class Encoder {
+
+        final DataByteArrayOutputStream out;
+        Map<Class<?>, Integer> classes;
+
+        Encoder(DataByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeVarSignedInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeVarSignedLong((Long) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeVarSignedInt((Short) value);
+            } else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                out.writeByte(CHAR);
+                out.writeVarInt((Character) value);
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                out.writeByte(BYTES);
+                out.writeVarInt(bytes.length);
+                out.write(bytes);
+            } else if (value.getClass().isArray()) {
+                writeArray(value);
+            } else if (value instanceof Enum) {
+                out.writeByte(ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass());
+                writeString(((Enum<?>) value).name());
+            } else if (value.getClass() == Date.class) {
+                out.writeByte(DATE);
+                out.writeVarSignedLong(((Date) value).getTime());
+            } else if ((value instanceof Collection || value instanceof Map) && !isRebuildable(value) && writeSerializedIfPossible(value)) {
+                // written with java serialization
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                out.writeByte(COLLECTION);
+                writeClass(value.getClass());
+                out.writeVarInt(collection.size());
+                for (Object element : collection) {
+                    writeValue(element);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.writeByte(MAP);
+                writeClass(value.getClass());
+                out.writeVarInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof Throwable) {
+                writeSerialized(value);
+            } else {
+                BeanCodec codec = getCodec(value.getClass());
+                if (codec != null) {
+                    out.writeByte(BEAN);
+                    writeClass(value.getClass());
+                    codec.write(this, value);
+                } else if (value instanceof Serializable) {
+                    writeSerialized(value);
+                } else {
+                    throw new NotSerializableException(value.getClass().getName());
+                }
+            }
+        }
+
+        void writeArray(Object array) throws IOException {
+            Class<?> component = array.getClass().getComponentType();
+            int length = Array.getLength(array);
+            out.writeByte(ARRAY);
+            writeClass(component);
+            out.writeVarInt(length);
+            if (component == int.class) {
+                for (int v : (int[]) array) {
+                    out.writeVarSignedInt(v);
+                }
+            } else if (component == long.class) {
+                for (long v : (long[]) array) {
+                    out.writeVarSignedLong(v);
+                }
+            } else if (component == double.class) {
+                for (double v : (double[]) array) {
+                    out.writeDouble(v);
+                }
+            } else if (component == float.class) {
+                for (float v : (float[]) array) {
+                    out.writeFloat(v);
+                }
+            } else if (component == boolean.class) {
+                for (boolean v : (boolean[]) array) {
+                    out.writeBoolean(v);
+                }
+            } else if (component == short.class) {
+                for (short v : (short[]) array) {
+                    out.writeVarSignedInt(v);
+                }
+            } else if (component == char.class) {
+                for (char v : (char[]) array) {
+                    out.writeVarInt(v);
+                }
+            } else {
+                for (Object v : (Object[]) array) {
+                    writeValue(v);
+                }
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            Buffer buffer = new UTF8Buffer(value);
+            out.writeVarInt(buffer.length);
+            out.write(buffer.data, buffer.offset, buffer.length);
+        }
+
+        /**
+         * Writes the name of a class the first time it is encoded in the
+         * message, its index in the following ones.
+         */
+        void writeClass(Class<?> clazz) throws IOException {
+            if (classes == null) {
+                classes = new HashMap<Class<?>, Integer>();
+            }
+            Integer index = classes.get(clazz);
+            if (index != null) {
+                out.writeVarInt(index + 1);
+            } else {
+                classes.put(clazz, classes.size());
+                out.writeVarInt(0);
+                writeString(clazz.getName());
+            }
+        }
+
+        void writeSerialized(Object value) throws IOException {
+            DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(value);
+            oos.flush();
+            out.writeByte(SERIALIZED);
+            out.writeVarInt(baos.size());
+            out.write(baos.getData(), 0, baos.size());
+        }
+
+        /**
+         * Writes a value with java serialization, or nothing if it or one of
+         * the objects it references is not serializable.
+         */
+        boolean writeSerializedIfPossible(Object value) throws IOException {
+            if (!(value instanceof Serializable)) {
+                return false;
+            }
+            try {
+                writeSerialized(value);
+                return true;
+            } catch (NotSerializableException e) {
+                // nothing has been written yet
+                return false;
+            }
+        }
+    }
+
+    class Decoder {
+
+        final DataByteArrayInputStream in;
+        final ClassLoader loader;
+        final Map<String, Class<?>> known = new HashMap<String, Class<?>>();
+        Set<Class<?>> expanded;
+        List<Class<?>> classes;
+
+        Decoder(DataByteArrayInputStream in, ClassLoader loader, Class<?>... types) {
+            this.in = in;
+            this.loader = loader;
+            for (Class<?> type : types) {
+                if (type != null) {
+                    know(type);
+                }
+            }
+        }
+
+        private void know(Type type) {
+            if (type instanceof Class) {
+                Class<?> clazz = (Class<?>) type;
+                while (clazz.isArray()) {
+                    clazz = clazz.getComponentType();
+                }
+                known.put(clazz.getName(), clazz);
+            } else if (type instanceof ParameterizedType) {
+                know(((ParameterizedType) type).getRawType());
+                for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                    know(argument);
+                }
+            } else if (type instanceof GenericArrayType) {
+                know(((GenericArrayType) type).getGenericComponentType());
+            } else if (type instanceof WildcardType) {
+                for (Type bound : ((WildcardType) type).getUpperBounds()) {
+                    know(bound);
+                }
+            } else if (type instanceof TypeVariable) {
+                for (Type bound : ((TypeVariable<?>) type).getBounds()) {
+                    know(bound);
+                }
+            }
+        }
+
+        /**
+         * Adds the types of the fields of a bean class to the known types,
+         * before decoding its fields.
+         */
+        private void expand(Class<?> clazz, BeanCodec codec) {
+            if (expanded == null) {
+                expanded = new HashSet<Class<?>>();
+            }
+            if (expanded.add(clazz)) {
+                for (FieldCodec field : codec.fields) {
+                    know(field.field.getGenericType());
+                }
+            }
+        }
+
+        /**
+         * Returns whether a class read from the peer can be decoded: the
+         * containers, enums and other classes of the java packages, the
+         * classes of the allowed packages and the known types and their
+         * subclasses.
+         */
+        private boolean isAllowed(Class<?> clazz) {
+            while (clazz.isArray()) {
+                clazz = clazz.getComponentType();
+            }
+            String name = clazz.getName();
+            if (clazz.isPrimitive() || name.startsWith("java.") || name.startsWith("javax.") || isAllowedPackage(name)) {
+                return true;
+            }
+            for (Class<?> type : known.values()) {
+                if (type != Object.class && !type.getName().startsWith("java.") && type.isAssignableFrom(clazz)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Object readValue() throws IOException, ClassNotFoundException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTE:
+                    return in.readByte();
+                case SHORT:
+                    return (short) in.readVarSignedInt();
+                case CHAR:
+                    return (char) in.readVarInt();
+                case INT:
+                    return in.readVarSignedInt();
+                case LONG:
+                    return in.readVarSignedLong();
+                case FLOAT:
+                    return in.readFloat();
+                case DOUBLE:
+                    return in.readDouble();
+                case STRING:
+                    return readString();
+                case BYTES: {
+                    byte[] bytes = new byte[readLength()];
+                    in.readFully(bytes);
+                    return bytes;
+                }
+                case ARRAY:
+                    return readArray();
+                case ENUM:
+                    return readEnum();
+                case DATE:
+                    return new Date(in.readVarSignedLong());
+                case COLLECTION:
+                    return readCollection();
+                case MAP:
+                    return readMap();
+                case BEAN: {
+                    Class<?> clazz = readClass();
+                    BeanCodec codec = getCodec(clazz);
+                    if (codec == null) {
+                        throw new StreamCorruptedException("Not a bean class: " + clazz.getName());
+                    }
+                    expand(clazz, codec);
+                    return codec.read(this);
+                }
+                case SERIALIZED:
+                    return readSerialized(tag, false);
+                default:
+                    throw new StreamCorruptedException("Unknown tag: " + tag);
+            }
+        }
+
+        Object readArray() throws IOException, ClassNotFoundException {
+            Class<?> component = readClass();
+            int length = readLength();
+            Object array = Array.newInstance(component, length);
+            if (component == int.class) {
+                int[] a = (int[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = in.readVarSignedInt();
+                }
+            } else if (component == long.class) {
+                long[] a = (long[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = in.readVarSignedLong();
+                }
+            } else if (component == double.class) {
+                double[] a = (double[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = in.readDouble();
+                }
+            } else if (component == float.class) {
+                float[] a = (float[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = in.readFloat();
+                }
+            } else if (component == boolean.class) {
+                boolean[] a = (boolean[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = in.readBoolean();
+                }
+            } else if (component == short.class) {
+                short[] a = (short[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = (short) in.readVarSignedInt();
+                }
+            } else if (component == char.class) {
+                char[] a = (char[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = (char) in.readVarInt();
+                }
+            } else {
+                Object[] a = (Object[]) array;
+                for (int i = 0; i < length; i++) {
+                    a[i] = readValue();
+                }
+            }
+            return array;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readEnum() throws IOException, ClassNotFoundException {
+            Class clazz = readClass();
+            if (!clazz.isEnum()) {
+                throw new StreamCorruptedException("Not an enum class: " + clazz.getName());
+            }
+            return Enum.valueOf(clazz, readString());
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readCollection() throws IOException, ClassNotFoundException {
+            Class<?> clazz = readClass();
+            if (!Collection.class.isAssignableFrom(clazz)) {
+                throw new StreamCorruptedException("Not a collection class: " + clazz.getName());
+            }
+            int size = readLength();
+            Collection<Object> collection = (Collection<Object>) newInstance(clazz);
+            if (collection == null) {
+                if (SortedSet.class.isAssignableFrom(clazz)) {
+                    collection = new TreeSet<Object>();
+                } else if (Set.class.isAssignableFrom(clazz)) {
+                    collection = new LinkedHashSet<Object>();
+                } else {
+                    collection = new ArrayList<Object>(size);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue());
+            }
+            return collection;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readMap() throws IOException, ClassNotFoundException {
+            Class<?> clazz = readClass();
+            if (!Map.class.isAssignableFrom(clazz)) {
+                throw new StreamCorruptedException("Not a map class: " + clazz.getName());
+            }
+            int size = readLength();
+            Map<Object, Object> map = (Map<Object, Object>) newInstance(clazz);
+            if (map == null) {
+                map = SortedMap.class.isAssignableFrom(clazz) ? new TreeMap<Object, Object>() : new HashMap<Object, Object>();
+            }
+            for (int i = 0; i < size; i++) {
+                Object key = readValue();
+                map.put(key, readValue());
+            }
+            return map;
+        }
+
+        /**
+         * Creates a collection or a map of the encoded class if it has a
+         * public no-arg constructor, the unmodifiable or synchronized
+         * wrappers for instance do not.
+         */
+        private Object newInstance(Class<?> clazz) {
+            try {
+                if (Modifier.isPublic(clazz.getModifiers())) {
+                    return clazz.newInstance();
+                }
+            } catch (Exception e) {
+                // fall back on the default implementation
+            }
+            return null;
+        }
+
+        /**
+         * Reads the length of an array, a string or a container.  Each element
+         * takes at least one byte, so a length larger than the remaining data
+         * can only come from a corrupted or forged frame.
+         */
+        private int readLength() throws IOException {
+            int length = in.readVarInt();
+            if (length < 0 || length > in.available()) {
+                throw new StreamCorruptedException("Invalid length: " + length);
+            }
+            return length;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            Buffer buffer = in.readBuffer(length);
+            if (buffer == null || buffer.length != length) {
+                throw new StreamCorruptedException("Truncated string");
+            }
+            return new UTF8Buffer(buffer).toString();
+        }
+
+        Class<?> readClass() throws IOException, ClassNotFoundException {
+            if (classes == null) {
+                classes = new ArrayList<Class<?>>();
+            }
+            int index = in.readVarInt();
+            if (index > 0) {
+                if (index > classes.size()) {
+                    throw new StreamCorruptedException("Unknown class index: " + index);
+                }
+                return classes.get(index - 1);
+            }
+            String name = readString();
+            Class<?> clazz = PRIMITIVES.get(name);
+            if (clazz == null) {
+                clazz = known.get(name);
+            }
+            if (clazz == null) {
+                // loaded without being initialized, so no code of the class runs
+                clazz = Class.forName(name, false, loader);
+                if (!isAllowed(clazz)) {
+                    throw new InvalidClassException(name, "Class not referenced by the method signature nor in an allowed package");
+                }
+            }
+            classes.add(clazz);
+            return clazz;
+        }
+
+        /**
+         * Reads the serialized exception of a failed invocation.
+         */
+        Object readSerialized() throws IOException, ClassNotFoundException {
+            return readSerialized(in.readByte(), true);
+        }
+
+        private Object readSerialized(byte tag, final boolean failure) throws IOException, ClassNotFoundException {
+            if (tag != SERIALIZED) {
+                throw new StreamCorruptedException("Unexpected tag: " + tag);
+            }
+            int length = readLength();
+            Buffer buffer = in.readBuffer(length);
+            if (buffer == null || buffer.length != length) {
+                throw new StreamCorruptedException("Truncated serialized object");
+            }
+            // The classes of the serialized graph are restricted as the ones read by readClass
+            ClassLoaderObjectInputStream ois = new ClassLoaderObjectInputStream(new DataByteArrayInputStream(buffer)) {
+                @Override
+                protected Class resolveClass(ObjectStreamClass classDesc) throws IOException, ClassNotFoundException {
+                    Class<?> clazz = super.resolveClass(classDesc);
+                    if (!isAllowed(clazz) && !(failure && Throwable.class.isAssignableFrom(clazz))) {
+                        throw new InvalidClassException(clazz.getName(), "Class not referenced by the method signature nor in an allowed package");
+                    }
+                    return clazz;
+                }
+
+                @Override
+                protected Class resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+                    Class<?> clazz = super.resolveProxyClass(interfaces);
+                    for (Class<?> itf : clazz.getInterfaces()) {
+                        if (!isAllowed(itf)) {
+                            throw new InvalidClassException(itf.getName(), "Class not referenced by the method signature nor in an allowed package");
+                        }
+                    }
+                    return clazz;
+                }
+            };
+            ois.setClassLoader(loader);
+            return ois.readObject();
+        }
+    }
+
+    /**
+     * Encodes the fields of a bean class.  The fields are looked up and made
+     * accessible once, in an order both ends agree on.
+     */
+    static class BeanCodec {
+
+        final Constructor<?> constructor;
+        final FieldCodec[] fields;
+
+        BeanCodec(Constructor<?> constructor, FieldCodec[] fields) {
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        static BeanCodec create(Class<?> clazz) {
+            if (clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers())
+                    || clazz.getName().startsWith("java.") || clazz.getName().startsWith("javax.")
+                    || hasSerializationHooks(clazz)) {
+                return new BeanCodec(null, null);
+            }
+            Constructor<?> constructor;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (Exception e) {
+                return new BeanCodec(null, null);
+            }
+            List<FieldCodec> codecs = new ArrayList<FieldCodec>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                List<Field> declared = new ArrayList<Field>();
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                        declared.add(field);
+                    }
+                }
+                Collections.sort(declared, new Comparator<Field>() {
+                    public int compare(Field f1, Field f2) {
+                        return f1.getName().compareTo(f2.getName());
+                    }
+                });
+                for (Field field : declared) {
+                    field.setAccessible(true);
+                    codecs.add(FieldCodec.create(field));
+                }
+            }
+            return new BeanCodec(constructor, codecs.toArray(new FieldCodec[codecs.size()]));
+        }
+
+        /**
+         * Returns whether a serializable class customizes its serialized form,
+         * in which case its fields can not be copied as they are.
+         */
+        static boolean hasSerializationHooks(Class<?> clazz) {
+            if (!Serializable.class.isAssignableFrom(clazz)) {
+                return false;
+            }
+            if (Externalizable.class.isAssignableFrom(clazz)) {
+                return true;
+            }
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                if (hasMethod(c, "writeObject", ObjectOutputStream.class)
+                        || hasMethod(c, "readObject", ObjectInputStream.class)
+                        || hasMethod(c, "readObjectNoData")
+                        || hasMethod(c, "writeReplace")
+                        || hasMethod(c, "readResolve")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean hasMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+            try {
+                Method method = clazz.getDeclaredMethod(name, parameterTypes);
+                return !Modifier.isStatic(method.getModifiers());
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        void write(Encoder encoder, Object bean) throws IOException {
+            try {
+                for (FieldCodec field : fields) {
+                    field.write(encoder, bean);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        Object read(Decoder decoder) throws IOException, ClassNotFoundException {
+            try {
+                Object bean = constructor.newInstance();
+                for (FieldCodec field : fields) {
+                    field.read(decoder, bean);
+                }
+                return bean;
+            } catch (IOException e) {
+                throw e;
+            } catch (ClassNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+
+    /**
+     * Encodes a field, primitive fields are written without tag.
+     */
+    static abstract class FieldCodec {
+
+        final Field field;
+
+        FieldCodec(Field field) {
+            this.field = field;
+        }
+
+        abstract void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException;
+
+        abstract void read(Decoder decoder, Object bean) throws IOException, ClassNotFoundException, IllegalAccessException;
+
+        static FieldCodec create(Field field) {
+            Class<?> type = field.getType();
+            if (type == int.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeVarSignedInt(field.getInt(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setInt(bean, decoder.in.readVarSignedInt());
+                    }
+                };
+            } else if (type == long.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeVarSignedLong(field.getLong(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setLong(bean, decoder.in.readVarSignedLong());
+                    }
+                };
+            } else if (type == boolean.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeBoolean(field.getBoolean(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setBoolean(bean, decoder.in.readBoolean());
+                    }
+                };
+            } else if (type == double.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeDouble(field.getDouble(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setDouble(bean, decoder.in.readDouble());
+                    }
+                };
+            } else if (type == float.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeFloat(field.getFloat(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setFloat(bean, decoder.in.readFloat());
+                    }
+                };
+            } else if (type == short.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeVarSignedInt(field.getShort(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setShort(bean, (short) decoder.in.readVarSignedInt());
+                    }
+                };
+            } else if (type == byte.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeByte(field.getByte(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setByte(bean, decoder.in.readByte());
+                    }
+                };
+            } else if (type == char.class) {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.out.writeVarInt(field.getChar(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, IllegalAccessException {
+                        field.setChar(bean, (char) decoder.in.readVarInt());
+                    }
+                };
+            } else {
+                return new FieldCodec(field) {
+                    void write(Encoder encoder, Object bean) throws IOException, IllegalAccessException {
+                        encoder.writeValue(field.get(bean));
+                    }
+                    void read(Decoder decoder, Object bean) throws IOException, ClassNotFoundException, IllegalAccessException {
+                        field.set(bean, decoder.readValue());
+                    }
+                };
+            }
+        }
+    }
+
+}
@@ -23,9 +23,11 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -33,21 +35,59 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class CapabilitySet<C extends Capability>
 {
-    private final Map<String, Map<Object, Set<C>>> m_indices;
+    private static final int FILTER_CACHE_SIZE = 1024;
+
+    private final Map<String, Index<C>> m_indices;
     private final Set<C> m_capSet = new HashSet<C>();
     private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+    private final Map<String, SimpleFilter> m_filters =
+        new LinkedHashMap<String, SimpleFilter>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SimpleFilter> eldest)
+            {
+                return size() > FILTER_CACHE_SIZE;
+            }
+        };
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
-            ? new TreeMap<String, Map<Object, Set<C>>>()
-            : new TreeMap<String, Map<Object, Set<C>>>(String.CASE_INSENSITIVE_ORDER);
+            ? new TreeMap<String, Index<C>>()
+            : new TreeMap<String, Index<C>>(String.CASE_INSENSITIVE_ORDER);
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
-            m_indices.put(indexProps.get(i), new HashMap<Object, Set<C>>());
+            m_indices.put(indexProps.get(i), new Index<C>());
         }
     }
 
+    /**
+     * Parses a filter, the most recently used filters being cached so that
+     * the ones repeatedly looked up are only parsed once.
+     */
+    public SimpleFilter compile(String filter)
+    {
+        SimpleFilter sf;
+        synchronized (m_filters)
+        {
+            sf = m_filters.get(filter);
+        }
+        if (sf == null)
+        {
+            sf = SimpleFilter.parse(filter);
+            synchronized (m_filters)
+            {
+                m_filters.put(filter, sf);
+            }
+        }
+        return sf;
+    }
+
+    public Set<C> match(String filter)
+    {
+        return match(compile(filter));
+    }
+
     public void addCapability(C cap)
     {
         m_lock.writeLock().lock();
@@ -66,7 +106,7 @@ public class CapabilitySet<C extends Capability>
         m_capSet.add(cap);
 
         // Index capability.
-        for (Entry<String, Map<Object, Set<C>>> entry : m_indices.entrySet())
+        for (Entry<String, Index<C>> entry : m_indices.entrySet())
         {
             Attribute capAttr = cap.getAttribute(entry.getKey());
             if (capAttr != null)
@@ -77,36 +117,29 @@ public class CapabilitySet<C extends Capability>
                     capValue = convertArrayToList(capValue);
                 }
 
-                Map<Object, Set<C>> index = entry.getValue();
+                Index<C> index = entry.getValue();
 
                 if (capValue instanceof Collection)
                 {
                     Collection c = (Collection) capValue;
                     for (Object o : c)
                     {
-                        indexCapability(index, cap, o);
+                        index.add(cap, o);
+                    }
+                    if (c.isEmpty())
+                    {
+                        // Still present, but matching no other filter.
+                        index.add(cap, c);
                     }
                 }
                 else
                 {
-                    indexCapability(index, cap, capValue);
+                    index.add(cap, capValue);
                 }
             }
         }
     }
 
-    private void indexCapability(
-        Map<Object, Set<C>> index, C cap, Object capValue)
-    {
-        Set<C> caps = index.get(capValue);
-        if (caps == null)
-        {
-            caps = new HashSet<C>();
-            index.put(capValue, caps);
-        }
-        caps.add(cap);
-    }
-
     public void removeCapability(C cap)
     {
         m_lock.writeLock().lock();
@@ -124,7 +157,7 @@ public class CapabilitySet<C extends Capability>
     {
         if (m_capSet.remove(cap))
         {
-            for (Entry<String, Map<Object, Set<C>>> entry : m_indices.entrySet())
+            for (Entry<String, Index<C>> entry : m_indices.entrySet())
             {
                 Attribute capAttr = cap.getAttribute(entry.getKey());
                 if (capAttr != null)
@@ -135,39 +168,30 @@ public class CapabilitySet<C extends Capability>
                         capValue = convertArrayToList(capValue);
                     }
 
-                    Map<Object, Set<C>> index = entry.getValue();
+                    Index<C> index = entry.getValue();
 
                     if (capValue instanceof Collection)
                     {
                         Collection c = (Collection) capValue;
                         for (Object o : c)
                         {
-                            deindexCapability(index, cap, o);
+                            index.remove(cap, o);
+                        }
+                        if (c.isEmpty())
+                        {
+                            // Still present, but matching no other filter.
+                            index.remove(cap, c);
                         }
                     }
                     else
                     {
-                        deindexCapability(index, cap, capValue);
+                        index.remove(cap, capValue);
                     }
                 }
             }
         }
     }
 
-    private void deindexCapability(
-        Map<Object, Set<C>> index, C cap, Object capValue)
-    {
-        Set<C> caps = index.get(capValue);
-        if (caps != null)
-        {
-            caps.remove(cap);
-            if (caps.isEmpty())
-            {
-                index.remove(capValue);
-            }
-        }
-    }
-
     public Set<C> match(SimpleFilter sf)
     {
         m_lock.readLock().lock();
@@ -225,14 +249,35 @@ public class CapabilitySet<C extends Capability>
         }
         else
         {
-            Map<Object, Set<C>> index = m_indices.get(sf.getName());
-            if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
+            Index<C> index = m_indices.get(sf.getName());
+            Set<C> indexed = (index != null) ? index.match(sf) : null;
+            if (indexed != null)
             {
-                Set<C> existingCaps = index.get(sf.getValue());
-                if (existingCaps != null)
+                // Only keep the capabilities remaining from the enclosing
+                // filters, iterating over the smallest of both sets.
+                if (caps == m_capSet)
                 {
-                    matches.addAll(existingCaps);
-                    matches.retainAll(caps);
+                    matches = indexed;
+                }
+                else if (indexed.size() <= caps.size())
+                {
+                    for (C cap : indexed)
+                    {
+                        if (caps.contains(cap))
+                        {
+                            matches.add(cap);
+                        }
+                    }
+                }
+                else
+                {
+                    for (C cap : caps)
+                    {
+                        if (indexed.contains(cap))
+                        {
+                            matches.add(cap);
+                        }
+                    }
                 }
             }
             else
@@ -514,6 +559,155 @@ public class CapabilitySet<C extends Capability>
         return rhs;
     }
 
+    /**
+     * The index of an attribute.  Comparable values are kept sorted, per
+     * value class since values of different classes can not be compared, so
+     * that equality, range, presence and substring filters are evaluated on
+     * the index: substring filters only look at the strings sharing their
+     * leading piece.  The other values are only indexed for equality.
+     */
+    private static class Index<C>
+    {
+        private final Map<Class, NavigableMap<Object, Set<C>>> m_sorted =
+            new HashMap<Class, NavigableMap<Object, Set<C>>>();
+        private final Map<Object, Set<C>> m_others = new HashMap<Object, Set<C>>();
+
+        void add(C cap, Object value)
+        {
+            Map<Object, Set<C>> map = getMap(value, true);
+            Set<C> caps = map.get(value);
+            if (caps == null)
+            {
+                caps = new HashSet<C>();
+                map.put(value, caps);
+            }
+            caps.add(cap);
+        }
+
+        void remove(C cap, Object value)
+        {
+            Map<Object, Set<C>> map = getMap(value, false);
+            Set<C> caps = (map != null) ? map.get(value) : null;
+            if (caps != null)
+            {
+                caps.remove(cap);
+                if (caps.isEmpty())
+                {
+                    map.remove(value);
+                    if (map.isEmpty() && (map != m_others))
+                    {
+                        m_sorted.remove(value.getClass());
+                    }
+                }
+            }
+        }
+
+        private Map<Object, Set<C>> getMap(Object value, boolean create)
+        {
+            if (!(value instanceof Comparable))
+            {
+                return m_others;
+            }
+            NavigableMap<Object, Set<C>> map = m_sorted.get(value.getClass());
+            if ((map == null) && create)
+            {
+                map = new TreeMap<Object, Set<C>>();
+                m_sorted.put(value.getClass(), map);
+            }
+            return map;
+        }
+
+        /**
+         * Returns the capabilities matching a filter on the attribute, or
+         * null if the filter can not be evaluated with the index.
+         */
+        Set<C> match(SimpleFilter sf)
+        {
+            int op = sf.getOperation();
+            if ((op != SimpleFilter.EQ) && (op != SimpleFilter.GTE) && (op != SimpleFilter.LTE)
+                && (op != SimpleFilter.SUBSTRING) && (op != SimpleFilter.PRESENT))
+            {
+                return null;
+            }
+            Set<C> matches = new HashSet<C>();
+            for (Entry<Class, NavigableMap<Object, Set<C>>> entry : m_sorted.entrySet())
+            {
+                NavigableMap<Object, Set<C>> map = entry.getValue();
+                if (op == SimpleFilter.PRESENT)
+                {
+                    addAll(matches, map);
+                    continue;
+                }
+                if (op == SimpleFilter.SUBSTRING)
+                {
+                    // Spec says SUBSTRING is false for all types other than string.
+                    if (entry.getKey() == String.class)
+                    {
+                        matchSubstring(matches, map, (List<String>) sf.getValue());
+                    }
+                    continue;
+                }
+                Object rhs;
+                try
+                {
+                    rhs = coerceType(map.firstKey(), (String) sf.getValue());
+                }
+                catch (Exception ex)
+                {
+                    continue;
+                }
+                if (op == SimpleFilter.EQ)
+                {
+                    Set<C> caps = map.get(rhs);
+                    if (caps != null)
+                    {
+                        matches.addAll(caps);
+                    }
+                }
+                else if (op == SimpleFilter.GTE)
+                {
+                    addAll(matches, map.tailMap(rhs, true));
+                }
+                else
+                {
+                    addAll(matches, map.headMap(rhs, true));
+                }
+            }
+            for (Entry<Object, Set<C>> entry : m_others.entrySet())
+            {
+                if (compare(entry.getKey(), sf.getValue(), op))
+                {
+                    matches.addAll(entry.getValue());
+                }
+            }
+            return matches;
+        }
+
+        private void matchSubstring(Set<C> matches, NavigableMap<Object, Set<C>> map, List<String> pieces)
+        {
+            // Only the strings starting with the leading piece may match.
+            String prefix = pieces.get(0);
+            Map<Object, Set<C>> candidates = (prefix.length() > 0)
+                ? map.subMap(prefix, true, prefix + Character.MAX_VALUE, true)
+                : map;
+            for (Entry<Object, Set<C>> entry : candidates.entrySet())
+            {
+                if (SimpleFilter.compareSubstring(pieces, (String) entry.getKey()))
+                {
+                    matches.addAll(entry.getValue());
+                }
+            }
+        }
+
+        private static <C> void addAll(Set<C> matches, Map<Object, Set<C>> map)
+        {
+            for (Set<C> caps : map.values())
+            {
+                matches.addAll(caps);
+            }
+        }
+    }
+
     /**
      * This is an ugly utility method to convert an array of primitives
      * to an array of primitive wrapper objects. This method simplifies
@@ -32,17 +32,24 @@ import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import javax.management.MBeanServer;
+
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.fusesource.fabric.dosgi.api.BinarySerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Dispatched;
+import org.fusesource.fabric.dosgi.api.ProtobufSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.SerializationStrategy;
 import org.fusesource.fabric.dosgi.capset.CapabilitySet;
 import org.fusesource.fabric.dosgi.capset.SimpleFilter;
+import org.fusesource.fabric.dosgi.io.BufferPool;
 import org.fusesource.fabric.dosgi.io.ClientInvoker;
 import org.fusesource.fabric.dosgi.io.ServerInvoker;
 import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
 import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.TransportPool;
 import org.fusesource.fabric.dosgi.util.AriesFrameworkUtil;
+import org.fusesource.fabric.dosgi.util.SizeClassBufferPool;
 import org.fusesource.fabric.dosgi.util.Utils;
 import org.fusesource.fabric.dosgi.util.UuidGenerator;
 import org.fusesource.fabric.zookeeper.IZKClient;
@@ -76,6 +83,11 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
     private static final Logger LOGGER = LoggerFactory.getLogger(Manager.class);
     private static final String DOSGI_REGISTRY = "/fabric/dosgi";
     private static final String FABRIC_ADDRESS = "fabric.address";
+    /**
+     * Service property naming the executor the requests to an exported
+     * service run on, to isolate it from the services of the other executors.
+     */
+    public static final String FABRIC_EXECUTOR = "fabric.executor";
 
     private final BundleContext bundleContext;
 
@@ -114,6 +126,28 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
 
     private final long timeout;
 
+    private int clientShards = ClientInvokerImpl.DEFAULT_SHARDS;
+
+    private long flushDelay;
+
+    private int bufferPoolSize;
+
+    private boolean interning;
+
+    private int maxPendingRequests;
+
+    private int minConnections;
+
+    private int maxConnections = TransportPool.DEFAULT_POOL_SIZE;
+
+    private int executorThreads = 8;
+
+    private int executorQueueSize;
+
+    private String executors;
+
+    private MBeanServer mbeanServer;
+
     private ClientInvoker client;
 
     private ServerInvoker server;
@@ -128,6 +162,8 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
         this.exportedServices = new ConcurrentHashMap<ServiceReference, ExportRegistration>();
         this.listeners = new ConcurrentHashMap<ListenerInfo, SimpleFilter>();
         this.serializationStrategies = new ConcurrentHashMap<String, SerializationStrategy>();
+        this.serializationStrategies.put(BinarySerializationStrategy.NAME, BinarySerializationStrategy.INSTANCE);
+        this.serializationStrategies.put(ProtobufSerializationStrategy.INSTANCE.name(), ProtobufSerializationStrategy.INSTANCE);
         this.remoteEndpoints = new CapabilitySet<EndpointDescription>(
                 Arrays.asList(Constants.OBJECTCLASS, ENDPOINT_FRAMEWORK_UUID), false);
         this.bundleContext = context;
@@ -137,10 +173,94 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
         this.timeout = timeout;
     }
 
+    public void setClientShards(int clientShards) {
+        this.clientShards = clientShards;
+    }
+
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Sets the number of buffers retained per size class by the pool the
+     * requests and responses are encoded into, 0 disables the pooling.
+     */
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    /**
+     * Enables the interning of the remote method identifiers by the client,
+     * all the containers of the fabric must support it.
+     */
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    /**
+     * Sets the maximum number of outstanding requests per remote address,
+     * 0 means unbounded.
+     */
+    public void setMaxPendingRequests(int maxPendingRequests) {
+        this.maxPendingRequests = maxPendingRequests;
+    }
+
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setExecutorThreads(int executorThreads) {
+        this.executorThreads = executorThreads;
+    }
+
+    /**
+     * Sets the maximum number of requests queued per executor before they
+     * get rejected, 0 means unbounded.
+     */
+    public void setExecutorQueueSize(int executorQueueSize) {
+        this.executorQueueSize = executorQueueSize;
+    }
+
+    /**
+     * Sets the executors which do not use the default settings, as a list of
+     * <code>name=threads[:queueSize]</code> entries.
+     */
+    public void setExecutors(String executors) {
+        this.executors = executors;
+    }
+
+    public void setMBeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+        if (server != null) {
+            ((ServerInvokerImpl) server).setMBeanServer(mbeanServer);
+        }
+    }
+
     public void init() throws Exception {
         // Create client and server
-        this.client = new ClientInvokerImpl(queue, timeout, serializationStrategies);
-        this.server = new ServerInvokerImpl(uri, queue, serializationStrategies);
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, timeout, serializationStrategies, clientShards);
+        client.setFlushDelay(flushDelay);
+        client.setInterning(interning);
+        client.setMaxPendingRequests(maxPendingRequests);
+        client.setMinConnections(minConnections);
+        client.setMaxConnections(maxConnections);
+        ServerInvokerImpl server = new ServerInvokerImpl(uri, queue, serializationStrategies);
+        server.setFlushDelay(flushDelay);
+        server.setExecutorThreads(executorThreads);
+        server.setExecutorQueueSize(executorQueueSize);
+        server.configureExecutors(executors);
+        server.setMBeanServer(mbeanServer);
+        if (bufferPoolSize > 0) {
+            BufferPool bufferPool = new SizeClassBufferPool(bufferPoolSize);
+            client.setBufferPool(bufferPool);
+            server.setBufferPool(bufferPool);
+        }
+        this.client = client;
+        this.server = server;
         this.client.start();
         this.server.start();
         // ZooKeeper tracking
@@ -218,7 +338,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             }
             // Make sure we only import remote services
             String filter = "(&" + listenerInfo.getFilter() + "(!(" + ENDPOINT_FRAMEWORK_UUID + "=" + this.uuid + ")))";
-            SimpleFilter exFilter = SimpleFilter.parse(filter);
+            SimpleFilter exFilter = remoteEndpoints.compile(filter);
             listeners.put(listenerInfo, exFilter);
             // Iterate through known services and import them if needed
             Set<EndpointDescription> matches = remoteEndpoints.match(exFilter);
@@ -415,6 +535,8 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
         String uuid = UuidGenerator.getUUID();
         properties.put(ENDPOINT_ID, uuid);
 
+        Object executor = properties.get(FABRIC_EXECUTOR);
+
         // Now, export the service
         EndpointDescription description = new EndpointDescription(properties);
 
@@ -426,7 +548,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             public void unget() {
                 reference.getBundle().getBundleContext().ungetService(reference);
             }
-        }, AriesFrameworkUtil.getClassLoader(reference.getBundle()));
+        }, AriesFrameworkUtil.getClassLoader(reference.getBundle()), executor != null ? executor.toString() : null);
 
         String descStr = Utils.getEndpointDescriptionXML(description);
         // Publish in ZooKeeper
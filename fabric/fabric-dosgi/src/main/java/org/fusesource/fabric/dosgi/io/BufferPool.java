@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.io;
+
+/**
+ * A source of byte arrays used to encode the frames sent over the transports.
+ * <p>
+ * Arrays obtained with {@link #allocate(int)} are owned by the caller until
+ * they are handed back with {@link #release(byte[])}, after which they must
+ * not be accessed anymore.
+ */
+public interface BufferPool {
+
+    /**
+     * @return an array of at least <code>size</code> bytes.
+     */
+    byte[] allocate(int size);
+
+    /**
+     * Gives back an array which is not used anymore.  Arrays which
+     * were not allocated from this pool may be ignored.
+     */
+    void release(byte[] buffer);
+
+}
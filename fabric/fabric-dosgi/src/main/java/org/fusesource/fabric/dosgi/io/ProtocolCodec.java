@@ -90,6 +90,13 @@ public interface ProtocolCodec {
      */
     boolean full();
 
+    /**
+     * @return the number of microseconds the transport should wait before
+     * flushing the pending writes so that more of them get batched, or 0
+     * to flush right away.
+     */
+    long getFlushDelay();
+
     /**
      * @return The number of bytes written.
      */
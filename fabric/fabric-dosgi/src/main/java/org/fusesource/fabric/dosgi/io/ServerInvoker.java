@@ -22,6 +22,12 @@ public interface ServerInvoker extends Service {
 
     void registerService(String id, ServiceFactory service, ClassLoader classLoader);
 
+    /**
+     * Registers a service whose requests run on the named executor, services
+     * sharing an executor name share its threads and its queue.
+     */
+    void registerService(String id, ServiceFactory service, ClassLoader classLoader, String executor);
+
     void unregisterService(String id);
 
 
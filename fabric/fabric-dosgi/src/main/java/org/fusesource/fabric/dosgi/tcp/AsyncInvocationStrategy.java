@@ -85,13 +85,21 @@ public class AsyncInvocationStrategy implements InvocationStrategy {
         }
 
         public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            // TODO: we could store the timeout so we can time out the async request...
+            // the client invoker times out the async requests itself.
             return null;
         }
 
         @Override
-        public void fail(Throwable throwable) {
-            callback.onFailure(throwable);
+        public void fail(final Throwable throwable) {
+            if( queue!=null ) {
+                queue.execute(new Runnable() {
+                    public void run() {
+                        callback.onFailure(throwable);
+                    }
+                });
+            } else {
+                callback.onFailure(throwable);
+            }
         }
     }
 
@@ -116,7 +124,7 @@ public class AsyncInvocationStrategy implements InvocationStrategy {
         return new_types;
     }
 
-    static private Class getResultType(Method method) {
+    static Class getResultType(Method method) {
         Type[] types = method.getGenericParameterTypes();
         ParameterizedType t = (ParameterizedType) types[types.length-1];
         return (Class) t.getActualTypeArguments()[0];
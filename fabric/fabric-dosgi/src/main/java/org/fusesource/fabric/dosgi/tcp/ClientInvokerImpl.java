@@ -22,7 +22,10 @@ import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -31,14 +34,18 @@ import org.fusesource.fabric.dosgi.api.Dispatched;
 import org.fusesource.fabric.dosgi.api.ObjectSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Serialization;
 import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.fabric.dosgi.io.BufferPool;
 import org.fusesource.fabric.dosgi.io.ClientInvoker;
 import org.fusesource.fabric.dosgi.io.ProtocolCodec;
 import org.fusesource.fabric.dosgi.io.Transport;
+import org.fusesource.fabric.dosgi.util.HeapBufferPool;
+import org.fusesource.fabric.dosgi.util.TimerWheel;
 import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.BufferEditor;
 import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +54,8 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
     public static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
 
+    public static final int DEFAULT_SHARDS = 1;
+
     protected static final Logger LOGGER = LoggerFactory.getLogger(ClientInvokerImpl.class);
 
     private final static HashMap<Class,String> CLASS_TO_PRIMITIVE = new HashMap<Class, String>(8, 1.0F);
@@ -62,22 +71,59 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         CLASS_TO_PRIMITIVE.put(double.class,"D");
     }
 
+    // the resolution and the number of buckets of the request timeouts wheel
+    static final long TIMER_TICK = 100;
+    static final int TIMER_WHEEL_SIZE = 512;
+
     protected final AtomicLong correlationGenerator = new AtomicLong();
     protected final DispatchQueue queue;
-    protected final Map<String, TransportPool> transports = new HashMap<String, TransportPool>();
+    protected final DispatchQueue[] shardQueues;
+    protected final ConcurrentMap<String, TransportPool> transports = new ConcurrentHashMap<String, TransportPool>();
     protected final AtomicBoolean running = new AtomicBoolean(false);
-    protected final Map<Long, ResponseFuture> requests = new HashMap<Long, ResponseFuture>();
+    protected final ConcurrentMap<Long, PendingRequest> requests;
+    protected final TimerWheel timer;
     protected final long timeout;
     protected final Map<String, SerializationStrategy> serializationStrategies;
+    protected long flushDelay;
+    protected BufferPool bufferPool = HeapBufferPool.INSTANCE;
+    protected boolean interning;
+    protected int maxInternedMethods = 64 * 1024;
+    protected int maxPendingRequests;
+    protected int minConnections;
+    protected int maxConnections = TransportPool.DEFAULT_POOL_SIZE;
 
     public ClientInvokerImpl(DispatchQueue queue, Map<String, SerializationStrategy> serializationStrategies) {
         this(queue, DEFAULT_TIMEOUT, serializationStrategies);
     }
 
     public ClientInvokerImpl(DispatchQueue queue, long timeout, Map<String, SerializationStrategy> serializationStrategies) {
+        this(queue, timeout, serializationStrategies, DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a client invoker whose transport pools are partitioned across
+     * <code>shards</code> dispatch queues.  With a single shard all the pools
+     * share the given queue, otherwise each remote address is pinned to one
+     * of the shard queues so that calls to different addresses do not
+     * serialize on the same queue.
+     */
+    public ClientInvokerImpl(DispatchQueue queue, long timeout, Map<String, SerializationStrategy> serializationStrategies, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("The number of shards must be greater than 0");
+        }
         this.queue = queue;
         this.timeout = timeout;
         this.serializationStrategies = serializationStrategies;
+        this.requests = new ConcurrentHashMap<Long, PendingRequest>(256, 0.75f, Math.max(16, shards * 4));
+        this.timer = new TimerWheel(queue, TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+        this.shardQueues = new DispatchQueue[shards];
+        if (shards == 1) {
+            this.shardQueues[0] = queue;
+        } else {
+            for (int i = 0; i < shards; i++) {
+                this.shardQueues[i] = Dispatch.createQueue("dosgi-client-" + i);
+            }
+        }
     }
 
     public DispatchQueue queue() {
@@ -90,6 +136,7 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
     public void start(Runnable onComplete) throws Exception {
         running.set(true);
+        timer.start();
         if (onComplete != null) {
             onComplete.run();
         }
@@ -101,8 +148,15 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
     public void stop(final Runnable onComplete) {
         if (running.compareAndSet(true, false)) {
+            timer.stop();
             queue().execute(new Runnable() {
                 public void run() {
+                    if (transports.isEmpty()) {
+                        if (onComplete != null) {
+                            onComplete.run();
+                        }
+                        return;
+                    }
                     final AtomicInteger latch = new AtomicInteger(transports.size());
                     final Runnable countDown = new Runnable() {
                         public void run() {
@@ -129,15 +183,149 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         return new ProxyInvocationHandler(address, service, classLoader);
     }
 
+    public long getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Sets the number of microseconds small requests may be held back so
+     * that they get written together with the following ones.
+     */
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool the requests are encoded into.  The buffers go
+     * back to the pool once the transport has written them.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public boolean isInterning() {
+        return interning;
+    }
+
+    /**
+     * Enables the interning of the (service, method) pairs: the first request
+     * for a method on a connection assigns it a compact id, the following
+     * ones only carry that id.  The servers must support it, so only enable
+     * it once all the containers of the fabric have been upgraded.
+     */
+    public void setInterning(boolean interning) {
+        this.interning = interning;
+    }
+
+    public int getMaxInternedMethods() {
+        return maxInternedMethods;
+    }
+
+    /**
+     * Sets the maximum number of methods interned per remote address, the
+     * following ones are always sent with their full signature.  It must
+     * not exceed the limit of the servers, which close the connections
+     * defining an id above theirs.
+     */
+    public void setMaxInternedMethods(int maxInternedMethods) {
+        this.maxInternedMethods = maxInternedMethods;
+    }
+
+    public int getMaxPendingRequests() {
+        return maxPendingRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests either waiting for a connection or
+     * for their response per remote address, 0 means unbounded.  Once
+     * reached, callers wait up to the timeout for the room to send their
+     * request, or fail right away when invoking from a dispatch queue.
+     */
+    public void setMaxPendingRequests(int maxPendingRequests) {
+        this.maxPendingRequests = maxPendingRequests;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * Sets the number of connections kept open to each remote address once
+     * it has been used, even when they are idle.
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections opened to each remote address,
+     * more get opened as the in-flight requests pile up on the existing ones.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getShards() {
+        return shardQueues.length;
+    }
+
+    /**
+     * Returns the queue the transport pool for the given address is bound to.
+     */
+    protected DispatchQueue shardQueue(String address) {
+        if (shardQueues.length == 1) {
+            return shardQueues[0];
+        }
+        int h = address.hashCode();
+        h ^= (h >>> 16);
+        return shardQueues[(h & 0x7fffffff) % shardQueues.length];
+    }
+
+    protected TransportPool getTransportPool(String address) throws Exception {
+        TransportPool pool = transports.get(address);
+        if (pool == null) {
+            TransportPool newPool = new InvokerTransportPool(address, shardQueue(address));
+            newPool.setMaxRequests(maxPendingRequests);
+            newPool.setMinPoolSize(minConnections);
+            newPool.setPoolSize(maxConnections);
+            newPool.setOfferTimeout(timeout);
+            // start it before publishing it so that concurrent callers never
+            // see a pool which refuses offers.
+            newPool.start();
+            pool = transports.putIfAbsent(address, newPool);
+            if (pool == null) {
+                pool = newPool;
+            } else {
+                // another caller won the race, release the connections of ours
+                newPool.stop();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Invoked on the queue of the pool which received the response, the
+     * correlation map being concurrent there is no need to go through
+     * the invoker queue to complete the future.
+     */
     protected void onCommand(TransportPool pool, Object data) {
         try {
             DataByteArrayInputStream bais = new DataByteArrayInputStream( (Buffer) data);
             int size = bais.readInt();
             long correlation = bais.readVarLong();
             pool.onDone(correlation);
-            ResponseFuture response = requests.remove(correlation);
-            if( response!=null ) {
-                response.set(bais);
+            PendingRequest request = requests.remove(correlation);
+            if( request!=null ) {
+                request.cancel();
+                request.future.set(bais);
             }
         } catch (Exception e) {
             LOGGER.info("Error while reading response", e);
@@ -145,9 +333,45 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     }
 
     protected void onFailure(Object id, Throwable throwable) {
-        ResponseFuture response = requests.remove(id);
-        if( response!=null ) {
-            response.fail(throwable);
+        PendingRequest request = requests.remove(id);
+        if( request!=null ) {
+            request.cancel();
+            request.future.fail(throwable);
+        }
+    }
+
+    /**
+     * Forgets about a request the caller does not wait for anymore.
+     */
+    protected void abort(PendingRequest request) {
+        if (request != null && requests.remove(request.correlation, request)) {
+            request.cancel();
+            request.pool.cancel(request.correlation);
+        }
+    }
+
+    /**
+     * A request waiting for its response, failed with a {@link TimeoutException}
+     * if it does not get it in time.
+     */
+    protected class PendingRequest extends TimerWheel.Timeout {
+
+        final long correlation;
+        final ResponseFuture future;
+        final TransportPool pool;
+
+        PendingRequest(long correlation, ResponseFuture future, TransportPool pool) {
+            this.correlation = correlation;
+            this.future = future;
+            this.pool = pool;
+        }
+
+        @Override
+        protected void expire() {
+            if (requests.remove(correlation, this)) {
+                pool.cancel(correlation);
+                future.fail(new TimeoutException("No response received after " + timeout + " ms"));
+            }
         }
     }
 
@@ -232,13 +456,24 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         // and #2 reduce CPU load done in the execution queue since it's
         // serially executed.
 
-        DataByteArrayOutputStream baos = new DataByteArrayOutputStream((int) (handler.lastRequestSize*1.10));
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream(bufferPool.allocate((int) (handler.lastRequestSize*1.10)));
         baos.writeInt(0); // we don't know the size yet...
         baos.writeVarLong(correlation);
-        writeBuffer(baos, service);
-
         MethodData methodData = getMethodData(method);
-        writeBuffer(baos, methodData.signature);
+        InternedMethod internedMethod = null;
+        int headerStart = baos.position();
+        if (interning) {
+            internedMethod = handler.getInternedMethod(method, methodData, (InvokerTransportPool) getTransportPool(address));
+        }
+        if (internedMethod != null) {
+            // an empty service id introduces the interned method id.
+            baos.writeVarInt(0);
+            baos.writeVarInt(internedMethod.id << 1);
+        } else {
+            writeBuffer(baos, service);
+            writeBuffer(baos, methodData.signature);
+        }
+        int headerEnd = baos.position();
 
         final ResponseFuture future = methodData.invocationStrategy.request(methodData.serializationStrategy, classLoader, method, args, baos);
 
@@ -252,26 +487,43 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         editor.writeInt(command.length);
         handler.lastRequestSize = command.length;
 
-        queue().execute(new Runnable() {
-            public void run() {
-                try {
-                    TransportPool pool = transports.get(address);
-                    if (pool == null) {
-                        pool = new InvokerTransportPool(address, queue());
-                        transports.put(address, pool);
-                        pool.start();
-                    }
-                    requests.put(correlation, future);
-                    pool.offer(command, correlation);
-                } catch (Exception e) {
-                    LOGGER.info("Error while sending request", e);
-                    future.fail(e);
-                }
+        final Object request;
+        if (internedMethod != null) {
+            request = new InternedRequest(command, headerStart, headerEnd, internedMethod);
+        } else {
+            request = command;
+        }
+
+        // The pool offer hops onto the pool's own queue, so there is no
+        // need to go through the invoker queue first.
+        PendingRequest pending = null;
+        try {
+            TransportPool pool = getTransportPool(address);
+            pending = new PendingRequest(correlation, future, pool);
+            requests.put(correlation, pending);
+            if (timeout > 0) {
+                timer.schedule(pending, timeout, TimeUnit.MILLISECONDS);
             }
-        });
+            pool.offer(request, correlation);
+        } catch (Exception e) {
+            if (pending != null) {
+                requests.remove(correlation);
+                pending.cancel();
+            }
+            LOGGER.info("Error while sending request", e);
+            future.fail(e);
+        }
 
-        // TODO: make that configurable, that's only for tests
-        return future.get(timeout, TimeUnit.MILLISECONDS);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // the caller gave up on the request
+            abort(pending);
+            throw e;
+        } catch (TimeoutException e) {
+            abort(pending);
+            throw e;
+        }
     }
 
     private void writeBuffer(DataByteArrayOutputStream baos, Buffer value) throws IOException {
@@ -279,11 +531,90 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         baos.write(value);
     }
 
+    /**
+     * A method interned on the connections of a transport pool.
+     */
+    static class InternedMethod {
+        final int id;
+        final Buffer service;
+        final Buffer signature;
+
+        InternedMethod(int id, Buffer service, Buffer signature) {
+            this.id = id;
+            this.service = service;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * The (service, signature) pair an interned method is keyed on.
+     */
+    static class InternKey {
+        final Buffer service;
+        final Buffer signature;
+
+        InternKey(Buffer service, Buffer signature) {
+            this.service = service;
+            this.signature = signature;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            InternKey that = (InternKey) o;
+            return service.equals(that.service) && signature.equals(that.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * service.hashCode() + signature.hashCode();
+        }
+    }
+
+    /**
+     * A request encoded with an interned method id.  When it is sent on a
+     * connection which does not know that id yet, the frame is re-encoded to
+     * carry the definition of the id.
+     */
+    class InternedRequest {
+        final Buffer command;
+        final int headerStart;
+        final int headerEnd;
+        final InternedMethod method;
+
+        InternedRequest(Buffer command, int headerStart, int headerEnd, InternedMethod method) {
+            this.command = command;
+            this.headerStart = headerStart;
+            this.headerEnd = headerEnd;
+            this.method = method;
+        }
+
+        /**
+         * Encodes the frame defining the id.  The original frame is left
+         * untouched, it must only be released once the new one is accepted.
+         */
+        Buffer define() throws IOException {
+            DataByteArrayOutputStream baos = new DataByteArrayOutputStream(bufferPool.allocate(
+                    command.length + method.service.length + method.signature.length + 10));
+            baos.write(command.data, command.offset, headerStart);
+            baos.writeVarInt(0);
+            baos.writeVarInt((method.id << 1) | 1);
+            writeBuffer(baos, method.service);
+            writeBuffer(baos, method.signature);
+            baos.write(command.data, command.offset + headerEnd, command.length - headerEnd);
+            Buffer rc = baos.toBuffer();
+            rc.buffer().bigEndianEditor().writeInt(rc.length);
+            return rc;
+        }
+    }
+
     protected class ProxyInvocationHandler implements InvocationHandler {
 
         final String address;
         final UTF8Buffer service;
         final ClassLoader classLoader;
+        final ConcurrentMap<Method, InternedMethod> internedMethods = new ConcurrentHashMap<Method, InternedMethod>();
         int lastRequestSize = 250;
 
         public ProxyInvocationHandler(String address, String service, ClassLoader classLoader) {
@@ -296,14 +627,49 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
             return request(this, address, service, classLoader, method, args);
         }
 
+        InternedMethod getInternedMethod(Method method, MethodData methodData, InvokerTransportPool pool) {
+            InternedMethod rc = internedMethods.get(method);
+            if (rc == null) {
+                rc = pool.intern(service, methodData.signature);
+                if (rc != null) {
+                    internedMethods.put(method, rc);
+                }
+            }
+            return rc;
+        }
+
     }
 
     protected class InvokerTransportPool extends TransportPool {
 
+        // ids of the interned methods, shared by all the connections and proxies of the pool.
+        final AtomicInteger methodIds = new AtomicInteger();
+        final ConcurrentMap<InternKey, InternedMethod> internedMethods = new ConcurrentHashMap<InternKey, InternedMethod>();
+
         public InvokerTransportPool(String uri, DispatchQueue queue) {
             super(uri, queue, TransportPool.DEFAULT_POOL_SIZE, timeout << 1);
         }
 
+        /**
+         * Returns the interned method of the given (service, signature) pair,
+         * so that it keeps the same id whatever the proxy it is called through,
+         * or null once the maximum number of interned methods is reached.
+         */
+        InternedMethod intern(Buffer service, Buffer signature) {
+            InternKey key = new InternKey(service, signature);
+            InternedMethod rc = internedMethods.get(key);
+            if (rc == null && methodIds.get() < maxInternedMethods) {
+                synchronized (internedMethods) {
+                    rc = internedMethods.get(key);
+                    if (rc == null && methodIds.get() < maxInternedMethods) {
+                        rc = new InternedMethod(methodIds.getAndIncrement(), service, signature);
+                        internedMethods.put(key, rc);
+                    }
+                }
+            }
+            return rc;
+        }
+
         @Override
         protected Transport createTransport(String uri) throws Exception {
             return new TcpTransportFactory().connect(uri);
@@ -311,7 +677,38 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
         @Override
         protected ProtocolCodec createCodec() {
-            return new LengthPrefixedCodec();
+            LengthPrefixedCodec codec = new LengthPrefixedCodec();
+            codec.setFlushDelay(flushDelay);
+            codec.setBufferPool(bufferPool);
+            return codec;
+        }
+
+        @Override
+        protected boolean doOffer(Transport transport, Object command, Object id) {
+            if (command instanceof InternedRequest) {
+                InternedRequest request = (InternedRequest) command;
+                TransportState state = transports.get(transport);
+                if (state.internedMethods.get(request.method.id)) {
+                    command = request.command;
+                } else {
+                    try {
+                        command = request.define();
+                    } catch (IOException e) {
+                        // should not happen
+                        throw new RuntimeException(e);
+                    }
+                    boolean accepted = super.doOffer(transport, command, id);
+                    if (accepted) {
+                        state.internedMethods.set(request.method.id);
+                        bufferPool.release(request.command.data);
+                    } else {
+                        // the request stays queued with its original frame
+                        bufferPool.release(((Buffer) command).data);
+                    }
+                    return accepted;
+                }
+            }
+            return super.doOffer(transport, command, id);
         }
 
         @Override
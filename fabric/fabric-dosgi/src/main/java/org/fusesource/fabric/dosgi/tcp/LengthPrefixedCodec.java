@@ -21,31 +21,60 @@ import java.io.IOException;
 import java.net.ProtocolException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 
+import org.fusesource.fabric.dosgi.io.BufferPool;
 import org.fusesource.fabric.dosgi.io.ProtocolCodec;
 import org.fusesource.hawtbuf.Buffer;
 
+/**
+ * Encodes frames which are prefixed with a 4 byte big endian size field
+ * (the size includes the size field itself).
+ * <p>
+ * Pending frames are written with a single gathering write when the channel
+ * supports it, and inbound data is read into a reusable direct buffer from
+ * which as many frames as are available get decoded before the next read
+ * syscall.  When a flush delay is configured, small frames are held back for
+ * up to that many microseconds so that they can be coalesced into one write,
+ * but only while the traffic shows that frames actually pile up.
+ */
 public class LengthPrefixedCodec implements ProtocolCodec {
 
 
     int write_buffer_size = 1024 * 64;
     long write_counter = 0L;
     WritableByteChannel write_channel;
+
+    // The frames currently being written, valid from write_offset to write_end.
+    ByteBuffer[] write_buffers = new ByteBuffer[16];
+    // The arrays backing write_buffers, given back to the pool once written.
+    byte[][] write_arrays = new byte[16][];
+    int write_offset = 0;
+    int write_end = 0;
+    long write_remaining = 0;
+    // Used to consolidate frames when the channel does not support gathering writes.
     ByteBuffer write_buffer = ByteBuffer.allocate(0);
 
     ArrayList<Buffer> next_write_buffers = new ArrayList<Buffer>();
     int next_write_size = 0;
 
+    // Flush coalescing window in microseconds, 0 disables it.
+    long flush_delay = 0L;
+    boolean coalescing = false;
+
+    // The pool the written frames are released to.
+    BufferPool buffer_pool;
+
     public boolean full() {
         return next_write_size >= (write_buffer_size >> 1);
     }
 
     protected boolean empty() {
-        return write_buffer.remaining() == 0 && next_write_size==0;
+        return write_remaining == 0 && next_write_size==0;
     }
 
     public void setWritableByteChannel(WritableByteChannel channel) {
@@ -72,9 +101,23 @@ public class LengthPrefixedCodec implements ProtocolCodec {
     }
 
     public BufferState flush() throws IOException {
-        if (write_buffer.remaining() == 0 && next_write_size > 0) {
-            if( next_write_buffers.size()==1 ) {
-                write_buffer = next_write_buffers.remove(0).toByteBuffer();
+        if (write_remaining == 0 && next_write_size > 0) {
+            int count = next_write_buffers.size();
+            // Only hold back the next writes if frames are piling up
+            // while we are writing.
+            coalescing = count > 1;
+            if( count==1 || write_channel instanceof GatheringByteChannel ) {
+                if( write_buffers.length < count ) {
+                    write_buffers = new ByteBuffer[count];
+                    write_arrays = new byte[count][];
+                }
+                for( int i=0; i < count; i++ ) {
+                    Buffer b = next_write_buffers.get(i);
+                    // does not copy, just wraps the buffer.
+                    write_buffers[i] = b.toByteBuffer();
+                    write_arrays[i] = b.data;
+                }
+                write_end = count;
             } else {
                 // consolidate the buffers into 1 big buffer to reduce
                 // the number of system calls we do.
@@ -90,19 +133,66 @@ public class LengthPrefixedCodec implements ProtocolCodec {
                 write_buffer.clear();
                 for( Buffer b: next_write_buffers) {
                     write_buffer.put(b.data, b.offset, b.length);
+                    release(b.data);
                 }
-                next_write_buffers.clear();
-                next_write_size = 0;
                 write_buffer.flip();
+                write_buffers[0] = write_buffer;
+                write_arrays[0] = null;
+                write_end = 1;
             }
-
+            write_offset = 0;
+            write_remaining = next_write_size;
+            next_write_buffers.clear();
+            next_write_size = 0;
         }
-        if (write_buffer.remaining() != 0) {
-            write_counter += write_channel.write(write_buffer);
+        if (write_remaining != 0) {
+            long count;
+            if( write_end - write_offset == 1 ) {
+                count = write_channel.write(write_buffers[write_offset]);
+            } else {
+                count = ((GatheringByteChannel) write_channel).write(write_buffers, write_offset, write_end - write_offset);
+            }
+            write_counter += count;
+            write_remaining -= count;
+            // release the fully written frames.
+            while( write_offset < write_end && write_buffers[write_offset].remaining() == 0 ) {
+                release(write_arrays[write_offset]);
+                write_arrays[write_offset] = null;
+                write_buffers[write_offset++] = null;
+            }
         }
         return empty() ? BufferState.EMPTY : BufferState.NOT_EMPTY;
     }
 
+    private void release(byte[] data) {
+        if( buffer_pool!=null && data!=null ) {
+            buffer_pool.release(data);
+        }
+    }
+
+    /**
+     * Sets the pool the frames get released to once they have been written.
+     * Only set it if the frames offered to the codec are owned by it.
+     */
+    public void setBufferPool(BufferPool buffer_pool) {
+        this.buffer_pool = buffer_pool;
+    }
+
+    public long getFlushDelay() {
+        if( flush_delay <= 0 || !coalescing || full() ) {
+            return 0L;
+        }
+        return flush_delay;
+    }
+
+    /**
+     * Sets the maximum number of microseconds small writes may be delayed
+     * so that they get coalesced with the following ones.
+     */
+    public void setFlushDelay(long flush_delay) {
+        this.flush_delay = flush_delay;
+    }
+
     public long getWriteCounter() {
         return write_counter;
     }
@@ -110,7 +200,12 @@ public class LengthPrefixedCodec implements ProtocolCodec {
     long read_counter = 0L;
     int read_buffer_size = 1024 * 64;
     ReadableByteChannel read_channel = null;
-    ByteBuffer read_buffer = ByteBuffer.allocate(4);
+    // Holds the received bytes which have not been decoded yet, from read_start to
+    // the buffer position.
+    ByteBuffer read_buffer;
+    int read_start = 0;
+    // Used for frames which do not fit in the read buffer.
+    ByteBuffer read_frame;
 
 
     public void setReadableByteChannel(ReadableByteChannel channel) {
@@ -125,45 +220,78 @@ public class LengthPrefixedCodec implements ProtocolCodec {
     }
 
     public Object read() throws IOException {
+        if( read_buffer==null ) {
+            read_buffer = ByteBuffer.allocateDirect(read_buffer_size);
+        }
         while(true) {
-            if( read_buffer.remaining()!=0 ) {
-                // keep reading from the channel until we fill the read buffer..
-                int count = read_channel.read(read_buffer);
-                if (count == -1) {
-                    throw new EOFException("Peer disconnected");
-                } else if (count == 0) {
+            if( read_frame!=null ) {
+                if( read_frame.remaining()==0 ) {
+                    Buffer rc = new Buffer(read_frame.array());
+                    read_frame = null;
+                    return rc;
+                }
+                // keep reading from the channel until we fill the frame..
+                if( !fill(read_frame) ) {
                     return null;
                 }
-                read_counter += count;
-            } else {
-                //read buffer is full.. interpret it..
-                read_buffer.flip();
+                continue;
+            }
 
-                if( read_buffer.capacity() == 4 ) {
-                    // Finding out the
-                    int size = read_buffer.getInt(0);
-                    if( size < 4 ) {
-                        throw new ProtocolException("Expecting a size greater than 3");
-                    }
-                    if( size == 4 ) {
-                        // weird.. empty frame.. guess it could happen.
-                        Buffer rc = new Buffer(read_buffer);
-                        read_buffer = ByteBuffer.allocate(4);
-                        return rc;
-                    } else {
-                        // Resize to the right size.. this resumes the reads..
-                        ByteBuffer next = ByteBuffer.allocate(size);
-                        next.putInt(size);
-                        read_buffer = next;
+            // Decode the frames we already received before going back to the channel.
+            int available = read_buffer.position() - read_start;
+            if( available >= 4 ) {
+                int size = read_buffer.getInt(read_start);
+                if( size < 4 ) {
+                    throw new ProtocolException("Expecting a size greater than 3");
+                }
+                if( available >= size ) {
+                    byte[] frame = new byte[size];
+                    int pos = read_buffer.position();
+                    read_buffer.position(read_start);
+                    read_buffer.get(frame);
+                    read_buffer.position(pos);
+                    read_start += size;
+                    if( read_start == pos ) {
+                        read_buffer.clear();
+                        read_start = 0;
                     }
-                } else {
-                    // finish loading the rest of the buffer..
-                    Buffer rc = new Buffer(read_buffer);
-                    read_buffer = ByteBuffer.allocate(4);
-                    return rc;
+                    return new Buffer(frame);
+                }
+                if( size > read_buffer.capacity() ) {
+                    // Too big for the read buffer, load it directly into
+                    // a buffer of the right size.
+                    read_frame = ByteBuffer.allocate(size);
+                    read_buffer.flip();
+                    read_buffer.position(read_start);
+                    read_frame.put(read_buffer);
+                    read_buffer.clear();
+                    read_start = 0;
+                    continue;
                 }
             }
+
+            // We need more data.. make room for the rest of the frame.
+            if( read_start > 0 ) {
+                read_buffer.flip();
+                read_buffer.position(read_start);
+                read_buffer.compact();
+                read_start = 0;
+            }
+            if( !fill(read_buffer) ) {
+                return null;
+            }
+        }
+    }
+
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        int count = read_channel.read(buffer);
+        if (count == -1) {
+            throw new EOFException("Peer disconnected");
+        } else if (count == 0) {
+            return false;
         }
+        read_counter += count;
+        return true;
     }
 
     public long getReadCounter() {
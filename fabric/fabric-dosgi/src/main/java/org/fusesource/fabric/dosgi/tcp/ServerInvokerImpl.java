@@ -22,6 +22,7 @@ import org.fusesource.fabric.dosgi.api.Serialization;
 import org.fusesource.fabric.dosgi.api.SerializationStrategy;
 import org.fusesource.fabric.dosgi.impl.Manager;
 import org.fusesource.fabric.dosgi.io.*;
+import org.fusesource.fabric.dosgi.util.HeapBufferPool;
 import org.fusesource.hawtbuf.*;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.slf4j.Logger;
@@ -32,11 +33,17 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
@@ -53,17 +60,28 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         PRIMITIVE_TO_CLASS.put("D", double.class);
     }
 
-    protected final ExecutorService blockingExecutor = Executors.newFixedThreadPool(8);
+    public static final String DEFAULT_EXECUTOR = "default";
+
+    protected final ConcurrentMap<String, ServiceExecutor> executors = new ConcurrentHashMap<String, ServiceExecutor>();
+    protected final Map<String, int[]> executorConfigs = new HashMap<String, int[]>();
+    protected int executorThreads = 8;
+    protected int executorQueueSize;
+    protected MBeanServer mbeanServer;
     protected final DispatchQueue queue;
     private final Map<String, SerializationStrategy> serializationStrategies;
     protected final TransportServer server;
     protected final Map<UTF8Buffer, ServiceFactoryHolder> holders = new HashMap<UTF8Buffer, ServiceFactoryHolder>();
+    protected long flushDelay;
+    protected BufferPool bufferPool = HeapBufferPool.INSTANCE;
+    protected int maxInternedMethods = 64 * 1024;
+    protected int maxPendingResponses = 1024;
 
     static class MethodData {
 
         private final SerializationStrategy serializationStrategy;
         final InvocationStrategy invocationStrategy;
         final Method method;
+        int lastResponseSize = 250;
 
         MethodData(InvocationStrategy invocationStrategy, SerializationStrategy serializationStrategy, Method method) {
             this.invocationStrategy = invocationStrategy;
@@ -77,11 +95,16 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         private final ServiceFactory factory;
         private final ClassLoader loader;
         private final Class clazz;
+        private final ServiceExecutor executor;
         private HashMap<Buffer, MethodData> method_cache = new HashMap<Buffer, MethodData>();
+        // set once the service is unregistered or replaced so that the
+        // connections which interned its methods resolve them again.
+        private boolean unregistered;
 
-        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader) {
+        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader, ServiceExecutor executor) {
             this.factory = factory;
             this.loader = loader;
+            this.executor = executor;
             Object o = factory.get();
             clazz = o.getClass();
             factory.unget();
@@ -119,7 +142,8 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                 }
 
                 rc = new MethodData(invocationStrategy, serializationStrategy, method);
-                method_cache.put(data, rc);
+                // the key may be a slice of the request frame, keep our own copy.
+                method_cache.put(data.deepCopy(), rc);
             }
             return rc;
         }
@@ -140,6 +164,67 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
 
+    /**
+     * A (service, method) pair a client connection interned under a
+     * compact id, see {@link ClientInvokerImpl#setInterning(boolean)}.
+     */
+    class InternedMethod {
+
+        final UTF8Buffer service;
+        final Buffer encoded_method;
+        ServiceFactoryHolder holder;
+        MethodData methodData;
+
+        InternedMethod(UTF8Buffer service, Buffer encoded_method) {
+            this.service = service;
+            this.encoded_method = encoded_method;
+        }
+
+        void resolve() throws IOException, NoSuchMethodException, ClassNotFoundException {
+            if( holder==null || holder.unregistered ) {
+                holder = holders.get(service);
+                if( holder==null ) {
+                    throw new IllegalArgumentException("Unknown service: "+service);
+                }
+                methodData = holder.getMethodData(encoded_method);
+            }
+        }
+    }
+
+    /**
+     * The methods interned on a connection, indexed by their id.
+     */
+    static class InternedMethods {
+
+        final int max;
+        InternedMethod[] methods = new InternedMethod[16];
+
+        InternedMethods(int max) {
+            this.max = max;
+        }
+
+        InternedMethod get(int id) throws ProtocolException {
+            InternedMethod rc = id < methods.length ? methods[id] : null;
+            if( rc==null ) {
+                throw new ProtocolException("Unknown interned method id: "+id);
+            }
+            return rc;
+        }
+
+        void put(int id, InternedMethod method) throws ProtocolException {
+            // The id comes from the peer, do not let it size the table at will.
+            if( id < 0 || id >= max ) {
+                throw new ProtocolException("Invalid interned method id: "+id);
+            }
+            if( id >= methods.length ) {
+                InternedMethod[] n = new InternedMethod[Math.min(Math.max(methods.length << 1, id + 1), max)];
+                System.arraycopy(methods, 0, n, 0, methods.length);
+                methods = n;
+            }
+            methods[id] = method;
+        }
+    }
+
     public ServerInvokerImpl(String address, DispatchQueue queue, Map<String, SerializationStrategy> serializationStrategies) throws Exception {
         this.queue = queue;
         this.serializationStrategies = serializationStrategies;
@@ -161,10 +246,199 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         return this.server.getConnectAddress();
     }
 
-    public void registerService(final String id, final ServiceFactory service, final ClassLoader classLoader) {
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool the responses are encoded into.  The buffers go
+     * back to the pool once the transport has written them.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public long getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Sets the number of microseconds small responses may be held back so
+     * that they get written together with the following ones.
+     */
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    public int getMaxInternedMethods() {
+        return maxInternedMethods;
+    }
+
+    /**
+     * Sets the maximum number of methods a client connection may intern,
+     * the connections defining an id above it are closed.
+     */
+    public void setMaxInternedMethods(int maxInternedMethods) {
+        this.maxInternedMethods = maxInternedMethods;
+    }
+
+    public int getMaxPendingResponses() {
+        return maxPendingResponses;
+    }
+
+    /**
+     * Sets the number of responses a connection may hold back while its
+     * transport is full, the connection stops reading requests above it
+     * until the responses have been written.
+     */
+    public void setMaxPendingResponses(int maxPendingResponses) {
+        this.maxPendingResponses = maxPendingResponses;
+    }
+
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    /**
+     * Sets the number of threads of the executors the requests to the
+     * services which are not {@link Dispatched} run on.
+     */
+    public void setExecutorThreads(int executorThreads) {
+        this.executorThreads = executorThreads;
+    }
+
+    public int getExecutorQueueSize() {
+        return executorQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of requests queued by each executor, the
+     * requests which do not fit are rejected.  0 means unbounded.
+     */
+    public void setExecutorQueueSize(int executorQueueSize) {
+        this.executorQueueSize = executorQueueSize;
+    }
+
+    /**
+     * Overrides the number of threads and the queue size of the named
+     * executor, a negative queue size keeping the default one.  Must be
+     * called before a service using it is registered.
+     */
+    public void configureExecutor(String name, int threads, int queueSize) {
+        synchronized (executorConfigs) {
+            executorConfigs.put(name, new int[] { threads, queueSize });
+        }
+    }
+
+    /**
+     * Overrides the settings of several executors at once, from a list of
+     * <code>name=threads[:queueSize]</code> entries separated by commas or
+     * spaces, the executors without a queue size using the default one.
+     */
+    public void configureExecutors(String executors) {
+        if( executors==null ) {
+            return;
+        }
+        for (String entry : executors.split("[,\\s]+")) {
+            if( entry.length()==0 ) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            try {
+                if( eq<=0 ) {
+                    throw new NumberFormatException();
+                }
+                String[] values = entry.substring(eq + 1).split(":");
+                if( values.length>2 ) {
+                    throw new NumberFormatException();
+                }
+                int threads = Integer.parseInt(values[0]);
+                int queueSize = values.length>1 ? Integer.parseInt(values[1]) : -1;
+                configureExecutor(entry.substring(0, eq), threads, queueSize);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid executor configuration: "+entry);
+            }
+        }
+    }
+
+    public ServiceExecutor getExecutor(String name) {
+        ServiceExecutor rc = executors.get(name);
+        if( rc==null ) {
+            int[] config;
+            synchronized (executorConfigs) {
+                config = executorConfigs.get(name);
+            }
+            rc = config!=null ? new ServiceExecutor(name, config[0], config[1]>=0 ? config[1] : executorQueueSize)
+                              : new ServiceExecutor(name, executorThreads, executorQueueSize);
+            ServiceExecutor previous = executors.putIfAbsent(name, rc);
+            if( previous!=null ) {
+                rc.shutdown();
+                rc = previous;
+            } else {
+                registerMBean(rc);
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Sets the MBean server the metrics of the executors are exposed with,
+     * null unregisters them.
+     */
+    public void setMBeanServer(MBeanServer mbeanServer) {
+        for (ServiceExecutor executor : executors.values()) {
+            unregisterMBean(executor);
+        }
+        this.mbeanServer = mbeanServer;
+        for (ServiceExecutor executor : executors.values()) {
+            registerMBean(executor);
+        }
+    }
+
+    static ObjectName getObjectName(ServiceExecutor executor) throws Exception {
+        return new ObjectName("org.fusesource.fabric:service=DOSGi,executor=" + ObjectName.quote(executor.getName()));
+    }
+
+    private void registerMBean(ServiceExecutor executor) {
+        MBeanServer server = mbeanServer;
+        if( server!=null ) {
+            try {
+                ObjectName name = getObjectName(executor);
+                if( !server.isRegistered(name) ) {
+                    server.registerMBean(executor, name);
+                }
+            } catch (Exception e) {
+                LOGGER.info("Unable to register the executor mbean", e);
+            }
+        }
+    }
+
+    private void unregisterMBean(ServiceExecutor executor) {
+        MBeanServer server = mbeanServer;
+        if( server!=null ) {
+            try {
+                ObjectName name = getObjectName(executor);
+                if( server.isRegistered(name) ) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOGGER.info("Unable to unregister the executor mbean", e);
+            }
+        }
+    }
+
+    public void registerService(String id, ServiceFactory service, ClassLoader classLoader) {
+        registerService(id, service, classLoader, null);
+    }
+
+    public void registerService(final String id, final ServiceFactory service, final ClassLoader classLoader, String executor) {
+        final ServiceExecutor serviceExecutor = getExecutor(executor!=null ? executor : DEFAULT_EXECUTOR);
         queue().execute(new Runnable() {
             public void run() {
-                holders.put(new UTF8Buffer(id), new ServiceFactoryHolder(service, classLoader));
+                ServiceFactoryHolder previous = holders.put(new UTF8Buffer(id), new ServiceFactoryHolder(service, classLoader, serviceExecutor));
+                if( previous!=null ) {
+                    previous.unregistered = true;
+                }
             }
         });
     }
@@ -172,7 +446,10 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     public void unregisterService(final String id) {
         queue().execute(new Runnable() {
             public void run() {
-                holders.remove(new UTF8Buffer(id));
+                ServiceFactoryHolder previous = holders.remove(new UTF8Buffer(id));
+                if( previous!=null ) {
+                    previous.unregistered = true;
+                }
             }
         });
     }
@@ -192,7 +469,10 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     public void stop(final Runnable onComplete) {
         this.server.stop(new Runnable() {
             public void run() {
-                blockingExecutor.shutdown();
+                for (ServiceExecutor executor : executors.values()) {
+                    unregisterMBean(executor);
+                    executor.shutdown();
+                }
                 if (onComplete != null) {
                     onComplete.run();
                 }
@@ -201,26 +481,45 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
 
-    protected void onCommand(final Transport transport, Object data) {
+    protected void onCommand(final Transport transport, InternedMethods interned, Object data) {
         try {
             final DataByteArrayInputStream bais = new DataByteArrayInputStream((Buffer) data);
             final int size = bais.readInt();
             final long correlation = bais.readVarLong();
 
-            // Use UTF8Buffer instead of string to avoid encoding/decoding UTF-8 strings
-            // for every request.
-            final UTF8Buffer service = readBuffer(bais).utf8();
-            final Buffer encoded_method = readBuffer(bais);
-
-            final ServiceFactoryHolder holder = holders.get(service);
-            final MethodData methodData = holder.getMethodData(encoded_method);
+            final ServiceFactoryHolder holder;
+            final MethodData methodData;
+            int length = bais.readVarInt();
+            if( length != 0 ) {
+                // Use UTF8Buffer instead of string to avoid encoding/decoding UTF-8 strings
+                // for every request.
+                final UTF8Buffer service = readBuffer(bais, length).utf8();
+                final Buffer encoded_method = readBuffer(bais);
+
+                holder = holders.get(service);
+                methodData = holder.getMethodData(encoded_method);
+            } else {
+                // An empty service id introduces an interned method: the low bit of
+                // the id tells if the client is defining it on this connection.
+                int id = bais.readVarInt();
+                InternedMethod method;
+                if( (id & 1) != 0 ) {
+                    method = new InternedMethod(readBuffer(bais).deepCopy().utf8(), readBuffer(bais).deepCopy());
+                    interned.put(id >>> 1, method);
+                } else {
+                    method = interned.get(id >>> 1);
+                }
+                method.resolve();
+                holder = method.holder;
+                methodData = method.methodData;
+            }
 
             final Object svc = holder.factory.get();
 
             Runnable task = new Runnable() {
                 public void run() {
 
-                    final DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+                    final DataByteArrayOutputStream baos = new DataByteArrayOutputStream(bufferPool.allocate((int) (methodData.lastResponseSize*1.10)));
                     try {
                         baos.writeInt(0); // make space for the size field.
                         baos.writeVarLong(correlation);
@@ -238,10 +537,11 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                             // Update the size field.
                             BufferEditor editor = command.buffer().bigEndianEditor();
                             editor.writeInt(command.length);
+                            methodData.lastResponseSize = command.length;
 
                             queue().execute(new Runnable() {
                                 public void run() {
-                                    transport.offer(command);
+                                    send(transport, command);
                                 }
                             });
                         }
@@ -253,25 +553,80 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
             if( svc instanceof Dispatched ) {
                 executor = ((Dispatched)svc).queue();
             } else {
-                executor = blockingExecutor;
+                executor = holder.executor;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                holder.factory.unget();
+                send(transport, reject(holder, methodData, correlation));
             }
-            executor.execute(task);
 
+        } catch (ProtocolException e) {
+            // The peer does not speak the protocol, do not trust the rest of the stream.
+            LOGGER.info("Closing connection after a protocol error", e);
+            transport.stop();
         } catch (Exception e) {
             LOGGER.info("Error while reading request", e);
         }
     }
 
+    /**
+     * Encodes the response to a request the executor of the service did
+     * not have room for.
+     */
+    private Buffer reject(ServiceFactoryHolder holder, MethodData methodData, long correlation) throws Exception {
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream(bufferPool.allocate(methodData.lastResponseSize));
+        baos.writeInt(0); // make space for the size field.
+        baos.writeVarLong(correlation);
+        Method method = methodData.method;
+        Class<?> resultType = methodData.invocationStrategy instanceof AsyncInvocationStrategy
+                ? AsyncInvocationStrategy.getResultType(method)
+                : method.getReturnType();
+        RejectedExecutionException error = new RejectedExecutionException(
+                "Request rejected by the busy executor '" + holder.executor.getName() + "' of the service");
+        methodData.serializationStrategy.encodeResponse(holder.loader, resultType, null, error, baos);
+        Buffer command = baos.toBuffer();
+        command.buffer().bigEndianEditor().writeInt(command.length);
+        return command;
+    }
+
+    /**
+     * Reads a length prefixed field as a slice of the request frame: the
+     * result is only valid while the frame is.
+     */
     private Buffer readBuffer(DataByteArrayInputStream bais) throws IOException {
-        byte b[] = new byte[bais.readVarInt()];
-        bais.readFully(b);
-        return new Buffer(b);
+        return readBuffer(bais, bais.readVarInt());
+    }
+
+    private Buffer readBuffer(DataByteArrayInputStream bais, int length) throws IOException {
+        Buffer rc = bais.readBuffer(length);
+        if( rc==null || rc.length != length ) {
+            throw new EOFException();
+        }
+        return rc;
+    }
+
+    /**
+     * Sends a response, it is held back until the transport gets refilled
+     * when the codec is full.
+     */
+    private void send(Transport transport, Object command) {
+        TransportListener listener = transport.getTransportListener();
+        if (listener instanceof InvokerTransportListener) {
+            ((InvokerTransportListener) listener).send(transport, command);
+        } else {
+            transport.offer(command);
+        }
     }
 
     class InvokerAcceptListener implements TransportAcceptListener {
 
         public void onAccept(TransportServer transportServer, TcpTransport transport) {
-            transport.setProtocolCodec(new LengthPrefixedCodec());
+            LengthPrefixedCodec codec = new LengthPrefixedCodec();
+            codec.setFlushDelay(flushDelay);
+            codec.setBufferPool(bufferPool);
+            transport.setProtocolCodec(codec);
             transport.setDispatchQueue(queue());
             transport.setTransportListener(new InvokerTransportListener());
             transport.start();
@@ -284,11 +639,37 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
     class InvokerTransportListener implements TransportListener {
 
+        final InternedMethods interned = new InternedMethods(maxInternedMethods);
+        // The responses waiting for the transport to be refilled.
+        final LinkedList<Object> pending = new LinkedList<Object>();
+        // Whether reading has been suspended because too many responses are pending.
+        boolean suspended;
+
         public void onTransportCommand(Transport transport, Object command) {
-            ServerInvokerImpl.this.onCommand(transport, command);
+            ServerInvokerImpl.this.onCommand(transport, interned, command);
+        }
+
+        void send(Transport transport, Object command) {
+            if (!pending.isEmpty() || !transport.offer(command)) {
+                if (!transport.isDisposed()) {
+                    pending.add(command);
+                    if (!suspended && pending.size() >= maxPendingResponses) {
+                        // the requests already running still add their responses
+                        suspended = true;
+                        transport.suspendRead();
+                    }
+                }
+            }
         }
 
         public void onRefill(Transport transport) {
+            while (!pending.isEmpty() && transport.offer(pending.getFirst())) {
+                pending.removeFirst();
+            }
+            if (suspended && pending.size() < maxPendingResponses / 2 + 1) {
+                suspended = false;
+                transport.resumeRead();
+            }
         }
 
         public void onTransportFailure(Transport transport, IOException error) {
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded thread pool running the requests of a group of exported services
+ * so that slow services can not starve the ones of the other groups.
+ * Requests which do not fit in the queue are rejected with a
+ * {@link RejectedExecutionException} instead of being buffered.
+ */
+public class ServiceExecutor implements Executor, ServiceExecutorMBean {
+
+    static final int HISTOGRAM_BUCKETS = 32;
+
+    private final String name;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalServiceTime = new AtomicLong();
+    private final AtomicLong maxServiceTime = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * @param name the name of the group of services
+     * @param threads the number of threads of the pool
+     * @param queueCapacity the maximum number of queued requests, 0 for an unbounded queue
+     */
+    public ServiceExecutor(final String name, int threads, int queueCapacity) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be greater than 0");
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("The queue capacity can not be negative");
+        }
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        BlockingQueue<Runnable> queue = queueCapacity > 0
+                ? new LinkedBlockingQueue<Runnable>(queueCapacity)
+                : new LinkedBlockingQueue<Runnable>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+            final AtomicInteger counter = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dosgi-" + name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void execute(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                }
+            });
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void record(long time) {
+        completed.incrementAndGet();
+        totalServiceTime.addAndGet(time);
+        long max = maxServiceTime.get();
+        while (time > max && !maxServiceTime.compareAndSet(max, time)) {
+            max = maxServiceTime.get();
+        }
+        histogram.incrementAndGet(bucket(time));
+    }
+
+    static int bucket(long time) {
+        int bucket = 63 - Long.numberOfLeadingZeros(time | 1);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getMeanServiceTime() {
+        long count = completed.get();
+        return count > 0 ? totalServiceTime.get() / count : 0;
+    }
+
+    public long getMaxServiceTime() {
+        return maxServiceTime.get();
+    }
+
+    public long[] getServiceTimeHistogram() {
+        long[] rc = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = histogram.get(i);
+        }
+        return rc;
+    }
+
+    public void resetStatistics() {
+        submitted.set(0);
+        completed.set(0);
+        rejected.set(0);
+        totalServiceTime.set(0);
+        maxServiceTime.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+/**
+ * JMX view of the executor the requests of a group of exported services
+ * run on.  The times are in microseconds.
+ */
+public interface ServiceExecutorMBean {
+
+    String getName();
+
+    int getThreads();
+
+    int getActiveCount();
+
+    int getQueueDepth();
+
+    /**
+     * @return the maximum number of queued requests, 0 if the queue is unbounded
+     */
+    int getQueueCapacity();
+
+    long getSubmittedCount();
+
+    long getCompletedCount();
+
+    long getRejectedCount();
+
+    long getMeanServiceTime();
+
+    long getMaxServiceTime();
+
+    /**
+     * @return the number of requests per service time bucket, the bucket
+     * <code>i</code> counting the service times lower than <code>2^(i+1)</code> microseconds
+     */
+    long[] getServiceTimeHistogram();
+
+    void resetStatistics();
+
+}
@@ -610,6 +610,15 @@ public class TcpTransport implements Transport {
                 default:
                     if( drained ) {
                         drained = false;
+                        long delay = codec.getFlushDelay();
+                        if( delay > 0 ) {
+                            scheduleFlush(delay);
+                        } else {
+                            resumeWrite();
+                        }
+                    } else if( flushScheduled && codec.full() ) {
+                        // no point waiting any longer..
+                        flushScheduled = false;
                         resumeWrite();
                     }
                     return true;
@@ -623,6 +632,24 @@ public class TcpTransport implements Transport {
 
 
     boolean drained = true;
+    boolean flushScheduled = false;
+
+    /**
+     * Delays the flush of the pending writes so that the commands offered
+     * in the meantime get written with them.
+     */
+    private void scheduleFlush(long delay) {
+        flushScheduled = true;
+        dispatchQueue.executeAfter(delay, TimeUnit.MICROSECONDS, new Runnable() {
+            public void run() {
+                if( flushScheduled ) {
+                    flushScheduled = false;
+                    resumeWrite();
+                }
+            }
+        });
+    }
+
     /**
      *
      */
@@ -673,6 +700,14 @@ public class TcpTransport implements Transport {
                     return;
                 }
             }
+            // The codec may still hold decoded data even if the socket has
+            // nothing more to read, so come back once the other connections
+            // had a chance to process their requests.
+            dispatchQueue.execute(new Runnable() {
+                public void run() {
+                    drainInbound();
+                }
+            });
         } catch (IOException e) {
             onTransportFailure(e);
         }
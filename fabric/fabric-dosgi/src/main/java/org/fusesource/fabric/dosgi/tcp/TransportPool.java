@@ -17,11 +17,15 @@
 package org.fusesource.fabric.dosgi.tcp;
 
 import java.io.IOException;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -30,6 +34,7 @@ import org.fusesource.fabric.dosgi.io.ProtocolCodec;
 import org.fusesource.fabric.dosgi.io.Service;
 import org.fusesource.fabric.dosgi.io.Transport;
 import org.fusesource.fabric.dosgi.io.TransportListener;
+import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,16 +45,27 @@ public abstract class TransportPool implements Service {
 
     public static final int DEFAULT_POOL_SIZE = 2;
 
+    public static final int DEFAULT_GROW_THRESHOLD = 32;
+
     public static final long DEFAULT_EVICTION_DELAY = TimeUnit.MINUTES.toMillis(5);
 
     protected final String uri;
     protected final DispatchQueue queue;
-    protected final LinkedList<Pair> pending = new LinkedList<Pair>();
+    // the requests waiting for a transport, by id and in offer order
+    protected final Map<Object, Pair> pending = new LinkedHashMap<Object, Pair>();
     protected final Map<Transport, TransportState> transports = new HashMap<Transport, TransportState>();
+    // the transport each in-flight request has been sent on
+    protected final Map<Object, TransportState> owners = new HashMap<Object, TransportState>();
     protected AtomicBoolean running = new AtomicBoolean(false);
 
     protected int poolSize;
+    protected int minPoolSize;
+    protected int growThreshold = DEFAULT_GROW_THRESHOLD;
     protected long evictionDelay;
+    // bounds the pending and in-flight requests, null when unbounded
+    protected Semaphore permits;
+    protected int maxRequests;
+    protected long offerTimeout;
 
     public TransportPool(String uri, DispatchQueue queue) {
         this(uri, queue, DEFAULT_POOL_SIZE, DEFAULT_EVICTION_DELAY);
@@ -71,51 +87,187 @@ public abstract class TransportPool implements Service {
     protected abstract void onFailure(Object id, Throwable throwable);
 
     protected void onDone(Object id) {
-        for (TransportState state : transports.values()) {
-            if (state.inflight.remove(id)) {
-                break;
-            }
+        TransportState state = owners.remove(id);
+        if (state != null) {
+            state.inflight.remove(id);
+            release();
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Sets the maximum number of transports of the pool.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    /**
+     * Sets the number of transports kept open even when they are idle.
+     */
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getGrowThreshold() {
+        return growThreshold;
+    }
+
+    /**
+     * Sets the number of in-flight requests on the least loaded transport
+     * from which the pool opens one more transport, 0 only grows the pool
+     * once all the transports are full.
+     */
+    public void setGrowThreshold(int growThreshold) {
+        this.growThreshold = growThreshold;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests either pending or in flight, 0
+     * means unbounded.  Must be called before the pool is used.
+     */
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+        this.permits = maxRequests > 0 ? new Semaphore(maxRequests) : null;
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    /**
+     * Sets how many milliseconds a thread offering a request waits for the
+     * pool to have room for it.  Offers done from a dispatch queue never wait.
+     */
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    /**
+     * @return the number of requests either pending or in flight, or -1 if
+     * the pool is unbounded.
+     */
+    public int getOutstandingRequests() {
+        Semaphore p = permits;
+        return p != null ? maxRequests - p.availablePermits() : -1;
+    }
+
+    private boolean acquire() {
+        Semaphore p = permits;
+        if (p == null || p.tryAcquire()) {
+            return true;
+        }
+        if (Dispatch.getCurrentQueue() != null || offerTimeout <= 0) {
+            return false;
+        }
+        try {
+            return p.tryAcquire(offerTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void release() {
+        Semaphore p = permits;
+        if (p != null) {
+            p.release();
         }
     }
 
+    /**
+     * Forgets about a request which will not be waited for anymore, whether
+     * it has already been sent or not.
+     */
+    public void cancel(final Object id) {
+        queue.execute(new Runnable() {
+            public void run() {
+                if (pending.remove(id) != null) {
+                    release();
+                } else {
+                    onDone(id);
+                }
+            }
+        });
+    }
+
     public void offer(final Object data, final Object id) {
         if (!running.get()) {
             throw new IllegalStateException("Transport pool stopped");
         }
+        if (!acquire()) {
+            throw new RejectedExecutionException("Too many outstanding requests to " + uri);
+        }
         queue.execute(new Runnable() {
             public void run() {
                 Transport transport = getIdleTransport();
                 if (transport != null) {
-                    doOffer(transport, data, id);
+                    if (!doOffer(transport, data, id)) {
+                        pending.put(id, new Pair(data, id));
+                    }
                     if( transport.full() ) {
                         transports.get(transport).time = 0L;
                     }
                 } else {
-                    pending.add(new Pair(data, id));
+                    pending.put(id, new Pair(data, id));
                 }
             }
         });
     }
 
+    /**
+     * Offers a request to a transport.  A refused request is not in flight,
+     * the caller keeps it pending.
+     */
     protected boolean doOffer(Transport transport, Object command, Object id) {
-        transports.get(transport).inflight.add(id);
-        return transport.offer(command);
+        TransportState state = transports.get(transport);
+        state.inflight.add(id);
+        owners.put(id, state);
+        if (!transport.offer(command)) {
+            state.inflight.remove(id);
+            owners.remove(id);
+            return false;
+        }
+        return true;
     }
 
+    /**
+     * Returns the connected transport with the fewest in-flight requests
+     * which is not full, or null if there is none.  Opens a new transport
+     * when there is none or when the pool gets loaded and can still grow.
+     */
     protected Transport getIdleTransport() {
-        for (Map.Entry<Transport, TransportState> entry : transports.entrySet()) {
-            if (entry.getValue().time > 0) {
-                return entry.getKey();
+        TransportState best = null;
+        boolean connecting = false;
+        for (TransportState state : transports.values()) {
+            if (state.time > 0) {
+                if (best == null || state.inflight.size() < best.inflight.size()) {
+                    best = state;
+                }
+            } else if (!state.connected) {
+                connecting = true;
             }
         }
-        if (transports.size() < poolSize) {
+        boolean grow = best == null || (growThreshold > 0 && best.inflight.size() >= growThreshold);
+        if (grow && !connecting && transports.size() < poolSize) {
             try {
                 startNewTransport();
             } catch (Exception e) {
                 LOGGER.info("Unable to start new transport", e);
             }
         }
-        return null;
+        return best != null ? best.transport : null;
     }
 
     public void start() throws Exception {
@@ -124,6 +276,22 @@ public abstract class TransportPool implements Service {
 
     public void start(Runnable onComplete) throws Exception {
         running.set(true);
+        if (minPoolSize > 0) {
+            queue.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (running.get() && transports.size() < Math.min(minPoolSize, poolSize)) {
+                            startNewTransport();
+                        }
+                    } catch (Exception e) {
+                        LOGGER.info("Unable to start new transport", e);
+                    }
+                }
+            });
+        }
+        if (onComplete != null) {
+            onComplete.run();
+        }
     }
 
     public void stop() {
@@ -139,37 +307,59 @@ public abstract class TransportPool implements Service {
                         public void run() {
                             if (latch.decrementAndGet() == 0) {
                                 while (!pending.isEmpty()) {
-                                    Pair p = pending.removeFirst();
+                                    Pair p = removeFirstPending();
+                                    release();
                                     onFailure(p.id, new IOException("Transport stopped"));
                                 }
-                                onComplete.run();
+                                if (onComplete != null) {
+                                    onComplete.run();
+                                }
                             }
                         }
                     };
+                    if (transports.isEmpty()) {
+                        latch.set(1);
+                        coutDown.run();
+                        return;
+                    }
                     while (!transports.isEmpty()) {
                         Transport transport = transports.keySet().iterator().next();
                         TransportState state = transports.remove(transport);
                         if (state != null) {
-                            for (Object id : state.inflight) {
-                                onFailure(id, new IOException("Transport stopped"));
-                            }
+                            failInflight(state, new IOException("Transport stopped"));
                         }
                         transport.stop(coutDown);
                     }
                 }
             });
-        } else {
+        } else if (onComplete != null) {
             onComplete.run();
         }
     }
 
+    protected Pair removeFirstPending() {
+        Iterator<Pair> it = pending.values().iterator();
+        Pair pair = it.next();
+        it.remove();
+        return pair;
+    }
+
+    protected void failInflight(TransportState state, Throwable error) {
+        for (Object id : state.inflight) {
+            owners.remove(id);
+            release();
+            onFailure(id, error);
+        }
+        state.inflight.clear();
+    }
+
     protected void startNewTransport() throws Exception {
         LOGGER.debug("Creating new transport for: {}", this.uri);
         Transport transport = createTransport(this.uri);
         transport.setDispatchQueue(queue);
         transport.setProtocolCodec(createCodec());
         transport.setTransportListener(new Listener());
-        transports.put(transport, new TransportState());
+        transports.put(transport, new TransportState(transport));
         transport.start();
     }
 
@@ -184,12 +374,19 @@ public abstract class TransportPool implements Service {
     }
 
     protected static class TransportState {
+        final Transport transport;
+        // time since the transport is idle, 0 when it is not connected yet or full
         long time;
+        boolean connected;
         final Set<Object> inflight;
+        // ids of the methods interned on the transport
+        final BitSet internedMethods;
 
-        public TransportState() {
+        public TransportState(Transport transport) {
+            this.transport = transport;
             time = 0;
             inflight = new HashSet<Object>();
+            internedMethods = new BitSet();
         }
     }
 
@@ -201,7 +398,7 @@ public abstract class TransportPool implements Service {
 
         public void onRefill(final Transport transport) {
             while (pending.size() > 0 &&  !transport.full()) {
-                Pair pair = pending.removeFirst();
+                Pair pair = removeFirstPending();
                 boolean accepted = doOffer(transport, pair.command, pair.id);
                 assert accepted: "Should have been accepted since the transport was not full";
             }
@@ -215,7 +412,9 @@ public abstract class TransportPool implements Service {
                     queue.executeAfter(evictionDelay, TimeUnit.MILLISECONDS, new Runnable() {
                         public void run() {
                             TransportState state = transports.get(transport);
-                            if (state != null && state.time == time) {
+                            // never drop the requests still waiting for their response
+                            if (state != null && state.time == time && state.inflight.isEmpty()
+                                    && transports.size() > minPoolSize) {
                                 transports.remove(transport);
                                 transport.stop();
                             }
@@ -231,14 +430,13 @@ public abstract class TransportPool implements Service {
                 LOGGER.info("Transport failure", error);
                 TransportState state = transports.remove(transport);
                 if (state != null) {
-                    for (Object id : state.inflight) {
-                        onFailure(id, error);
-                    }
+                    failInflight(state, error);
                 }
                 transport.stop();
                 if (transports.isEmpty()) {
                     while (!pending.isEmpty()) {
-                        Pair p = pending.removeFirst();
+                        Pair p = removeFirstPending();
+                        release();
                         onFailure(p.id, error);
                     }
                 }
@@ -246,6 +444,10 @@ public abstract class TransportPool implements Service {
         }
 
         public void onTransportConnected(Transport transport) {
+            TransportState state = transports.get(transport);
+            if (state != null) {
+                state.connected = true;
+            }
             transport.resumeRead();
             onRefill(transport);
         }
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.util;
+
+import org.fusesource.fabric.dosgi.io.BufferPool;
+
+/**
+ * A {@link BufferPool} which does not pool anything: arrays are allocated
+ * on the heap and left to the garbage collector once released.
+ */
+public class HeapBufferPool implements BufferPool {
+
+    public static final HeapBufferPool INSTANCE = new HeapBufferPool();
+
+    public byte[] allocate(int size) {
+        return new byte[size];
+    }
+
+    public void release(byte[] buffer) {
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.util;
+
+import org.fusesource.fabric.dosgi.io.BufferPool;
+
+/**
+ * A {@link BufferPool} keeping released arrays in power of two size classes.
+ * <p>
+ * Requests are rounded up to the next size class, so that arrays grown by a
+ * {@link org.fusesource.hawtbuf.DataByteArrayOutputStream} (which doubles its
+ * capacity) still land in a size class once released.  Requests bigger than
+ * the largest size class are plainly allocated and never retained.  Each size
+ * class retains at most <code>maxBuffers</code> arrays.
+ */
+public class SizeClassBufferPool implements BufferPool {
+
+    public static final int DEFAULT_MIN_SIZE = 256;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 64;
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+
+    private final int minShift;
+    private final int maxShift;
+    private final SizeClass[] classes;
+
+    public SizeClassBufferPool() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_BUFFERS);
+    }
+
+    public SizeClassBufferPool(int maxBuffers) {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, maxBuffers);
+    }
+
+    public SizeClassBufferPool(int minSize, int maxSize, int maxBuffers) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid size range: " + minSize + " - " + maxSize);
+        }
+        this.minShift = shift(minSize);
+        this.maxShift = shift(maxSize);
+        this.classes = new SizeClass[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(maxBuffers);
+        }
+    }
+
+    public byte[] allocate(int size) {
+        int shift = Math.max(shift(size), minShift);
+        if (shift > maxShift) {
+            return new byte[size];
+        }
+        byte[] rc = classes[shift - minShift].poll();
+        if (rc == null) {
+            rc = new byte[1 << shift];
+        }
+        return rc;
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int length = buffer.length;
+        // only keep arrays which exactly match a size class
+        if ((length & (length - 1)) != 0) {
+            return;
+        }
+        int shift = shift(length);
+        if (shift < minShift || shift > maxShift) {
+            return;
+        }
+        classes[shift - minShift].offer(buffer);
+    }
+
+    /**
+     * @return the smallest n such that 2^n >= size
+     */
+    static int shift(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    static class SizeClass {
+        private final byte[][] buffers;
+        private int count;
+
+        SizeClass(int maxBuffers) {
+            this.buffers = new byte[maxBuffers][];
+        }
+
+        synchronized byte[] poll() {
+            if (count == 0) {
+                return null;
+            }
+            byte[] rc = buffers[--count];
+            buffers[count] = null;
+            return rc;
+        }
+
+        synchronized void offer(byte[] buffer) {
+            if (count < buffers.length) {
+                buffers[count++] = buffer;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel for the many short lived timeouts of the requests:
+ * scheduling and cancelling a timeout are O(1) and a single task ticking on
+ * the dispatch queue expires them, instead of one scheduled task per timeout.
+ * <p>
+ * Timeouts expire on the tick following their deadline, so the resolution
+ * of the wheel is its tick duration.
+ */
+public class TimerWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+    /**
+     * A timeout which can be scheduled once on a wheel.
+     */
+    public static abstract class Timeout {
+
+        private volatile Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+        private long deadline;
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if the timeout was pending, false if it has already
+         * expired or been cancelled
+         */
+        public boolean cancel() {
+            Bucket b = bucket;
+            if (b == null) {
+                return false;
+            }
+            synchronized (b) {
+                if (bucket != b) {
+                    return false;
+                }
+                b.remove(this);
+                return true;
+            }
+        }
+
+        /**
+         * Invoked on the queue of the wheel once the timeout expired.
+         */
+        protected abstract void expire();
+    }
+
+    static class Bucket {
+
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Removes the timeouts whose deadline is reached and returns them
+         * chained through their next field.
+         */
+        Timeout expire(long tick) {
+            Timeout expired = null;
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.deadline <= tick) {
+                    remove(t);
+                    t.next = expired;
+                    expired = t;
+                }
+                t = next;
+            }
+            return expired;
+        }
+    }
+
+    private final DispatchQueue queue;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long startTime;
+    private volatile long currentTick;
+
+    /**
+     * @param queue the queue the wheel ticks and the timeouts expire on
+     * @param tickDuration the duration of a tick
+     * @param unit the unit of the tick duration
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(DispatchQueue queue, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("The tick duration must be greater than 0");
+        }
+        this.queue = queue;
+        this.tickDuration = unit.toNanos(tickDuration);
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            currentTick = 0;
+            scheduleTick();
+        }
+    }
+
+    /**
+     * Stops the wheel, the pending timeouts never expire.
+     */
+    public void stop() {
+        running.set(false);
+    }
+
+    public void schedule(final Timeout timeout, long delay, TimeUnit unit) {
+        long ticks = (System.nanoTime() - startTime + unit.toNanos(delay) + tickDuration - 1) / tickDuration;
+        Bucket bucket = wheel[(int) (ticks & mask)];
+        synchronized (bucket) {
+            // the tick may have gone past the deadline while we computed it
+            if (ticks > currentTick) {
+                timeout.deadline = ticks;
+                bucket.add(timeout);
+                return;
+            }
+        }
+        queue.execute(new Runnable() {
+            public void run() {
+                timeout.expire();
+            }
+        });
+    }
+
+    private void scheduleTick() {
+        queue.executeAfter(tickDuration, TimeUnit.NANOSECONDS, new Runnable() {
+            public void run() {
+                if (running.get()) {
+                    tick();
+                    scheduleTick();
+                }
+            }
+        });
+    }
+
+    private void tick() {
+        long target = (System.nanoTime() - startTime) / tickDuration;
+        while (currentTick < target) {
+            long tick = currentTick + 1;
+            Bucket bucket = wheel[(int) (tick & mask)];
+            Timeout expired;
+            synchronized (bucket) {
+                currentTick = tick;
+                expired = bucket.expire(tick);
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                try {
+                    expired.expire();
+                } catch (Throwable e) {
+                    LOGGER.info("Error while expiring timeout", e);
+                }
+                expired = next;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi;
+
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallbackFuture;
+import org.fusesource.fabric.dosgi.api.BinarySerializationStrategy;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinarySerializationStrategyTest {
+
+    final BinarySerializationStrategy strategy = BinarySerializationStrategy.INSTANCE;
+    final ClassLoader loader = getClass().getClassLoader();
+
+    @Test
+    public void testPrimitivesAndStrings() throws Exception {
+        Object[] args = new Object[] { null, true, (byte) -1, (short) 300, '\u00e9', -42, Long.MAX_VALUE, 1.5f, -2.25d, "Hello Fabric \u00e9\u4e16" };
+        Object[] result = roundTrip(args);
+        assertEquals(Arrays.asList(args), Arrays.asList(result));
+    }
+
+    @Test
+    public void testArraysCollectionsAndMaps() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("one", 1);
+        map.put("list", new ArrayList<Object>(Arrays.asList("a", null, 2L)));
+        Set<String> set = new TreeSet<String>(Arrays.asList("b", "a"));
+        LinkedList<Integer> linked = new LinkedList<Integer>(Arrays.asList(1, 2, 3));
+        Object[] args = new Object[] {
+                new int[] { 1, -2, 3 },
+                new byte[] { 1, 2, 3 },
+                new String[][] { { "a" }, { "b", null } },
+                map, set, linked,
+                Collections.unmodifiableList(Arrays.asList("x", "y")),
+                TimeUnit.SECONDS,
+                new Date(123456789L),
+                new BigDecimal("3.14159")
+        };
+        Object[] result = roundTrip(args);
+        assertArrayEquals((int[]) args[0], (int[]) result[0]);
+        assertArrayEquals((byte[]) args[1], (byte[]) result[1]);
+        assertTrue(Arrays.deepEquals((Object[]) args[2], (Object[]) result[2]));
+        assertEquals(map, result[3]);
+        assertEquals(set, result[4]);
+        assertEquals(TreeSet.class, result[4].getClass());
+        assertEquals(linked, result[5]);
+        assertEquals(LinkedList.class, result[5].getClass());
+        assertEquals(Arrays.asList("x", "y"), result[6]);
+        assertEquals(TimeUnit.SECONDS, result[7]);
+        assertEquals(args[8], result[8]);
+        assertEquals(args[9], result[9]);
+    }
+
+    @Test
+    public void testBeans() throws Exception {
+        Person person = new Person("Hiram", 42);
+        person.friends.add(new Person("Guillaume", 41));
+        person.friends.add(null);
+        person.cache = "not encoded";
+        Object[] result = roundTrip(new Object[] { person, person }, Person.class, Object.class);
+        for (Object o : result) {
+            Person p = (Person) o;
+            assertEquals("Hiram", p.name);
+            assertEquals(42, p.age);
+            assertEquals(2, p.friends.size());
+            assertEquals("Guillaume", p.friends.get(0).name);
+            assertNull(p.friends.get(1));
+            assertNull(p.cache);
+        }
+    }
+
+    @Test
+    public void testUnknownClassesAreRejected() throws Exception {
+        // a bean passed as an object is not referenced by the signature
+        try {
+            roundTrip(new Object[] { new Person("Hiram", 42) });
+            fail("Expected an exception");
+        } catch (InvalidClassException e) {
+            assertEquals(Person.class.getName(), e.classname);
+        }
+        // unless its package is allowed
+        BinarySerializationStrategy allowing = new BinarySerializationStrategy(Person.class.getPackage().getName());
+        Object[] result = roundTrip(allowing, new Object[] { new Person("Hiram", 42) }, Object.class);
+        assertEquals("Hiram", ((Person) result[0]).name);
+    }
+
+    @Test
+    public void testUnknownSerializedClassesAreRejected() throws Exception {
+        // a serializable object passed as an object is not referenced by the signature either
+        try {
+            roundTrip(new Object[] { Singleton.INSTANCE });
+            fail("Expected an exception");
+        } catch (InvalidClassException e) {
+            assertEquals(Singleton.class.getName(), e.classname);
+        }
+        // but failures of any class are
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        strategy.encodeResponse(loader, String.class, null, new Failure("Failed"), baos);
+        AsyncCallbackFuture<Object> future = new AsyncCallbackFuture<Object>();
+        strategy.decodeResponse(loader, String.class, new DataByteArrayInputStream(baos.toBuffer()), future);
+        try {
+            future.get();
+            fail("Expected an exception");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals(Failure.class, e.getCause().getClass());
+        }
+    }
+
+    @Test
+    public void testInvalidLengthsAreRejected() throws Exception {
+        for (int length : new int[] { -1, Integer.MAX_VALUE, 4 }) {
+            DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+            // a byte array claiming more bytes than the frame holds
+            baos.writeByte(11);
+            baos.writeVarInt(length);
+            baos.write(new byte[3]);
+            try {
+                strategy.decodeRequest(loader, new Class<?>[] { byte[].class }, new DataByteArrayInputStream(baos.toBuffer()), new Object[2]);
+                fail("Expected an exception");
+            } catch (StreamCorruptedException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testContainersKeepTheirClassAndComparator() throws Exception {
+        TreeSet<String> reversed = new TreeSet<String>(Collections.<String>reverseOrder());
+        reversed.addAll(Arrays.asList("a", "c", "b"));
+        SortedMap<String, Integer> map = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+        map.put("B", 2);
+        map.put("a", 1);
+        EnumSet<TimeUnit> units = EnumSet.of(TimeUnit.SECONDS, TimeUnit.DAYS);
+        Object[] result = roundTrip(new Object[] { reversed, map, units });
+        assertEquals(Arrays.asList("c", "b", "a"), new ArrayList<Object>((Set<?>) result[0]));
+        assertEquals(1, ((SortedMap<?, ?>) result[1]).get("A"));
+        assertEquals(units, result[2]);
+        assertTrue(result[2] instanceof EnumSet);
+    }
+
+    @Test
+    public void testSerializationHooksAreHonored() throws Exception {
+        Object[] result = roundTrip(new Object[] { Singleton.INSTANCE }, Singleton.class);
+        assertSame(Singleton.INSTANCE, result[0]);
+    }
+
+    @Test
+    public void testResponses() throws Exception {
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        strategy.encodeResponse(loader, String.class, "Hello", null, baos);
+        AsyncCallbackFuture<Object> future = new AsyncCallbackFuture<Object>();
+        strategy.decodeResponse(loader, String.class, new DataByteArrayInputStream(baos.toBuffer()), future);
+        assertEquals("Hello", future.get());
+
+        baos = new DataByteArrayOutputStream();
+        strategy.encodeResponse(loader, String.class, null, new IllegalStateException("Failed"), baos);
+        future = new AsyncCallbackFuture<Object>();
+        strategy.decodeResponse(loader, String.class, new DataByteArrayInputStream(baos.toBuffer()), future);
+        try {
+            future.get();
+            fail("Expected an exception");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals(IllegalStateException.class, e.getCause().getClass());
+            assertEquals("Failed", e.getCause().getMessage());
+        }
+    }
+
+    private Object[] roundTrip(Object[] args, Class<?>... types) throws Exception {
+        return roundTrip(strategy, args, types);
+    }
+
+    private Object[] roundTrip(BinarySerializationStrategy strategy, Object[] args, Class<?>... signature) throws Exception {
+        Class<?>[] types = new Class<?>[args.length];
+        Arrays.fill(types, Object.class);
+        System.arraycopy(signature, 0, types, 0, signature.length);
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        strategy.encodeRequest(loader, types, args, baos);
+        // leave a slot for the callback, as done for async methods
+        Object[] result = new Object[args.length + 1];
+        DataByteArrayInputStream bais = new DataByteArrayInputStream(baos.toBuffer());
+        strategy.decodeRequest(loader, types, bais, result);
+        assertEquals(0, bais.available());
+        assertNull(result[args.length]);
+        return Arrays.copyOf(result, args.length);
+    }
+
+    static class Person {
+        String name;
+        int age;
+        List<Person> friends = new ArrayList<Person>();
+        transient String cache;
+
+        Person() {
+        }
+
+        Person(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+    }
+
+    static class Failure extends RuntimeException {
+        Failure(String message) {
+            super(message);
+        }
+    }
+
+    static class Singleton implements Serializable {
+        static final Singleton INSTANCE = new Singleton();
+
+        Singleton() {
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.fusesource.fabric.dosgi.capset.Attribute;
+import org.fusesource.fabric.dosgi.capset.Capability;
+import org.fusesource.fabric.dosgi.capset.CapabilitySet;
+import org.fusesource.fabric.dosgi.capset.SimpleFilter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class CapabilitySetTest {
+
+    private static final String[] FILTERS = {
+            "(name=foo)",
+            "(name=fo*)",
+            "(name=*o*)",
+            "(name=*ar)",
+            "(name=f*o*)",
+            "(name>=bar)",
+            "(name<=baz)",
+            "(name=*)",
+            "(version>=2)",
+            "(version<=2)",
+            "(version=3)",
+            "(version=abc)",
+            "(tags=a*)",
+            "(tags=*)",
+            "(tags>=b)",
+            "(&(name=f*)(version>=2))",
+            "(|(name=bar)(tags=c))",
+            "(!(name=b*))",
+            "(name~=FOO)",
+    };
+
+    @Test
+    public void testIndexedMatchesScan() {
+        CapabilitySet<Cap> indexed = new CapabilitySet<Cap>(Arrays.asList("name", "version", "tags"), true);
+        CapabilitySet<Cap> scanned = new CapabilitySet<Cap>(null, true);
+        Cap[] caps = {
+                new Cap("name", "foo", "version", 1L, "tags", Arrays.asList("a", "b")),
+                new Cap("name", "foobar", "version", 2L, "tags", new String[] { "c" }),
+                new Cap("name", "bar", "version", 3L, "tags", new String[0]),
+                new Cap("name", "baz", "version", "2"),
+                new Cap("version", 4L),
+        };
+        for (Cap cap : caps) {
+            indexed.addCapability(cap);
+            scanned.addCapability(cap);
+        }
+        for (String filter : FILTERS) {
+            SimpleFilter sf = SimpleFilter.parse(filter);
+            Set<Cap> expected = scanned.match(sf);
+            assertEquals(filter, expected, indexed.match(sf));
+            for (Cap cap : caps) {
+                assertEquals(filter, expected.contains(cap), CapabilitySet.matches(cap, sf));
+            }
+        }
+        assertEquals(new HashSet<Cap>(Arrays.asList(caps[1], caps[2], caps[3], caps[4])), indexed.match("(version>=2)"));
+
+        indexed.removeCapability(caps[0]);
+        indexed.removeCapability(caps[2]);
+        scanned.removeCapability(caps[0]);
+        scanned.removeCapability(caps[2]);
+        for (String filter : FILTERS) {
+            assertEquals(filter, scanned.match(filter), indexed.match(filter));
+        }
+    }
+
+    @Test
+    public void testFilterCache() {
+        CapabilitySet<Cap> set = new CapabilitySet<Cap>(Arrays.asList("name"), true);
+        SimpleFilter sf = set.compile("(name=foo)");
+        assertEquals(SimpleFilter.parse("(name=foo)"), sf);
+        assertSame(sf, set.compile("(name=foo)"));
+    }
+
+    static class Cap implements Capability {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        Cap(Object... keyValues) {
+            for (int i = 0; i < keyValues.length; i += 2) {
+                attributes.put((String) keyValues[i], keyValues[i + 1]);
+            }
+        }
+
+        public Attribute getAttribute(String name) {
+            Object value = attributes.get(name);
+            return value != null ? new Attribute(name, value) : null;
+        }
+
+        public String toString() {
+            return attributes.toString();
+        }
+    }
+
+}
@@ -16,24 +16,38 @@
  */
 package org.fusesource.fabric.dosgi;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fusesource.fabric.dosgi.api.*;
 import org.fusesource.fabric.dosgi.io.ServerInvoker;
 import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
 import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.ServiceExecutor;
+import org.fusesource.fabric.dosgi.util.SizeClassBufferPool;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.junit.Test;
 
 import static org.fusesource.hawtdispatch.Dispatch.createQueue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class InvocationTest {
     final static long MILLIS_IN_A_NANO = TimeUnit.MILLISECONDS.toNanos(1);
@@ -98,6 +112,549 @@ public class InvocationTest {
         }
     }
 
+    @Test
+    public void testInvokeWithShardedClient() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server1 = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server1.start();
+        ServerInvokerImpl server2 = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server2.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, ClientInvokerImpl.DEFAULT_TIMEOUT, map, 4);
+        client.start();
+
+        try {
+            ServerInvoker.ServiceFactory factory = new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            };
+            server1.registerService("service-id", factory, HelloImpl.class.getClassLoader());
+            server2.registerService("service-id", factory, HelloImpl.class.getClassLoader());
+
+            Hello hello1 = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class },
+                    client.getProxy(server1.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader()));
+            Hello hello2 = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class },
+                    client.getProxy(server2.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader()));
+
+            assertEquals(4, client.getShards());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Hello Fabric!", hello1.hello("Fabric"));
+                assertEquals("Hello Fuse!", hello2.hello("Fuse"));
+            }
+
+            AsyncCallbackFuture<String> future1 = new AsyncCallbackFuture<String>();
+            AsyncCallbackFuture<String> future2 = new AsyncCallbackFuture<String>();
+            hello1.hello("Hiram", future1);
+            hello2.hello("Guillaume", future2);
+            assertEquals("Hello Hiram!", future1.get(2, TimeUnit.SECONDS));
+            assertEquals("Hello Guillaume!", future2.get(2, TimeUnit.SECONDS));
+        }
+        finally {
+            server1.stop();
+            server2.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvokeWithBufferPool() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        SizeClassBufferPool pool = new SizeClassBufferPool();
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.setBufferPool(pool);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.setBufferPool(pool);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            StringBuilder big = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                assertEquals("Hello Fabric" + i + "!", hello.hello("Fabric" + i));
+                assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+                big.append("0123456789");
+            }
+            // grows past the pooled size classes
+            assertEquals("Hello " + big + "!", hello.hello(big.toString()));
+            assertEquals("Hello Fabric!", hello.hello("Fabric"));
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvokeWithInterning() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.setInterning(true);
+        client.start();
+
+        try {
+            ServerInvoker.ServiceFactory factory = new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            };
+            server.registerService("service-id", factory, HelloImpl.class.getClassLoader());
+
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals("Hello Fabric" + i + "!", hello.hello("Fabric" + i));
+                assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+            }
+
+            // the interned ids must survive the service being registered again
+            server.unregisterService("service-id");
+            server.registerService("service-id", factory, HelloImpl.class.getClassLoader());
+            assertEquals("Hello Fabric!", hello.hello("Fabric"));
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInterningReusesIds() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        // only room for the two methods of Hello
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.setMaxInternedMethods(2);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.setInterning(true);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            // each proxy must reuse the ids interned by the previous ones
+            for (int i = 0; i < 5; i++) {
+                InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+                Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+                assertEquals("Hello Fabric" + i + "!", hello.hello("Fabric" + i));
+                assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+            }
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInterningStopsAtTheServerLimit() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        // only room for one of the two methods of Hello
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.setMaxInternedMethods(1);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.setInterning(true);
+        client.setMaxInternedMethods(1);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            // the second method goes with its full signature on the same connection
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("Hello Fabric" + i + "!", hello.hello("Fabric" + i));
+                assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+            }
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidInternedId() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+        try {
+            // a frame defining an id way above the limit
+            DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+            baos.writeInt(0);
+            baos.writeVarLong(1);
+            baos.writeVarInt(0);
+            baos.writeVarInt((Integer.MAX_VALUE >>> 1) | 1);
+            Buffer service = new UTF8Buffer("service-id");
+            baos.writeVarInt(service.length);
+            baos.write(service);
+            baos.writeVarInt(service.length);
+            baos.write(service);
+            Buffer frame = baos.toBuffer();
+            frame.buffer().bigEndianEditor().writeInt(frame.length);
+
+            InetSocketAddress address = server.getSocketAddress();
+            Socket socket = new Socket("localhost", address.getPort());
+            try {
+                socket.setSoTimeout(5000);
+                OutputStream os = socket.getOutputStream();
+                os.write(frame.data, frame.offset, frame.length);
+                os.flush();
+                // the server must close the connection
+                InputStream is = socket.getInputStream();
+                try {
+                    assertEquals(-1, is.read());
+                } catch (SocketException e) {
+                    // reset by the server
+                }
+            } finally {
+                socket.close();
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLargePipelinedResponses() throws Exception {
+        largePipelinedResponses(1024);
+    }
+
+    @Test
+    public void testPendingResponsesSuspendReading() throws Exception {
+        largePipelinedResponses(2);
+    }
+
+    private void largePipelinedResponses(int maxPendingResponses) throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.setMaxPendingResponses(maxPendingResponses);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            // enough in flight responses to fill up the server side codec
+            StringBuilder name = new StringBuilder();
+            while (name.length() < 16 * 1024) {
+                name.append("Fabric");
+            }
+            AsyncCallbackFuture[] futures = new AsyncCallbackFuture[32];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = new AsyncCallbackFuture<String>();
+                hello.hello(name.toString(), futures[i]);
+            }
+            for (int i = 0; i < futures.length; i++) {
+                assertEquals("Hello " + name + "!", futures[i].get(5, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testExecutorsConfiguration() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.setExecutorThreads(4);
+        server.setExecutorQueueSize(100);
+        server.configureExecutors("slow=1:10, reports=2");
+        server.start();
+        try {
+            server.registerService("slow-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new SlowImpl();
+                }
+                public void unget() {
+                }
+            }, SlowImpl.class.getClassLoader(), "slow");
+
+            ServiceExecutor slow = server.getExecutor("slow");
+            assertEquals(1, slow.getThreads());
+            assertEquals(10, slow.getQueueCapacity());
+            ServiceExecutor reports = server.getExecutor("reports");
+            assertEquals(2, reports.getThreads());
+            assertEquals(100, reports.getQueueCapacity());
+            ServiceExecutor other = server.getExecutor("other");
+            assertEquals(4, other.getThreads());
+            assertEquals(100, other.getQueueCapacity());
+
+            try {
+                server.configureExecutors("slow=1:2:3");
+                fail("Expected an exception");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testExecutorRejection() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.configureExecutor("slow", 1, 1);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        final SlowImpl slowImpl = new SlowImpl();
+        ServerInvoker.ServiceFactory factory = new ServerInvoker.ServiceFactory() {
+            public Object get() {
+                return slowImpl;
+            }
+            public void unget() {
+            }
+        };
+
+        try {
+            server.registerService("slow-id", factory, SlowImpl.class.getClassLoader(), "slow");
+            server.registerService("fast-id", factory, SlowImpl.class.getClassLoader());
+
+            final Slow slow = (Slow) Proxy.newProxyInstance(SlowImpl.class.getClassLoader(), new Class[] { Slow.class },
+                    client.getProxy(server.getConnectAddress(), "slow-id", SlowImpl.class.getClassLoader()));
+            Slow fast = (Slow) Proxy.newProxyInstance(SlowImpl.class.getClassLoader(), new Class[] { Slow.class },
+                    client.getProxy(server.getConnectAddress(), "fast-id", SlowImpl.class.getClassLoader()));
+
+            ServiceExecutor executor = server.getExecutor("slow");
+            final String[] results = new String[2];
+            Thread[] threads = new Thread[2];
+            for (int i = 0; i < threads.length; i++) {
+                final int idx = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        results[idx] = slow.slow("Fabric" + idx, true);
+                    }
+                };
+                threads[i].start();
+                // wait for the request to be running or queued
+                while (executor.getActiveCount() + executor.getQueueDepth() <= i) {
+                    Thread.sleep(10);
+                }
+            }
+
+            // the executor of the slow service is full
+            try {
+                slow.slow("Rejected", false);
+                fail("Expected the request to be rejected");
+            } catch (UndeclaredThrowableException e) {
+                Throwable cause = e.getUndeclaredThrowable();
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                assertEquals(RejectedExecutionException.class, cause.getClass());
+            }
+            assertEquals(1, executor.getRejectedCount());
+
+            // but not the one of the other services
+            assertEquals("Hello Fast!", fast.slow("Fast", false));
+
+            slowImpl.latch.countDown();
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+                assertEquals("Hello Fabric" + i + "!", results[i]);
+            }
+            assertEquals(2, executor.getCompletedCount());
+        }
+        finally {
+            slowImpl.latch.countDown();
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, 500, map);
+        client.start();
+
+        final SlowImpl slowImpl = new SlowImpl();
+        try {
+            server.registerService("slow-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return slowImpl;
+                }
+                public void unget() {
+                }
+            }, SlowImpl.class.getClassLoader());
+
+            Slow slow = (Slow) Proxy.newProxyInstance(SlowImpl.class.getClassLoader(), new Class[] { Slow.class },
+                    client.getProxy(server.getConnectAddress(), "slow-id", SlowImpl.class.getClassLoader()));
+
+            AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            slow.slow("Async", true, future);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected the request to time out");
+            } catch (ExecutionException e) {
+                assertEquals(TimeoutException.class, e.getCause().getClass());
+            }
+
+            try {
+                slow.slow("Blocking", true);
+                fail("Expected the request to time out");
+            } catch (UndeclaredThrowableException e) {
+                assertEquals(TimeoutException.class, e.getUndeclaredThrowable().getClass());
+            }
+
+            slowImpl.latch.countDown();
+            assertEquals("Hello Fabric!", slow.slow("Fabric", false));
+        }
+        finally {
+            slowImpl.latch.countDown();
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testMaxPendingRequests() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.setMaxPendingRequests(1);
+        client.start();
+
+        final SlowImpl slowImpl = new SlowImpl();
+        try {
+            server.registerService("slow-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return slowImpl;
+                }
+                public void unget() {
+                }
+            }, SlowImpl.class.getClassLoader());
+
+            final Slow slow = (Slow) Proxy.newProxyInstance(SlowImpl.class.getClassLoader(), new Class[] { Slow.class },
+                    client.getProxy(server.getConnectAddress(), "slow-id", SlowImpl.class.getClassLoader()));
+
+            AsyncCallbackFuture<String> first = new AsyncCallbackFuture<String>();
+            slow.slow("First", true, first);
+
+            // no room left: calls made from a dispatch queue fail right away
+            final AsyncCallbackFuture<String> second = new AsyncCallbackFuture<String>();
+            createQueue().execute(new Runnable() {
+                public void run() {
+                    slow.slow("Second", false, second);
+                }
+            });
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                fail("Expected the request to be rejected");
+            } catch (ExecutionException e) {
+                assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+            }
+
+            slowImpl.latch.countDown();
+            assertEquals("Hello First!", first.get(5, TimeUnit.SECONDS));
+            assertEquals("Hello Third!", slow.slow("Third", false));
+        }
+        finally {
+            slowImpl.latch.countDown();
+            server.stop();
+            client.stop();
+        }
+    }
+
     @Test
     public void testUnderLoadSyncObject() throws Exception {
         HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
@@ -336,6 +893,32 @@ public class InvocationTest {
 
     }
 
+    public static interface Slow {
+        String slow(String name, boolean wait);
+
+        void slow(String name, boolean wait, AsyncCallback<String> callback);
+    }
+
+    public static class SlowImpl implements Slow {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        public String slow(String name, boolean wait) {
+            if (wait) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return "Hello " + name + "!";
+        }
+
+        public void slow(String name, boolean wait, AsyncCallback<String> callback) {
+            callback.onSuccess(slow(name, wait));
+        }
+    }
+
     static private StringValue.Bean stringValue(String hello) {
         StringValue.Bean rc = new StringValue.Bean();
         rc.setValue(hello);
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.fusesource.fabric.dosgi.io.ProtocolCodec;
+import org.fusesource.fabric.dosgi.tcp.LengthPrefixedCodec;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LengthPrefixedCodecTest {
+
+    @Test
+    public void testReadSeveralFramesPerRead() throws Exception {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            data.write(frame(i, 10).toByteArray());
+        }
+        data.write(frame(10, 200 * 1024).toByteArray());
+        data.write(frame(11, 3).toByteArray());
+
+        // deliver the bytes in odd sized chunks to exercise partial frames
+        ChunkedChannel channel = new ChunkedChannel(data.toByteArray(), 7000);
+        LengthPrefixedCodec codec = new LengthPrefixedCodec();
+        codec.setReadableByteChannel(channel);
+
+        for (int i = 0; i < 10; i++) {
+            assertFrame(i, 10, read(codec));
+        }
+        assertFrame(10, 200 * 1024, read(codec));
+        assertFrame(11, 3, read(codec));
+        assertNull(codec.read());
+        assertEquals(data.size(), codec.getReadCounter());
+    }
+
+    @Test
+    public void testGatheringWrite() throws Exception {
+        CollectingChannel channel = new CollectingChannel(5);
+        LengthPrefixedCodec codec = new LengthPrefixedCodec();
+        codec.setWritableByteChannel(channel);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++) {
+            Buffer frame = frame(i, 100);
+            expected.write(frame.toByteArray());
+            codec.write(frame);
+        }
+        while (codec.flush() != ProtocolCodec.BufferState.EMPTY) {
+        }
+        assertEquals(1, channel.gatheringWrites);
+        assertEquals(expected.size(), codec.getWriteCounter());
+        assertEquals(new Buffer(expected.toByteArray()), new Buffer(channel.data.toByteArray()));
+    }
+
+    private Object read(LengthPrefixedCodec codec) throws IOException {
+        Object rc;
+        while ((rc = codec.read()) == null) {
+        }
+        return rc;
+    }
+
+    private static Buffer frame(int id, int payload) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream();
+        os.writeInt(8 + payload);
+        os.writeInt(id);
+        for (int i = 0; i < payload; i++) {
+            os.writeByte(i);
+        }
+        return os.toBuffer();
+    }
+
+    private static void assertFrame(int id, int payload, Object value) {
+        Buffer buffer = (Buffer) value;
+        assertEquals(8 + payload, buffer.length);
+        assertEquals(id, new Buffer(buffer.data, buffer.offset + 4, 4).bigEndianEditor().readInt());
+    }
+
+    static class ChunkedChannel implements ReadableByteChannel {
+        final byte[] data;
+        final int chunk;
+        int pos;
+
+        ChunkedChannel(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            int count = Math.min(Math.min(chunk, dst.remaining()), data.length - pos);
+            dst.put(data, pos, count);
+            pos += count;
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    static class CollectingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final int maxBuffersPerWrite;
+        int gatheringWrites;
+
+        CollectingChannel(int maxBuffersPerWrite) {
+            this.maxBuffersPerWrite = maxBuffersPerWrite;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            gatheringWrites++;
+            long count = 0;
+            for (int i = offset; i < offset + Math.min(length, maxBuffersPerWrite); i++) {
+                count += write(srcs[i]);
+            }
+            return count;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            byte[] b = new byte[count];
+            src.get(b);
+            data.write(b, 0, count);
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.io.ProtocolCodec;
+import org.fusesource.fabric.dosgi.io.Transport;
+import org.fusesource.fabric.dosgi.io.TransportListener;
+import org.fusesource.fabric.dosgi.tcp.TransportPool;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransportPoolTest {
+
+    @Test
+    public void testLeastLoadedSelectionAndGrowth() throws Exception {
+        DispatchQueue queue = Dispatch.createQueue();
+        MockTransportPool pool = new MockTransportPool(queue);
+        pool.setPoolSize(3);
+        pool.setGrowThreshold(2);
+        pool.start();
+
+        for (long id = 1; id <= 7; id++) {
+            pool.offer("command-" + id, id);
+            sync(queue);
+        }
+        // the second transport is only opened once the first one is loaded
+        assertEquals(3, pool.created.size());
+        assertEquals(Arrays.<Object>asList(1L, 2L, 3L), pool.created.get(0).ids);
+        assertEquals(Arrays.<Object>asList(4L, 5L, 6L), pool.created.get(1).ids);
+        assertEquals(Arrays.<Object>asList(7L), pool.created.get(2).ids);
+
+        pool.done(4L, 5L, 6L);
+        pool.offer("command-8", 8L);
+        sync(queue);
+        assertEquals(Arrays.<Object>asList(4L, 5L, 6L, 8L), pool.created.get(1).ids);
+        assertEquals(3, pool.created.size());
+
+        // only the requests of the failed transport fail
+        final MockTransport failed = pool.created.get(0);
+        queue.execute(new Runnable() {
+            public void run() {
+                failed.listener.onTransportFailure(failed, new IOException("Test failure"));
+            }
+        });
+        sync(queue);
+        assertEquals(Arrays.<Object>asList(1L, 2L, 3L), pool.failed);
+
+        pool.stop(null);
+        sync(queue);
+        assertEquals(new TreeSet<Object>(Arrays.<Object>asList(1L, 2L, 3L, 7L, 8L)), new TreeSet<Object>(pool.failed));
+    }
+
+    @Test
+    public void testCancelPendingRequests() throws Exception {
+        DispatchQueue queue = Dispatch.createQueue();
+        MockTransportPool pool = new MockTransportPool(queue);
+        pool.setPoolSize(1);
+        pool.setMaxRequests(10);
+        pool.full = true;
+        pool.start();
+
+        for (long id = 1; id <= 3; id++) {
+            pool.offer("command-" + id, id);
+            sync(queue);
+        }
+        assertEquals(1, pool.created.size());
+        assertEquals(3, pool.getOutstandingRequests());
+
+        // a cancelled pending request is never sent and gives its permit back
+        pool.cancel(2L);
+        sync(queue);
+        assertEquals(2, pool.getOutstandingRequests());
+
+        final MockTransport transport = pool.created.get(0);
+        transport.full = false;
+        queue.execute(new Runnable() {
+            public void run() {
+                transport.listener.onRefill(transport);
+            }
+        });
+        sync(queue);
+        assertEquals(Arrays.<Object>asList(1L, 3L), transport.ids);
+
+        // as does a cancelled in-flight request
+        pool.cancel(3L);
+        sync(queue);
+        assertEquals(1, pool.getOutstandingRequests());
+
+        pool.stop(null);
+        sync(queue);
+        assertEquals(Arrays.<Object>asList(1L), pool.failed);
+    }
+
+    private static void sync(DispatchQueue queue) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        queue.execute(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        });
+        latch.await(5, TimeUnit.SECONDS);
+    }
+
+    static class MockTransportPool extends TransportPool {
+
+        final List<MockTransport> created = new ArrayList<MockTransport>();
+        final List<Object> failed = new ArrayList<Object>();
+        // whether the transports are created full
+        boolean full;
+
+        MockTransportPool(DispatchQueue queue) {
+            super("mock://localhost", queue);
+        }
+
+        void done(final Object... ids) throws InterruptedException {
+            queue.execute(new Runnable() {
+                public void run() {
+                    for (Object id : ids) {
+                        onDone(id);
+                    }
+                }
+            });
+            sync(queue);
+        }
+
+        @Override
+        protected Transport createTransport(String uri) {
+            MockTransport transport = new MockTransport();
+            transport.full = full;
+            created.add(transport);
+            return transport;
+        }
+
+        @Override
+        protected ProtocolCodec createCodec() {
+            return null;
+        }
+
+        @Override
+        protected void onCommand(Object command) {
+        }
+
+        @Override
+        protected void onFailure(Object id, Throwable throwable) {
+            failed.add(id);
+        }
+    }
+
+    static class MockTransport implements Transport {
+
+        final List<Object> ids = new ArrayList<Object>();
+        TransportListener listener;
+        DispatchQueue queue;
+        boolean disposed;
+        boolean full;
+
+        public void start() {
+            start(null);
+        }
+
+        public void start(Runnable onComplete) {
+            queue.execute(new Runnable() {
+                public void run() {
+                    listener.onTransportConnected(MockTransport.this);
+                }
+            });
+        }
+
+        public void stop() {
+            stop(null);
+        }
+
+        public void stop(Runnable onComplete) {
+            disposed = true;
+            if (onComplete != null) {
+                onComplete.run();
+            }
+        }
+
+        public boolean full() {
+            return full;
+        }
+
+        public boolean offer(Object command) {
+            ids.add(Long.valueOf(((String) command).substring("command-".length())));
+            return true;
+        }
+
+        public TransportListener getTransportListener() {
+            return listener;
+        }
+
+        public void setTransportListener(TransportListener listener) {
+            this.listener = listener;
+        }
+
+        public DispatchQueue queue() {
+            return queue;
+        }
+
+        public void setDispatchQueue(DispatchQueue queue) {
+            this.queue = queue;
+        }
+
+        public void suspendRead() {
+        }
+
+        public void resumeRead() {
+        }
+
+        public String getRemoteAddress() {
+            return "mock://localhost";
+        }
+
+        public boolean isDisposed() {
+            return disposed;
+        }
+
+        public boolean isConnected() {
+            return !disposed;
+        }
+
+        public ProtocolCodec getProtocolCodec() {
+            return null;
+        }
+
+        public void setProtocolCodec(ProtocolCodec protocolCodec) {
+        }
+    }
+}
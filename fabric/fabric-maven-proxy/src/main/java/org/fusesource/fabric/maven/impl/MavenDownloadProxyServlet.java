@@ -14,16 +14,15 @@
  *   See the License for the specific language governing permissions and
  *   limitations under the License.
  */
-
 package org.fusesource.fabric.maven.impl;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -39,6 +38,12 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
     private ConcurrentMap<String, ArtifactDownloadFuture> requestMap = new ConcurrentHashMap<String, ArtifactDownloadFuture>();
     private ExecutorService executorService = Executors.newCachedThreadPool();
 
+    @Override
+    public void destroy() {
+        executorService.shutdownNow();
+        super.destroy();
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         super.doPost(req, resp);
@@ -51,8 +56,6 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        InputStream is = null;
-        BufferedInputStream bis = null;
         File artifactFile = null;
         ArtifactDownloadFuture masterFuture = null;
 
@@ -63,42 +66,25 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
             }
 
             try {
-                ArtifactDownloadFuture future = new ArtifactDownloadFuture(path);
-                masterFuture = requestMap.putIfAbsent(path, future);
-                if (masterFuture == null) {
-                    masterFuture = future;
-                    executorService.submit(future);
-                    artifactFile = masterFuture.get();
-                } else {
-                    artifactFile = masterFuture.get();
+                // Released artifacts never change, so they are served from the local repository without resolution
+                File local = getLocalArtifact(path);
+                if (local != null) {
+                    serve(req, resp, path, local);
+                    return;
                 }
 
-                requestMap.remove(path);
+                masterFuture = acquire(path);
+                artifactFile = masterFuture.get();
                 if (artifactFile == null) {
                     resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
                     return;
                 }
-
-                is = new FileInputStream(artifactFile);
-                LOGGER.log(Level.INFO, String.format("Writing response for file : %s", path));
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.setContentType("application/octet-stream");
-                resp.setDateHeader("Date", System.currentTimeMillis());
-                resp.setHeader("Connection", "close");
-                resp.setContentLength(is.available());
-                resp.setHeader("Server", "MavenProxy Proxy/" + FabricConstants.FABRIC_VERSION);
-                byte buffer[] = new byte[8192];
-                int length;
-                while ((length = is.read(buffer)) != -1) {
-                    resp.getOutputStream().write(buffer, 0, length);
-                }
-                resp.getOutputStream().flush();
+                serve(req, resp, path, artifactFile);
             } catch (Exception ex) {
                 LOGGER.warning("Error while downloading artifact:" + ex.getMessage());
             } finally {
-                Closeables.closeQuitely(is);
-                if (masterFuture != null && artifactFile != null) {
-                    masterFuture.release(artifactFile);
+                if (masterFuture != null) {
+                    masterFuture.release();
                 }
             }
         } catch (Exception ex) {
@@ -106,23 +92,220 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
         }
     }
 
+    /**
+     * Returns the file of a released artifact already present in the local repository, or null.
+     */
+    protected File getLocalArtifact(String path) {
+        if (path == null || localRepository == null || path.contains("..") || path.contains("SNAPSHOT")
+                || ARTIFACT_METADATA_URL_REGEX.matcher(path).matches()
+                || !ARTIFACT_REQUEST_URL_REGEX.matcher(path).matches()) {
+            return null;
+        }
+        File file = new File(localRepository, path);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the pending download of the given path, or starts a new one, so that
+     * concurrent requests of the same path only trigger one resolution.
+     */
+    private ArtifactDownloadFuture acquire(String path) {
+        while (true) {
+            ArtifactDownloadFuture future = requestMap.get(path);
+            if (future == null) {
+                ArtifactDownloadFuture created = new ArtifactDownloadFuture(path);
+                created.acquire();
+                future = requestMap.putIfAbsent(path, created);
+                if (future == null) {
+                    try {
+                        executorService.submit(created);
+                    } catch (RuntimeException e) {
+                        // Do not leave a download which will never complete to the next requests
+                        requestMap.remove(path, created);
+                        created.setException(e);
+                    }
+                    return created;
+                }
+            }
+            if (future.acquire()) {
+                return future;
+            }
+        }
+    }
+
+    /**
+     * Writes the given file, honoring conditional and range requests.
+     */
+    protected void serve(HttpServletRequest req, HttpServletResponse resp, String path, File file) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+        resp.setDateHeader("Date", System.currentTimeMillis());
+        resp.setHeader("Server", "MavenProxy Proxy/" + FabricConstants.FABRIC_VERSION);
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", lastModified);
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null ? matches(ifNoneMatch, etag) : notModifiedSince(req, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, length);
+            if (bounds == null) {
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                resp.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+        if (start == 0 && end == length - 1) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        LOGGER.log(Level.FINE, String.format("Writing response for file : %s", path));
+        resp.setContentType("application/octet-stream");
+        long count = end - start + 1;
+        if (count <= Integer.MAX_VALUE) {
+            resp.setContentLength((int) count);
+        } else {
+            resp.setHeader("Content-Length", Long.toString(count));
+        }
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            long position = start;
+            while (position <= end) {
+                long written = channel.transferTo(position, end + 1 - position, out);
+                if (written <= 0) {
+                    break;
+                }
+                position += written;
+            }
+            resp.getOutputStream().flush();
+        } finally {
+            Closeables.closeQuitely(is);
+        }
+    }
+
+    private static boolean matches(String header, String etag) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean notModifiedSince(HttpServletRequest req, long lastModified) {
+        try {
+            long since = req.getDateHeader("If-Modified-Since");
+            // HTTP dates have a precision of one second
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a single byte range.
+     *
+     * @return the first and last positions of the range, an empty array if the whole
+     * file should be sent, or null if the range can not be satisfied
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            // Not a byte range, or several ranges: send the whole file
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash).trim());
+                String last = spec.substring(dash + 1).trim();
+                end = last.length() > 0 ? Math.min(Long.parseLong(last), length - 1) : length - 1;
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
     private class ArtifactDownloadFuture extends FutureTask<File> {
 
-        private final AtomicInteger paritcipans = new AtomicInteger();
+        private final String path;
+        private int participants;
+        private boolean released;
+        private volatile File file;
 
         public ArtifactDownloadFuture(String path) {
             super(new ArtifactDownloadTask(path));
+            this.path = path;
+        }
+
+        /**
+         * Registers a request for this download.
+         *
+         * @return false if the download has already been released by all its requests
+         */
+        public synchronized boolean acquire() {
+            if (released) {
+                return false;
+            }
+            participants++;
+            return true;
         }
 
         @Override
-        public File get() throws InterruptedException, ExecutionException {
-            paritcipans.incrementAndGet();
-            return super.get();
+        protected void set(File v) {
+            file = v;
+            super.set(v);
         }
 
-        public synchronized void release(File f) {
-            if (paritcipans.decrementAndGet() == 0) {
-                f.delete();
+        @Override
+        protected void setException(Throwable t) {
+            super.setException(t);
+        }
+
+        /**
+         * Unregisters a request, deleting the downloaded file once all requests are done.
+         */
+        public synchronized void release() {
+            if (--participants == 0) {
+                released = true;
+                requestMap.remove(path, this);
+                if (file != null) {
+                    file.delete();
+                }
             }
         }
     }
@@ -139,13 +322,13 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
         public File call() throws Exception {
             File download = download(path);
             if (download != null)  {
-            File tmpFile = Files.createTempFile();
-            Files.copy(download, tmpFile);
-            return tmpFile;
+                File tmpFile = Files.createTempFile();
+                Files.copy(download, tmpFile);
+                tmpFile.setLastModified(download.lastModified());
+                return tmpFile;
             } else {
                 return null;
             }
         }
     }
 }
-
@@ -157,7 +157,7 @@ public class MavenProxyServletSupport extends HttpServlet implements MavenProxy
         if (path == null) {
             throw new InvalidMavenArtifactRequest();
         } else if (metdataMatcher.matches()) {
-            LOGGER.log(Level.INFO, String.format("Received request for maven metadata : %s", path));
+            LOGGER.log(Level.FINE, String.format("Received request for maven metadata : %s", path));
             Metadata metadata = null;
             try {
                 metadata = convertPathToMetadata(path);
@@ -187,7 +187,7 @@ public class MavenProxyServletSupport extends HttpServlet implements MavenProxy
             //If no matching metadata found return nothing
             return null;
         } else if (artifactMatcher.matches()) {
-            LOGGER.log(Level.INFO, String.format("Received request for maven artifact : %s", path));
+            LOGGER.log(Level.FINE, String.format("Received request for maven artifact : %s", path));
             Artifact artifact = convertPathToArtifact(path);
             String id = artifact.getGroupId() + ":" + artifact.getArtifactId();
             try {
@@ -0,0 +1,236 @@
+package org.fusesource.fabric.maven.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class MavenDownloadProxyServletTest {
+
+    @Test
+    public void testParseRange() {
+        assertRange(MavenDownloadProxyServlet.parseRange("bytes=0-99", 1000), 0, 99);
+        assertRange(MavenDownloadProxyServlet.parseRange("bytes=100-", 1000), 100, 999);
+        assertRange(MavenDownloadProxyServlet.parseRange("bytes=-100", 1000), 900, 999);
+        assertRange(MavenDownloadProxyServlet.parseRange("bytes=900-2000", 1000), 900, 999);
+        assertRange(MavenDownloadProxyServlet.parseRange("bytes=-2000", 1000), 0, 999);
+    }
+
+    @Test
+    public void testParseUnsatisfiableRange() {
+        Assert.assertNull(MavenDownloadProxyServlet.parseRange("bytes=1000-", 1000));
+        Assert.assertNull(MavenDownloadProxyServlet.parseRange("bytes=500-100", 1000));
+        Assert.assertNull(MavenDownloadProxyServlet.parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void testParseIgnoredRange() {
+        Assert.assertEquals(0, MavenDownloadProxyServlet.parseRange("items=0-10", 1000).length);
+        Assert.assertEquals(0, MavenDownloadProxyServlet.parseRange("bytes=0-10,20-30", 1000).length);
+        Assert.assertEquals(0, MavenDownloadProxyServlet.parseRange("bytes=a-b", 1000).length);
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        File file = createFile("0123456789");
+        file.setLastModified(1000000000000L);
+        MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet();
+
+        Response response = new Response();
+        servlet.serve(request(), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertEquals("0123456789", response.body.toString("UTF-8"));
+        String etag = response.headers.get("ETag");
+
+        response = new Response();
+        servlet.serve(request("If-None-Match", etag), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+        Assert.assertEquals(0, response.body.size());
+
+        response = new Response();
+        servlet.serve(request("If-None-Match", "\"other\""), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+
+        response = new Response();
+        servlet.serve(request("If-Modified-Since", 1000000000000L), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+
+        response = new Response();
+        servlet.serve(request("If-Modified-Since", 999999990000L), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertEquals("0123456789", response.body.toString("UTF-8"));
+        file.delete();
+    }
+
+    @Test
+    public void testRangeRequests() throws Exception {
+        File file = createFile("0123456789");
+        MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet();
+
+        Response response = new Response();
+        servlet.serve(request("Range", "bytes=2-5"), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.status);
+        Assert.assertEquals("bytes 2-5/10", response.headers.get("Content-Range"));
+        Assert.assertEquals("2345", response.body.toString("UTF-8"));
+
+        // the range is ignored when the file changed
+        response = new Response();
+        servlet.serve(request("Range", "bytes=2-5", "If-Range", "\"other\""), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+        Assert.assertEquals("0123456789", response.body.toString("UTF-8"));
+
+        response = new Response();
+        servlet.serve(request("Range", "bytes=10-"), response.proxy(), "a/b/1/b-1.jar", file);
+        Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.status);
+        Assert.assertEquals("bytes */10", response.headers.get("Content-Range"));
+        file.delete();
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        // the downloaded artifacts are copied to the data directory
+        System.setProperty("karaf.data", new File("target/data").getAbsolutePath());
+        final File file = createFile("0123456789");
+        final AtomicInteger downloads = new AtomicInteger();
+        final CountDownLatch requested = new CountDownLatch(2);
+        final MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet() {
+            @Override
+            protected File getLocalArtifact(String path) {
+                requested.countDown();
+                return null;
+            }
+
+            @Override
+            public File download(String path) {
+                downloads.incrementAndGet();
+                try {
+                    // keep the download pending until both requests joined it
+                    requested.await(5, TimeUnit.SECONDS);
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return file;
+            }
+        };
+        final Response[] responses = new Response[] { new Response(), new Response() };
+        Thread[] threads = new Thread[responses.length];
+        for (int i = 0; i < threads.length; i++) {
+            final Response response = responses[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        servlet.doGet(request("/a/b/1/b-1.jar"), response.proxy());
+                    } catch (Exception e) {
+                        response.status = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        Assert.assertEquals(1, downloads.get());
+        for (Response response : responses) {
+            Assert.assertEquals(HttpServletResponse.SC_OK, response.status);
+            Assert.assertEquals("0123456789", response.body.toString("UTF-8"));
+        }
+        servlet.destroy();
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedDownloadIsNotShared() throws Exception {
+        MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet();
+        servlet.destroy();
+        // the first download can not be started, the next request must not wait for it
+        for (int i = 0; i < 2; i++) {
+            Response response = new Response();
+            servlet.doGet(request("/a/b/1/b-1.jar"), response.proxy());
+            Assert.assertEquals(0, response.body.size());
+        }
+    }
+
+    private static File createFile(String content) throws IOException {
+        File file = File.createTempFile("artifact", ".jar");
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static HttpServletRequest request(final Object... headers) {
+        final String pathInfo = headers.length % 2 == 1 ? (String) headers[0] : null;
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = headers.length % 2; i < headers.length; i += 2) {
+            values.put((String) headers[i], headers[i + 1]);
+        }
+        return (HttpServletRequest) Proxy.newProxyInstance(MavenDownloadProxyServletTest.class.getClassLoader(),
+                new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getPathInfo".equals(method.getName())) {
+                    return pathInfo;
+                } else if ("getHeader".equals(method.getName())) {
+                    Object value = values.get(args[0]);
+                    return value != null ? value.toString() : null;
+                } else if ("getDateHeader".equals(method.getName())) {
+                    Object value = values.get(args[0]);
+                    return value != null ? (Long) value : -1L;
+                }
+                return null;
+            }
+        });
+    }
+
+    static class Response {
+        volatile int status;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse proxy() {
+            final ServletOutputStream os = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(MavenDownloadProxyServletTest.class.getClassLoader(),
+                    new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("setStatus".equals(method.getName())) {
+                        status = (Integer) args[0];
+                    } else if ("setHeader".equals(method.getName())) {
+                        headers.put((String) args[0], (String) args[1]);
+                    } else if ("getOutputStream".equals(method.getName())) {
+                        return os;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static void assertRange(long[] range, long start, long end) {
+        Assert.assertEquals(2, range.length);
+        Assert.assertEquals(start, range[0]);
+        Assert.assertEquals(end, range[1]);
+    }
+}
@@ -17,6 +17,7 @@
 package org.fusesource.fabric.zookeeper;
 
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.zookeeper.CreateMode;
@@ -57,6 +58,53 @@ public interface IZKClient extends org.linkedin.zookeeper.client.IZKClient {
 
     void waitForConnected() throws InterruptedException, TimeoutException;
 
+    // Batch methods
+
+    /**
+     * Commits the writes of the given batch, in a single multi operation if the server supports it,
+     * or as pipelined asynchronous calls otherwise.
+     */
+    void commit(ZkBatch batch) throws InterruptedException, KeeperException;
+
+    // Asynchronous methods
+
+    // These calls return as soon as the request is sent, so that many requests can be pipelined
+    // on the connection. They block only when the limit of outstanding requests is reached.
+    //
+    // The results are delivered on the ZooKeeper event thread, which also calls the watchers.
+    // Waiting for a result from that thread, i.e. from a watcher, a callback, or a lifecycle
+    // listener called from one of them, would never return. So would waiting there for the
+    // limit of outstanding requests. Both fail with an IllegalStateException instead, and the
+    // bulk read methods below, which wait for their results, can not be called there either.
+
+    /**
+     * Returns whether the calling thread is the ZooKeeper event thread, on which the results of the
+     * asynchronous calls can not be waited for.
+     */
+    boolean isEventThread();
+
+    ZkFuture<Stat> existsAsync(String path) throws InterruptedException;
+
+    ZkFuture<byte[]> getDataAsync(String path) throws InterruptedException;
+
+    ZkFuture<List<String>> getChildrenAsync(String path) throws InterruptedException;
+
+    ZkFuture<String> createAsync(String path, byte[] data, CreateMode createMode) throws InterruptedException;
+
+    ZkFuture<Stat> setDataAsync(String path, byte[] data) throws InterruptedException;
+
+    // Bulk read methods
+
+    /**
+     * Returns the data of the children of the given node, keyed by child name, fetching them in parallel.
+     */
+    Map<String, byte[]> getChildrenData(String path) throws InterruptedException, KeeperException;
+
+    /**
+     * Returns the data of all the nodes of the given tree, keyed by path, reading one level at a time in parallel.
+     */
+    Map<String, byte[]> getTreeData(String path) throws InterruptedException, KeeperException;
+
     // ACLs methods
 
     void fixACLs(String path, boolean recursive) throws InterruptedException, KeeperException;
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A batch of writes to the registry, committed at once with {@link IZKClient#commit(ZkBatch)}.
+ * <p/>
+ * Writes are sent in a single multi operation when the server supports it, so that
+ * other clients do not observe partial updates and watches fire once per node.
+ */
+public class ZkBatch {
+
+    public static enum Type {
+        /**
+         * Creates the node and its missing parents, failing if the node exists.
+         */
+        CREATE,
+        /**
+         * Creates the node and its missing parents, or sets its data if it exists.
+         */
+        CREATE_OR_SET,
+        /**
+         * Deletes the node and its children, if it exists.
+         */
+        DELETE
+    }
+
+    public static class Operation {
+        private final Type type;
+        private final String path;
+        private final byte[] data;
+
+        Operation(Type type, String path, byte[] data) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    public ZkBatch create(String path) {
+        return create(path, (byte[]) null);
+    }
+
+    public ZkBatch create(String path, String data) {
+        return create(path, toBytes(data));
+    }
+
+    public ZkBatch create(String path, byte[] data) {
+        operations.add(new Operation(Type.CREATE, path, data));
+        return this;
+    }
+
+    public ZkBatch createOrSet(String path, String data) {
+        return createOrSet(path, toBytes(data));
+    }
+
+    public ZkBatch createOrSet(String path, byte[] data) {
+        operations.add(new Operation(Type.CREATE_OR_SET, path, data));
+        return this;
+    }
+
+    public ZkBatch delete(String path) {
+        operations.add(new Operation(Type.DELETE, path, null));
+        return this;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    private static byte[] toBytes(String data) {
+        try {
+            return data != null ? data.getBytes("UTF-8") : null;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
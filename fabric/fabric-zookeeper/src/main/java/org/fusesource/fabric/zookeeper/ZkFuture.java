@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * The pending result of an asynchronous registry call.
+ * <p/>
+ * {@link #await()} is the usual way to wait for the result, as it fails with the
+ * {@link KeeperException} returned by the server rather than wrapping it.
+ * <p/>
+ * The future is completed on the thread which delivers the ZooKeeper events, so waiting
+ * for it from that thread, i.e. from a watcher or an asynchronous callback, would never
+ * return: it fails with an {@link IllegalStateException} instead.
+ */
+public class ZkFuture<T> implements Future<T> {
+
+    private final String path;
+    private final Thread completionThread;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile T value;
+    private volatile KeeperException failure;
+
+    public ZkFuture(String path) {
+        this(path, null);
+    }
+
+    /**
+     * @param completionThread the thread the future will be completed on, which must not wait for it
+     */
+    public ZkFuture(String path, Thread completionThread) {
+        this.path = path;
+        this.completionThread = completionThread;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Completes the future with the given ZooKeeper return code and value.
+     * This is called by the client when the response is received.
+     */
+    public void complete(int rc, T value) {
+        if (latch.getCount() == 0) {
+            return;
+        }
+        if (rc != KeeperException.Code.OK.intValue()) {
+            this.failure = KeeperException.create(KeeperException.Code.get(rc), path);
+        } else {
+            this.value = value;
+        }
+        latch.countDown();
+    }
+
+    public T await() throws InterruptedException, KeeperException {
+        checkThread();
+        latch.await();
+        return result();
+    }
+
+    public T await(long timeout, TimeUnit unit) throws InterruptedException, KeeperException, TimeoutException {
+        checkThread();
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for " + path);
+        }
+        return result();
+    }
+
+    private void checkThread() {
+        if (latch.getCount() != 0 && Thread.currentThread() == completionThread) {
+            throw new IllegalStateException("Waiting for " + path + " from the ZooKeeper event thread, which delivers the result, would deadlock");
+        }
+    }
+
+    private T result() throws KeeperException {
+        if (failure != null) {
+            // the exception is rethrown from the calling thread, so it has to be a new one
+            throw KeeperException.create(failure.code(), path);
+        }
+        return value;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        try {
+            return await();
+        } catch (KeeperException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return await(timeout, unit);
+        } catch (KeeperException e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        // requests already sent to the server can not be withdrawn
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+}
@@ -213,14 +213,16 @@ public enum ZkPath {
             v = ZkDefs.DEFAULT_VERSION;
         }
 
+        ZkBatch batch = new ZkBatch();
         //Set the version
         if (zooKeeper.exists(ZkPath.CONFIG_CONTAINER.getPath(container)) == null || versionProvided) {
-            ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_CONTAINER.getPath(container), v);
+            batch.createOrSet(ZkPath.CONFIG_CONTAINER.getPath(container), v);
         }
 
         //Set the profiles
         if (profiles != null && !profiles.isEmpty() && zooKeeper.exists(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(v, container)) == null) {
-            ZooKeeperUtils.set(zooKeeper, ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(v, container), profiles);
+            batch.createOrSet(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(v, container), profiles);
         }
+        zooKeeper.commit(batch);
     }
 }
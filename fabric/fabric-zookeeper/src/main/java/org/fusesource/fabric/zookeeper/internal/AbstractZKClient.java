@@ -22,24 +22,35 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Id;
 import org.apache.zookeeper.data.Stat;
 import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.ZkBatch;
+import org.fusesource.fabric.zookeeper.ZkFuture;
 import org.linkedin.util.clock.Clock;
 import org.linkedin.util.clock.SystemClock;
 import org.linkedin.util.clock.Timespan;
@@ -49,7 +60,6 @@ import org.linkedin.zookeeper.client.ChrootedZKClient;
 import org.linkedin.zookeeper.client.IZooKeeper;
 import org.linkedin.zookeeper.client.IZooKeeperFactory;
 import org.linkedin.zookeeper.client.LifecycleListener;
-import org.linkedin.zookeeper.client.ZooKeeperFactory;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.ConfigurationException;
 import org.slf4j.Logger;
@@ -58,8 +68,13 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
 
     private static final Logger LOG = org.slf4j.LoggerFactory.getLogger(AbstractZKClient.class.getName());
 
+    public static final int DEFAULT_MAX_OUTSTANDING_REQUESTS = 1000;
+
     private Map<String, String> acls;
     private String password;
+    private volatile Semaphore outstandingRequests = new Semaphore(DEFAULT_MAX_OUTSTANDING_REQUESTS);
+    // the thread of the current session which delivers the watch events and the asynchronous results
+    private volatile Thread eventThread;
 
     public void start() throws Exception {
         // Grab the lock to make sure that the registration of the ManagedService
@@ -80,6 +95,16 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
         this.password = password;
     }
 
+    /**
+     * Sets the maximum number of asynchronous requests waiting for a response.
+     */
+    public void setMaxOutstandingRequests(int maxOutstandingRequests) {
+        if (maxOutstandingRequests <= 0) {
+            throw new IllegalArgumentException("The maximum number of outstanding requests must be positive");
+        }
+        this.outstandingRequests = new Semaphore(maxOutstandingRequests);
+    }
+
     protected abstract void doStart() throws InvalidSyntaxException, ConfigurationException, UnsupportedEncodingException;
 
     @Override
@@ -140,6 +165,7 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
                     return f.get(obj);
                 }
             }
+            clazz = clazz.getSuperclass();
         }
         throw new NoSuchFieldError(name);
     }
@@ -200,6 +226,8 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
     }
 
     public void process(WatchedEvent event) {
+        // the first event of a session is delivered to this watcher before any other
+        eventThread = Thread.currentThread();
         if (event.getState() != null) {
             LOG.debug("event: {}", event.getState());
             synchronized (_lock) {
@@ -322,6 +350,7 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
 
     protected final Object _lock = new Object();
     protected volatile State _state = State.NONE;
+    private volatile boolean multiSupported = true;
 
     private final StateChangeDispatcher _stateChangeDispatcher = new StateChangeDispatcher();
 
@@ -436,7 +465,7 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
      */
     public AbstractZKClient(String connectString, Timespan sessionTimeout, Watcher watcher)
     {
-        this(new ZooKeeperFactory(connectString, sessionTimeout, watcher));
+        this(new FabricZooKeeperFactory(connectString, sessionTimeout, watcher));
     }
 
     /**
@@ -568,6 +597,373 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
         }
     }
 
+    @Override
+    public void commit(ZkBatch batch) throws InterruptedException, KeeperException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // Turn the batch into plain writes, looking up the state of the nodes once
+        List<Write> writes = new ArrayList<Write>();
+        Map<String, Boolean> known = new HashMap<String, Boolean>();
+        Set<String> created = new LinkedHashSet<String>();
+        for (ZkBatch.Operation op : batch.getOperations()) {
+            switch (op.getType()) {
+                case CREATE_OR_SET:
+                    if (exists(op.getPath(), known)) {
+                        writes.add(new Write(ZooDefs.OpCode.setData, adjustPath(op.getPath()), op.getData(), null));
+                        break;
+                    }
+                    // fall through to create the node
+                case CREATE:
+                    addParents(op.getPath(), writes, known, created);
+                    addCreate(op.getPath(), op.getData(), writes, known, created);
+                    break;
+                case DELETE:
+                    addDelete(op.getPath(), writes, known, created);
+                    break;
+            }
+        }
+        int start = 0;
+        while (start < writes.size()) {
+            // Requests are limited in size by the server, so large batches are split
+            int end = start;
+            int bytes = 0;
+            while (end < writes.size() && end - start < MAX_MULTI_OPS
+                    && (end == start || bytes + writes.get(end).size() <= MAX_MULTI_BYTES)) {
+                bytes += writes.get(end).size();
+                end++;
+            }
+            execute(writes.subList(start, end));
+            start = end;
+        }
+    }
+
+    private void execute(List<Write> writes) throws InterruptedException, KeeperException {
+        ZooKeeper zooKeeper = multiSupported ? getZooKeeper() : null;
+        if (zooKeeper != null) {
+            List<Op> ops = new ArrayList<Op>();
+            for (Write write : writes) {
+                ops.add(write.toOp());
+            }
+            try {
+                zooKeeper.multi(ops);
+                return;
+            } catch (KeeperException.UnimplementedException e) {
+                LOG.info("Multi operations are not supported by the ZooKeeper server, using pipelined writes");
+                multiSupported = false;
+            }
+        }
+        // Requests of a session are processed in order, so they can be sent without waiting for each response
+        IZooKeeper zk = getZk();
+        Completion completion = new Completion(writes.size());
+        for (Write write : writes) {
+            switch (write.type) {
+                case ZooDefs.OpCode.create:
+                    zk.create(write.path, write.data, write.acl, CreateMode.PERSISTENT, completion, null);
+                    break;
+                case ZooDefs.OpCode.setData:
+                    zk.setData(write.path, write.data, -1, completion, null);
+                    break;
+                default:
+                    zk.delete(write.path, -1, completion, null);
+                    break;
+            }
+        }
+        completion.await(eventThread);
+    }
+
+    /**
+     * Returns the underlying ZooKeeper connection, which gives access to multi operations,
+     * or null if the connection has been created by another kind of factory.
+     */
+    private ZooKeeper getZooKeeper() {
+        IZooKeeper zk = getZk();
+        return zk instanceof FabricZooKeeper ? ((FabricZooKeeper) zk).getZooKeeper() : null;
+    }
+
+    private boolean exists(String path, Map<String, Boolean> known) throws InterruptedException, KeeperException {
+        Boolean exists = known.get(path);
+        if (exists == null) {
+            exists = getZk().exists(adjustPath(path), false) != null;
+            known.put(path, exists);
+        }
+        return exists;
+    }
+
+    private void addParents(String path, List<Write> writes, Map<String, Boolean> known, Set<String> created) throws InterruptedException, KeeperException {
+        List<String> parents = new ArrayList<String>();
+        String parent = PathUtils.removeTrailingSlash(PathUtils.getParentPath(path));
+        while (!parent.equals("") && !exists(parent, known)) {
+            parents.add(parent);
+            parent = PathUtils.removeTrailingSlash(PathUtils.getParentPath(parent));
+        }
+        Collections.reverse(parents);
+        for (String p : parents) {
+            addCreate(p, null, writes, known, created);
+        }
+    }
+
+    private void addCreate(String path, byte[] data, List<Write> writes, Map<String, Boolean> known, Set<String> created) {
+        writes.add(new Write(ZooDefs.OpCode.create, adjustPath(path), data, getNodeACLs(path)));
+        known.put(path, true);
+        created.add(path);
+    }
+
+    private void addDelete(String path, List<Write> writes, Map<String, Boolean> known, Set<String> created) throws InterruptedException, KeeperException {
+        if (!exists(path, known)) {
+            return;
+        }
+        Set<String> children = new LinkedHashSet<String>();
+        if (!created.contains(path)) {
+            for (String child : getZk().getChildren(adjustPath(path), false)) {
+                children.add(path + "/" + child);
+            }
+        }
+        // nodes created by the batch are not known by the server yet
+        for (String p : created) {
+            if (p.startsWith(path + "/") && p.indexOf('/', path.length() + 1) < 0) {
+                children.add(p);
+            }
+        }
+        for (String child : children) {
+            addDelete(child, writes, known, created);
+        }
+        writes.add(new Write(ZooDefs.OpCode.delete, adjustPath(path), null, null));
+        known.put(path, false);
+        created.remove(path);
+    }
+
+    private static class Write {
+        private final int type;
+        private final String path;
+        private final byte[] data;
+        private final List<ACL> acl;
+
+        Write(int type, String path, byte[] data, List<ACL> acl) {
+            this.type = type;
+            this.path = path;
+            this.data = data;
+            this.acl = acl;
+        }
+
+        Op toOp() {
+            switch (type) {
+                case ZooDefs.OpCode.create:
+                    return Op.create(path, data, acl, CreateMode.PERSISTENT);
+                case ZooDefs.OpCode.setData:
+                    return Op.setData(path, data, -1);
+                default:
+                    return Op.delete(path, -1);
+            }
+        }
+
+        int size() {
+            return path.length() + (data != null ? data.length : 0);
+        }
+    }
+
+    private static class Completion implements AsyncCallback.StringCallback, AsyncCallback.StatCallback, AsyncCallback.VoidCallback {
+        private final CountDownLatch latch;
+        private volatile KeeperException failure;
+
+        Completion(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        public void processResult(int rc, String path, Object ctx, String name) {
+            complete(rc, path);
+        }
+
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            complete(rc, path);
+        }
+
+        public void processResult(int rc, String path, Object ctx) {
+            complete(rc, path);
+        }
+
+        private void complete(int rc, String path) {
+            if (rc != KeeperException.Code.OK.intValue() && failure == null) {
+                failure = KeeperException.create(KeeperException.Code.get(rc), path);
+            }
+            latch.countDown();
+        }
+
+        void await(Thread eventThread) throws InterruptedException, KeeperException {
+            if (latch.getCount() != 0 && Thread.currentThread() == eventThread) {
+                throw new IllegalStateException("Waiting for pipelined writes from the ZooKeeper event thread, which delivers their results, would deadlock");
+            }
+            latch.await();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public boolean isEventThread() {
+        return Thread.currentThread() == eventThread;
+    }
+
+    @Override
+    public ZkFuture<Stat> existsAsync(String path) throws InterruptedException {
+        final Semaphore permits = acquire();
+        final ZkFuture<Stat> future = new ZkFuture<Stat>(path, eventThread);
+        try {
+            getZk().exists(adjustPath(path), false, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String p, Object ctx, Stat stat) {
+                    permits.release();
+                    future.complete(rc == KeeperException.Code.NONODE.intValue() ? KeeperException.Code.OK.intValue() : rc, stat);
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public ZkFuture<byte[]> getDataAsync(String path) throws InterruptedException {
+        final Semaphore permits = acquire();
+        final ZkFuture<byte[]> future = new ZkFuture<byte[]>(path, eventThread);
+        try {
+            getZk().getData(adjustPath(path), false, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String p, Object ctx, byte[] data, Stat stat) {
+                    permits.release();
+                    future.complete(rc, data);
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public ZkFuture<List<String>> getChildrenAsync(String path) throws InterruptedException {
+        final Semaphore permits = acquire();
+        final ZkFuture<List<String>> future = new ZkFuture<List<String>>(path, eventThread);
+        try {
+            getZk().getChildren(adjustPath(path), false, new AsyncCallback.ChildrenCallback() {
+                public void processResult(int rc, String p, Object ctx, List<String> children) {
+                    permits.release();
+                    future.complete(rc, children);
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public ZkFuture<String> createAsync(String path, byte[] data, CreateMode createMode) throws InterruptedException {
+        final Semaphore permits = acquire();
+        final ZkFuture<String> future = new ZkFuture<String>(path, eventThread);
+        try {
+            getZk().create(adjustPath(path), data, getNodeACLs(path), createMode, new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String p, Object ctx, String name) {
+                    permits.release();
+                    future.complete(rc, name);
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public ZkFuture<Stat> setDataAsync(String path, byte[] data) throws InterruptedException {
+        final Semaphore permits = acquire();
+        final ZkFuture<Stat> future = new ZkFuture<Stat>(path, eventThread);
+        try {
+            getZk().setData(adjustPath(path), data, -1, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String p, Object ctx, Stat stat) {
+                    permits.release();
+                    future.complete(rc, stat);
+                }
+            }, null);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Waits until another request can be sent, returning the semaphore the permit has to be released to.
+     */
+    private Semaphore acquire() throws InterruptedException {
+        Semaphore permits = outstandingRequests;
+        if (!permits.tryAcquire()) {
+            // the permits are released by the responses, which are delivered on the event thread
+            if (Thread.currentThread() == eventThread) {
+                throw new IllegalStateException("The limit of outstanding requests is reached, waiting for it from the ZooKeeper event thread would deadlock");
+            }
+            permits.acquire();
+        }
+        return permits;
+    }
+
+    @Override
+    public Map<String, byte[]> getChildrenData(String path) throws InterruptedException, KeeperException {
+        Map<String, ZkFuture<byte[]>> futures = new LinkedHashMap<String, ZkFuture<byte[]>>();
+        for (String child : getChildren(path)) {
+            futures.put(child, getDataAsync(childPath(path, child)));
+        }
+        Map<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, ZkFuture<byte[]>> entry : futures.entrySet()) {
+            try {
+                data.put(entry.getKey(), entry.getValue().await());
+            } catch (KeeperException.NoNodeException e) {
+                // deleted in the meantime
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public Map<String, byte[]> getTreeData(String path) throws InterruptedException, KeeperException {
+        Map<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+        List<String> level = Collections.singletonList(path);
+        while (!level.isEmpty()) {
+            List<ZkFuture<byte[]>> values = new ArrayList<ZkFuture<byte[]>>();
+            List<ZkFuture<List<String>>> children = new ArrayList<ZkFuture<List<String>>>();
+            for (String p : level) {
+                values.add(getDataAsync(p));
+                children.add(getChildrenAsync(p));
+            }
+            List<String> next = new ArrayList<String>();
+            for (int i = 0; i < level.size(); i++) {
+                String p = level.get(i);
+                try {
+                    byte[] value = values.get(i).await();
+                    List<String> names = children.get(i).await();
+                    data.put(p, value);
+                    for (String name : names) {
+                        next.add(childPath(p, name));
+                    }
+                } catch (KeeperException.NoNodeException e) {
+                    if (p.equals(path)) {
+                        throw e;
+                    }
+                    // deleted in the meantime
+                }
+            }
+            level = next;
+        }
+        return data;
+    }
+
+    private static String childPath(String path, String child) {
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
+
     @Override
     public void fixACLs(String path, boolean recursive) throws InterruptedException, KeeperException {
         if (exists(path) != null) {
@@ -602,6 +998,9 @@ public abstract class AbstractZKClient extends org.linkedin.zookeeper.client.Abs
         return acls.get(longestPath);
     }
 
+    private static final int MAX_MULTI_OPS = 1000;
+    private static final int MAX_MULTI_BYTES = 512 * 1024;
+
     private void createParents(String path) throws InterruptedException, KeeperException {
         path = PathUtils.getParentPath(adjustPath(path));
         path = PathUtils.removeTrailingSlash(path);
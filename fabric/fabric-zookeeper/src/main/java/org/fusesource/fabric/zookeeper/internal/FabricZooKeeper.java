@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper.internal;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.linkedin.zookeeper.client.ZooKeeperImpl;
+
+/**
+ * A ZooKeeper connection which gives access to the underlying ZooKeeper handle, for the
+ * operations {@link org.linkedin.zookeeper.client.IZooKeeper} does not expose, such as multi.
+ */
+public class FabricZooKeeper extends ZooKeeperImpl {
+
+    private final ZooKeeper zooKeeper;
+
+    public FabricZooKeeper(ZooKeeper zooKeeper) {
+        super(zooKeeper);
+        this.zooKeeper = zooKeeper;
+    }
+
+    public ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper.internal;
+
+import java.io.IOException;
+
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.linkedin.util.clock.Timespan;
+import org.linkedin.zookeeper.client.IZooKeeper;
+import org.linkedin.zookeeper.client.WatcherChain;
+import org.linkedin.zookeeper.client.ZooKeeperFactory;
+
+/**
+ * Creates {@link FabricZooKeeper} connections.
+ */
+public class FabricZooKeeperFactory extends ZooKeeperFactory {
+
+    public FabricZooKeeperFactory(String connectString, Timespan sessionTimeout, Watcher watcher) {
+        super(connectString, sessionTimeout, watcher);
+    }
+
+    public FabricZooKeeperFactory(String connectString, Timespan sessionTimeout) {
+        super(connectString, sessionTimeout);
+    }
+
+    @Override
+    public IZooKeeper createZooKeeper(Watcher watcher) {
+        try {
+            return new FabricZooKeeper(new ZooKeeper(getConnectString(), (int) getSessionTimeout().getDurationInMilliseconds(),
+                    WatcherChain.createChain(getWatcher(), watcher)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to connect to " + getConnectString(), e);
+        }
+    }
+
+}
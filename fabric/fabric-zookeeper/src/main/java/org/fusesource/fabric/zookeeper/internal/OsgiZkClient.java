@@ -26,7 +26,6 @@ import java.util.Map;
 import org.fusesource.fabric.zookeeper.IZKClient;
 import org.linkedin.util.clock.Timespan;
 import org.linkedin.zookeeper.client.LifecycleListener;
-import org.linkedin.zookeeper.client.ZooKeeperFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
@@ -130,6 +129,9 @@ public class OsgiZkClient extends AbstractZKClient implements ManagedService {
                 if (properties.get("zookeeper.password") != null) {
                     password = (String) properties.get("zookeeper.password");
                 }
+                if (properties.get("zookeeper.max.outstanding.requests") != null) {
+                    setMaxOutstandingRequests(Integer.parseInt(properties.get("zookeeper.max.outstanding.requests").toString()));
+                }
                 for (Enumeration e = properties.keys(); e.hasMoreElements();) {
                     String key = e.nextElement().toString();
                     if (key.startsWith("acls.")) {
@@ -159,7 +161,7 @@ public class OsgiZkClient extends AbstractZKClient implements ManagedService {
                 _factory = null;
             }
             if (url != null) {
-                _factory = new ZooKeeperFactory(url, sessionTimeout, this);
+                _factory = new FabricZooKeeperFactory(url, sessionTimeout, this);
                 tryConnect();
             }
             if (zkClientRegistration != null) {
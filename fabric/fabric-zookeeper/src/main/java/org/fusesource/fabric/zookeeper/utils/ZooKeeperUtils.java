@@ -34,6 +34,7 @@ import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 import org.fusesource.fabric.zookeeper.IZKClient;
+import org.fusesource.fabric.zookeeper.ZkBatch;
 import org.fusesource.fabric.zookeeper.ZkPath;
 import org.linkedin.zookeeper.client.ZKData;
 
@@ -44,26 +45,35 @@ public final class ZooKeeperUtils {
     }
 
     public static void copy(IZKClient source, IZKClient dest, String path) throws InterruptedException, KeeperException {
+        ZkBatch batch = new ZkBatch();
         for (String child : source.getChildren(path)) {
             child = path + "/" + child;
             if (dest.exists(child) == null) {
-                byte[] data  = source.getData(child);
-                set(dest, child, data);
-                copy(source, dest, child);
+                copy(source, child, child, batch);
             }
         }
+        dest.commit(batch);
     }
 
     public static void copy(IZKClient zk, String from, String to) throws InterruptedException, KeeperException {
+        ZkBatch batch = new ZkBatch();
         for (String child : zk.getChildren(from)) {
-            String fromChild = from + "/" + child;
             String toChild = to + "/" + child;
             if (zk.exists(toChild) == null) {
-                byte[] data  = zk.getData(fromChild);
-                set(zk, toChild, data);
-                copy(zk, fromChild, toChild);
+                copy(zk, from + "/" + child, toChild, batch);
             }
         }
+        zk.commit(batch);
+    }
+
+    /**
+     * Adds the creation of a copy of the given tree to the batch.
+     */
+    private static void copy(IZKClient source, String from, String to, ZkBatch batch) throws InterruptedException, KeeperException {
+        batch.create(to, source.getData(from));
+        for (String child : source.getChildren(from)) {
+            copy(source, from + "/" + child, to + "/" + child, batch);
+        }
     }
 
     public static void add(IZKClient zooKeeper, String path, String value) throws InterruptedException, KeeperException {
@@ -122,6 +132,7 @@ public final class ZooKeeperUtils {
     public static void set(IZKClient zooKeeper, String path, byte[] value) throws InterruptedException, KeeperException {
         if(zooKeeper.exists(path) != null) {
             zooKeeper.setByteData(path, value);
+            return;
         }
         try {
             zooKeeper.createWithParents(path, value, CreateMode.PERSISTENT);
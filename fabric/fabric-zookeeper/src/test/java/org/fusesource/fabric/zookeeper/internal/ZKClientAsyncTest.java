@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper.internal;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.fusesource.fabric.zookeeper.ZkFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedin.util.clock.Timespan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZKClientAsyncTest {
+
+    File dataDir;
+    NIOServerCnxnFactory serverFactory;
+    ZKClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File("target/zk-" + System.nanoTime());
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, 2000);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("localhost", 0), 10);
+        serverFactory.startup(server);
+
+        client = new ZKClient("localhost:" + serverFactory.getLocalPort(), Timespan.parse("10s"), null);
+        client.start();
+        client.waitForConnected();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        serverFactory.shutdown();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        client.setMaxOutstandingRequests(2);
+        List<ZkFuture<String>> created = new ArrayList<ZkFuture<String>>();
+        for (int i = 0; i < 50; i++) {
+            created.add(client.createAsync("/node-" + i, ("v" + i).getBytes("UTF-8"), CreateMode.PERSISTENT));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals("/node-" + i, created.get(i).await(10, TimeUnit.SECONDS));
+            assertEquals("v" + i, new String(client.getDataAsync("/node-" + i).await(), "UTF-8"));
+        }
+        assertFalse(client.isEventThread());
+    }
+
+    @Test
+    public void testAwaitFromWatcherFailsFast() throws Exception {
+        client.createWithParents("/watched", CreateMode.PERSISTENT);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        client.getZKByteData("/watched", new Watcher() {
+            public void process(WatchedEvent event) {
+                try {
+                    assertTrue(client.isEventThread());
+                    client.getDataAsync("/watched").await();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+                done.countDown();
+            }
+        });
+        client.setData("/watched", "changed");
+        assertTrue("The watcher is stuck", done.await(10, TimeUnit.SECONDS));
+        assertEquals(IllegalStateException.class, failure.get().getClass());
+    }
+
+    @Test
+    public void testExhaustedPermitsFromWatcherFailFast() throws Exception {
+        client.setMaxOutstandingRequests(1);
+        client.createWithParents("/watched", CreateMode.PERSISTENT);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        client.getZKByteData("/watched", new Watcher() {
+            public void process(WatchedEvent event) {
+                try {
+                    // the response of the first request can not be delivered while the watcher runs
+                    client.getDataAsync("/watched");
+                    client.getDataAsync("/watched");
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+                done.countDown();
+            }
+        });
+        client.setData("/watched", "changed");
+        assertTrue("The watcher is stuck", done.await(10, TimeUnit.SECONDS));
+        assertEquals(IllegalStateException.class, failure.get().getClass());
+        // the permit of the first request is released once its response is delivered
+        assertEquals("changed", new String(client.getDataAsync("/watched").await(10, TimeUnit.SECONDS), "UTF-8"));
+    }
+
+}
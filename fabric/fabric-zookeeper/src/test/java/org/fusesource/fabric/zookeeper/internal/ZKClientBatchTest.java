@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.zookeeper.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.fusesource.fabric.zookeeper.ZkBatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.linkedin.util.clock.Timespan;
+import org.linkedin.zookeeper.client.IZooKeeper;
+import org.linkedin.zookeeper.client.WatcherChain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ZKClientBatchTest {
+
+    File dataDir;
+    NIOServerCnxnFactory serverFactory;
+    ZKClient client;
+    // the number of operations of each multi call
+    final List<Integer> chunks = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        dataDir = new File("target/zk-" + System.nanoTime());
+        ZooKeeperServer server = new ZooKeeperServer(dataDir, dataDir, 2000);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("localhost", 0), 10);
+        serverFactory.startup(server);
+
+        client = new ZKClient(new FabricZooKeeperFactory("localhost:" + serverFactory.getLocalPort(), Timespan.parse("10s")) {
+            @Override
+            public IZooKeeper createZooKeeper(Watcher watcher) {
+                try {
+                    return new FabricZooKeeper(new ZooKeeper(getConnectString(), (int) getSessionTimeout().getDurationInMilliseconds(),
+                            WatcherChain.createChain(getWatcher(), watcher)) {
+                        @Override
+                        public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+                            int count = 0;
+                            for (Op op : ops) {
+                                count++;
+                            }
+                            chunks.add(count);
+                            return super.multi(ops);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        Map<String, String> acls = new HashMap<String, String>();
+        acls.put("/", "world:anyone:acdrw");
+        client.setACLs(acls);
+        client.start();
+        client.waitForConnected();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        serverFactory.shutdown();
+    }
+
+    @Test
+    public void testChunkedByOperations() throws Exception {
+        ZkBatch batch = new ZkBatch();
+        for (int i = 0; i < 2500; i++) {
+            batch.create("/chunks/node-" + i, "v" + i);
+        }
+        client.commit(batch);
+        // the parent is created by the first chunk
+        assertEquals(listOf(1000, 1000, 501), chunks);
+        assertEquals(2500, client.getChildren("/chunks").size());
+        assertEquals("v2499", client.getStringData("/chunks/node-2499"));
+    }
+
+    @Test
+    public void testChunkedBySize() throws Exception {
+        client.createWithParents("/large", CreateMode.PERSISTENT);
+        byte[] data = new byte[200 * 1024];
+        ZkBatch batch = new ZkBatch();
+        for (int i = 0; i < 5; i++) {
+            batch.create("/large/node-" + i, data);
+        }
+        client.commit(batch);
+        // at most 512kb per request
+        assertEquals(listOf(2, 2, 1), chunks);
+        assertEquals(5, client.getChildren("/large").size());
+    }
+
+    @Test
+    public void testChunksAreAtomic() throws Exception {
+        client.createWithParents("/atomic/node-1001", CreateMode.PERSISTENT);
+        ZkBatch batch = new ZkBatch();
+        for (int i = 0; i < 1002; i++) {
+            batch.create("/atomic/node-" + i, "v" + i);
+        }
+        try {
+            client.commit(batch);
+            fail("Expected the existing node to fail the batch");
+        } catch (KeeperException.NodeExistsException e) {
+            // expected
+        }
+        assertEquals(listOf(1000, 2), chunks);
+        // the first chunk has been applied
+        assertNotNull(client.exists("/atomic/node-999"));
+        // none of the operations of the failed chunk has
+        assertNull(client.exists("/atomic/node-1000"));
+        assertEquals(1001, client.getChildren("/atomic").size());
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        List<Integer> list = new ArrayList<Integer>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+}
@@ -107,4 +107,14 @@ public class ExtendedInternalNode implements Node, ElasticRest, StorageService {
     public void store(String type, long timestamp, String jsonData) {
         this.storage.store(type, timestamp, jsonData);
     }
+
+    @Override
+    public void store(String type, long timestamp, byte[] jsonData) {
+        this.storage.store(type, timestamp, jsonData);
+    }
+
+    @Override
+    public void dropped(String type, long timestamp) {
+        this.storage.dropped(type, timestamp);
+    }
 }
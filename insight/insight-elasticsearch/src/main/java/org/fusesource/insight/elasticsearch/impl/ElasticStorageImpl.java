@@ -16,81 +16,353 @@
  */
 package org.fusesource.insight.elasticsearch.impl;
 
-import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.node.Node;
 import org.fusesource.insight.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ElasticStorageImpl implements StorageService, Runnable {
+/**
+ * Indexes the insight events in bulks.
+ * <p/>
+ * Events are buffered in a bounded queue, drained by a configurable number of writer
+ * threads. A bulk is sent when it reaches a number of actions or a size in bytes, or
+ * when its first event has waited for the flush interval. When the queue is full, the
+ * overflow policy decides which events are dropped, or whether the caller waits for some
+ * room, for a bounded time. The dropped events are counted.
+ * The pipeline is configured with the following node settings:
+ * <ul>
+ *     <li>insight.storage.queue.size: the capacity of the queue (10000)</li>
+ *     <li>insight.storage.overflow: drop, block, drop-oldest or drop-type (drop)</li>
+ *     <li>insight.storage.overflow.timeout: how long the caller waits for room in the queue
+ *     before the event is dropped, with the block and drop-type policies (1s)</li>
+ *     <li>insight.storage.overflow.types: the types which can be dropped by the drop-type policy</li>
+ *     <li>insight.storage.writers: the number of writer threads (2)</li>
+ *     <li>insight.storage.bulk.actions: the maximum number of actions of a bulk (1000)</li>
+ *     <li>insight.storage.bulk.size: the maximum size of a bulk (5mb)</li>
+ *     <li>insight.storage.bulk.interval: the maximum time an event waits for its bulk to be sent (1s)</li>
+ *     <li>insight.storage.spool.enabled: whether events are written to a {@link Spool} on disk first (false)</li>
+ *     <li>insight.storage.spool.path: the directory of the spool (spool in the node home)</li>
+ *     <li>insight.storage.spool.segment.size: the size of the spool segments (64mb)</li>
+ *     <li>insight.storage.spool.max.size: the maximum size of the spool (1gb)</li>
+ *     <li>insight.storage.rate.interval: the interval the indexing rate is sampled at (10s)</li>
+ * </ul>
+ * When the spool is enabled, a replay thread indexes the spooled events once the cluster
+ * accepts them, so events survive an outage or a restart of the cluster; the queue is
+ * only used if the spool can not be written.
+ */
+public class ElasticStorageImpl implements StorageService, ElasticStorageImplMBean {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticStorageImpl.class);
 
-    private static final SimpleDateFormat indexFormat = new SimpleDateFormat("yyyy.MM.dd");
+    /**
+     * The errors of the requests which are not retried when replaying the spool
+     */
+    private static final String[] PERMANENT_FAILURES = {
+            "MapperParsingException",
+            "MapperException",
+            "ElasticSearchParseException",
+            "InvalidIndexNameException",
+            "InvalidTypeNameException",
+            "DocumentAlreadyExistsException"
+    };
+
+    public static enum OverflowPolicy {
+        /**
+         * Drops the new events
+         */
+        DROP,
+        /**
+         * Blocks the caller until there is room in the queue, or drops the event after the overflow timeout
+         */
+        BLOCK,
+        /**
+         * Drops the oldest queued events
+         */
+        DROP_OLDEST,
+        /**
+         * Drops events of the configured types, new ones first, and blocks as the block policy if there is none
+         */
+        DROP_TYPE
+    }
 
     private final Node node;
-    private int max = 1000;
-    private Thread thread;
+    private final BlockingQueue<Entry> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long overflowTimeout;
+    private final Set<String> droppableTypes;
+    private final int writers;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long flushInterval;
+    private final long rateInterval;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile Spool spool;
     private volatile boolean running;
-    private BlockingQueue<ActionRequest> queue = new LinkedBlockingQueue<ActionRequest>();
+    private volatile IndexName indexName = new IndexName(0, 0, null);
+    private ObjectName objectName;
+    private ScheduledExecutorService rateSampler;
+
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong producerDropped = new AtomicLong();
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong bulkTime = new AtomicLong();
+    private volatile long lastBulkLatency;
+    private volatile double documentsPerSecond;
+    private long rateTime;
+    private long rateCount;
 
     public ElasticStorageImpl(Node node) {
         this.node = node;
+        Settings settings = node.settings();
+        this.queue = new ArrayBlockingQueue<Entry>(settings.getAsInt("insight.storage.queue.size", 10000));
+        this.overflowPolicy = OverflowPolicy.valueOf(settings.get("insight.storage.overflow", "drop").toUpperCase().replace('-', '_'));
+        this.overflowTimeout = settings.getAsTime("insight.storage.overflow.timeout", TimeValue.timeValueSeconds(1)).millis();
+        this.droppableTypes = new HashSet<String>(Arrays.asList(settings.getAsArray("insight.storage.overflow.types", new String[0])));
+        this.writers = settings.getAsInt("insight.storage.writers", 2);
+        this.maxActions = settings.getAsInt("insight.storage.bulk.actions", 1000);
+        this.maxBytes = settings.getAsBytesSize("insight.storage.bulk.size", new ByteSizeValue(5, ByteSizeUnit.MB)).bytes();
+        this.flushInterval = settings.getAsTime("insight.storage.bulk.interval", TimeValue.timeValueSeconds(1)).millis();
+        this.rateInterval = settings.getAsTime("insight.storage.rate.interval", TimeValue.timeValueSeconds(10)).millis();
+        if (settings.getAsBoolean("insight.storage.spool.enabled", false)) {
+            this.spool = new Spool(
+                    new File(settings.get("insight.storage.spool.path", new File(settings.get("path.home", "."), "spool").getPath())),
+                    (int) Math.min(settings.getAsBytesSize("insight.storage.spool.segment.size", new ByteSizeValue(64, ByteSizeUnit.MB)).bytes(), Integer.MAX_VALUE),
+                    settings.getAsBytesSize("insight.storage.spool.max.size", new ByteSizeValue(1, ByteSizeUnit.GB)).bytes());
+        }
     }
 
     public void init() {
         running = true;
-        thread = new Thread(this, "ElasticStorage");
-        thread.start();
+        for (int i = 0; i < writers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    write();
+                }
+            }, "ElasticStorage-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        if (spool != null) {
+            try {
+                spool.open();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        replay();
+                    }
+                }, "ElasticStorage-replay");
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to open the storage spool, events will only be queued in memory", e);
+                spool = null;
+            }
+        }
+        rateTime = System.currentTimeMillis();
+        rateCount = indexed.get();
+        rateSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ElasticStorage-rate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        rateSampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sampleRate();
+            }
+        }, rateInterval, rateInterval, TimeUnit.MILLISECONDS);
+        try {
+            objectName = new ObjectName("org.fusesource.insight:type=ElasticStorage,name=" + ObjectName.quote(String.valueOf(node.settings().get("name"))));
+            getMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to register the storage mbean", e);
+            objectName = null;
+        }
     }
 
     public void destroy() {
         running = false;
-        if (thread != null) {
+        for (Thread thread : threads) {
             thread.interrupt();
         }
+        threads.clear();
+        if (rateSampler != null) {
+            rateSampler.shutdownNow();
+            rateSampler = null;
+        }
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error closing the storage spool", e);
+            }
+        }
+        if (objectName != null) {
+            try {
+                getMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to unregister the storage mbean", e);
+            }
+            objectName = null;
+        }
     }
 
+    protected MBeanServer getMBeanServer() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
 
     @Override
     public void store(String type, long timestamp, String jsonData) {
-        IndexRequest ir = new IndexRequest()
-                .index("insight-"+ indexFormat.format(new Date(timestamp)))
+        try {
+            store(type, timestamp, jsonData.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void store(String type, long timestamp, byte[] jsonData) {
+        Spool spool = this.spool;
+        if (spool != null) {
+            try {
+                spool.append(type, timestamp, jsonData);
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("Unable to spool event, queuing it in memory", e);
+            }
+        }
+        Entry entry = new Entry(type, createRequest(type, timestamp, jsonData), jsonData.length);
+        if (!queue.offer(entry)) {
+            overflow(entry);
+        }
+    }
+
+    @Override
+    public void dropped(String type, long timestamp) {
+        producerDropped.incrementAndGet();
+    }
+
+    private IndexRequest createRequest(String type, long timestamp, byte[] jsonData) {
+        return new IndexRequest()
+                .index(getIndexName(timestamp))
                 .type(type)
                 .source(jsonData)
                 .create(true);
-        queue.add(ir);
     }
 
-    public void run() {
+    private void overflow(Entry entry) {
+        switch (overflowPolicy) {
+            case DROP:
+                dropped.incrementAndGet();
+                return;
+            case DROP_OLDEST:
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return;
+            case DROP_TYPE:
+                if (droppableTypes.contains(entry.type)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                for (Iterator<Entry> iterator = queue.iterator(); iterator.hasNext();) {
+                    if (droppableTypes.contains(iterator.next().type)) {
+                        iterator.remove();
+                        dropped.incrementAndGet();
+                        if (queue.offer(entry)) {
+                            return;
+                        }
+                    }
+                }
+                break;
+        }
+        try {
+            if (!queue.offer(entry, overflowTimeout, TimeUnit.MILLISECONDS)) {
+                dropped.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void write() {
         while (running) {
             try {
-                ActionRequest req = queue.take();
+                Entry entry = queue.take();
+                long flushTime = System.currentTimeMillis() + flushInterval;
                 // Send data
                 BulkRequest bulk = new BulkRequest();
-                int nb = 0;
-                while (req != null && (nb == 0 || nb < max)) {
-                    bulk.add(req);
-                    nb++;
-                    req = queue.poll();
-                }
-                if (bulk.numberOfActions() > 0) {
-                    BulkResponse rep = node.client().bulk(bulk).actionGet();
-                    for (BulkItemResponse bir : rep.items()) {
-                        if (bir.failed()) {
-                            LOGGER.warn("Error executing request: {}", bir.getFailureMessage());
+                long bytes = 0;
+                while (entry != null) {
+                    bulk.add(entry.request);
+                    bytes += entry.size;
+                    if (bulk.numberOfActions() >= maxActions || bytes >= maxBytes) {
+                        break;
+                    }
+                    entry = queue.poll();
+                    if (entry == null) {
+                        long wait = flushTime - System.currentTimeMillis();
+                        if (wait > 0) {
+                            entry = queue.poll(wait, TimeUnit.MILLISECONDS);
                         }
                     }
                 }
+                BulkResponse rep;
+                try {
+                    rep = send(bulk);
+                } catch (RuntimeException e) {
+                    failed.addAndGet(bulk.numberOfActions());
+                    throw e;
+                }
+                int nbFailed = 0;
+                for (BulkItemResponse bir : rep.items()) {
+                    if (bir.failed()) {
+                        nbFailed++;
+                        LOGGER.warn("Error executing request: {}", bir.getFailureMessage());
+                    }
+                }
+                failed.addAndGet(nbFailed);
+                indexed.addAndGet(bulk.numberOfActions() - nbFailed);
+            } catch (InterruptedException e) {
+                // stopping
             } catch (Exception e) {
                 if (running) {
                     LOGGER.warn("Error while sending requests", e);
@@ -99,4 +371,255 @@ public class ElasticStorageImpl implements StorageService, Runnable {
         }
     }
 
+    /**
+     * Indexes the spooled events, the checkpoint of the spool only moving past a batch once all its
+     * events have been indexed or have failed permanently.
+     */
+    private void replay() {
+        long backoff = 0;
+        while (running) {
+            try {
+                Spool.Batch batch = spool.read(maxActions, maxBytes);
+                if (batch.isEmpty()) {
+                    spool.await(flushInterval);
+                    continue;
+                }
+                if (index(batch.getRecords())) {
+                    spool.commit(batch);
+                }
+                backoff = 0;
+            } catch (InterruptedException e) {
+                // stopping
+            } catch (Exception e) {
+                if (running) {
+                    backoff = backoff(backoff);
+                    LOGGER.warn("Error while replaying spooled events, retrying in " + backoff + " ms", e);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        // stopping
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes the given records, sending again with an increasing delay the ones which have not
+     * been accepted by the cluster, until each one has been indexed or has failed permanently.
+     *
+     * @return true once all the records have been handled, false if the storage has been stopped first
+     */
+    boolean index(List<Spool.Record> records) throws InterruptedException {
+        List<IndexRequest> requests = new ArrayList<IndexRequest>(records.size());
+        for (Spool.Record record : records) {
+            requests.add(createRequest(record.getType(), record.getTimestamp(), record.getData()));
+        }
+        long backoff = 0;
+        while (running) {
+            BulkRequest bulk = new BulkRequest();
+            for (IndexRequest request : requests) {
+                bulk.add(request);
+            }
+            try {
+                BulkResponse rep = send(bulk);
+                List<IndexRequest> retry = new ArrayList<IndexRequest>();
+                BulkItemResponse[] items = rep.items();
+                for (int i = 0; i < items.length; i++) {
+                    if (!items[i].failed()) {
+                        indexed.incrementAndGet();
+                    } else if (isPermanentFailure(items[i].getFailureMessage())) {
+                        failed.incrementAndGet();
+                        LOGGER.warn("Error executing request: {}", items[i].getFailureMessage());
+                    } else {
+                        retry.add(requests.get(i));
+                        LOGGER.debug("Error executing request, retrying it: {}", items[i].getFailureMessage());
+                    }
+                }
+                if (retry.isEmpty()) {
+                    return true;
+                }
+                requests = retry;
+                backoff = backoff(backoff);
+                LOGGER.warn(retry.size() + " spooled events have not been indexed, retrying in " + backoff + " ms");
+            } catch (RuntimeException e) {
+                backoff = backoff(backoff);
+                LOGGER.warn("Error while replaying spooled events, retrying in " + backoff + " ms", e);
+            }
+            Thread.sleep(backoff);
+        }
+        return false;
+    }
+
+    private static long backoff(long backoff) {
+        return Math.min(Math.max(backoff * 2, 1000), 30000);
+    }
+
+    /**
+     * Returns whether a request which failed with the given message would fail again if sent as is,
+     * such as a document which can not be parsed or mapped, rather than because of the state of the cluster.
+     */
+    static boolean isPermanentFailure(String message) {
+        if (message == null) {
+            return false;
+        }
+        for (String error : PERMANENT_FAILURES) {
+            if (message.contains(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BulkResponse send(BulkRequest bulk) {
+        long start = System.currentTimeMillis();
+        BulkResponse rep = execute(bulk);
+        long latency = System.currentTimeMillis() - start;
+        lastBulkLatency = latency;
+        bulkTime.addAndGet(latency);
+        bulks.incrementAndGet();
+        return rep;
+    }
+
+    protected BulkResponse execute(BulkRequest bulk) {
+        return node.client().bulk(bulk).actionGet();
+    }
+
+    /**
+     * Returns the name of the daily index of the given timestamp, the name
+     * of the current day being cached.
+     */
+    private String getIndexName(long timestamp) {
+        IndexName name = indexName;
+        if (timestamp < name.start || timestamp >= name.end) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(timestamp);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            long start = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            long end = calendar.getTimeInMillis();
+            name = new IndexName(start, end, "insight-" + new SimpleDateFormat("yyyy.MM.dd").format(start));
+            // only move forward, late events of a previous day do not evict the current one
+            if (start > indexName.start) {
+                indexName = name;
+            }
+        }
+        return name.name;
+    }
+
+    //
+    // Metrics
+    //
+
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return overflowPolicy.name().toLowerCase().replace('_', '-');
+    }
+
+    @Override
+    public long getSpoolSize() {
+        Spool spool = this.spool;
+        return spool != null ? spool.getPendingBytes() : 0;
+    }
+
+    @Override
+    public long getSpoolDroppedSegments() {
+        Spool spool = this.spool;
+        return spool != null ? spool.getDroppedSegments() : 0;
+    }
+
+    @Override
+    public int getWriters() {
+        return writers;
+    }
+
+    @Override
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getProducerDroppedCount() {
+        return producerDropped.get();
+    }
+
+    @Override
+    public long getBulkCount() {
+        return bulks.get();
+    }
+
+    @Override
+    public long getLastBulkLatency() {
+        return lastBulkLatency;
+    }
+
+    @Override
+    public double getAverageBulkLatency() {
+        long nb = bulks.get();
+        return nb > 0 ? (double) bulkTime.get() / nb : 0;
+    }
+
+    @Override
+    public double getDocumentsPerSecond() {
+        return documentsPerSecond;
+    }
+
+    /**
+     * Computes the indexing rate since the previous sample, so that reading it has no side effect.
+     */
+    private void sampleRate() {
+        long now = System.currentTimeMillis();
+        long count = indexed.get();
+        documentsPerSecond = now > rateTime ? (count - rateCount) * 1000.0 / (now - rateTime) : 0;
+        rateTime = now;
+        rateCount = count;
+    }
+
+    private static class Entry {
+        private final String type;
+        private final IndexRequest request;
+        private final int size;
+
+        private Entry(String type, IndexRequest request, int size) {
+            this.type = type;
+            this.request = request;
+            this.size = size;
+        }
+    }
+
+    private static class IndexName {
+        private final long start;
+        private final long end;
+        private final String name;
+
+        private IndexName(long start, long end, String name) {
+            this.start = start;
+            this.end = end;
+            this.name = name;
+        }
+    }
+
 }
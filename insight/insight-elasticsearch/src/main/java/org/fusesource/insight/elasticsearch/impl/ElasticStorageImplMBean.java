@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.elasticsearch.impl;
+
+/**
+ * Metrics of the indexing pipeline of the insight storage
+ */
+public interface ElasticStorageImplMBean {
+
+    /**
+     * Returns the number of documents waiting to be indexed
+     */
+    int getQueueSize();
+
+    int getQueueCapacity();
+
+    String getOverflowPolicy();
+
+    /**
+     * Returns the number of bytes of spooled events not indexed yet
+     */
+    long getSpoolSize();
+
+    /**
+     * Returns the number of spool segments dropped because the spool was full
+     */
+    long getSpoolDroppedSegments();
+
+    int getWriters();
+
+    /**
+     * Returns the number of documents successfully indexed
+     */
+    long getIndexedCount();
+
+    /**
+     * Returns the number of documents which failed to be indexed
+     */
+    long getFailedCount();
+
+    /**
+     * Returns the number of documents dropped because the queue was full
+     */
+    long getDroppedCount();
+
+    /**
+     * Returns the number of events dropped by their producers before reaching the storage,
+     * because they could not be encoded fast enough
+     */
+    long getProducerDroppedCount();
+
+    long getBulkCount();
+
+    /**
+     * Returns the duration of the last bulk request, in milliseconds
+     */
+    long getLastBulkLatency();
+
+    /**
+     * Returns the average duration of the bulk requests, in milliseconds
+     */
+    double getAverageBulkLatency();
+
+    /**
+     * Returns the indexing rate over the last sampling interval, in documents per second
+     */
+    double getDocumentsPerSecond();
+
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.elasticsearch.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of storage events on the local disk.
+ * <p/>
+ * Events are appended to memory mapped segment files of a fixed size, a new segment being
+ * started when the current one is full and at each start, so that segments are never
+ * appended to after a crash. Only the segment being written is mapped, it is unmapped once
+ * sealed and the sealed segments are read with a file channel, so that they can be deleted
+ * on platforms which do not delete mapped files. Each record is prefixed with its length and checksum, so that
+ * a partially written record ends the segment. The position up to which the events have been
+ * indexed is kept in a checkpoint file, replaced atomically, and segments are deleted once
+ * they have been fully read. When the spool exceeds its maximum size, the oldest segments
+ * are dropped.
+ * <p/>
+ * Records are read in batches from the checkpoint position, and the checkpoint only moves
+ * when a batch is committed, so events are delivered at least once.
+ */
+public class Spool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Spool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int HEADER_SIZE = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+
+    private final TreeSet<Long> segments = new TreeSet<Long>();
+    private Segment writer;
+    private Segment reader;
+    private Position committed;
+    private boolean waiting;
+    private long droppedSegments;
+
+    public Spool(File directory, int segmentSize, long maxSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        committed = readCheckpoint();
+        roll(segments.isEmpty() ? committed.segment + 1 : segments.last() + 1);
+        if (!segments.contains(committed.segment)) {
+            // the segment has been dropped, resume at the start of the next one
+            Long next = segments.ceiling(committed.segment);
+            committed = new Position(next != null ? next : writer.id, 0);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.buffer.force();
+            writer.close();
+            writer = null;
+        }
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        segments.clear();
+    }
+
+    /**
+     * Appends an event to the spool.
+     */
+    public void append(String type, long timestamp, String data) throws IOException {
+        append(type, timestamp, data.getBytes("UTF-8"));
+    }
+
+    /**
+     * Appends an event, already encoded, to the spool.
+     */
+    public void append(String type, long timestamp, byte[] dataBytes) throws IOException {
+        byte[] typeBytes = type.getBytes("UTF-8");
+        ByteBuffer payload = ByteBuffer.allocate(8 + 2 + typeBytes.length + dataBytes.length);
+        payload.putLong(timestamp);
+        payload.putShort((short) typeBytes.length);
+        payload.put(typeBytes);
+        payload.put(dataBytes);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        int length = payload.capacity();
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new IOException("Event of " + length + " bytes does not fit in a spool segment");
+        }
+        synchronized (this) {
+            if (writer == null) {
+                throw new IOException("Spool is closed");
+            }
+            if (writer.limit + HEADER_SIZE + length > segmentSize) {
+                writer.buffer.force();
+                roll(writer.id + 1);
+                retain();
+            }
+            int offset = writer.limit;
+            ByteBuffer buffer = writer.buffer.duplicate();
+            buffer.position(offset + HEADER_SIZE);
+            buffer.put(payload.array());
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            // the length is written last, a record with no length ends the segment
+            buffer.putInt(offset, length);
+            writer.limit = offset + HEADER_SIZE + length;
+            if (waiting) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits for events to be appended, for at most the given time.
+     */
+    public synchronized void await(long timeout) throws InterruptedException {
+        if (writer != null && committed.segment == writer.id && committed.offset >= writer.limit) {
+            waiting = true;
+            try {
+                wait(timeout);
+            } finally {
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * Reads the events following the checkpoint, up to the given number of events and bytes.
+     */
+    public Batch read(int maxRecords, long maxBytes) throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        Position position;
+        synchronized (this) {
+            if (writer == null) {
+                throw new IOException("Spool is closed");
+            }
+            long bytes = 0;
+            long id = committed.segment;
+            int offset = committed.offset;
+            while (payloads.size() < maxRecords && bytes < maxBytes) {
+                Segment segment = segment(id);
+                byte[] payload = segment != null ? segment.read(offset) : null;
+                if (payload != null) {
+                    payloads.add(payload);
+                    offset += HEADER_SIZE + payload.length;
+                    bytes += payload.length;
+                    continue;
+                }
+                Long next = segments.higher(id);
+                if (next == null || id == writer.id) {
+                    break;
+                }
+                // the end of a sealed segment
+                id = next;
+                offset = 0;
+            }
+            position = new Position(id, offset);
+        }
+        List<Record> records = new ArrayList<Record>(payloads.size());
+        for (byte[] payload : payloads) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            long timestamp = buffer.getLong();
+            int typeLength = buffer.getShort() & 0xffff;
+            String type = new String(payload, 10, typeLength, "UTF-8");
+            byte[] data = new byte[payload.length - 10 - typeLength];
+            System.arraycopy(payload, 10 + typeLength, data, 0, data.length);
+            records.add(new Record(type, timestamp, data));
+        }
+        return new Batch(records, position);
+    }
+
+    /**
+     * Moves the checkpoint after the given batch, deleting the segments which have been fully read.
+     */
+    public synchronized void commit(Batch batch) throws IOException {
+        if (writer == null || batch.end.compareTo(committed) <= 0) {
+            return;
+        }
+        committed = batch.end;
+        writeCheckpoint();
+        while (!segments.isEmpty() && segments.first() < committed.segment) {
+            delete(segments.first());
+        }
+    }
+
+    /**
+     * Returns the number of bytes which have not been read yet.
+     */
+    public synchronized long getPendingBytes() {
+        if (writer == null) {
+            return 0;
+        }
+        long segmentsBefore = segments.headSet(writer.id).size() - segments.headSet(committed.segment).size();
+        return segmentsBefore * segmentSize + writer.limit - committed.offset;
+    }
+
+    public synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    private void roll(long id) throws IOException {
+        Segment sealed = writer;
+        writer = new Segment(id, getFile(id), segmentSize, true);
+        segments.add(id);
+        if (sealed != null) {
+            sealed.close();
+        }
+    }
+
+    /**
+     * Drops the oldest segments until the spool fits in its maximum size.
+     */
+    private void retain() throws IOException {
+        while (segments.size() > 1 && (long) segments.size() * segmentSize > maxSize) {
+            long id = segments.first();
+            delete(id);
+            droppedSegments++;
+            if (committed.segment <= id) {
+                committed = new Position(segments.first(), 0);
+                writeCheckpoint();
+            }
+        }
+    }
+
+    private Segment segment(long id) throws IOException {
+        if (writer.id == id) {
+            return writer;
+        }
+        if (reader == null || reader.id != id) {
+            if (reader != null) {
+                reader.close();
+            }
+            reader = segments.contains(id) ? new Segment(id, getFile(id), segmentSize, false) : null;
+        }
+        return reader;
+    }
+
+    private void delete(long id) {
+        segments.remove(id);
+        if (reader != null && reader.id == id) {
+            reader.close();
+            reader = null;
+        }
+        File file = getFile(id);
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Unable to delete spool segment {}", file);
+        }
+    }
+
+    private File getFile(long id) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private Position readCheckpoint() throws IOException {
+        File file = new File(directory, "checkpoint");
+        if (!file.exists()) {
+            return new Position(0, 0);
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return new Position(in.readLong(), in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File file = new File(directory, "checkpoint");
+        File tmp = new File(directory, "checkpoint.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(committed.segment);
+            out.writeInt(committed.offset);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to write spool checkpoint " + file);
+            }
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        // the mapped buffer of the segment being written, null for a sealed segment
+        private final MappedByteBuffer buffer;
+        // the file of a sealed segment, null for the segment being written
+        private final RandomAccessFile file;
+        private volatile int limit;
+
+        private Segment(long id, File file, int size, boolean write) throws IOException {
+            this.id = id;
+            if (write) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    // the mapping remains valid once the file is closed
+                    this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                } finally {
+                    raf.close();
+                }
+                this.file = null;
+                this.limit = 0;
+            } else {
+                this.buffer = null;
+                this.file = new RandomAccessFile(file, "r");
+                this.limit = (int) Math.min(this.file.length(), size);
+            }
+        }
+
+        /**
+         * Returns the payload of the record at the given offset, or null at the end of the segment.
+         */
+        private byte[] read(int offset) throws IOException {
+            int end = limit;
+            if (offset + HEADER_SIZE > end) {
+                return null;
+            }
+            ByteBuffer header = get(offset, HEADER_SIZE);
+            int length = header.getInt(0);
+            if (length <= 0 || offset + HEADER_SIZE + length > end) {
+                return null;
+            }
+            byte[] payload = get(offset + HEADER_SIZE, length).array();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == header.getInt(4) ? payload : null;
+        }
+
+        private ByteBuffer get(int offset, int length) throws IOException {
+            ByteBuffer result = ByteBuffer.allocate(length);
+            if (buffer != null) {
+                ByteBuffer duplicate = buffer.duplicate();
+                duplicate.position(offset);
+                duplicate.limit(offset + length);
+                result.put(duplicate);
+            } else {
+                FileChannel channel = file.getChannel();
+                while (result.hasRemaining()) {
+                    if (channel.read(result, offset + result.position()) < 0) {
+                        throw new IOException("Unexpected end of spool segment " + id);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Releases the file or the mapping of the segment, which must not be used afterwards.
+         */
+        private void close() {
+            if (buffer != null) {
+                unmap(buffer);
+            } else {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error closing spool segment " + id, e);
+                }
+            }
+        }
+
+        /**
+         * Releases the mapping at once instead of when the buffer is garbage collected, as a
+         * mapped file can not be deleted on some platforms.
+         */
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // not supported by this vm, the mapping is released by the garbage collector
+                LOGGER.trace("Unable to unmap spool segment", e);
+            }
+        }
+    }
+
+    private static class Position implements Comparable<Position> {
+        private final long segment;
+        private final int offset;
+
+        private Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public int compareTo(Position other) {
+            if (segment != other.segment) {
+                return segment < other.segment ? -1 : 1;
+            }
+            return offset < other.offset ? -1 : offset > other.offset ? 1 : 0;
+        }
+    }
+
+    public static class Record {
+        private final String type;
+        private final long timestamp;
+        private final byte[] data;
+
+        private Record(String type, long timestamp, byte[] data) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    public static class Batch {
+        private final List<Record> records;
+        private final Position end;
+
+        private Batch(List<Record> records, Position end) {
+            this.records = Collections.unmodifiableList(records);
+            this.end = end;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.elasticsearch.impl;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticStorageImplTest {
+
+    @Test
+    public void testPermanentFailures() {
+        assertTrue(ElasticStorageImpl.isPermanentFailure("MapperParsingException[failed to parse [value]]"));
+        assertFalse(ElasticStorageImpl.isPermanentFailure("UnavailableShardsException[[insight-2013.01.01][0] [2] shardIt, [0] active]"));
+        assertFalse(ElasticStorageImpl.isPermanentFailure(null));
+    }
+
+    @Test
+    public void testPartialBulkFailure() throws Exception {
+        File dir = new File("target/spool-" + System.nanoTime());
+        Spool spool = new Spool(dir, 1024 * 1024, 1024 * 1024);
+        spool.open();
+        for (int i = 0; i < 3; i++) {
+            spool.append("log", i, "{\"i\":" + i + "}");
+        }
+        Spool.Batch batch = spool.read(10, 1024 * 1024);
+
+        final List<Integer> actions = new ArrayList<Integer>();
+        ElasticStorageImpl storage = new ElasticStorageImpl(newNode()) {
+            @Override
+            protected BulkResponse execute(BulkRequest bulk) {
+                actions.add(bulk.numberOfActions());
+                if (actions.size() == 1) {
+                    // the second event is not accepted yet, the third one can not be parsed
+                    return new BulkResponse(new BulkItemResponse[] {
+                            success(0),
+                            failure(1, "UnavailableShardsException[[insight][0] Primary shard is not active]"),
+                            failure(2, "MapperParsingException[failed to parse]")
+                    }, 1);
+                }
+                BulkItemResponse[] items = new BulkItemResponse[bulk.numberOfActions()];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = success(i);
+                }
+                return new BulkResponse(items, 1);
+            }
+        };
+        storage.init();
+        try {
+            assertTrue(storage.index(batch.getRecords()));
+        } finally {
+            storage.destroy();
+        }
+        assertEquals(2, actions.size());
+        assertEquals(3, actions.get(0).intValue());
+        // only the event which failed transiently is sent again
+        assertEquals(1, actions.get(1).intValue());
+        assertEquals(2, storage.getIndexedCount());
+        assertEquals(1, storage.getFailedCount());
+        spool.close();
+    }
+
+    @Test
+    public void testOverflowDropsByDefault() {
+        ElasticStorageImpl storage = new ElasticStorageImpl(newNode("insight.storage.queue.size", "1"));
+        storage.store("log", 0, "{}");
+        long start = System.currentTimeMillis();
+        storage.store("log", 0, "{}");
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, storage.getDroppedCount());
+    }
+
+    @Test
+    public void testBlockingOverflowIsBounded() {
+        ElasticStorageImpl storage = new ElasticStorageImpl(newNode(
+                "insight.storage.queue.size", "1",
+                "insight.storage.overflow", "block",
+                "insight.storage.overflow.timeout", "100ms"));
+        storage.store("log", 0, "{}");
+        long start = System.currentTimeMillis();
+        storage.store("log", 0, "{}");
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, storage.getDroppedCount());
+    }
+
+    @Test
+    public void testRateIsSampledAtFixedInterval() throws Exception {
+        ElasticStorageImpl storage = new ElasticStorageImpl(newNode("insight.storage.rate.interval", "200ms")) {
+            @Override
+            protected BulkResponse execute(BulkRequest bulk) {
+                BulkItemResponse[] items = new BulkItemResponse[bulk.numberOfActions()];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = success(i);
+                }
+                return new BulkResponse(items, 1);
+            }
+        };
+        File dir = new File("target/spool-" + System.nanoTime());
+        Spool spool = new Spool(dir, 1024 * 1024, 1024 * 1024);
+        spool.open();
+        for (int i = 0; i < 10; i++) {
+            spool.append("log", i, "{\"i\":" + i + "}");
+        }
+        storage.init();
+        try {
+            assertEquals(0.0, storage.getDocumentsPerSecond(), 0.0);
+            assertTrue(storage.index(spool.read(10, 1024 * 1024).getRecords()));
+            Thread.sleep(300);
+            double rate = storage.getDocumentsPerSecond();
+            assertTrue(rate > 0);
+            // reading the rate does not reset it
+            assertEquals(rate, storage.getDocumentsPerSecond(), 0.0);
+        } finally {
+            storage.destroy();
+            spool.close();
+        }
+    }
+
+    private static BulkItemResponse success(int id) {
+        return new BulkItemResponse(id, "create", new IndexResponse("insight", "log", String.valueOf(id), 1));
+    }
+
+    private static BulkItemResponse failure(int id, String message) {
+        return new BulkItemResponse(id, "create", new BulkItemResponse.Failure("insight", "log", String.valueOf(id), message));
+    }
+
+    private static Node newNode(String... extra) {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder()
+                .put("name", "test")
+                .put("insight.storage.writers", 0);
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            builder.put(extra[i], extra[i + 1]);
+        }
+        final Settings settings = builder.build();
+        return (Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class[] { Node.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("settings".equals(method.getName())) {
+                    return settings;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.elasticsearch.impl;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolTest {
+
+    private File newDirectory() {
+        return new File("target/spool-" + System.nanoTime());
+    }
+
+    @Test
+    public void testReplayFromCheckpoint() throws Exception {
+        File dir = newDirectory();
+        Spool spool = new Spool(dir, 1024, 1024 * 1024);
+        spool.open();
+        for (int i = 0; i < 100; i++) {
+            spool.append("log", i, "{\"i\":" + i + "}");
+        }
+        assertTrue(dir.list().length > 2);
+
+        Spool.Batch batch = spool.read(30, 1024 * 1024);
+        assertEquals(30, batch.getRecords().size());
+        assertEquals("{\"i\":29}", new String(batch.getRecords().get(29).getData(), "UTF-8"));
+        // not committed, so read again
+        assertEquals(0, spool.read(30, 1024 * 1024).getRecords().get(0).getTimestamp());
+        spool.commit(batch);
+        spool.close();
+
+        spool = new Spool(dir, 1024, 1024 * 1024);
+        spool.open();
+        batch = spool.read(1000, 1024 * 1024);
+        assertEquals(70, batch.getRecords().size());
+        assertEquals(30, batch.getRecords().get(0).getTimestamp());
+        assertEquals("log", batch.getRecords().get(0).getType());
+        spool.commit(batch);
+        assertTrue(spool.read(10, 1024).isEmpty());
+
+        spool.append("metrics", 7, "{}");
+        batch = spool.read(10, 1024);
+        assertEquals(1, batch.getRecords().size());
+        assertEquals("metrics", batch.getRecords().get(0).getType());
+        spool.close();
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        Spool spool = new Spool(newDirectory(), 1024, 4096);
+        spool.open();
+        for (int i = 0; i < 200; i++) {
+            spool.append("log", i, "{\"i\":" + i + "}");
+        }
+        assertTrue(spool.getDroppedSegments() > 0);
+        Spool.Batch batch = spool.read(1000, 1024 * 1024);
+        assertTrue(batch.getRecords().get(0).getTimestamp() > 0);
+        assertEquals(199, batch.getRecords().get(batch.getRecords().size() - 1).getTimestamp());
+        spool.close();
+    }
+
+    @Test
+    public void testCommittedSegmentsAreDeleted() throws Exception {
+        File dir = newDirectory();
+        Spool spool = new Spool(dir, 1024, 1024 * 1024);
+        spool.open();
+        for (int i = 0; i < 100; i++) {
+            spool.append("log", i, "{\"i\":" + i + "}");
+        }
+        Spool.Batch batch = spool.read(50, 1024 * 1024);
+        assertEquals(50, batch.getRecords().size());
+        spool.commit(batch);
+        batch = spool.read(1000, 1024 * 1024);
+        assertEquals(50, batch.getRecords().size());
+        spool.commit(batch);
+        // only the segment being written and the checkpoint remain
+        assertEquals(2, dir.list().length);
+        spool.close();
+    }
+
+}
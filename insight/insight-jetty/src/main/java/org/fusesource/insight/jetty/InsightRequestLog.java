@@ -25,6 +25,8 @@ import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.fusesource.insight.storage.JsonWriter;
+import org.fusesource.insight.storage.StorageEncoder;
 import org.fusesource.insight.storage.StorageService;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -37,8 +39,6 @@ import org.osgi.util.tracker.ServiceTracker;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
-import static org.fusesource.insight.jetty.InsightUtils.formatDate;
-
 public class InsightRequestLog extends AbstractLifeCycle implements RequestLog, ManagedService {
 
     private static final Logger LOG = Log.getLogger(InsightRequestLog.class);
@@ -53,6 +53,28 @@ public class InsightRequestLog extends AbstractLifeCycle implements RequestLog,
     private String type = "jetty";
     private PathMap ignorePathMap;
 
+    private final StorageEncoder<AccessEvent> encoder = new StorageEncoder<AccessEvent>("InsightRequestLog", 10000) {
+        @Override
+        protected void encode(AccessEvent event, JsonWriter writer) throws Exception {
+            writer.startObject()
+                    .field("host", host)
+                    .dateField("timestamp", event.timestamp)
+                    .field("remote", event.remote)
+                    .field("user", event.user)
+                    .field("method", event.method)
+                    .field("uri", event.uri)
+                    .field("protocol", event.protocol)
+                    .field("status", Integer.toString(event.status))
+                    .field("responseLength", Long.toString(event.responseLength))
+                    .endObject();
+        }
+
+        @Override
+        protected void handleError(AccessEvent event, Exception e) {
+            LOG.warn(e);
+        }
+    };
+
     public InsightRequestLog() {
         this.bundleContext = FrameworkUtil.getBundle(getClass()).getBundleContext();
         storage = new ServiceTracker<StorageService, StorageService>(bundleContext, StorageService.class, null);
@@ -64,10 +86,12 @@ public class InsightRequestLog extends AbstractLifeCycle implements RequestLog,
         props.put(Constants.SERVICE_PID, "org.fusesource.insight.jetty");
         this.registration = this.bundleContext.registerService(ManagedService.class, this, props);
         this.storage.open();
+        this.encoder.start();
     }
 
     @Override
     protected void doStop() throws Exception {
+        this.encoder.stop();
         try {
             storage.close();
         } catch (IllegalStateException e) {
@@ -129,19 +153,8 @@ public class InsightRequestLog extends AbstractLifeCycle implements RequestLog,
             if (ignorePathMap != null && ignorePathMap.getMatch(request.getRequestURI()) != null)
                 return;
 
-            String output = "{ " +
-                    "\"host\": \"" + host + "\", " +
-                    "\"timestamp\": \"" + formatDate(request.getTimeStamp()) + "\", " +
-                    "\"remote\": \"" + request.getRemoteAddr() + "\", " +
-                    "\"user\": \"" + (request.getAuthentication() instanceof Authentication.User ? ((Authentication.User)request.getAuthentication()).getUserIdentity().getUserPrincipal().getName() : "") + "\", " +
-                    "\"method\": \"" + request.getMethod() + "\", " +
-                    "\"uri\": \"" + request.getUri().toString() + "\", " +
-                    "\"protocol\": \"" + request.getProtocol() + "\", " +
-                    "\"status\": \"" + response.getStatus() + "\", " +
-                    "\"responseLength\": \"" + response.getContentCount() + "\" " +
-                    " }";
-
-            s.store(type, request.getTimeStamp(), output);
+            // Requests are recycled, so their content is captured before being encoded on another thread
+            encoder.submit(s, type, request.getTimeStamp(), new AccessEvent(request, response));
         }
         catch (Exception e)
         {
@@ -149,4 +162,26 @@ public class InsightRequestLog extends AbstractLifeCycle implements RequestLog,
         }
     }
 
+    private static class AccessEvent {
+        private final long timestamp;
+        private final String remote;
+        private final String user;
+        private final String method;
+        private final String uri;
+        private final String protocol;
+        private final int status;
+        private final long responseLength;
+
+        private AccessEvent(Request request, Response response) {
+            this.timestamp = request.getTimeStamp();
+            this.remote = request.getRemoteAddr();
+            this.user = request.getAuthentication() instanceof Authentication.User ? ((Authentication.User) request.getAuthentication()).getUserIdentity().getUserPrincipal().getName() : "";
+            this.method = request.getMethod();
+            this.uri = request.getUri().toString();
+            this.protocol = request.getProtocol();
+            this.status = response.getStatus();
+            this.responseLength = response.getContentCount();
+        }
+    }
+
 }
@@ -17,6 +17,8 @@
 
 package org.fusesource.insight.log.storage;
 
+import org.fusesource.insight.storage.JsonWriter;
+import org.fusesource.insight.storage.StorageEncoder;
 import org.fusesource.insight.storage.StorageService;
 import org.ops4j.pax.logging.spi.PaxAppender;
 import org.ops4j.pax.logging.spi.PaxLoggingEvent;
@@ -28,8 +30,6 @@ import java.util.Map;
 import java.util.Set;
 
 import static org.fusesource.insight.log.service.support.MavenCoordinates.addMavenCoord;
-import static org.fusesource.insight.log.storage.InsightUtils.formatDate;
-import static org.fusesource.insight.log.storage.InsightUtils.quote;
 
 public class InsightLogAppender implements PaxAppender {
 
@@ -39,6 +39,17 @@ public class InsightLogAppender implements PaxAppender {
     private String type;
     private StorageService storage;
 
+    private final StorageEncoder<LogEvent> encoder = new StorageEncoder<LogEvent>("InsightLogAppender", 10000) {
+        @Override
+        protected void encode(LogEvent event, JsonWriter writer) throws Exception {
+            InsightLogAppender.this.encode(event, writer);
+        }
+
+        @Override
+        protected void handleError(LogEvent event, Exception e) {
+            LOGGER.warn("Error appending log to storage", e);
+        }
+    };
 
     public void setName(String name) {
         this.name = name;
@@ -52,69 +63,85 @@ public class InsightLogAppender implements PaxAppender {
         this.storage = storage;
     }
 
+    public void init() {
+        encoder.start();
+    }
+
+    public void destroy() {
+        encoder.stop();
+    }
+
     public void doAppend(final PaxLoggingEvent paxLoggingEvent) {
         try {
+            Map properties = paxLoggingEvent.getProperties();
 
             // Only store TRACE events which have a trace-id.
             if ( "TRACE".equals(paxLoggingEvent.getLevel().toString().toUpperCase()) &&
-                  !paxLoggingEvent.getProperties().containsKey("trace-id") ) {
+                  !properties.containsKey("trace-id") ) {
                 return;
             }
-            StringBuilder writer = new StringBuilder();
-            writer.append("{ \"host\" : ");
-            quote(name, writer);
-            writer.append(",\n  \"timestamp\" : ");
-            quote(formatDate(paxLoggingEvent.getTimeStamp()), writer);
-            writer.append(",\n  \"level\" : ");
-            quote(paxLoggingEvent.getLevel().toString(), writer);
-            writer.append(",\n  \"logger\" : ");
-            quote(paxLoggingEvent.getLoggerName(), writer);
-            writer.append(",\n  \"thread\" : ");
-            quote(paxLoggingEvent.getThreadName(), writer);
-            writer.append(",\n  \"message\" : ");
-            quote(paxLoggingEvent.getMessage(), writer);
-
-            String[] throwable = paxLoggingEvent.getThrowableStrRep();
-            if( throwable!=null ) {
-                throwable = addMavenCoord(throwable);
-                writer.append(",\n  \"exception\" : [");
-                for (int i = 0; i < throwable.length; i++) {
-                    if(i!=0)
-                        writer.append(", ");
-                    quote(throwable[i], writer);
-                }
-                writer.append("]");
+            // The event is encoded on another thread, so its content is captured now
+            encoder.submit(storage, type, paxLoggingEvent.getTimeStamp(), new LogEvent(paxLoggingEvent, properties));
+        } catch (Exception e) {
+            LOGGER.warn("Error appending log to storage", e);
+        }
+    }
+
+    private void encode(LogEvent event, JsonWriter writer) {
+        writer.startObject()
+                .field("host", name)
+                .dateField("timestamp", event.timestamp)
+                .field("level", event.level)
+                .field("logger", event.logger)
+                .field("thread", event.thread)
+                .field("message", event.message);
+
+        String[] throwable = event.throwable;
+        if( throwable!=null ) {
+            throwable = addMavenCoord(throwable);
+            writer.startArray("exception");
+            for (String line : throwable) {
+                writer.value(line);
             }
+            writer.endArray();
+        }
+
+        writer.startObject("properties");
+        Map<String, String> properties = event.properties;
+        addMavenCoord(properties);
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            writer.field(entry.getKey(), entry.getValue());
+        }
+        writer.endObject();
+        writer.endObject();
+    }
 
-            writer.append(",\n  \"properties\" : { ");
-            boolean first = true;
-            Map<String, String> properties = new HashMap<String, String>();
-            Set<Map.Entry> set = paxLoggingEvent.getProperties().entrySet();
+    private static class LogEvent {
+        private final long timestamp;
+        private final String level;
+        private final String logger;
+        private final String thread;
+        private final String message;
+        private final String[] throwable;
+        private final Map<String, String> properties;
+
+        private LogEvent(PaxLoggingEvent event, Map properties) {
+            this.timestamp = event.getTimeStamp();
+            this.level = event.getLevel().toString();
+            this.logger = event.getLoggerName();
+            this.thread = event.getThreadName();
+            this.message = event.getMessage();
+            this.throwable = event.getThrowableStrRep();
+            // The properties of the event may change once it has been logged
+            this.properties = new HashMap<String, String>();
+            Set<Map.Entry> set = properties.entrySet();
             for (Map.Entry entry : set) {
                 Object key = entry.getKey();
                 Object value = entry.getValue();
                 if (key != null && value != null) {
-                    properties.put(key.toString(), value.toString());
+                    this.properties.put(key.toString(), value.toString());
                 }
             }
-            addMavenCoord(properties);
-
-            for (Object key : properties.keySet()) {
-                if (first) {
-                    first = false;
-                } else {
-                    writer.append(", ");
-                }
-                quote(key.toString(), writer);
-                writer.append(": ");
-                quote(properties.get(key).toString(), writer);
-            }
-            writer.append(" }");
-            writer.append("\n}");
-
-            storage.store(type, paxLoggingEvent.getTimeStamp(), writer.toString());
-        } catch (Exception e) {
-            LOGGER.warn("Error appending log to storage", e);
         }
     }
 
@@ -47,4 +47,20 @@ public class StorageProxy implements StorageService {
         }
     }
 
+    @Override
+    public void store(String type, long timestamp, byte[] jsonData) {
+        StorageService storage = this.tracker.getService();
+        if (storage != null) {
+            storage.store(type, timestamp, jsonData);
+        }
+    }
+
+    @Override
+    public void dropped(String type, long timestamp) {
+        StorageService storage = this.tracker.getService();
+        if (storage != null) {
+            storage.dropped(type, timestamp);
+        }
+    }
+
 }
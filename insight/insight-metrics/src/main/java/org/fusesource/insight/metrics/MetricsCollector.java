@@ -36,7 +36,9 @@ import org.fusesource.insight.metrics.model.QueryResult;
 import org.fusesource.insight.metrics.model.Request;
 import org.fusesource.insight.metrics.model.Server;
 import org.fusesource.insight.metrics.support.JmxUtils;
+import org.fusesource.insight.metrics.support.MBeanIndex;
 import org.fusesource.insight.metrics.support.Renderer;
+import org.fusesource.insight.metrics.support.Rollup;
 import org.fusesource.insight.metrics.support.ScriptUtils;
 import org.fusesource.insight.storage.StorageService;
 import org.osgi.framework.BundleContext;
@@ -54,12 +56,17 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -83,6 +90,8 @@ public class MetricsCollector implements MetricsCollectorMBean {
     public static final String PERIOD = "period";
     public static final String MIN_PERIOD = "minPeriod";
     public static final String REQUESTS = "requests";
+    public static final String ROLLUP = "rollup";
+    public static final String HISTORY = "history";
     public static final String OBJ = "obj";
     public static final String ATTRS = "attrs";
     public static final String OPER = "oper";
@@ -102,6 +111,9 @@ public class MetricsCollector implements MetricsCollectorMBean {
 
     private ScheduledThreadPoolExecutor executor;
     private Map<Query, QueryState> queries = new ConcurrentHashMap<Query, QueryState>();
+    private Map<Long, Task> tasks = new HashMap<Long, Task>();
+    private Map<MBeanServer, MBeanIndex> indexes = new ConcurrentHashMap<MBeanServer, MBeanIndex>();
+    private Map<String, ProfileQueries> profileQueries = new HashMap<String, ProfileQueries>();
     private Renderer renderer = new Renderer();
 
     private ServiceTracker<MBeanServer, MBeanServer> mbeanServer;
@@ -115,18 +127,24 @@ public class MetricsCollector implements MetricsCollectorMBean {
     private int threadPoolSize = 5;
     private String type;
 
+    static class ProfileQueries {
+        byte[] bytes;
+        Set<Query> queries;
+    }
+
     static class QueryState {
-        ScheduledFuture<?> future;
+        Task task;
         Server server;
         Query query;
         QueryResult lastResult;
         boolean lastResultSent;
         long lastSent;
         Map metadata;
+        Rollup rollup;
         ClusteredSingleton<QueryNodeState> lock;
 
         public void close() {
-            future.cancel(false);
+            task.remove(this);
             if (lock != null) {
                 lock.leave();
             }
@@ -193,6 +211,17 @@ public class MetricsCollector implements MetricsCollectorMBean {
         return ScriptUtils.toJson(meta);
     }
 
+    @Override
+    public String getSeries(String query) {
+        for (Map.Entry<Query, QueryState> e : queries.entrySet()) {
+            if (e.getKey().getName().equals(query)) {
+                Rollup rollup = e.getValue().rollup;
+                return ScriptUtils.toJson(rollup != null ? rollup.getSeries() : Collections.emptyList());
+            }
+        }
+        throw new IllegalArgumentException("Unknown query: " + query);
+    }
+
     public void start() throws IOException {
         this.executor = new ScheduledThreadPoolExecutor(threadPoolSize);
         this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
@@ -202,6 +231,13 @@ public class MetricsCollector implements MetricsCollectorMBean {
             @Override
             public MBeanServer addingService(ServiceReference<MBeanServer> reference) {
                 MBeanServer service = bundleContext.getService(reference);
+                MBeanIndex index = new MBeanIndex(service);
+                try {
+                    index.start();
+                    indexes.put(service, index);
+                } catch (Exception e) {
+                    LOG.info("Unable to index mbeans, falling back to querying the mbean server", e);
+                }
                 try {
                     service.registerMBean(MetricsCollector.this, objectName);
                 } catch (Exception e) {
@@ -221,6 +257,10 @@ public class MetricsCollector implements MetricsCollectorMBean {
                 } catch (Exception e) {
                     LOG.info("Unable to unregister metrics collector mbean", e);
                 }
+                MBeanIndex index = indexes.remove(service);
+                if (index != null) {
+                    index.stop();
+                }
                 bundleContext.ungetService(reference);
             }
         });
@@ -287,6 +327,9 @@ public class MetricsCollector implements MetricsCollectorMBean {
                     final QueryState state = new QueryState();
                     state.server = server;
                     state.query = q;
+                    if (q.getRollups().length > 0) {
+                        state.rollup = new Rollup(q.getName(), q.getPeriod(), q.getRollups(), q.getHistory());
+                    }
                     if (q.getMetadata() != null) {
                         state.metadata = parseJson(loadFully(new URL(q.getMetadata())));
                     }
@@ -316,12 +359,22 @@ public class MetricsCollector implements MetricsCollectorMBean {
                         state.lock.join(new QueryNodeState(queryName, containerName, null));
                     }
 
+                    // Queries with the same period are sampled together
                     long delay = q.getPeriod() > 0 ? q.getPeriod() : defaultDelay;
-                    state.future = this.executor.scheduleAtFixedRate(
-                            new Task(state),
-                            Math.round(Math.random() * 1000) + 1,
-                            delay * 1000,
-                            TimeUnit.MILLISECONDS);
+                    synchronized (this) {
+                        Task task = tasks.get(delay);
+                        if (task == null) {
+                            task = new Task(delay, server);
+                            task.future = this.executor.scheduleAtFixedRate(
+                                    task,
+                                    Math.round(Math.random() * 1000) + 1,
+                                    delay * 1000,
+                                    TimeUnit.MILLISECONDS);
+                            tasks.put(delay, task);
+                        }
+                        state.task = task;
+                        task.queries.add(state);
+                    }
                     queries.put(q, state);
                 }
             }
@@ -360,6 +413,17 @@ public class MetricsCollector implements MetricsCollectorMBean {
         Map<String, byte[]> fileConfigurations = profile.getFileConfigurations();
         byte[] bytes = fileConfigurations.get(GRAPH_JSON);
         if (bytes != null && bytes.length > 0) {
+            // Only parse the queries again if the configuration has changed
+            String key = profile.getVersion() + "/" + profile.getId();
+            ProfileQueries cached = profileQueries.get(key);
+            if (cached != null && Arrays.equals(cached.bytes, bytes)) {
+                queries.addAll(cached.queries);
+                for (Profile p : profile.getParents()) {
+                    loadProfile(p, queries);
+                }
+                return;
+            }
+            Set<Query> parsed = new HashSet<Query>();
             try {
                 Map object = new ObjectMapper().readValue(bytes, Map.class);
                 for (Map q : (List<Map>) object.get(QUERIES)) {
@@ -369,6 +433,12 @@ public class MetricsCollector implements MetricsCollectorMBean {
                     String lock = (String) q.get(LOCK);
                     int period = DEFAULT.equals(q.get(PERIOD)) ? defaultDelay : q.get(PERIOD) != null ? ((Number) q.get(PERIOD)).intValue() : defaultDelay;
                     int minPeriod = DEFAULT.equals(q.get(MIN_PERIOD)) ? defaultDelay : q.get(MIN_PERIOD) != null ? ((Number) q.get(MIN_PERIOD)).intValue() : period;
+                    List<?> rollup = (List<?>) q.get(ROLLUP);
+                    int[] rollups = new int[rollup != null ? rollup.size() : 0];
+                    for (int i = 0; i < rollups.length; i++) {
+                        rollups[i] = parseWindow(rollup.get(i));
+                    }
+                    int history = q.get(HISTORY) != null ? ((Number) q.get(HISTORY)).intValue() : Query.DEFAULT_HISTORY;
                     Set<Request> requests = new HashSet<Request>();
                     for (Map mb : (List<Map>) q.get(REQUESTS)) {
                         if (mb.containsKey(ATTRS)) {
@@ -387,8 +457,13 @@ public class MetricsCollector implements MetricsCollectorMBean {
                             throw new IllegalArgumentException("Unknown request " + ScriptUtils.toJson(mb));
                         }
                     }
-                    queries.add(new Query(name, requests, template, metadata, lock, period, minPeriod));
+                    parsed.add(new Query(name, requests, template, metadata, lock, period, minPeriod, rollups, history));
                 }
+                cached = new ProfileQueries();
+                cached.bytes = bytes;
+                cached.queries = parsed;
+                profileQueries.put(key, cached);
+                queries.addAll(parsed);
             } catch (Throwable t) {
                 LOG.warn("Unable to load queries from profile " + profile.getId(), t);
             }
@@ -398,12 +473,52 @@ public class MetricsCollector implements MetricsCollectorMBean {
         }
     }
 
+    /**
+     * Parses a rollup window given either as a number of seconds or
+     * as a number followed by a unit (s, m, h), such as "10s" or "15m".
+     */
+    static int parseWindow(Object window) {
+        if (window instanceof Number) {
+            return ((Number) window).intValue();
+        }
+        String str = window.toString().trim().toLowerCase();
+        int multiplier = 1;
+        if (str.endsWith("s")) {
+            str = str.substring(0, str.length() - 1);
+        } else if (str.endsWith("m")) {
+            multiplier = 60;
+            str = str.substring(0, str.length() - 1);
+        } else if (str.endsWith("h")) {
+            multiplier = 3600;
+            str = str.substring(0, str.length() - 1);
+        }
+        try {
+            return Integer.parseInt(str.trim()) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid rollup window: " + window);
+        }
+    }
+
     class Task implements Runnable {
 
-        private final QueryState query;
+        private final long period;
+        private final Server server;
+        private final List<QueryState> queries = new CopyOnWriteArrayList<QueryState>();
+        private ScheduledFuture<?> future;
+
+        public Task(long period, Server server) {
+            this.period = period;
+            this.server = server;
+        }
 
-        public Task(QueryState query) {
-            this.query = query;
+        public void remove(QueryState query) {
+            synchronized (MetricsCollector.this) {
+                queries.remove(query);
+                if (queries.isEmpty()) {
+                    future.cancel(false);
+                    tasks.remove(period);
+                }
+            }
         }
 
         @Override
@@ -416,31 +531,58 @@ public class MetricsCollector implements MetricsCollectorMBean {
                     return;
                 }
                 // If there's a lock, check we are the master
-                if (query.lock != null && !query.lock.isMaster()) {
+                List<QueryState> states = new ArrayList<QueryState>();
+                List<Query> active = new ArrayList<Query>();
+                for (QueryState query : queries) {
+                    if (query.lock == null || query.lock.isMaster()) {
+                        states.add(query);
+                        active.add(query.query);
+                    }
+                }
+                if (active.isEmpty()) {
                     return;
                 }
-                QueryResult qrs = JmxUtils.execute(query.server, query.query, mbs);
-                boolean forceSend = query.query.getMinPeriod() == query.query.getPeriod() ||
-                        qrs.getTimestamp().getTime() - query.lastSent >= TimeUnit.SECONDS.toMillis(query.query.getMinPeriod());
-                if (!forceSend && query.lastResult != null) {
-                    if (qrs.getResults().equals(query.lastResult.getResults())) {
-                        query.lastResult = qrs;
-                        query.lastResultSent = false;
-                        return;
-                    }
-                    if (!query.lastResultSent) {
-                        renderAndSend(svc, query.lastResult);
+                List<QueryResult> results = JmxUtils.execute(server, active, mbs, indexes.get(mbs));
+                for (int i = 0; i < states.size(); i++) {
+                    try {
+                        process(states.get(i), svc, results.get(i));
+                    } catch (Exception e) {
+                        LOG.debug("Error sending metrics", e);
                     }
                 }
-                query.lastResult = qrs;
-                query.lastResultSent = true;
-                query.lastSent = qrs.getTimestamp().getTime();
-                renderAndSend(svc, qrs);
             } catch (Exception e) {
                 LOG.debug("Error sending metrics", e);
             }
         }
 
+        private void process(QueryState query, StorageService svc, QueryResult qrs) throws Exception {
+            // When rolling up, only send the aggregates of the completed windows
+            if (query.rollup != null) {
+                for (Map<String, Object> doc : query.rollup.add(qrs)) {
+                    svc.store(type + "-" + query.query.getName() + "-rollup",
+                            ((Date) doc.get("timestamp")).getTime(),
+                            ScriptUtils.toJson(doc));
+                }
+                return;
+            }
+            boolean forceSend = query.query.getMinPeriod() == query.query.getPeriod() ||
+                    qrs.getTimestamp().getTime() - query.lastSent >= TimeUnit.SECONDS.toMillis(query.query.getMinPeriod());
+            if (!forceSend && query.lastResult != null) {
+                if (qrs.getResults().equals(query.lastResult.getResults())) {
+                    query.lastResult = qrs;
+                    query.lastResultSent = false;
+                    return;
+                }
+                if (!query.lastResultSent) {
+                    renderAndSend(svc, query.lastResult);
+                }
+            }
+            query.lastResult = qrs;
+            query.lastResultSent = true;
+            query.lastSent = qrs.getTimestamp().getTime();
+            renderAndSend(svc, qrs);
+        }
+
         private void renderAndSend(StorageService svc, QueryResult qrs) throws Exception {
             String output = renderer.render(qrs);
             if (output == null || output.trim().isEmpty()) {
@@ -20,4 +20,10 @@ package org.fusesource.insight.metrics;
 public interface MetricsCollectorMBean {
 
     String getMetrics();
+
+    /**
+     * Returns the recent raw samples of the numeric values of the given query, as json,
+     * only kept for the queries which are rolled up.
+     */
+    String getSeries(String query);
 }
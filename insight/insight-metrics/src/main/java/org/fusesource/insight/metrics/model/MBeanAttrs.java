@@ -16,17 +16,22 @@
  */
 package org.fusesource.insight.metrics.model;
 
+import javax.management.ObjectName;
 import java.util.List;
 
 public class MBeanAttrs extends Request {
 
     protected final String obj;
     protected final List<String> attrs;
+    protected final ObjectName objectName;
+    protected final String[] attrArray;
 
     public MBeanAttrs(String name, String obj, List<String> attrs) {
         super(name);
         this.obj = obj;
         this.attrs = attrs;
+        this.objectName = parseObjectName(obj);
+        this.attrArray = attrs.toArray(new String[attrs.size()]);
     }
 
     @Override
@@ -42,6 +47,14 @@ public class MBeanAttrs extends Request {
         return attrs;
     }
 
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public String[] getAttrArray() {
+        return attrArray;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
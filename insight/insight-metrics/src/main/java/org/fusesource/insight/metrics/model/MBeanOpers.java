@@ -16,6 +16,7 @@
  */
 package org.fusesource.insight.metrics.model;
 
+import javax.management.ObjectName;
 import java.util.List;
 
 public class MBeanOpers extends Request {
@@ -24,6 +25,9 @@ public class MBeanOpers extends Request {
     protected final String oper;
     protected final List<Object> args;
     protected final List<String> sig;
+    protected final ObjectName objectName;
+    protected final Object[] argArray;
+    protected final String[] sigArray;
 
     public MBeanOpers(String name, String obj, String oper, List<Object> args, List<String> sig) {
         super(name);
@@ -31,6 +35,9 @@ public class MBeanOpers extends Request {
         this.oper = oper;
         this.args = args;
         this.sig = sig;
+        this.objectName = parseObjectName(obj);
+        this.argArray = args != null ? args.toArray(new Object[args.size()]) : new Object[0];
+        this.sigArray = sig != null ? sig.toArray(new String[sig.size()]) : new String[0];
     }
 
     @Override
@@ -54,6 +61,18 @@ public class MBeanOpers extends Request {
         return sig;
     }
 
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public Object[] getArgArray() {
+        return argArray;
+    }
+
+    public String[] getSigArray() {
+        return sigArray;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -16,10 +16,13 @@
  */
 package org.fusesource.insight.metrics.model;
 
+import java.util.Arrays;
 import java.util.Set;
 
 public class Query {
 
+    public static final int DEFAULT_HISTORY = 120;
+
     private final String name;
     private final Set<Request> requests;
     private final String template;
@@ -27,8 +30,19 @@ public class Query {
     private final int period;
     private final int minPeriod;
     private final String lock;
+    private final int[] rollups;
+    private final int history;
 
     public Query(String name, Set<Request> requests, String template, String metadata, String lock, int period, int minPeriod) {
+        this(name, requests, template, metadata, lock, period, minPeriod, new int[0], DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param rollups the lengths in seconds of the windows the results are aggregated over
+     *                before being sent, or an empty array to send each rendered result
+     * @param history the number of raw samples kept for each metric
+     */
+    public Query(String name, Set<Request> requests, String template, String metadata, String lock, int period, int minPeriod, int[] rollups, int history) {
         this.name = name;
         this.requests = requests;
         this.template = template;
@@ -36,6 +50,8 @@ public class Query {
         this.period = period;
         this.minPeriod = minPeriod;
         this.lock = lock;
+        this.rollups = rollups;
+        this.history = history;
     }
 
     public String getName() {
@@ -66,6 +82,14 @@ public class Query {
         return lock;
     }
 
+    public int[] getRollups() {
+        return rollups;
+    }
+
+    public int getHistory() {
+        return history;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -75,6 +99,8 @@ public class Query {
 
         if (period != query.period) return false;
         if (minPeriod != query.minPeriod) return false;
+        if (history != query.history) return false;
+        if (!Arrays.equals(rollups, query.rollups)) return false;
         if (requests != null ? !requests.equals(query.requests) : query.requests != null) return false;
         if (name != null ? !name.equals(query.name) : query.name != null) return false;
         if (template != null ? !template.equals(query.template) : query.template != null) return false;
@@ -91,6 +117,7 @@ public class Query {
         result = 31 * result + (template != null ? template.hashCode() : 0);
         result = 31 * result + (metadata != null ? metadata.hashCode() : 0);
         result = 31 * result + period;
+        result = 31 * result + Arrays.hashCode(rollups);
         return result;
     }
 }
@@ -16,6 +16,9 @@
  */
 package org.fusesource.insight.metrics.model;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 public abstract class Request {
 
     protected final String name;
@@ -30,4 +33,12 @@ public abstract class Request {
 
     public abstract String getType();
 
+    protected static ObjectName parseObjectName(String obj) {
+        try {
+            return new ObjectName(obj);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid object name: " + obj, e);
+        }
+    }
+
 }
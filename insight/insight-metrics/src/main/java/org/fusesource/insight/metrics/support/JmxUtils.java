@@ -30,13 +30,16 @@ import org.fusesource.insight.metrics.model.Server;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.JMException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
-import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeData;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,62 +47,130 @@ import java.util.Set;
 public class JmxUtils {
 
     public static QueryResult execute(Server server, Query query, MBeanServer mbs) throws JMException {
-        // Iterate through queries
-        Map<String, Result<?>> queryResults = new HashMap<String, Result<?>>();
-        for (Request request : query.getRequests()) {
-            queryResults.put(request.getName(), execute(server, request, mbs));
-        }
-        return new QueryResult(server, query, new Date(), queryResults);
+        return execute(server, Collections.singletonList(query), mbs, null).get(0);
     }
 
-    private static Result execute(Server server, Request request, MBeanServer mbs) throws JMException {
-        if (request instanceof MBeanAttrs) {
-            return execute(server, ((MBeanAttrs) request), mbs);
-        } else if (request instanceof MBeanOpers) {
-            return execute(server, ((MBeanOpers) request), mbs);
-        } else {
-            throw new IllegalArgumentException("Unsupported request " + request);
+    /**
+     * Executes several queries at once.  The attributes requested on a given mbean
+     * by all the queries are retrieved using a single <code>getAttributes</code> call.
+     *
+     * @param index the index used to resolve the object names, or <code>null</code>
+     *              to query the mbean server directly
+     */
+    public static List<QueryResult> execute(Server server, List<Query> queries, MBeanServer mbs, MBeanIndex index) throws JMException {
+        // Resolve the mbeans and gather the attributes needed from each of them
+        Map<MBeanAttrs, Set<ObjectName>> resolved = new HashMap<MBeanAttrs, Set<ObjectName>>();
+        Map<ObjectName, Set<String>> attributes = new HashMap<ObjectName, Set<String>>();
+        for (Query query : queries) {
+            for (Request request : query.getRequests()) {
+                if (request instanceof MBeanAttrs && !resolved.containsKey(request)) {
+                    MBeanAttrs attrs = (MBeanAttrs) request;
+                    Set<ObjectName> mbeans = queryNames(attrs.getObjectName(), mbs, index);
+                    resolved.put(attrs, mbeans);
+                    for (ObjectName mbean : mbeans) {
+                        Set<String> names = attributes.get(mbean);
+                        if (names == null) {
+                            names = new LinkedHashSet<String>();
+                            attributes.put(mbean, names);
+                        }
+                        Collections.addAll(names, attrs.getAttrArray());
+                    }
+                }
+            }
+        }
+        // Retrieve the attributes
+        Map<ObjectName, Map<String, Object>> values = new HashMap<ObjectName, Map<String, Object>>();
+        for (Map.Entry<ObjectName, Set<String>> entry : attributes.entrySet()) {
+            ObjectName mbean = entry.getKey();
+            Set<String> names = entry.getValue();
+            try {
+                AttributeList al = mbs.getAttributes(mbean, names.toArray(new String[names.size()]));
+                Map<String, Object> map = new HashMap<String, Object>();
+                for (Attribute attribute : al.asList()) {
+                    map.put(attribute.getName(), getJmxValue(attribute.getValue()));
+                }
+                values.put(mbean, map);
+            } catch (InstanceNotFoundException e) {
+                // The mbean has just been unregistered
+                if (index != null) {
+                    index.removed(mbean);
+                }
+            }
         }
+        // Dispatch the values to the queries
+        List<QueryResult> results = new ArrayList<QueryResult>(queries.size());
+        for (Query query : queries) {
+            Map<String, Result<?>> queryResults = new HashMap<String, Result<?>>();
+            for (Request request : query.getRequests()) {
+                if (request instanceof MBeanAttrs) {
+                    MBeanAttrs attrs = (MBeanAttrs) request;
+                    List<MBeanAttrResult> attrResults = new ArrayList<MBeanAttrResult>();
+                    for (ObjectName mbean : resolved.get(attrs)) {
+                        Map<String, Object> all = values.get(mbean);
+                        if (all != null) {
+                            Map<String, Object> map = new HashMap<String, Object>();
+                            for (String attr : attrs.getAttrArray()) {
+                                if (all.containsKey(attr)) {
+                                    map.put(attr, all.get(attr));
+                                }
+                            }
+                            attrResults.add(new MBeanAttrResult(mbean, map));
+                        }
+                    }
+                    queryResults.put(request.getName(), new MBeanAttrsResult(attrs, attrResults));
+                } else if (request instanceof MBeanOpers) {
+                    queryResults.put(request.getName(), execute(server, (MBeanOpers) request, mbs, index));
+                } else {
+                    throw new IllegalArgumentException("Unsupported request " + request);
+                }
+            }
+            results.add(new QueryResult(server, query, new Date(), queryResults));
+        }
+        return results;
     }
 
     public static MBeanOpersResult execute(Server server, MBeanOpers request, MBeanServer mbs) throws JMException {
+        return execute(server, request, mbs, null);
+    }
+
+    public static MBeanOpersResult execute(Server server, MBeanOpers request, MBeanServer mbs, MBeanIndex index) throws JMException {
         List<MBeanOperResult> results = new ArrayList<MBeanOperResult>();
         // Get all mbeans
-        Set<ObjectName> mbeans = mbs.queryNames(new ObjectName(request.getObj()), null);
+        Set<ObjectName> mbeans = queryNames(request.getObjectName(), mbs, index);
         for (ObjectName mbean : mbeans) {
             // Invoke operation
-            List<Object> args = request.getArgs();
-            List<String> sig = request.getSig();
-            Object value = mbs.invoke(mbean, request.getOper(),
-                    args.toArray(new Object[args.size()]), sig.toArray(new String[sig.size()]));
-            results.add(new MBeanOperResult(mbean, getJmxValue(value)));
+            try {
+                Object value = mbs.invoke(mbean, request.getOper(), request.getArgArray(), request.getSigArray());
+                results.add(new MBeanOperResult(mbean, getJmxValue(value)));
+            } catch (InstanceNotFoundException e) {
+                // The mbean has just been unregistered
+                if (index != null) {
+                    index.removed(mbean);
+                }
+            }
         }
         return new MBeanOpersResult(request, results);
     }
 
     public static MBeanAttrsResult execute(Server server, MBeanAttrs request, MBeanServer mbs) throws JMException {
-        List<MBeanAttrResult> results = new ArrayList<MBeanAttrResult>();
-        // Get all mbeans
-        Set<ObjectName> mbeans = mbs.queryNames(new ObjectName(request.getObj()), null);
-        for (ObjectName mbean : mbeans) {
-            // Get list of attributes to query
-            List<String> attrs = request.getAttrs();
-            AttributeList al = mbs.getAttributes(mbean, attrs.toArray(new String[attrs.size()]));
-            Map<String, Object> values = new HashMap<String, Object>();
-            for (Attribute attribute : al.asList()) {
-                values.put(attribute.getName(), getJmxValue(attribute.getValue()));
-            }
-            results.add(new MBeanAttrResult(mbean, values));
+        Query query = new Query(null, Collections.<Request>singleton(request), null, null, null, 0, 0);
+        return (MBeanAttrsResult) execute(server, query, mbs).getResults().get(request.getName());
+    }
+
+    private static Set<ObjectName> queryNames(ObjectName name, MBeanServer mbs, MBeanIndex index) {
+        if (index != null) {
+            return index.queryNames(name);
         }
-        return new MBeanAttrsResult(request, results);
+        return mbs.queryNames(name, null);
     }
 
     private static Object getJmxValue(Object value) {
-        if (value instanceof CompositeDataSupport) {
-            CompositeDataSupport cds = (CompositeDataSupport) value;
-            Map<String, Object> map = new HashMap<String, Object>();
-            for (String key : cds.getCompositeType().keySet()) {
-                map.put(key, getJmxValue(cds.get(key)));
+        if (value instanceof CompositeData) {
+            CompositeData cd = (CompositeData) value;
+            Set<String> keys = cd.getCompositeType().keySet();
+            Map<String, Object> map = new HashMap<String, Object>(keys.size() * 4 / 3 + 1);
+            for (String key : keys) {
+                map.put(key, getJmxValue(cd.get(key)));
             }
             value = map;
         }
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.metrics.support;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the mbeans registered in an MBeanServer, maintained from the
+ * registration notifications sent by the server delegate.
+ *
+ * The names matching a pattern are computed once, the first time the
+ * pattern is queried, and then updated incrementally when mbeans are
+ * registered or unregistered, so that resolving the queries does not
+ * require walking the whole registry on each execution.
+ */
+public class MBeanIndex implements NotificationListener {
+
+    private final MBeanServer mbeanServer;
+    private final Set<ObjectName> names = newSet();
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> matches = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+
+    public MBeanIndex(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    public MBeanServer getMBeanServer() {
+        return mbeanServer;
+    }
+
+    public void start() throws JMException {
+        // Listen before populating so that no registration is missed
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        names.addAll(mbeanServer.queryNames(null, null));
+    }
+
+    public void stop() {
+        try {
+            mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (InstanceNotFoundException e) {
+            // Ignore
+        } catch (ListenerNotFoundException e) {
+            // Ignore
+        }
+        names.clear();
+        matches.clear();
+    }
+
+    /**
+     * Returns the names of the registered mbeans matching the given name or pattern.
+     * The returned set is live and must not be modified.
+     */
+    public Set<ObjectName> queryNames(ObjectName pattern) {
+        if (!pattern.isPattern()) {
+            return names.contains(pattern) ? Collections.singleton(pattern) : Collections.<ObjectName>emptySet();
+        }
+        Set<ObjectName> set = matches.get(pattern);
+        if (set == null) {
+            // Fill the set before publishing it, so that no caller sees it partially filled
+            set = newSet();
+            match(pattern, set);
+            Set<ObjectName> old = matches.putIfAbsent(pattern, set);
+            if (old != null) {
+                return old;
+            }
+            // Catch up with the mbeans registered or unregistered while filling
+            match(pattern, set);
+            set.retainAll(names);
+        }
+        return set;
+    }
+
+    private void match(ObjectName pattern, Set<ObjectName> set) {
+        for (ObjectName name : names) {
+            if (pattern.apply(name)) {
+                set.add(name);
+            }
+        }
+    }
+
+    /**
+     * Forgets about the given mbean, which has been found to be unregistered
+     * while its notification may not have been processed yet.
+     */
+    public void removed(ObjectName name) {
+        names.remove(name);
+        for (Set<ObjectName> set : matches.values()) {
+            set.remove(name);
+        }
+    }
+
+    protected void added(ObjectName name) {
+        names.add(name);
+        for (Map.Entry<ObjectName, Set<ObjectName>> entry : matches.entrySet()) {
+            if (entry.getKey().apply(name)) {
+                entry.getValue().add(name);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification) {
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                added(name);
+            } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                removed(name);
+            }
+        }
+    }
+
+    private static Set<ObjectName> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+    }
+
+}
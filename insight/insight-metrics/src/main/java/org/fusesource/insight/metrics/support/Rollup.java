@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.metrics.support;
+
+import org.fusesource.insight.metrics.model.MBeanAttrResult;
+import org.fusesource.insight.metrics.model.MBeanAttrsResult;
+import org.fusesource.insight.metrics.model.MBeanOperResult;
+import org.fusesource.insight.metrics.model.MBeanOpersResult;
+import org.fusesource.insight.metrics.model.QueryResult;
+import org.fusesource.insight.metrics.model.Result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps the recent numeric values of a query's results and aggregates them
+ * over fixed windows, so that only one document per window has to be stored
+ * instead of one per execution.
+ *
+ * Each numeric attribute (nested composite values are flattened using dots)
+ * is a metric holding a ring buffer of its last raw samples and, for each window,
+ * the count, min, max and sum of the values seen along with a bounded uniform
+ * sample used to estimate percentiles.  Windows are aligned on multiples of
+ * their length since the epoch, so that all containers roll up the same intervals.
+ */
+public class Rollup {
+
+    /**
+     * Maximum number of values kept per metric and window to compute percentiles
+     */
+    public static final int RESERVOIR_SIZE = 1024;
+
+    private final String query;
+    private final int[] windows;
+    private final long[] starts;
+    private final int history;
+    private final long expiry;
+    private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+    private final Random random = new Random();
+
+    /**
+     * @param query   the name of the query, added to the documents
+     * @param period  the period in seconds of the query
+     * @param windows the lengths in seconds of the windows
+     * @param history the number of raw samples to keep for each metric
+     */
+    public Rollup(String query, int period, int[] windows, int history) {
+        this.query = query;
+        this.windows = windows;
+        this.starts = new long[windows.length];
+        Arrays.fill(this.starts, Long.MIN_VALUE);
+        this.history = Math.max(1, history);
+        long longest = period;
+        for (int window : windows) {
+            if (window <= 0) {
+                throw new IllegalArgumentException("Invalid rollup window: " + window);
+            }
+            longest = Math.max(longest, window);
+        }
+        // Forget about metrics (i.e. unregistered mbeans) which have not been
+        // seen for a few windows
+        this.expiry = 3 * longest * 1000L;
+    }
+
+    /**
+     * Records the values of the given result.
+     *
+     * @return the documents for the windows which were completed by this result
+     */
+    public synchronized List<Map<String, Object>> add(QueryResult result) {
+        long ts = result.getTimestamp().getTime();
+        List<Map<String, Object>> docs = new ArrayList<Map<String, Object>>();
+        for (int w = 0; w < windows.length; w++) {
+            long length = windows[w] * 1000L;
+            long start = ts - ts % length;
+            if (start != starts[w]) {
+                // Do not emit anything if the clock went backward
+                if (starts[w] != Long.MIN_VALUE && start > starts[w]) {
+                    Map<String, Object> doc = document(result, w);
+                    if (doc != null) {
+                        docs.add(doc);
+                    }
+                }
+                for (Metric metric : metrics.values()) {
+                    metric.aggregates[w].reset();
+                }
+                starts[w] = start;
+            }
+        }
+        for (Iterator<Metric> it = metrics.values().iterator(); it.hasNext();) {
+            if (it.next().series.last() < ts - expiry) {
+                it.remove();
+            }
+        }
+        for (Map.Entry<String, Result<?>> entry : result.getResults().entrySet()) {
+            String request = entry.getKey();
+            Result<?> r = entry.getValue();
+            if (r instanceof MBeanAttrsResult) {
+                for (MBeanAttrResult attrs : ((MBeanAttrsResult) r).getResults()) {
+                    String name = attrs.getObjectName().toString();
+                    for (Map.Entry<String, Object> attr : attrs.getAttrs().entrySet()) {
+                        record(request, name, attr.getKey(), attr.getValue(), ts);
+                    }
+                }
+            } else if (r instanceof MBeanOpersResult) {
+                for (MBeanOperResult oper : ((MBeanOpersResult) r).getResults()) {
+                    record(request, oper.getObjectName().toString(), null, oper.getValue(), ts);
+                }
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Returns the raw samples of all the metrics, as a list of
+     * <code>{request, name, attr, samples: [[timestamp, value], ...]}</code> maps.
+     */
+    public synchronized List<Map<String, Object>> getSeries() {
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for (Metric metric : metrics.values()) {
+            Map<String, Object> map = metric.describe();
+            map.put("samples", metric.series.toList());
+            list.add(map);
+        }
+        return list;
+    }
+
+    private void record(String request, String name, String attr, Object value, long ts) {
+        if (value instanceof Number) {
+            String key = request + "|" + name + "|" + attr;
+            Metric metric = metrics.get(key);
+            if (metric == null) {
+                metric = new Metric(request, name, attr);
+                metrics.put(key, metric);
+            }
+            metric.add(ts, ((Number) value).doubleValue());
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                String sub = attr != null ? attr + "." + e.getKey() : String.valueOf(e.getKey());
+                record(request, name, sub, e.getValue(), ts);
+            }
+        }
+    }
+
+    private Map<String, Object> document(QueryResult result, int w) {
+        List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+        for (Metric metric : metrics.values()) {
+            Aggregate aggregate = metric.aggregates[w];
+            if (aggregate.count > 0) {
+                Map<String, Object> map = metric.describe();
+                aggregate.describe(map);
+                values.add(map);
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> doc = new LinkedHashMap<String, Object>();
+        doc.put("host", result.getServer().getName());
+        doc.put("query", query);
+        doc.put("timestamp", new Date(starts[w]));
+        doc.put("window", windows[w]);
+        doc.put("metrics", values);
+        return doc;
+    }
+
+    class Metric {
+        final String request;
+        final String name;
+        final String attr;
+        final Series series;
+        final Aggregate[] aggregates;
+
+        Metric(String request, String name, String attr) {
+            this.request = request;
+            this.name = name;
+            this.attr = attr;
+            this.series = new Series(history);
+            this.aggregates = new Aggregate[windows.length];
+            for (int i = 0; i < aggregates.length; i++) {
+                aggregates[i] = new Aggregate();
+            }
+        }
+
+        void add(long ts, double value) {
+            series.add(ts, value);
+            for (Aggregate aggregate : aggregates) {
+                aggregate.add(value);
+            }
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("request", request);
+            map.put("name", name);
+            if (attr != null) {
+                map.put("attr", attr);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Ring buffer of the last raw samples
+     */
+    static class Series {
+        private final long[] timestamps;
+        private final double[] values;
+        private int next;
+        private int size;
+
+        Series(int capacity) {
+            this.timestamps = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        void add(long ts, double value) {
+            timestamps[next] = ts;
+            values[next] = value;
+            next = (next + 1) % timestamps.length;
+            size = Math.min(size + 1, timestamps.length);
+        }
+
+        long last() {
+            return size > 0 ? timestamps[(next + timestamps.length - 1) % timestamps.length] : Long.MAX_VALUE;
+        }
+
+        List<Object[]> toList() {
+            List<Object[]> list = new ArrayList<Object[]>(size);
+            for (int i = 0; i < size; i++) {
+                int idx = (next - size + i + timestamps.length) % timestamps.length;
+                list.add(new Object[] { timestamps[idx], values[idx] });
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Aggregated values of a metric over a window
+     */
+    class Aggregate {
+        long count;
+        double min;
+        double max;
+        double sum;
+        double[] reservoir = new double[16];
+
+        void reset() {
+            count = 0;
+            sum = 0;
+        }
+
+        void add(double value) {
+            if (count == 0) {
+                min = max = value;
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            sum += value;
+            count++;
+            // Algorithm R: once full, the n-th value replaces a random slot with probability size/n
+            if (count <= RESERVOIR_SIZE) {
+                if (count > reservoir.length) {
+                    reservoir = Arrays.copyOf(reservoir, Math.min(reservoir.length * 2, RESERVOIR_SIZE));
+                }
+                reservoir[(int) count - 1] = value;
+            } else {
+                long slot = (long) (random.nextDouble() * count);
+                if (slot < RESERVOIR_SIZE) {
+                    reservoir[(int) slot] = value;
+                }
+            }
+        }
+
+        void describe(Map<String, Object> map) {
+            int n = (int) Math.min(count, RESERVOIR_SIZE);
+            double[] sorted = Arrays.copyOf(reservoir, n);
+            Arrays.sort(sorted);
+            map.put("count", count);
+            map.put("min", min);
+            map.put("max", max);
+            map.put("avg", sum / count);
+            map.put("p50", percentile(sorted, 0.50));
+            map.put("p90", percentile(sorted, 0.90));
+            map.put("p99", percentile(sorted, 0.99));
+        }
+
+        private double percentile(double[] sorted, double p) {
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+}
@@ -17,23 +17,31 @@
 package org.fusesource.insight.metrics;
 
 import org.codehaus.jackson.map.ObjectMapper;
+import org.fusesource.insight.metrics.model.MBeanAttrResult;
 import org.fusesource.insight.metrics.model.MBeanAttrs;
+import org.fusesource.insight.metrics.model.MBeanAttrsResult;
 import org.fusesource.insight.metrics.model.MBeanOpers;
 import org.fusesource.insight.metrics.model.Query;
 import org.fusesource.insight.metrics.model.QueryResult;
 import org.fusesource.insight.metrics.model.Request;
 import org.fusesource.insight.metrics.model.Server;
 import org.fusesource.insight.metrics.support.JmxUtils;
+import org.fusesource.insight.metrics.support.MBeanIndex;
 import org.fusesource.insight.metrics.support.Renderer;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class MetricsTest {
 
@@ -56,4 +64,59 @@ public class MetricsTest {
         assertEquals("local", map.get("host"));
         assertNotNull(map.get("timestamp"));
     }
+
+    @Test
+    public void testIndex() throws Exception {
+        Dummy.calls = 0;
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        MBeanIndex index = new MBeanIndex(mbs);
+        index.start();
+        ObjectName name = new ObjectName("org.fusesource.insight.test:type=Dummy,name=a");
+        try {
+            ObjectName pattern = new ObjectName("org.fusesource.insight.test:type=Dummy,*");
+            assertTrue(index.queryNames(pattern).isEmpty());
+
+            mbs.registerMBean(new Dummy(), name);
+            assertEquals(Collections.singleton(name), index.queryNames(pattern));
+
+            // Both queries are answered from a single getAttributes call on the mbean
+            Query q1 = new Query("q1", new HashSet<Request>(Arrays.<Request>asList(
+                    new MBeanAttrs("dummy", "org.fusesource.insight.test:type=Dummy,*", Arrays.asList("Count")))),
+                    null, null, null, 0, 0);
+            Query q2 = new Query("q2", new HashSet<Request>(Arrays.<Request>asList(
+                    new MBeanAttrs("dummy", "org.fusesource.insight.test:type=Dummy,name=a", Arrays.asList("Count", "Name")))),
+                    null, null, null, 0, 0);
+            List<QueryResult> results = JmxUtils.execute(new Server("local"), Arrays.asList(q1, q2), mbs, index);
+            assertEquals(1, Dummy.calls);
+            List<MBeanAttrResult> r1 = ((MBeanAttrsResult) results.get(0).getResults().get("dummy")).getResults();
+            assertEquals(1, r1.size());
+            assertEquals(Collections.<String, Object>singletonMap("Count", 1), r1.get(0).getAttrs());
+            List<MBeanAttrResult> r2 = ((MBeanAttrsResult) results.get(1).getResults().get("dummy")).getResults();
+            assertEquals(2, r2.get(0).getAttrs().size());
+
+            mbs.unregisterMBean(name);
+            assertTrue(index.queryNames(pattern).isEmpty());
+        } finally {
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+            index.stop();
+        }
+    }
+
+    public interface DummyMBean {
+        int getCount();
+        String getName();
+    }
+
+    public static class Dummy implements DummyMBean {
+        static int calls;
+        public int getCount() {
+            calls++;
+            return 1;
+        }
+        public String getName() {
+            return "a";
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.metrics;
+
+import org.fusesource.insight.metrics.model.MBeanAttrResult;
+import org.fusesource.insight.metrics.model.MBeanAttrs;
+import org.fusesource.insight.metrics.model.MBeanAttrsResult;
+import org.fusesource.insight.metrics.model.QueryResult;
+import org.fusesource.insight.metrics.model.Result;
+import org.fusesource.insight.metrics.model.Server;
+import org.fusesource.insight.metrics.support.Rollup;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollupTest {
+
+    @Test
+    public void testRollup() throws Exception {
+        Rollup rollup = new Rollup("test", 1, new int[] { 10, 60 }, 5);
+
+        // 60 samples from 0s to 59s, then one at 60s closing both windows
+        List<Map<String, Object>> docs = null;
+        for (int i = 0; i <= 60; i++) {
+            docs = rollup.add(result(i * 1000L, i));
+            if (i > 0 && i < 60) {
+                assertEquals(i % 10 == 0 ? 1 : 0, docs.size());
+            }
+        }
+        assertEquals(2, docs.size());
+
+        Map<String, Object> tenSeconds = docs.get(0);
+        assertEquals(10, tenSeconds.get("window"));
+        assertEquals(new Date(50000L), tenSeconds.get("timestamp"));
+        Map<String, Object> metric = ((List<Map<String, Object>>) tenSeconds.get("metrics")).get(0);
+        assertEquals("mem", metric.get("request"));
+        assertEquals("HeapMemoryUsage.used", metric.get("attr"));
+        assertEquals(10L, metric.get("count"));
+        assertEquals(50.0, metric.get("min"));
+        assertEquals(59.0, metric.get("max"));
+        assertEquals(54.5, metric.get("avg"));
+
+        Map<String, Object> oneMinute = docs.get(1);
+        assertEquals(60, oneMinute.get("window"));
+        metric = ((List<Map<String, Object>>) oneMinute.get("metrics")).get(0);
+        assertEquals(60L, metric.get("count"));
+        assertEquals(29.0, metric.get("p50"));
+        assertEquals(53.0, metric.get("p90"));
+        assertEquals(59.0, metric.get("p99"));
+
+        // Only the last raw samples are kept
+        List<Map<String, Object>> series = rollup.getSeries();
+        assertEquals(1, series.size());
+        List<Object[]> samples = (List<Object[]>) series.get(0).get("samples");
+        assertEquals(5, samples.size());
+        assertEquals(56000L, samples.get(0)[0]);
+        assertEquals(60.0, samples.get(4)[1]);
+    }
+
+    @Test
+    public void testParseWindow() {
+        assertEquals(10, MetricsCollector.parseWindow("10s"));
+        assertEquals(60, MetricsCollector.parseWindow("1m"));
+        assertEquals(900, MetricsCollector.parseWindow("15m"));
+        assertEquals(30, MetricsCollector.parseWindow(30));
+        try {
+            MetricsCollector.parseWindow("abc");
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private QueryResult result(long ts, double value) throws Exception {
+        Map<String, Object> usage = new HashMap<String, Object>();
+        usage.put("used", value);
+        usage.put("type", "heap");
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("HeapMemoryUsage", usage);
+        MBeanAttrs request = new MBeanAttrs("mem", "java.lang:type=Memory", Arrays.asList("HeapMemoryUsage"));
+        MBeanAttrsResult r = new MBeanAttrsResult(request, Collections.singletonList(
+                new MBeanAttrResult(new ObjectName("java.lang:type=Memory"), attrs)));
+        Map<String, Result<?>> results = new HashMap<String, Result<?>>();
+        results.put("mem", r);
+        return new QueryResult(new Server("local"), null, new Date(ts), results);
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.storage;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A streaming writer of UTF-8 encoded JSON documents.
+ * <p/>
+ * The document is written into an internal buffer which is kept when the writer is
+ * {@link #reset()}, so that a writer can be reused to encode many events without
+ * building intermediate strings. A writer is not thread safe.
+ */
+public class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buffer;
+    private int count;
+    // whether the current object or array has no element yet, per nesting level
+    private boolean[] first = new boolean[8];
+    private int depth;
+    private final Calendar calendar = Calendar.getInstance();
+
+    public JsonWriter() {
+        this(1024);
+    }
+
+    public JsonWriter(int size) {
+        buffer = new byte[size];
+    }
+
+    /**
+     * Clears the document, keeping the buffer for reuse.
+     */
+    public JsonWriter reset() {
+        count = 0;
+        depth = 0;
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns a copy of the document.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    public JsonWriter startObject() {
+        element();
+        return open('{');
+    }
+
+    public JsonWriter startObject(String name) {
+        name(name);
+        return open('{');
+    }
+
+    public JsonWriter endObject() {
+        return close('}');
+    }
+
+    public JsonWriter startArray(String name) {
+        name(name);
+        return open('[');
+    }
+
+    public JsonWriter endArray() {
+        return close(']');
+    }
+
+    public JsonWriter field(String name, String value) {
+        name(name);
+        string(value);
+        return this;
+    }
+
+    public JsonWriter field(String name, long value) {
+        name(name);
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes the given timestamp as an ISO 8601 date in the default time zone,
+     * formatted as yyyy-MM-dd'T'HH:mm:ss.SSSX, the minutes of the offset being kept
+     * for the zones which are not a whole number of hours away from UTC.
+     */
+    public JsonWriter dateField(String name, long timestamp) {
+        name(name);
+        calendar.setTimeInMillis(timestamp);
+        write('"');
+        digits(calendar.get(Calendar.YEAR), 4);
+        write('-');
+        digits(calendar.get(Calendar.MONTH) + 1, 2);
+        write('-');
+        digits(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        write('T');
+        digits(calendar.get(Calendar.HOUR_OF_DAY), 2);
+        write(':');
+        digits(calendar.get(Calendar.MINUTE), 2);
+        write(':');
+        digits(calendar.get(Calendar.SECOND), 2);
+        write('.');
+        digits(calendar.get(Calendar.MILLISECOND), 3);
+        int offset = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+        if (offset == 0) {
+            write('Z');
+        } else {
+            write(offset < 0 ? '-' : '+');
+            offset = Math.abs(offset);
+            digits(offset / 60, 2);
+            if (offset % 60 != 0) {
+                digits(offset % 60, 2);
+            }
+        }
+        write('"');
+        return this;
+    }
+
+    /**
+     * Writes a string element of the current array.
+     */
+    public JsonWriter value(String value) {
+        element();
+        string(value);
+        return this;
+    }
+
+    private JsonWriter open(char c) {
+        write(c);
+        if (depth == first.length) {
+            first = Arrays.copyOf(first, depth * 2);
+        }
+        first[depth++] = true;
+        return this;
+    }
+
+    private JsonWriter close(char c) {
+        depth--;
+        write(c);
+        return this;
+    }
+
+    private void element() {
+        if (depth > 0) {
+            if (first[depth - 1]) {
+                first[depth - 1] = false;
+            } else {
+                write(',');
+                write(' ');
+            }
+        }
+    }
+
+    private void name(String name) {
+        element();
+        string(name);
+        write(':');
+        write(' ');
+    }
+
+    private void digits(int value, int length) {
+        ensure(length);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer[count + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += length;
+    }
+
+    private void ascii(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a quoted string, escaped with the same rules as the JSON strings built by the insight appenders.
+     */
+    private void string(String s) {
+        write('"');
+        if (s != null) {
+            int len = s.length();
+            char c = 0;
+            for (int i = 0; i < len; i++) {
+                char b = c;
+                c = s.charAt(i);
+                switch (c) {
+                    case '\\':
+                    case '"':
+                        write('\\');
+                        write(c);
+                        break;
+                    case '/':
+                        if (b == '<') {
+                            write('\\');
+                        }
+                        write(c);
+                        break;
+                    case '\b':
+                        escape('b');
+                        break;
+                    case '\t':
+                        escape('t');
+                        break;
+                    case '\n':
+                        escape('n');
+                        break;
+                    case '\f':
+                        escape('f');
+                        break;
+                    case '\r':
+                        escape('r');
+                        break;
+                    default:
+                        if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                            ensure(6);
+                            buffer[count++] = '\\';
+                            buffer[count++] = 'u';
+                            buffer[count++] = HEX[(c >> 12) & 0xf];
+                            buffer[count++] = HEX[(c >> 8) & 0xf];
+                            buffer[count++] = HEX[(c >> 4) & 0xf];
+                            buffer[count++] = HEX[c & 0xf];
+                        } else if (c < 0x80) {
+                            write(c);
+                        } else if (c < 0x800) {
+                            ensure(2);
+                            buffer[count++] = (byte) (0xc0 | (c >> 6));
+                            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                            int cp = Character.toCodePoint(c, s.charAt(++i));
+                            ensure(4);
+                            buffer[count++] = (byte) (0xf0 | (cp >> 18));
+                            buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                            buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                            buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+                        } else if (Character.isSurrogate(c)) {
+                            // unpaired surrogate
+                            write('?');
+                        } else {
+                            ensure(3);
+                            buffer[count++] = (byte) (0xe0 | (c >> 12));
+                            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+                        }
+                }
+            }
+        }
+        write('"');
+    }
+
+    private void escape(char c) {
+        write('\\');
+        write(c);
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[count++] = (byte) c;
+    }
+
+    private void ensure(int length) {
+        if (count + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+    }
+
+}
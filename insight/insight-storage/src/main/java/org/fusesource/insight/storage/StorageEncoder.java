@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes events to JSON on a background thread before storing them, so that the
+ * threads producing the events only pay for queuing them.
+ * <p/>
+ * Events are queued in a bounded queue and dropped when it is full, as the producing
+ * threads are application threads which should not be slowed down. The events must
+ * therefore not be modified once submitted. The dropped events are counted and
+ * reported to the storage. Events are encoded with a single {@link JsonWriter}
+ * whose buffer is reused.
+ */
+public abstract class StorageEncoder<T> {
+
+    private final String name;
+    private final BlockingQueue<Task<T>> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final JsonWriter writer = new JsonWriter();
+    private Thread thread;
+    private volatile boolean running;
+
+    protected StorageEncoder(String name, int capacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<Task<T>>(capacity);
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    encode();
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the encoding thread, dropping the events which have not been encoded yet.
+     * Waits for the thread to exit so that a restarted encoder never shares the writer
+     * with it.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            if (thread != Thread.currentThread()) {
+                boolean interrupted = false;
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            thread = null;
+        }
+        List<Task<T>> pending = new ArrayList<Task<T>>();
+        queue.drainTo(pending);
+        for (Task<T> task : pending) {
+            drop(task.storage, task.type, task.timestamp);
+        }
+    }
+
+    /**
+     * Queues an event to be encoded and stored.
+     *
+     * @return false if the event has been dropped
+     */
+    public boolean submit(StorageService storage, String type, long timestamp, T event) {
+        if (!running || !queue.offer(new Task<T>(storage, type, timestamp, event))) {
+            drop(storage, type, timestamp);
+            return false;
+        }
+        return true;
+    }
+
+    private void drop(StorageService storage, String type, long timestamp) {
+        dropped.incrementAndGet();
+        if (storage != null) {
+            storage.dropped(type, timestamp);
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the given event as a JSON object.
+     */
+    protected abstract void encode(T event, JsonWriter writer) throws Exception;
+
+    /**
+     * Called when an event can not be encoded or stored.
+     */
+    protected void handleError(T event, Exception e) {
+    }
+
+    private void encode() {
+        while (running) {
+            Task<T> task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                writer.reset();
+                encode(task.event, writer);
+                task.storage.store(task.type, task.timestamp, writer.toByteArray());
+            } catch (Exception e) {
+                handleError(task.event, e);
+            }
+        }
+    }
+
+    private static class Task<T> {
+        private final StorageService storage;
+        private final String type;
+        private final long timestamp;
+        private final T event;
+
+        private Task(StorageService storage, String type, long timestamp, T event) {
+            this.storage = storage;
+            this.type = type;
+            this.timestamp = timestamp;
+            this.event = event;
+        }
+    }
+
+}
@@ -27,4 +27,22 @@ public interface StorageService {
      */
     void store(String type, long timestamp, String jsonData);
 
+    /**
+     * Store an event which has already been encoded.
+     *
+     * @param type the type of document to store
+     * @param timestamp the date of the event
+     * @param jsonData the data to store, as UTF-8 encoded JSON, which must not be modified afterwards
+     */
+    void store(String type, long timestamp, byte[] jsonData);
+
+    /**
+     * Records an event which has been dropped before reaching the storage,
+     * so that it is accounted for in the storage metrics.
+     *
+     * @param type the type of the dropped document
+     * @param timestamp the date of the event
+     */
+    void dropped(String type, long timestamp);
+
 }
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.storage;
+
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class JsonWriterTest {
+
+    @Test
+    public void testEscaping() throws Exception {
+        JsonWriter writer = new JsonWriter();
+        writer.startObject()
+                .field("quote\"", "a\\b\"c")
+                .field("controls", "\b\t\n\f\r\u0001")
+                .field("script", "</script> a/b")
+                .field("separators", "\u0085\u2028")
+                .field("null", null)
+                .endObject();
+        assertEquals("{\"quote\\\"\": \"a\\\\b\\\"c\", "
+                + "\"controls\": \"\\b\\t\\n\\f\\r\\u0001\", "
+                + "\"script\": \"<\\/script> a/b\", "
+                + "\"separators\": \"\\u0085\\u2028\", "
+                + "\"null\": \"\"}", toString(writer));
+    }
+
+    @Test
+    public void testUtf8() throws Exception {
+        String text = "caf\u00e9 \u4e16 \ud83d\ude00";
+        JsonWriter writer = new JsonWriter(4);
+        writer.startObject().field("text", text).endObject();
+        assertArrayEquals(("{\"text\": \"" + text + "\"}").getBytes("UTF-8"), writer.toByteArray());
+    }
+
+    @Test
+    public void testUnpairedSurrogates() throws Exception {
+        JsonWriter writer = new JsonWriter();
+        writer.startObject().field("text", "a\ud83db\ude00").field("end", "\ud83d").endObject();
+        assertEquals("{\"text\": \"a?b?\", \"end\": \"?\"}", toString(writer));
+    }
+
+    @Test
+    public void testDates() throws Exception {
+        TimeZone zone = TimeZone.getDefault();
+        try {
+            // 2013-01-02T03:04:05.006Z
+            long timestamp = 1357095845006L;
+            TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+            assertEquals("{\"date\": \"2013-01-02T03:04:05.006Z\"}", date(timestamp));
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT-08:00"));
+            assertEquals("{\"date\": \"2013-01-01T19:04:05.006-08\"}", date(timestamp));
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT+05:30"));
+            assertEquals("{\"date\": \"2013-01-02T08:34:05.006+0530\"}", date(timestamp));
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT-03:30"));
+            assertEquals("{\"date\": \"2013-01-01T23:34:05.006-0330\"}", date(timestamp));
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+    }
+
+    @Test
+    public void testNesting() throws Exception {
+        JsonWriter writer = new JsonWriter();
+        writer.startObject()
+                .field("count", -42)
+                .startArray("lines").value("a").value("b").endArray()
+                .startArray("empty").endArray()
+                .startArray("objects")
+                    .startObject().field("a", 1).endObject()
+                    .startObject().startObject("b").endObject().endObject()
+                .endArray()
+                .startObject("properties").field("key", "value").endObject()
+                .endObject();
+        assertEquals("{\"count\": -42, \"lines\": [\"a\", \"b\"], \"empty\": [], "
+                + "\"objects\": [{\"a\": 1}, {\"b\": {}}], "
+                + "\"properties\": {\"key\": \"value\"}}", toString(writer));
+    }
+
+    @Test
+    public void testDeepNesting() throws Exception {
+        JsonWriter writer = new JsonWriter();
+        StringBuilder expected = new StringBuilder();
+        writer.startObject();
+        expected.append("{");
+        for (int i = 0; i < 20; i++) {
+            writer.field("v", i).startObject("o");
+            expected.append("\"v\": ").append(i).append(", \"o\": {");
+        }
+        for (int i = 0; i < 21; i++) {
+            writer.endObject();
+            expected.append("}");
+        }
+        assertEquals(expected.toString(), toString(writer));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        JsonWriter writer = new JsonWriter();
+        writer.startObject().startArray("a").value("x");
+        writer.reset();
+        assertEquals(0, writer.size());
+        writer.startObject().field("b", "y").endObject();
+        assertEquals("{\"b\": \"y\"}", toString(writer));
+    }
+
+    private static String date(long timestamp) throws Exception {
+        // the calendar of the writer uses the default time zone when created
+        JsonWriter writer = new JsonWriter();
+        writer.startObject().dateField("date", timestamp).endObject();
+        return toString(writer);
+    }
+
+    private static String toString(JsonWriter writer) throws Exception {
+        return new String(writer.toByteArray(), "UTF-8");
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.insight.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StorageEncoderTest {
+
+    @Test
+    public void testEncoding() throws Exception {
+        Storage storage = new Storage(1);
+        StorageEncoder<String> encoder = new Encoder(10, null);
+        encoder.start();
+        try {
+            assertTrue(encoder.submit(storage, "log", 1L, "hello"));
+            assertTrue(storage.stored.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("log {\"message\": \"hello\"}"), storage.documents);
+            assertEquals(0, encoder.getDroppedCount());
+        } finally {
+            encoder.stop();
+        }
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        Storage storage = new Storage(2);
+        CountDownLatch blocker = new CountDownLatch(1);
+        Encoder encoder = new Encoder(1, blocker);
+        encoder.start();
+        try {
+            // the first event is being encoded, the second one is queued
+            assertTrue(encoder.submit(storage, "log", 1L, "first"));
+            assertTrue(encoder.encoding.await(5, TimeUnit.SECONDS));
+            assertTrue(encoder.submit(storage, "log", 2L, "second"));
+            assertFalse(encoder.submit(storage, "log", 3L, "third"));
+            assertEquals(1, encoder.getDroppedCount());
+            assertEquals(1, storage.dropped.size());
+
+            blocker.countDown();
+            assertTrue(storage.stored.await(5, TimeUnit.SECONDS));
+            assertEquals(2, storage.documents.size());
+            assertTrue(encoder.submit(storage, "log", 4L, "fourth"));
+        } finally {
+            encoder.stop();
+        }
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        Storage storage = new Storage(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        Encoder encoder = new Encoder(10, blocker);
+        assertFalse(encoder.submit(storage, "log", 1L, "not started"));
+        encoder.start();
+        assertTrue(encoder.submit(storage, "log", 2L, "first"));
+        assertTrue(encoder.encoding.await(5, TimeUnit.SECONDS));
+        assertTrue(encoder.submit(storage, "log", 3L, "second"));
+        assertTrue(encoder.submit(storage, "log", 4L, "third"));
+
+        // the queued events are dropped, the event being encoded is interrupted
+        encoder.stop();
+        assertEquals(3, encoder.getDroppedCount());
+        assertEquals(3, storage.dropped.size());
+        assertTrue(encoder.interrupted.await(5, TimeUnit.SECONDS));
+        assertFalse(encoder.submit(storage, "log", 5L, "stopped"));
+        assertEquals(4, encoder.getDroppedCount());
+        assertEquals(0, storage.documents.size());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        Storage storage = new Storage(1);
+        CountDownLatch blocker = new CountDownLatch(1);
+        Encoder encoder = new Encoder(10, blocker);
+        encoder.start();
+        assertTrue(encoder.submit(storage, "log", 1L, "first"));
+        assertTrue(encoder.encoding.await(5, TimeUnit.SECONDS));
+
+        // the previous thread is done with the writer once stopped
+        encoder.stop();
+        assertEquals(0, encoder.interrupted.getCount());
+        blocker.countDown();
+        encoder.start();
+        try {
+            assertTrue(encoder.submit(storage, "log", 2L, "second"));
+            assertTrue(storage.stored.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("log {\"message\": \"second\"}"), storage.documents);
+        } finally {
+            encoder.stop();
+        }
+    }
+
+    static class Encoder extends StorageEncoder<String> {
+        final CountDownLatch encoding = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch blocker;
+
+        Encoder(int capacity, CountDownLatch blocker) {
+            super("StorageEncoderTest", capacity);
+            this.blocker = blocker;
+        }
+
+        @Override
+        protected void encode(String event, JsonWriter writer) throws Exception {
+            encoding.countDown();
+            if (blocker != null) {
+                blocker.await();
+            }
+            writer.startObject().field("message", event).endObject();
+        }
+
+        @Override
+        protected void handleError(String event, Exception e) {
+            if (e instanceof InterruptedException) {
+                interrupted.countDown();
+            }
+        }
+    }
+
+    static class Storage implements StorageService {
+        final List<String> documents = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch stored;
+
+        Storage(int count) {
+            stored = new CountDownLatch(count);
+        }
+
+        public void store(String type, long timestamp, String jsonData) {
+            documents.add(type + " " + jsonData);
+            stored.countDown();
+        }
+
+        public void store(String type, long timestamp, byte[] jsonData) {
+            try {
+                store(type, timestamp, new String(jsonData, "UTF-8"));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void dropped(String type, long timestamp) {
+            dropped.add(type + " " + timestamp);
+        }
+    }
+
+}